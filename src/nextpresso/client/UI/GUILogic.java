@@ -2,11 +2,15 @@ package nextpresso.client.UI;
 
 import nextpresso.client.core.ClientAPI;
 import nextpresso.model.ErrorMessage;
+import nextpresso.model.HeaderKey;
+import nextpresso.model.HeaderRecords;
 import nextpresso.model.Message;
+import nextpresso.model.NPP2Codec;
 import nextpresso.model.NetSocket;
 import nextpresso.model.NextPressoException;
 import nextpresso.tools.MD5Hashing;
 import nextpresso.tools.ApiProtocol;
+import nextpresso.tools.CryptoSession;
 import nextpresso.tools.CryptoTools;
 
 import javax.swing.*;
@@ -14,7 +18,9 @@ import java.awt.*;
 import java.io.File;
 import java.io.IOException;
 import java.security.KeyPair;
+import java.security.PrivateKey;
 import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
 import java.util.Timer;
 import java.util.*;
 
@@ -30,11 +36,15 @@ public class GUILogic {
     private TimerTask guiWatchTask;
     private final HashMap<String,Boolean> allGroups, allUsers;
     private final HashMap<String, String> outgoingTransfers; //Username, Path
-    private final Map<String,String> publicKeys; //Username, RSA key
-    private final HashMap<String, Map.Entry<String, String>> sessionKeys; //Username, <AES Key in base64, AES IV in base64>
-    private final String privateKey,publicKey;
+    private final Map<String,String> publicKeys; //Username, X25519 or RSA key
+    private final HashMap<String, CryptoSession> sessionKeys; //Username, AES session
+    private final HashMap<String, CryptoSession> sealingSessionKeys; //Username, AES-GCM session of the same agreement, used over NPP/2
+    private final Map<String, PendingSeal> pendingSealedMessages; //Base64 of the sealed bytes, sealed message that the server did not answer yet
+    private final Set<String> base64Users; //Users that cannot receive sealed messages, such as users on NPP/1.1 or offline users
+    private final PrivateKey agreementKey; //X25519, derives the session keys that other users start
+    private final String publicKey;
     private int filePort;
-    private String serverURL,username, iv;
+    private String serverURL,username;
 
     public GUILogic() {
         this.gui = new MainPane(this);
@@ -42,12 +52,23 @@ public class GUILogic {
         this.allGroups = new HashMap<>();
         this.outgoingTransfers = new HashMap<>();
         this.sessionKeys = new HashMap<>();
+        this.sealingSessionKeys = new HashMap<>();
+        this.pendingSealedMessages = Collections.synchronizedMap(new LinkedHashMap<>());
+        this.base64Users = Collections.synchronizedSet(new HashSet<>());
         this.publicKeys = Collections.synchronizedMap(new HashMap<>());
-        KeyPair keys = CryptoTools.generateRSAKeyPair();
-        privateKey = Base64.getEncoder().encodeToString(keys.getPrivate().getEncoded());
+        KeyPair keys = CryptoTools.generateX25519KeyPair();
+        agreementKey = keys.getPrivate();
         publicKey = Base64.getEncoder().encodeToString(keys.getPublic().getEncoded());
     }
 
+    /**
+     * Sealed direct message, kept till the server answers so it can be sent again as AES-CBC if the target cannot receive it
+     * @param target Username of the message target
+     * @param message Message before it was sealed
+     */
+    private record PendingSeal(String target, String message) {
+    }
+
     /**
      * Handles logging in to the server
      */
@@ -78,6 +99,11 @@ public class GUILogic {
         Message[] cache = api.getMessageCache();
         while (cache.length == 0) cache = api.getMessageCache();
         gui.chatView.append(cache[0].toString() + "\n");
+        try {
+            if (!api.isLegacyConnection() && !api.requestProtocolUpgrade()) System.err.println("> Server did not switch to " + NPP2Codec.VERSION + ", encrypted messages use Base64");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private void handleLogon() throws IllegalStateException{
@@ -86,7 +112,7 @@ public class GUILogic {
             if (cache.length > 0) {
                 for (Message message : cache) {
                     if (message.getHeaderCode() == ApiProtocol.ACKNOWLEDGE_LOGIN) {
-                        authenticated = message.getHeaderRecords().containsKey("authenticated") && message.getHeaderRecords().get("authenticated").equals("true");
+                        authenticated = message.getHeaderRecords().isTrue(HeaderKey.AUTHENTICATED);
                         return;
                     }
                     if (message instanceof ErrorMessage) throw new IllegalStateException(message.toString());
@@ -100,7 +126,7 @@ public class GUILogic {
         String displayedUsername = authenticated ? "*" + response[3] : response[3];
         gui.frontendUpdateOnConnection(displayedUsername, api.isLegacyConnection());
         checkServerMessages();
-        if (!api.isLegacyConnection()) uploadRSA();
+        if (!api.isLegacyConnection()) uploadPublicKey();
     }
 
     /**
@@ -121,8 +147,14 @@ public class GUILogic {
                             case ACKNOWLEDGE_SEND_FILE -> ShowDialog.infoDialog("Sent request to transfer file: "+m.getPayload(), "File upload");
                             case REQUEST_SEND_FILE -> handleFileSendRequest(m);
                             case REQUEST_RECEIVE_FILE -> handleFileTransferAccept(m);
-                            case ACKNOWLEDGE_GET_KEY -> publicKeys.put(m.getHeaderRecords().get("username"),m.getPayload().isBlank() ? null : m.getPayload());
+                            case ACKNOWLEDGE_GET_KEY -> publicKeys.put(m.getHeaderRecords().username(),m.getPayload().isBlank() ? null : m.getPayload());
                             case ENCRYPTION_SET_KEY -> handleNewSessionKey(m);
+                            case ACKNOWLEDGE_PRIVATE_MESSAGE -> {
+                                if (m.getHeaderRecords().hasBinaryBody()) pendingSealedMessages.remove(Base64.getEncoder().encodeToString(NPP2Codec.fromBinaryBody(m.getPayload())));
+                            }
+                            case ERROR_NOT_ALLOWED -> {
+                                if (!resendRefusedSealedMessages(m)) System.out.println(m);
+                            }
                             case MESSAGE_SERVER_INFO, MESSAGE_CHAT, MESSAGE_SERVER_GROUP_NEW_USER -> gui.chatView.append(handleDisplayableMessage(m) + "\n");
                             default -> System.out.println(m);
                         }
@@ -144,7 +176,7 @@ public class GUILogic {
         if (!api.isLegacyConnection()) watchUsersAndGroups();
     }
 
-    private void uploadRSA(){
+    private void uploadPublicKey(){
         api.submitPublicKey(publicKey);
     }
 
@@ -170,15 +202,16 @@ public class GUILogic {
      * @return The string to be displayed in the UI
      */
     private String handleDisplayableMessage(Message incomingMessage){
-        if (incomingMessage.getHeaderRecords().containsKey("encrypted") && incomingMessage.getHeaderRecords().get("encrypted").equals("true")){
-            if (!sessionKeys.containsKey(incomingMessage.getHeaderRecords().get("sender")))return "! INVALID ENCRYPTED MESSAGE, CHECK WITH SENDER !";
-            String aesKey = sessionKeys.get(incomingMessage.getHeaderRecords().get("sender")).getKey();
-            String aesIV = sessionKeys.get(incomingMessage.getHeaderRecords().get("sender")).getValue();
-            String message = CryptoTools.decryptAESString(aesKey,aesIV,incomingMessage.getPayload());
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
+        if (headerRecords.isEncrypted()){
+            boolean sealed = headerRecords.hasBinaryBody();
+            CryptoSession session = (sealed ? sealingSessionKeys : sessionKeys).get(headerRecords.sender());
+            if (session == null)return "! INVALID ENCRYPTED MESSAGE, CHECK WITH SENDER !";
+            String message = sealed ? session.open(NPP2Codec.fromBinaryBody(incomingMessage.getPayload())) : session.decrypt(incomingMessage.getPayload());
             StringBuilder builder = new StringBuilder();
             builder.append("[ENCRYPTED] ");
-            if(incomingMessage.getHeaderRecords().get("authenticated").equals("true")) builder.append('*');
-            builder.append(incomingMessage.getHeaderRecords().get("sender"));
+            if(headerRecords.isTrue(HeaderKey.AUTHENTICATED)) builder.append('*');
+            builder.append(headerRecords.sender());
             builder.append(" says: ");
             builder.append(message);
             return builder.toString();
@@ -235,6 +268,7 @@ public class GUILogic {
                 allUsers.remove(user);
                 publicKeys.remove(user);
                 sessionKeys.remove(user);
+                sealingSessionKeys.remove(user);
             }
         }
         for (String user : tmpList.keySet()){
@@ -370,28 +404,66 @@ public class GUILogic {
 
     private void sendEncryptedDirectMessage(String target, String message) throws NextPressoException, IOException, IllegalStateException {
         if (!sessionKeys.containsKey(target))configureEncryption(target);
-        Map.Entry<String, String> aesPair = sessionKeys.get(target);
-        String encryptedMessage = CryptoTools.encryptAESString(aesPair.getKey(),aesPair.getValue(),message);
+        if (api.isBinaryProtocol() && sealingSessionKeys.containsKey(target) && !base64Users.contains(target)) {
+            byte[] sealedMessage = sealingSessionKeys.get(target).seal(message);
+            if (sealedMessage == null) throw new IllegalStateException("Message could not be encrypted.");
+            pendingSealedMessages.put(Base64.getEncoder().encodeToString(sealedMessage), new PendingSeal(target, message));
+            api.requestSealedDirectMessage(target,sealedMessage);
+            return;
+        }
+        String encryptedMessage = sessionKeys.get(target).encrypt(message);
         api.requestDirectMessage(target,encryptedMessage,true);
     }
 
     /**
-     * Configure message encryption with another client
+     * Send the sealed messages for a user again as AES-CBC Base64 bodies, once the server refused one of them.
+     * The user keeps getting AES-CBC messages from then on
+     * @param refusal Refusal of the server that names the target
+     * @return False if the refusal is not about sealed messages
+     */
+    private boolean resendRefusedSealedMessages(Message refusal) {
+        if (!refusal.getHeaderRecords().contains(HeaderKey.USERNAME)) return false;
+        String target = refusal.getHeaderRecords().username();
+        ArrayList<String> messages = new ArrayList<>();
+        synchronized (pendingSealedMessages) {
+            Iterator<PendingSeal> pending = pendingSealedMessages.values().iterator();
+            while (pending.hasNext()) {
+                PendingSeal sealed = pending.next();
+                if (!sealed.target().equals(target)) continue;
+                messages.add(sealed.message());
+                pending.remove();
+            }
+        }
+        if (messages.isEmpty()) return false;
+        base64Users.add(target);
+        try {
+            for (String message : messages) api.requestDirectMessage(target, sessionKeys.get(target).encrypt(message), true);
+        } catch (IOException | NextPressoException e) {
+            renderException(e);
+        }
+        return true;
+    }
+
+    /**
+     * Configure message encryption with another client. Only X25519 key agreement is supported,
+     * older clients that publish an RSA key cannot get encrypted messages
      * @param target The target of the encrypted channel
      * @throws NextPressoException Thrown if an issue occurs when communicating with the server
      * @throws IllegalStateException Thrown if the other party has no encryption support
      */
     private void configureEncryption(String target) throws NextPressoException, IllegalStateException {
         readPubKey(target);
-        if (iv == null) iv = Base64.getEncoder().encodeToString(CryptoTools.generateIv().getIV());
-        String sessionKey = Base64.getEncoder().encodeToString(CryptoTools.generateAESKey().getEncoded());
-        sessionKeys.put(target, new AbstractMap.SimpleEntry<>(sessionKey,iv));
-
-        String encryptedSession = CryptoTools.encryptRSAString(publicKeys.get(target),sessionKey);
-        String encryptedIV = CryptoTools.encryptRSAString(publicKeys.get(target),iv);
-        api.sendSessionKey(target,encryptedSession,encryptedIV);
-
-        publicKeys.remove(target);
+        String targetPublicKey = publicKeys.remove(target);
+        try {
+            //The session key is agreed on with a fresh key pair, only its public key is sent
+            KeyPair ephemeralKeys = CryptoTools.generateX25519KeyPair();
+            String ephemeralKey = Base64.getEncoder().encodeToString(ephemeralKeys.getPublic().getEncoded());
+            CryptoTools.SessionKey agreedKey = CryptoTools.agreeSessionKey(ephemeralKeys.getPrivate(), targetPublicKey, ephemeralKey);
+            putSessionKeys(target, agreedKey);
+            api.sendAgreedSessionKey(target, ephemeralKey);
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException("Message target uses an older client with an RSA key, which cannot receive encrypted messages anymore.", e);
+        }
     }
 
     /**
@@ -433,17 +505,18 @@ public class GUILogic {
      * @param incomingMessage Message that holds the file request
      */
     private void handleFileSendRequest(Message incomingMessage) {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
         try {
-            if (!ShowDialog.fileAcceptanceDialog(incomingMessage.getHeaderRecords().get("filename"), incomingMessage.getHeaderRecords().get("sender"))) {
-                api.requestFileAcceptance(incomingMessage.getHeaderRecords().get("sender"), incomingMessage.getHeaderRecords().get("filename"), false);
+            if (!ShowDialog.fileAcceptanceDialog(headerRecords.filename(), headerRecords.sender())) {
+                api.requestFileAcceptance(headerRecords.sender(), headerRecords.filename(), false);
                 return;
             }
-            api.requestFileAcceptance(incomingMessage.getHeaderRecords().get("sender"), incomingMessage.getHeaderRecords().get("filename"), true);
+            api.requestFileAcceptance(headerRecords.sender(), headerRecords.filename(), true);
             Thread transfer = new Thread(new FileTransfer(new NetSocket(serverURL,filePort),
-                    incomingMessage.getHeaderRecords().get("filename"),
-                    incomingMessage.getHeaderRecords().get("checksum"),
-                    Long.parseLong(incomingMessage.getHeaderRecords().get("filelength")),
-                    incomingMessage.getHeaderRecords().get("sender"),
+                    headerRecords.filename(),
+                    headerRecords.checksum(),
+                    Long.parseLong(headerRecords.filelength()),
+                    headerRecords.sender(),
                     username));
             transfer.start();
         } catch (IOException | NextPressoException e) {
@@ -456,11 +529,12 @@ public class GUILogic {
      * @param incomingMessage Message that hold the info if file transfer is accepter or not
      */
     private void handleFileTransferAccept(Message incomingMessage){
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
         try{
-            if (incomingMessage.getHeaderRecords().containsKey("accepted")) {
-                if (incomingMessage.getHeaderRecords().get("accepted").equals("true")) {
+            if (headerRecords.contains(HeaderKey.ACCEPTED)) {
+                if (headerRecords.isTrue(HeaderKey.ACCEPTED)) {
                     readFile(incomingMessage);
-                } else ShowDialog.warningDialog("User '"+incomingMessage.getHeaderRecords().get("sender")+"' rejected the file '"+incomingMessage.getHeaderRecords().get("filename")+"'", "File Upload");
+                } else ShowDialog.warningDialog("User '"+headerRecords.sender()+"' rejected the file '"+headerRecords.filename()+"'", "File Upload");
             }
         }
         catch (IOException | NoSuchAlgorithmException e) {
@@ -473,23 +547,43 @@ public class GUILogic {
      * @param incomingMessage Message with file transfer setup data
      */
     private void readFile(Message incomingMessage) throws IOException, NoSuchAlgorithmException {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
         Thread fileReaderThread = new Thread(new FileTransfer(new NetSocket(serverURL, filePort),
-                incomingMessage.getHeaderRecords().get("filename"),
-                MD5Hashing.getHash(outgoingTransfers.get(incomingMessage.getHeaderRecords().get("sender"))),
-                incomingMessage.getHeaderRecords().get("sender"),
+                headerRecords.filename(),
+                MD5Hashing.getHash(outgoingTransfers.get(headerRecords.sender())),
+                headerRecords.sender(),
                 username,
-                outgoingTransfers.get(incomingMessage.getHeaderRecords().get("sender"))),"FileReaderThread");
+                outgoingTransfers.get(headerRecords.sender())),"FileReaderThread");
         fileReaderThread.start();
     }
 
     /**
-     * Get session key from another user
+     * Get session key from another user. The key is derived from the ephemeral X25519 key of the other user and our own key
      * @param incomingMessage Message holding the session key
      */
     private void handleNewSessionKey(Message incomingMessage){
-        String key = CryptoTools.decryptRSAString(privateKey,incomingMessage.getPayload().split(",")[0]);
-        String iv = CryptoTools.decryptRSAString(privateKey,incomingMessage.getPayload().split(",")[1]);
-        sessionKeys.put(incomingMessage.getHeaderRecords().get("sender"),new AbstractMap.SimpleEntry<>(key,iv));
+        String sender = incomingMessage.getHeaderRecords().sender();
+        String[] parts = incomingMessage.getPayload().split(",");
+        if (parts.length != 2 || !CryptoTools.X25519.equals(parts[0])) {
+            System.err.println("> Session key of '" + sender + "' is not meant for an X25519 key");
+            return;
+        }
+        try {
+            CryptoTools.SessionKey agreedKey = CryptoTools.agreeSessionKey(agreementKey, parts[1], parts[1]);
+            putSessionKeys(sender, agreedKey);
+        } catch (InvalidKeySpecException e) {
+            System.err.println("> Could not agree on a session key with '" + sender + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Store the sessions of an agreed session key, AES-CBC for NPP/1.1 and AES-GCM for NPP/2. Each has its own key
+     * @param user User of the encrypted channel
+     * @param sessionKey Keys and IV that were derived from the agreement
+     */
+    private void putSessionKeys(String user, CryptoTools.SessionKey sessionKey) {
+        sessionKeys.put(user, CryptoSession.aes(sessionKey.b64Key(), sessionKey.b64Iv()));
+        sealingSessionKeys.put(user, CryptoSession.aesGcm(sessionKey.b64SealingKey()));
     }
 
     /**
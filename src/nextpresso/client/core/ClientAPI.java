@@ -2,7 +2,9 @@ package nextpresso.client.core;
 
 import nextpresso.model.*;
 import nextpresso.tools.ApiProtocol;
+import nextpresso.tools.CryptoTools;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -10,6 +12,8 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * API to communicate with the socket and the user
  */
 public class ClientAPI {
+    private static final long UPGRADE_TIMEOUT = 3000; //Milliseconds
+
     private final NetSocket socket;
     /**
      * Holds queued in messages that are read from the socket
@@ -28,6 +32,11 @@ public class ClientAPI {
      * Flag to indicate if the socket is connected to the legacy server
      */
     private boolean legacyConnection;
+    /**
+     * Flag to indicate that a protocol upgrade request waits for its answer. Guarded by itself for the wait
+     */
+    private volatile boolean upgradePending;
+    private final Object upgradeLock = new Object();
 
     /**
      * Create a new Client API
@@ -73,9 +82,19 @@ public class ClientAPI {
      */
     private void handleIncomingMessages() throws IOException, NextPressoException, InterruptedException {
         while (true){
+            Message incomingMessage = null;
+            if (socket.isBinaryProtocol()) {
+                try {
+                    incomingMessage = NPP2Codec.decode(socket.awaitIncomingNPP2Frame()).buildMessage();
+                } catch (EOFException e) {
+                    break; //Socket closed
+                }
+                if (incomingMessage.getHeaderCode() == ApiProtocol.HEARTBEAT_REQUEST) handleHeartbeatRequest();
+                else messageCache.add(incomingMessage);
+                continue;
+            }
             String incomingStringMessage = socket.getIncomingMessage();
             if (incomingStringMessage == null) break; //Socket closed
-            Message incomingMessage = null;
             if (!legacyConnection) {
                 try {
                     //Attempt to interpret message as NPP
@@ -87,6 +106,7 @@ public class ClientAPI {
             }
             if (legacyConnection) incomingMessage = new LegacyMessageBuilder(incomingStringMessage).buildMessage();
             if (incomingMessage!=null) {
+                if (upgradePending && handleUpgradeAnswer(incomingMessage)) continue; //Nothing else arrives till the upgrade is answered
                 if (incomingMessage.getHeaderCode() == ApiProtocol.HEARTBEAT_REQUEST) handleHeartbeatRequest();
                 else messageCache.add(incomingMessage);
             }
@@ -94,6 +114,40 @@ public class ClientAPI {
         }
     }
 
+    /**
+     * Take the answer of a protocol upgrade request. After an acknowledgement every later message is read as an NPP/2 frame
+     * @param incomingMessage Message that may answer the request
+     * @return True if the message answered the request
+     */
+    private boolean handleUpgradeAnswer(Message incomingMessage) {
+        if (incomingMessage.getHeaderCode() == ApiProtocol.ACKNOWLEDGE_PROTOCOL_UPGRADE) socket.useBinaryProtocol();
+        else if (!(incomingMessage instanceof ErrorMessage)) return false;
+        synchronized (upgradeLock) {
+            upgradePending = false;
+            upgradeLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Request to switch the connection to NPP/2 and wait for the answer. This must be done before logging in,
+     * since nothing may be sent till the server answers
+     * @return True - the connection uses NPP/2
+     * @throws InterruptedException If the wait for the answer is interrupted
+     */
+    public boolean requestProtocolUpgrade() throws InterruptedException {
+        if (legacyConnection) return false;
+        synchronized (upgradeLock) {
+            upgradePending = true;
+            socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_PROTOCOL_UPGRADE, NPP2Codec.VERSION).buildProtocolString());
+            long deadline = System.currentTimeMillis() + UPGRADE_TIMEOUT;
+            long remaining;
+            while (upgradePending && (remaining = deadline - System.currentTimeMillis()) > 0) upgradeLock.wait(remaining);
+            upgradePending = false;
+        }
+        return socket.isBinaryProtocol();
+    }
+
     /**
      * Respond to heartbeats
      */
@@ -162,6 +216,17 @@ public class ClientAPI {
         if (!legacyConnection) socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_PRIVATE_MESSAGE,message).username(targetUsername).encrypted(isEncrypted).buildProtocolString());
     }
 
+    /**
+     * Request to send a sealed direct message to another user. The sealed bytes are sent as they are, so the connection must use NPP/2
+     * @param targetUsername Username of the message target
+     * @param sealedMessage Message sealed with AES-GCM
+     * @throws NextPressoException If the username is invalid
+     */
+    public void requestSealedDirectMessage(String targetUsername, byte[] sealedMessage) throws NextPressoException {
+        if (!socket.isBinaryProtocol()) throw new NextPressoException("Encryption Error", "Sealed messages need " + NPP2Codec.VERSION + "!");
+        socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_PRIVATE_MESSAGE, NPP2Codec.toBinaryBody(sealedMessage)).username(targetUsername).encrypted(HeaderRecords.ENCRYPTION_AES_GCM));
+    }
+
     /**
      * Request user login. Password is optional
      * @param username Username to log in
@@ -253,14 +318,13 @@ public class ClientAPI {
     }
 
     /**
-     * Send session key to a user
+     * Send the ephemeral X25519 public key of a session key agreement to a user
      * @param username Username to who the session key should be sent
-     * @param sessionAES Session key
-     * @param sessionIV Session IV
+     * @param b64EphemeralKey Ephemeral X25519 public key in standard Base64
      * @throws NextPressoException If a parameter is invalid or has an incorrect format
      */
-    public void sendSessionKey(String username, String sessionAES, String sessionIV) throws NextPressoException {
-        if (!legacyConnection) socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.ENCRYPTION_SET_KEY,sessionAES+","+sessionIV).username(username).buildProtocolString());
+    public void sendAgreedSessionKey(String username, String b64EphemeralKey) throws NextPressoException {
+        if (!legacyConnection) socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.ENCRYPTION_SET_KEY,CryptoTools.X25519+","+b64EphemeralKey).username(username).buildProtocolString());
     }
 
     /**
@@ -302,4 +366,12 @@ public class ClientAPI {
     public boolean isLegacyConnection() {
         return legacyConnection;
     }
+
+    /**
+     * Check if the connection has been upgraded to NPP/2
+     * @return True - binary message bodies can be sent
+     */
+    public boolean isBinaryProtocol() {
+        return socket.isBinaryProtocol();
+    }
 }
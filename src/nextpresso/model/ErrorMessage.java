@@ -37,6 +37,8 @@ public class ErrorMessage extends Message{
             case ERROR_NOT_ALLOWED -> "[ERROR]: Action is not allowed";
             case ERROR_NOT_FOUND -> "[ERROR]: Resource is not found";
             case ERROR_TIMEOUT -> "[ERROR]: System timed out";
+            case ERROR_TARGET_SATURATED -> "[ERROR]: Target cannot take more messages right now";
+            case ERROR_SERVER_BUSY -> "[ERROR]: Server is too busy right now, try again later";
             default -> "[ERROR]: An undefined error occurred (" + headerProtocol + ")";
         };
     }
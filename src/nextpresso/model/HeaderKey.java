@@ -0,0 +1,49 @@
+package nextpresso.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Header record keys that are defined in the NPP spec
+ */
+public enum HeaderKey {
+    SENDER("sender"),
+    USERNAME("username"),
+    PASSWORD("password"),
+    AUTHENTICATED("authenticated"),
+    ENCRYPTED("encrypted"),
+    GROUPNAME("groupname"),
+    FILENAME("filename"),
+    FILELENGTH("filelength"),
+    CHECKSUM("checksum"),
+    ACCEPTED("accepted"),
+    CURRENT("current"),
+    REMOTE("remote"),
+    TARGET("target"),
+    SEQUENCE("sequence"),
+    COUNT("count"),
+    SESSION("session"),
+    DELIVERY("delivery"),
+    TOKEN("token");
+
+    private static final Map<String, HeaderKey> BY_KEY = new HashMap<>();
+
+    static {
+        for (HeaderKey v : values()) BY_KEY.put(v.key, v);
+    }
+
+    public final String key;
+
+    HeaderKey(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Find the header key of a key name
+     * @param key Key name as it is written in the header
+     * @return The found HeaderKey enum. Null if the key is not defined in the spec
+     */
+    public static HeaderKey parseString(String key) {
+        return BY_KEY.get(key);
+    }
+}
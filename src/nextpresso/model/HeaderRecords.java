@@ -0,0 +1,207 @@
+package nextpresso.model;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable key-value records of a message header.
+ * Records with a key from {@link HeaderKey} are read directly by their key, other records are kept as they are
+ */
+public final class HeaderRecords {
+    public static final HeaderRecords EMPTY = new HeaderRecords(new String[0], new String[0]);
+    public static final String ENCRYPTION_AES_GCM = "aes-gcm"; //Encrypted value of a sealed AES-GCM body, which is binary
+
+    private final String[] keys; //In the order the records were added
+    private final String[] values;
+    private final String[] knownValues; //Values of the spec defined keys by the ordinal of their HeaderKey
+
+    private HeaderRecords(String[] keys, String[] values) {
+        this.keys = keys;
+        this.values = values;
+        this.knownValues = new String[HeaderKey.values().length];
+        for (int i = 0; i < keys.length; i++) {
+            HeaderKey key = HeaderKey.parseString(keys[i]);
+            if (key != null) knownValues[key.ordinal()] = values[i];
+        }
+    }
+
+    /**
+     * Create header records from unique keys
+     * @param keys Keys in the order they were added. The array is kept, it must not be changed afterwards
+     * @param values Values of the keys. The array is kept, it must not be changed afterwards
+     * @param count Number of records in the arrays
+     * @return Header records
+     */
+    static HeaderRecords of(String[] keys, String[] values, int count) {
+        if (count == 0) return EMPTY;
+        if (keys.length != count) {
+            keys = Arrays.copyOf(keys, count);
+            values = Arrays.copyOf(values, count);
+        }
+        return new HeaderRecords(keys, values);
+    }
+
+    /**
+     * Create a copy of the records with one record added or replaced. A replaced record keeps its place
+     * @param key Key of the record
+     * @param value Value of the record
+     * @return New header records
+     */
+    HeaderRecords with(String key, String value) {
+        int index = indexOf(key);
+        if (index != -1) {
+            String[] newValues = values.clone();
+            newValues[index] = value;
+            return new HeaderRecords(keys, newValues);
+        }
+        String[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+        String[] newValues = Arrays.copyOf(values, values.length + 1);
+        newKeys[keys.length] = key;
+        newValues[values.length] = value;
+        return new HeaderRecords(newKeys, newValues);
+    }
+
+    private int indexOf(String key) {
+        for (int i = 0; i < keys.length; i++) if (keys[i].equals(key)) return i;
+        return -1;
+    }
+
+    /**
+     * Get the value of a record
+     * @param key Key of the record
+     * @return Value of the record. Null if there is no such record
+     */
+    public String get(HeaderKey key) {
+        return knownValues[key.ordinal()];
+    }
+
+    /**
+     * Get the value of a record by its key name, including keys that are not defined in the spec
+     * @param key Key name of the record
+     * @return Value of the record. Null if there is no such record
+     */
+    public String get(String key) {
+        HeaderKey headerKey = HeaderKey.parseString(key);
+        if (headerKey != null) return get(headerKey);
+        int index = indexOf(key);
+        return index == -1 ? null : values[index];
+    }
+
+    /**
+     * Check if there is a record with a key
+     * @param key Key of the record
+     * @return True - the header has the record
+     */
+    public boolean contains(HeaderKey key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Check if a record holds the value "true"
+     * @param key Key of the record
+     * @return True - the record exists and is true
+     */
+    public boolean isTrue(HeaderKey key) {
+        return "true".equals(get(key));
+    }
+
+    /**
+     * Check if the body is encrypted, either with AES-CBC ("true") or sealed with AES-GCM
+     * @return True - the body is encrypted
+     */
+    public boolean isEncrypted() {
+        return isTrue(HeaderKey.ENCRYPTED) || hasBinaryBody();
+    }
+
+    /**
+     * Check if the body holds raw bytes instead of text, one char per byte. Only an AES-GCM sealed body is binary
+     * @return True - the body is binary
+     */
+    public boolean hasBinaryBody() {
+        return ENCRYPTION_AES_GCM.equals(get(HeaderKey.ENCRYPTED));
+    }
+
+    public String sender() {
+        return get(HeaderKey.SENDER);
+    }
+
+    public String username() {
+        return get(HeaderKey.USERNAME);
+    }
+
+    public String password() {
+        return get(HeaderKey.PASSWORD);
+    }
+
+    public String groupname() {
+        return get(HeaderKey.GROUPNAME);
+    }
+
+    public String filename() {
+        return get(HeaderKey.FILENAME);
+    }
+
+    public String filelength() {
+        return get(HeaderKey.FILELENGTH);
+    }
+
+    public String checksum() {
+        return get(HeaderKey.CHECKSUM);
+    }
+
+    public String current() {
+        return get(HeaderKey.CURRENT);
+    }
+
+    public String remote() {
+        return get(HeaderKey.REMOTE);
+    }
+
+    public String target() {
+        return get(HeaderKey.TARGET);
+    }
+
+    public String sequence() {
+        return get(HeaderKey.SEQUENCE);
+    }
+
+    public String count() {
+        return get(HeaderKey.COUNT);
+    }
+
+    public String session() {
+        return get(HeaderKey.SESSION);
+    }
+
+    public String delivery() {
+        return get(HeaderKey.DELIVERY);
+    }
+
+    public String token() {
+        return get(HeaderKey.TOKEN);
+    }
+
+    /**
+     * Get the number of records
+     * @return Number of records
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    String keyAt(int index) {
+        return keys[index];
+    }
+
+    String valueAt(int index) {
+        return values[index];
+    }
+
+    /**
+     * Run an action for every record in the order they were added, which is the order they are encoded in
+     * @param action Action that gets the key and the value of each record
+     */
+    public void forEach(BiConsumer<String, String> action) {
+        for (int i = 0; i < keys.length; i++) action.accept(keys[i], values[i]);
+    }
+}
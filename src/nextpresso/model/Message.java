@@ -2,7 +2,7 @@ package nextpresso.model;
 
 import nextpresso.tools.ApiProtocol;
 
-import java.util.HashMap;
+import java.util.Map;
 
 /**
  * A generic exchange message
@@ -10,7 +10,8 @@ import java.util.HashMap;
 public class Message {
     protected final ApiProtocol headerProtocol;
     protected final String payload;
-    protected final HashMap<String, String> headerRecords;
+    private final NextPressoMessageBuilder source; //Null for legacy messages
+    private final HeaderRecords legacyHeaderRecords;
 
     /**
      * Create a new generic message that came from an NPP server
@@ -19,7 +20,8 @@ public class Message {
     public Message(NextPressoMessageBuilder builder) {
         this.headerProtocol = builder.headerCode;
         this.payload = builder.body;
-        this.headerRecords = builder.headerRecords;
+        this.source = builder;
+        this.legacyHeaderRecords = null;
     }
 
     /**
@@ -29,7 +31,15 @@ public class Message {
     public Message(LegacyMessageBuilder builder){
         this.headerProtocol = builder.header;
         this.payload = builder.body;
-        this.headerRecords = builder.headerRecords;
+        this.source = null;
+        String[] keys = new String[builder.headerRecords.size()];
+        String[] values = new String[keys.length];
+        int count = 0;
+        for (Map.Entry<String, String> record : builder.headerRecords.entrySet()) {
+            keys[count] = record.getKey();
+            values[count++] = record.getValue();
+        }
+        this.legacyHeaderRecords = HeaderRecords.of(keys, values, count);
     }
 
     /**
@@ -49,11 +59,11 @@ public class Message {
     }
 
     /**
-     * Get the list of key-value pair records from the header
-     * @return A HashMap of header records
+     * Get the key-value pair records from the header. The records are immutable, so they are not copied
+     * @return Header records
      */
-    public HashMap<String, String> getHeaderRecords() {
-        return new HashMap<>(headerRecords);
+    public HeaderRecords getHeaderRecords() {
+        return source == null ? legacyHeaderRecords : source.getHeaderRecords();
     }
 
     /**
@@ -64,9 +74,10 @@ public class Message {
         StringBuilder builder = new StringBuilder();
         switch (headerProtocol){
             case MESSAGE_CHAT -> {
-                if(headerRecords.containsKey("authenticated") && headerRecords.get("authenticated").equals("true")) builder.append('*');
-                builder.append(headerRecords.get("sender"));
-                if (headerRecords.containsKey("groupname")) builder.append(" (").append(headerRecords.get("groupname")).append(")");
+                HeaderRecords headerRecords = getHeaderRecords();
+                if(headerRecords.isTrue(HeaderKey.AUTHENTICATED)) builder.append('*');
+                builder.append(headerRecords.sender());
+                if (headerRecords.contains(HeaderKey.GROUPNAME)) builder.append(" (").append(headerRecords.groupname()).append(")");
                 builder.append(" says: ");
                 builder.append(payload);
                 return builder.toString();
@@ -78,10 +89,11 @@ public class Message {
             }
             case MESSAGE_SERVER_GROUP_NEW_USER -> {
                 builder.append("SERVER (");
-                builder.append(headerRecords.get("groupname"));
+                HeaderRecords headerRecords = getHeaderRecords();
+                builder.append(headerRecords.groupname());
                 builder.append(") says: ");
-                if(headerRecords.get("authenticated").equals("true")) builder.append("*");
-                builder.append(headerRecords.get("username"));
+                if(headerRecords.isTrue(HeaderKey.AUTHENTICATED)) builder.append("*");
+                builder.append(headerRecords.username());
                 builder.append(" has joined this group!");
                 builder.append(payload);
                 return builder.toString();
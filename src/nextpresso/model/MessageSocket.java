@@ -0,0 +1,82 @@
+package nextpresso.model;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A connection that NPP messages can be sent through
+ */
+public interface MessageSocket {
+    /**
+     * Send a message
+     * @param msg Message to send
+     */
+    void sendMessage(String msg);
+
+    /**
+     * Send a message in the protocol that the connection uses
+     * @param message Message to send
+     */
+    default void sendMessage(NextPressoMessageBuilder message) {
+        sendFrame(new OutboundFrame(message));
+    }
+
+    /**
+     * Send an already encoded message in the protocol that the connection uses
+     * @param frame Frame to send. It may be shared with other connections
+     */
+    void sendFrame(OutboundFrame frame);
+
+    /**
+     * Send several already encoded messages with as few writes as the connection allows
+     * @param frames Frames to send in order. They may be shared with other connections
+     * @return Number of bytes that were sent or queued. 0 if the connection does not count them
+     */
+    default int sendFrames(List<OutboundFrame> frames) {
+        for (OutboundFrame frame : frames) sendFrame(frame);
+        return 0;
+    }
+
+    /**
+     * Check if sent messages still wait for the connection to take them
+     * @return True - earlier messages are not fully written yet
+     */
+    default boolean hasPendingWrites() {
+        return false;
+    }
+
+    /**
+     * Send the acknowledgement of a protocol upgrade in NPP/1.1, then use NPP/2 for every later message in both directions
+     * @param acknowledgement Acknowledgement of the upgrade request
+     * @return False if the connection cannot switch to NPP/2 or already uses it
+     */
+    default boolean upgradeProtocol(OutboundFrame acknowledgement) {
+        return false;
+    }
+
+    /**
+     * Set the largest NPP/2 frame that is read from the connection, larger frames close it
+     * @param maxFrameSize Largest frame in bytes after its length prefix
+     */
+    default void setMaxFrameSize(int maxFrameSize) {
+    }
+
+    /**
+     * Check if the connection has been upgraded to NPP/2
+     * @return True - messages are read and sent as NPP/2 frames
+     */
+    default boolean isBinaryProtocol() {
+        return false;
+    }
+
+    /**
+     * Terminate connection
+     */
+    void closeConnection() throws IOException;
+
+    /**
+     * Check if a socket is closed
+     * @return True - socket is closed
+     */
+    boolean isClosed();
+}
@@ -0,0 +1,210 @@
+package nextpresso.model;
+
+import nextpresso.tools.ApiProtocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encode and decode messages in the binary NPP/2 format.
+ * An NPP/2 frame starts with its length as a varint, followed by the header code, the header records and the body:
+ * [length][header code][record count][key id][value length][value]...[body]
+ * Header codes take one byte, extended 0xE0xx codes take two. Header keys are numbers of a fixed key table,
+ * the body is everything after the records, so it is not scanned for delimiters and may hold any character.
+ * A binary body (see {@link HeaderRecords#hasBinaryBody()}) is carried as raw bytes instead of UTF-8, the builder holds it with one char per byte
+ */
+public final class NPP2Codec {
+    public static final String VERSION = "NPP/2";
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024; //Bytes after the length prefix
+    public static final int MAX_GUEST_FRAME_SIZE = 64 * 1024; //Bytes after the length prefix, till the client logged in
+
+    private static final int EXTENDED_CODE = 0xE0;
+    private static final int CUSTOM_KEY = 0; //Key id of a record whose key is not in the table, the key follows as a string
+    private static final HeaderKey[] KEY_TABLE = HeaderKey.values(); //Key id 1 is the first key
+
+    private NPP2Codec() {}
+
+    /**
+     * Encode a message into a complete NPP/2 frame, length prefix included
+     * @param message Message to encode
+     * @return Bytes of the frame
+     */
+    public static byte[] encode(NextPressoMessageBuilder message) {
+        HeaderRecords records = message.getHeaderRecords();
+        byte[][] recordBytes = new byte[2 * records.size()][]; //Custom key and value of each record
+        int[] keyIds = new int[records.size()];
+        int length = (message.headerCode.code > 0xFF ? 2 : 1) + varintSize(records.size());
+        for (int i = 0; i < keyIds.length; i++) {
+            HeaderKey key = HeaderKey.parseString(records.keyAt(i));
+            keyIds[i] = key == null ? CUSTOM_KEY : key.ordinal() + 1;
+            length += varintSize(keyIds[i]);
+            if (keyIds[i] == CUSTOM_KEY) {
+                recordBytes[2 * i] = records.keyAt(i).getBytes(StandardCharsets.UTF_8);
+                length += varintSize(recordBytes[2 * i].length) + recordBytes[2 * i].length;
+            }
+            recordBytes[2 * i + 1] = records.valueAt(i).getBytes(StandardCharsets.UTF_8);
+            length += varintSize(recordBytes[2 * i + 1].length) + recordBytes[2 * i + 1].length;
+        }
+        byte[] body = message.body.getBytes(records.hasBinaryBody() ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+        length += body.length;
+
+        ByteBuffer frame = ByteBuffer.allocate(varintSize(length) + length);
+        putVarint(frame, length);
+        if (message.headerCode.code > 0xFF) frame.put((byte) EXTENDED_CODE);
+        frame.put((byte) message.headerCode.code);
+        putVarint(frame, records.size());
+        for (int i = 0; i < keyIds.length; i++) {
+            putVarint(frame, keyIds[i]);
+            if (keyIds[i] == CUSTOM_KEY) putBytes(frame, recordBytes[2 * i]);
+            putBytes(frame, recordBytes[2 * i + 1]);
+        }
+        frame.put(body);
+        return frame.array();
+    }
+
+    /**
+     * Decode a single NPP/2 frame
+     * @param frame Bytes of the frame without its length prefix
+     * @return Builder holding the decoded message
+     * @throws NextPressoException If the frame cannot be decoded
+     */
+    public static NextPressoMessageBuilder decode(byte[] frame) throws NextPressoException {
+        ByteBuffer input = ByteBuffer.wrap(frame);
+        try {
+            int code = input.get() & 0xFF;
+            if (code == EXTENDED_CODE) code = (code << 8) | (input.get() & 0xFF);
+            ApiProtocol headerCode = ApiProtocol.parseCode(code);
+            if (headerCode == ApiProtocol.ERROR_MALFORMED_PACKET) throw new NextPressoException("Communication Error","Received a message with an unknown type identifier!");
+
+            int recordCount = getVarint(input);
+            if (recordCount > input.remaining()) throw new BufferUnderflowException(); //Every record takes at least 2 bytes
+            String[] keys = new String[recordCount];
+            String[] values = new String[recordCount];
+            int count = 0;
+            for (int i = 0; i < recordCount; i++) {
+                int keyId = getVarint(input);
+                if (keyId > KEY_TABLE.length) throw new NextPressoException("Communication Error","A header section record has an unknown key!");
+                String key = keyId == CUSTOM_KEY ? getString(input) : KEY_TABLE[keyId - 1].key;
+                String value = getString(input);
+                //Header records are names that may be relayed to NPP/1.1 connections, so they follow the NPP/1.1 rules
+                if (key.isEmpty()) throw new NextPressoException("Communication Error","A header section record is missing the key!");
+                if (NextPressoMessageBuilder.containsInvalidCharacters(key) || NextPressoMessageBuilder.containsInvalidCharacters(value))
+                    throw new NextPressoException("Communication Error","Found a header section data in message that is not properly formatted!");
+                //The last record with the same key wins, the first one keeps its place
+                int index = 0;
+                while (index < count && !keys[index].equals(key)) index++;
+                if (index == count) keys[count++] = key;
+                values[index] = value;
+            }
+            HeaderRecords records = HeaderRecords.of(keys, values, count);
+            String body = new String(frame, input.position(), input.remaining(), records.hasBinaryBody() ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+            return new NextPressoMessageBuilder(headerCode, records, body);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new NextPressoException("Communication Error","Received message has an incorrect format!");
+        }
+    }
+
+    /**
+     * Decode a single NPP/2 frame that still starts with its length prefix, as it is returned by {@link #encode(NextPressoMessageBuilder)}
+     * @param frame Bytes of the frame with its length prefix
+     * @return Builder holding the decoded message
+     * @throws NextPressoException If the frame cannot be decoded
+     */
+    public static NextPressoMessageBuilder decodePrefixed(byte[] frame) throws NextPressoException {
+        int prefixLength = 0;
+        while (prefixLength < frame.length && (frame[prefixLength] & 0x80) != 0) prefixLength++;
+        prefixLength++;
+        if (prefixLength >= frame.length) throw new NextPressoException("Communication Error","Received message has an incorrect format!");
+        byte[] unprefixed = new byte[frame.length - prefixLength];
+        System.arraycopy(frame, prefixLength, unprefixed, 0, unprefixed.length);
+        return decode(unprefixed);
+    }
+
+    /**
+     * Check if the body of a message holds bytes that mark the structure of an NPP/1.1 message.
+     * Such a message can be sent in NPP/2, but it must not be relayed to an NPP/1.1 connection
+     * @param message Message to check
+     * @return True if the body holds 0x01, 0x1F or 0x04 bytes
+     */
+    public static boolean containsFrameBytes(NextPressoMessageBuilder message) {
+        String body = message.body;
+        for (int i = 0; i < body.length(); i++) {
+            char c = body.charAt(i);
+            if (c == ApiProtocol.PROTOCOL_DATA_START.code || c == ApiProtocol.PROTOCOL_DATA_HEADER_SEPARATOR.code || c == ApiProtocol.PROTOCOL_DATA_END.code) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if a message can only be sent in NPP/2, because its body is binary or holds NPP/1.1 structure bytes
+     * @param message Message to check
+     * @return True - the message must not be sent to an NPP/1.1 connection
+     */
+    public static boolean requiresBinaryProtocol(NextPressoMessageBuilder message) {
+        return message.getHeaderRecords().hasBinaryBody() || containsFrameBytes(message);
+    }
+
+    /**
+     * Hold raw bytes as a binary body
+     * @param bytes Bytes of the body
+     * @return Body with one char per byte
+     */
+    public static String toBinaryBody(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Get the raw bytes of a binary body
+     * @param body Body with one char per byte
+     * @return Bytes of the body
+     */
+    public static byte[] fromBinaryBody(String body) {
+        return body.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Get how many bytes a number takes as a varint
+     * @param value Non-negative number
+     * @return Size in bytes
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer output, int value) {
+        while ((value & ~0x7F) != 0) {
+            output.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.put((byte) value);
+    }
+
+    private static void putBytes(ByteBuffer output, byte[] bytes) {
+        putVarint(output, bytes.length);
+        output.put(bytes);
+    }
+
+    private static int getVarint(ByteBuffer input) throws NextPressoException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = input.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) break;
+                return value;
+            }
+        }
+        throw new NextPressoException("Communication Error","Received message has an incorrect format!");
+    }
+
+    private static String getString(ByteBuffer input) throws NextPressoException {
+        int length = getVarint(input);
+        if (length > input.remaining()) throw new BufferUnderflowException();
+        String value = new String(input.array(), input.position(), length, StandardCharsets.UTF_8);
+        input.position(input.position() + length);
+        return value;
+    }
+}
@@ -1,19 +1,33 @@
 package nextpresso.model;
 
+import nextpresso.tools.ApiProtocol;
+import nextpresso.tools.NPP2FrameDecoder;
+import nextpresso.tools.NPPFrameDecoder;
 import nextpresso.tools.NPPReader;
 
 import java.io.*;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Generic socket
  */
-public class NetSocket {
+public class NetSocket implements MessageSocket {
+    public static final int DEFAULT_MAX_WRITE_BYTES = 64 * 1024;
+
     protected PrintWriter writer;
     protected BufferedReader reader;
     protected OutputStream outputStream;
     protected InputStream inputStream;
     protected final java.net.Socket socket;
+    private volatile boolean binaryProtocol;
+    private volatile int maxWriteBytes = DEFAULT_MAX_WRITE_BYTES;
+    private volatile int maxFrameSize = NPP2Codec.MAX_FRAME_SIZE;
 
     /**
      * Creates a new NetSocket based on an existing Java Socket
@@ -44,11 +58,127 @@ public class NetSocket {
      * Send a message
      * @param msg Message to send
      */
-    public void sendMessage(String msg) {
+    @Override
+    public synchronized void sendMessage(String msg) {
+        if (binaryProtocol) {
+            try {
+                sendMessage(new NextPressoMessageBuilder(msg));
+            } catch (NextPressoException e) {
+                System.err.println("> Could not convert a message to " + NPP2Codec.VERSION + ": " + e.getMessage());
+            }
+            return;
+        }
         writer.print(msg);
         writer.flush();
     }
 
+    /**
+     * Send an already encoded message in the protocol of the connection
+     * @param frame Frame to send. It may be shared with other connections
+     */
+    @Override
+    public synchronized void sendFrame(OutboundFrame frame) {
+        byte[] bytes = frame.getBytes(binaryProtocol);
+        if (bytes == null) {
+            System.err.println("> Could not send a message that needs NPP/2 to an NPP/1.1 connection");
+            return;
+        }
+        try {
+            outputStream.write(bytes);
+            outputStream.flush();
+        } catch (IOException e) {
+            System.err.println("> Could not send a message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send several already encoded messages in the protocol of the connection with a single flush.
+     * A socket of a channel gathers the frames into one write without copying them, other sockets copy them into one array.
+     * Either way a write takes at most the configured maximum of bytes, unless a single frame is larger
+     * @param frames Frames to send in order. They may be shared with other connections
+     * @return Number of bytes that were sent
+     */
+    @Override
+    public synchronized int sendFrames(List<OutboundFrame> frames) {
+        List<byte[]> encodedFrames = new ArrayList<>(frames.size());
+        for (OutboundFrame frame : frames) {
+            byte[] bytes = frame.getBytes(binaryProtocol);
+            if (bytes == null) System.err.println("> Could not send a message that needs NPP/2 to an NPP/1.1 connection");
+            else encodedFrames.add(bytes);
+        }
+        int sentBytes = 0;
+        try {
+            int start = 0;
+            while (start < encodedFrames.size()) {
+                //Take frames till the next one would exceed the maximum write size
+                int end = start;
+                int writeLength = 0;
+                while (end < encodedFrames.size() && (end == start || writeLength + encodedFrames.get(end).length <= maxWriteBytes)) {
+                    writeLength += encodedFrames.get(end++).length;
+                }
+                writeFrames(encodedFrames.subList(start, end), writeLength);
+                sentBytes += writeLength;
+                start = end;
+            }
+            outputStream.flush();
+        } catch (IOException e) {
+            System.err.println("> Could not send a message: " + e.getMessage());
+        }
+        return sentBytes;
+    }
+
+    private void writeFrames(List<byte[]> encodedFrames, int writeLength) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && channel.isBlocking()) {
+            ByteBuffer[] buffers = new ByteBuffer[encodedFrames.size()];
+            for (int i = 0; i < buffers.length; i++) buffers[i] = ByteBuffer.wrap(encodedFrames.get(i));
+            long remaining = writeLength;
+            while (remaining > 0) remaining -= channel.write(buffers);
+            return;
+        }
+        byte[] bytes = new byte[writeLength];
+        int position = 0;
+        for (byte[] encodedFrame : encodedFrames) {
+            System.arraycopy(encodedFrame, 0, bytes, position, encodedFrame.length);
+            position += encodedFrame.length;
+        }
+        outputStream.write(bytes);
+    }
+
+    /**
+     * Set how many bytes {@link #sendFrames(List)} may put into a single write
+     * @param maxWriteBytes Maximum number of bytes per write
+     */
+    public void setMaxWriteBytes(int maxWriteBytes) {
+        this.maxWriteBytes = maxWriteBytes;
+    }
+
+    @Override
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    @Override
+    public synchronized boolean upgradeProtocol(OutboundFrame acknowledgement) {
+        if (binaryProtocol || isClosed()) return false;
+        sendFrame(acknowledgement);
+        useBinaryProtocol();
+        return true;
+    }
+
+    /**
+     * Read and send every later message as an NPP/2 frame.
+     * Clients call this once the server acknowledged their upgrade request, nothing may be sent in between
+     */
+    public void useBinaryProtocol() {
+        binaryProtocol = true;
+    }
+
+    @Override
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
     /**
      * Send bytes
      * @param sourceStream InputStream containing the bytes to send
@@ -105,9 +235,94 @@ public class NetSocket {
         return NPPReader.readNPPMessage(reader,-1);
     }
 
+    /**
+     * Block until an NPP message starts to arrive, then read it till its 0x04 byte.
+     * Unlike {@link NPPReader#readNPPMessage(BufferedReader, int)}, a message that arrives in several parts is waited for.
+     * If the message does not end in 4 seconds, the bytes read so far are returned
+     * @return Read NPP message in String format. Null if the data read did not start an NPP message
+     * @throws SocketTimeoutException If nothing arrived within the read timeout of the socket
+     * @throws EOFException If the other party closed the connection
+     */
+    public String awaitIncomingNPPMessage() throws IOException {
+        int lastByte = reader.read();
+        if (lastByte == -1) throw new EOFException("Connection closed by the other party");
+        if (lastByte != ApiProtocol.PROTOCOL_DATA_START.code) return null; //Message is corrupted
+        StringBuilder message = new StringBuilder().append((char) lastByte);
+        long start = System.currentTimeMillis();
+        while (lastByte != ApiProtocol.PROTOCOL_DATA_END.code && System.currentTimeMillis() - start < NPPFrameDecoder.FRAME_TIMEOUT) {
+            try {
+                lastByte = reader.read();
+            } catch (SocketTimeoutException e) {
+                continue; //The read timeout only limits the wait for a new message
+            }
+            if (lastByte == -1) break;
+            message.append((char) lastByte);
+        }
+        return message.toString();
+    }
+
+    /**
+     * Block until an NPP/2 frame starts to arrive, then read the whole frame.
+     * If the frame does not end in 4 seconds, the connection is considered broken. The buffer of the frame grows as its bytes arrive
+     * @return Read frame without its length prefix
+     * @throws SocketTimeoutException If nothing arrived within the read timeout of the socket
+     * @throws EOFException If the other party closed the connection
+     * @throws IOException If the frame is malformed, too large or did not end in time
+     */
+    public byte[] awaitIncomingNPP2Frame() throws IOException {
+        int lastByte = inputStream.read();
+        if (lastByte == -1) throw new EOFException("Connection closed by the other party");
+        long start = System.currentTimeMillis();
+        int length = lastByte & 0x7F;
+        for (int shift = 7; (lastByte & 0x80) != 0; shift += 7) {
+            if (shift >= 35) throw new IOException("NPP/2 frame has a malformed length prefix");
+            lastByte = readFrameByte(start);
+            length |= (lastByte & 0x7F) << shift;
+        }
+        if (length < 0 || length > maxFrameSize) throw new IOException("NPP/2 frame of " + length + " bytes is too large");
+        byte[] frame = new byte[Math.min(length, NPP2FrameDecoder.INITIAL_FRAME_CAPACITY)];
+        int frameLength = 0;
+        while (frameLength < length) {
+            if (System.currentTimeMillis() - start >= NPPFrameDecoder.FRAME_TIMEOUT) throw new IOException("NPP/2 frame did not end in time");
+            if (frameLength == frame.length) frame = Arrays.copyOf(frame, (int) Math.min(frame.length * 2L, length));
+            int readLength;
+            try {
+                readLength = inputStream.read(frame, frameLength, frame.length - frameLength);
+            } catch (SocketTimeoutException e) {
+                continue; //The read timeout only limits the wait for a new frame
+            }
+            if (readLength == -1) throw new EOFException("Connection closed by the other party");
+            frameLength += readLength;
+        }
+        return frame;
+    }
+
+    private int readFrameByte(long start) throws IOException {
+        while (System.currentTimeMillis() - start < NPPFrameDecoder.FRAME_TIMEOUT) {
+            int value;
+            try {
+                value = inputStream.read();
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            if (value == -1) throw new EOFException("Connection closed by the other party");
+            return value;
+        }
+        throw new IOException("NPP/2 frame did not end in time");
+    }
+
+    /**
+     * Set how long a blocking read may wait for data
+     * @param timeout Timeout in milliseconds, 0 waits forever
+     */
+    public void setReadTimeout(int timeout) throws SocketException {
+        socket.setSoTimeout(timeout);
+    }
+
     /**
      * Terminate connection
      */
+    @Override
     public void closeConnection() throws IOException {
         writer.close();
         socket.close();
@@ -117,6 +332,7 @@ public class NetSocket {
      * Check if a socket is closed
      * @return True - socket is closed
      */
+    @Override
     public boolean isClosed() {
         return socket.isClosed();
     }
@@ -132,4 +348,12 @@ public class NetSocket {
     public OutputStream getOutputStream() {
         return outputStream;
     }
+
+    /**
+     * Get the channel of the socket
+     * @return Channel of the socket. Null if the socket was not created by a channel
+     */
+    public SocketChannel getChannel() {
+        return socket.getChannel();
+    }
 }
@@ -2,19 +2,24 @@ package nextpresso.model;
 
 import nextpresso.tools.ApiProtocol;
 
-import java.util.HashMap;
+import java.util.regex.Pattern;
 
 /**
  * Build NextPresso messages
  */
 public class NextPressoMessageBuilder {
+    private static final Pattern MD5_PATTERN = Pattern.compile("^[a-f0-9]{32}$");
+
     protected final ApiProtocol headerCode;
     protected final String body;
-    protected final HashMap<String, String> headerRecords;
+    private HeaderRecords headerRecords; //Null till the records of a parsed message are needed
+    private final String rawMessage; //Parsed message that the record offsets point into
+    private final int[] recordOffsets; //Start, separator and end of each record of a parsed message
+    private final int recordCount;
 
-    private final char HEADING_START = (char) ApiProtocol.PROTOCOL_DATA_START.code;
-    private final char HEADING_END = (char) ApiProtocol.PROTOCOL_DATA_HEADER_SEPARATOR.code;
-    private final char BLOCK_END = (char)ApiProtocol.PROTOCOL_DATA_END.code;
+    private static final char HEADING_START = (char) ApiProtocol.PROTOCOL_DATA_START.code;
+    private static final char HEADING_END = (char) ApiProtocol.PROTOCOL_DATA_HEADER_SEPARATOR.code;
+    private static final char BLOCK_END = (char)ApiProtocol.PROTOCOL_DATA_END.code;
 
     /**
      * Create a new NextPresso builder from scratch using a header code and a body
@@ -23,8 +28,26 @@ public class NextPressoMessageBuilder {
      */
     public NextPressoMessageBuilder(ApiProtocol headerCode, String body) {
         this.headerCode = headerCode;
-        this.headerRecords = new HashMap<>();
+        this.headerRecords = HeaderRecords.EMPTY;
         this.body = body == null ? "" : body;
+        this.rawMessage = null;
+        this.recordOffsets = null;
+        this.recordCount = 0;
+    }
+
+    /**
+     * Create a new NextPresso builder from already decoded parts
+     * @param headerCode Header code of the message to identify the message type
+     * @param headerRecords Header records of the message
+     * @param body The body of the message
+     */
+    NextPressoMessageBuilder(ApiProtocol headerCode, HeaderRecords headerRecords, String body) {
+        this.headerCode = headerCode;
+        this.headerRecords = headerRecords;
+        this.body = body;
+        this.rawMessage = null;
+        this.recordOffsets = null;
+        this.recordCount = 0;
     }
 
     /**
@@ -38,66 +61,139 @@ public class NextPressoMessageBuilder {
     /**
      * Create a new NextPresso builder from an existing, raw, byte message in a string format.
      * This will parse the raw message and then individual data can be retrieved from it.
+     * The message is validated in a single pass, the header records are only cut out of it once they are asked for
      * @param messageFromServer Raw NPP string message
      * @throws NextPressoException If the message cannot be parsed
      */
     public NextPressoMessageBuilder(String messageFromServer) throws NextPressoException {
-        this.headerRecords = new HashMap<>();
-        if(messageFromServer != null) {
-            if(messageFromServer.chars().filter(c -> c == HEADING_START).count() == 0) throw new NextPressoException("Communication Error","Received message has an incorrect format!");
-            if(messageFromServer.chars().filter(c -> c == HEADING_END).count() == 0) throw new NextPressoException("Communication Error","Received message has an incorrect format!");
-            if(messageFromServer.chars().filter(c -> c == BLOCK_END).count() == 0) throw new NextPressoException("Communication Error","Received message has an incorrect format!");
+        this.rawMessage = messageFromServer;
+        if(messageFromServer == null) {
+            headerCode = null;
+            body = null;
+            headerRecords = HeaderRecords.EMPTY;
+            recordOffsets = null;
+            recordCount = 0;
+            return;
+        }
 
-            int headingStart = messageFromServer.indexOf(HEADING_START);
-            int headingEnd = messageFromServer.indexOf(HEADING_END);
-            int bodyEnd = messageFromServer.indexOf(BLOCK_END);
+        //Find the first start, separator and end byte in one pass
+        int headingStart = -1, headingEnd = -1, bodyEnd = -1;
+        for (int i = 0; i < messageFromServer.length() && (headingStart == -1 || headingEnd == -1 || bodyEnd == -1); i++) {
+            char c = messageFromServer.charAt(i);
+            if (c == HEADING_START && headingStart == -1) headingStart = i;
+            else if (c == HEADING_END && headingEnd == -1) headingEnd = i;
+            else if (c == BLOCK_END && bodyEnd == -1) bodyEnd = i;
+        }
+        if(headingStart == -1 || headingEnd == -1 || bodyEnd == -1 || headingEnd < headingStart || bodyEnd < headingEnd)
+            throw new NextPressoException("Communication Error","Received message has an incorrect format!");
 
-            String rawHeaderData = messageFromServer.substring(headingStart+1, headingEnd);
-            String rawBodyData = messageFromServer.substring(headingEnd+1, bodyEnd);
+        int codeEnd = messageFromServer.indexOf('/', headingStart + 1);
+        if (codeEnd == -1 || codeEnd > headingEnd) codeEnd = headingEnd;
+        if(codeEnd == headingStart + 1) throw new NextPressoException("Communication Error","Received a message without a type identifier!");
 
-            String[] headerData = rawHeaderData.split("/");
+        try {
+            headerCode = ApiProtocol.parseString(messageFromServer.substring(headingStart + 1, codeEnd));
+        }catch (NumberFormatException e){
+            throw new NextPressoException("Communication Error","Received a message without a type identifier!");
+        }
 
-            if(headerData[0].equals(""))throw new NextPressoException("Communication Error","Received a message without a type identifier!");
+        if(headerCode == ApiProtocol.ERROR_MALFORMED_PACKET) throw new NextPressoException("Communication Error","Received a message with an unknown type identifier!");
 
-            try {
-                headerCode = ApiProtocol.parseString(headerData[0]);
-            }catch (NumberFormatException e){
-                throw new NextPressoException("Communication Error","Received a message without a type identifier!");
-            }
+        recordOffsets = new int[3 * countRecords(messageFromServer, codeEnd, headingEnd)];
+        recordCount = indexHeaderRecords(messageFromServer, codeEnd, headingEnd);
+        body = messageFromServer.substring(headingEnd + 1, bodyEnd);
+    }
 
-            if(headerCode == ApiProtocol.ERROR_MALFORMED_PACKET) throw new NextPressoException("Communication Error","Received a message with an unknown type identifier!");
+    private static int countRecords(String message, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) if (message.charAt(i) == '/') count++;
+        return count;
+    }
 
-            populateHeaderRecords(headerData);
-            body = rawBodyData;
-        }else {
-            headerCode = null;
-            body = null;
+    /**
+     * Validate the header records and store where they are in the message
+     * @param message Raw message
+     * @param from Index of the slash after the header code
+     * @param to Index of the header separator
+     * @return Number of records found
+     * @throws NextPressoException If a record is not a proper key-value pair
+     */
+    private int indexHeaderRecords(String message, int from, int to) throws NextPressoException {
+        int count = 0;
+        int recordStart = from + 1;
+        while (recordStart <= to) {
+            int recordEnd = message.indexOf('/', recordStart);
+            if (recordEnd == -1 || recordEnd > to) recordEnd = to;
+            if (recordStart == recordEnd) {
+                //Slashes at the end of the header are ignored, empty records in between are not
+                if (onlySlashes(message, recordStart, to)) break;
+                throw new NextPressoException("Communication Error","Found a header section data in message that is not properly formatted!");
+            }
+            //Equal signs at the end of a record are not part of its value
+            int valueEnd = recordEnd;
+            while (valueEnd > recordStart && message.charAt(valueEnd - 1) == '=') valueEnd--;
+            int separator = -1, separatorCount = 0;
+            for (int i = recordStart; i < valueEnd; i++) {
+                if (message.charAt(i) == '=') {
+                    separator = i;
+                    separatorCount++;
+                }
+            }
+            if(separatorCount == 0 && valueEnd == recordEnd) throw new NextPressoException("Communication Error","Found a header section data in message that is not properly formatted!");
+            if(separatorCount != 1) throw new NextPressoException("Communication Error","Header section data in message doesn't contain a proper key-value pair!");
+            if(separator == recordStart) throw new NextPressoException("Communication Error","A header section record is missing the key!");
+            recordOffsets[3 * count] = recordStart;
+            recordOffsets[3 * count + 1] = separator;
+            recordOffsets[3 * count + 2] = valueEnd;
+            count++;
+            recordStart = recordEnd + 1;
         }
+        return count;
+    }
 
+    private static boolean onlySlashes(String message, int from, int to) {
+        for (int i = from; i < to; i++) if (message.charAt(i) != '/') return false;
+        return true;
     }
 
-    private void populateHeaderRecords(String[] headerData) throws NextPressoException {
-        for(int i = 1; i < headerData.length; i++){
-            if(!headerData[i].contains("=")) throw new NextPressoException("Communication Error","Found a header section data in message that is not properly formatted!");
-            String[] dataPair = headerData[i].split("=");
-            if(dataPair.length != 2) throw new NextPressoException("Communication Error","Header section data in message doesn't contain a proper key-value pair!");
-            if(dataPair[0].equals("") || dataPair[1].equals("")) throw new NextPressoException("Communication Error","A header section record is missing the key!");
-            headerRecords.put(dataPair[0],dataPair[1]);
+    /**
+     * Get the header records, cutting them out of the raw message the first time
+     * @return Immutable header records
+     */
+    protected HeaderRecords getHeaderRecords() {
+        if (headerRecords == null) {
+            String[] keys = new String[recordCount];
+            String[] values = new String[recordCount];
+            int count = 0;
+            for (int i = 0; i < recordCount; i++) {
+                String key = rawMessage.substring(recordOffsets[3 * i], recordOffsets[3 * i + 1]);
+                String value = rawMessage.substring(recordOffsets[3 * i + 1] + 1, recordOffsets[3 * i + 2]);
+                //The last record with the same key wins, the first one keeps its place
+                int index = 0;
+                while (index < count && !keys[index].equals(key)) index++;
+                if (index == count) keys[count++] = key;
+                values[index] = value;
+            }
+            headerRecords = HeaderRecords.of(keys, values, count);
         }
+        return headerRecords;
+    }
+
+    private NextPressoMessageBuilder putHeaderRecord(HeaderKey key, String value) {
+        headerRecords = getHeaderRecords().with(key.key, value);
+        return this;
     }
 
     public NextPressoMessageBuilder sender (String sender) throws NextPressoException {
         if(sender == null || sender.equals("")) throw new NextPressoException("Input Error", "Username for sender is not defined!");
         if(containsInvalidCharacters(sender)) throw new NextPressoException("Input Error", "Sender contains invalid characters!");
-        headerRecords.put("sender",sender);
-        return this;
+        return putHeaderRecord(HeaderKey.SENDER,sender);
     }
 
     public NextPressoMessageBuilder username(String username) throws NextPressoException {
         if(username == null || username.equals("")) throw new NextPressoException("Input Error", "Username for sender is not defined!");
         if(containsInvalidCharacters(username)) throw new NextPressoException("Input Error", "Sender contains invalid characters!");
-        headerRecords.put("username",username);
-        return this;
+        return putHeaderRecord(HeaderKey.USERNAME,username);
     }
 
     /**
@@ -106,37 +202,39 @@ public class NextPressoMessageBuilder {
     public NextPressoMessageBuilder password(String pw) throws NextPressoException {
         if(pw == null || pw.equals("")) throw new NextPressoException("Input Error", "Password is not defined!");
         if(containsInvalidCharacters(pw)) throw new NextPressoException("Input Error", "Password contains invalid characters!");
-        headerRecords.put("password",pw);
-        return this;
+        return putHeaderRecord(HeaderKey.PASSWORD,pw);
     }
 
     public NextPressoMessageBuilder authenticated(boolean isAuthenticated) {
-        headerRecords.put("authenticated",isAuthenticated ? "true" : "false");
-        return this;
+        return putHeaderRecord(HeaderKey.AUTHENTICATED,isAuthenticated ? "true" : "false");
     }
 
     public NextPressoMessageBuilder encrypted(boolean isEncrypted) {
-        headerRecords.put("encrypted",isEncrypted ? "true" : "false");
-        return this;
+        return putHeaderRecord(HeaderKey.ENCRYPTED,isEncrypted ? "true" : "false");
+    }
+
+    /**
+     * Name the algorithm the body is encrypted with
+     * @param algorithm "true" for AES-CBC in Base64, {@link HeaderRecords#ENCRYPTION_AES_GCM} for a binary AES-GCM body
+     */
+    public NextPressoMessageBuilder encrypted(String algorithm) {
+        return putHeaderRecord(HeaderKey.ENCRYPTED,algorithm);
     }
 
     public NextPressoMessageBuilder groupname(String groupname) throws NextPressoException {
         if(groupname == null || groupname.equals("")) throw new NextPressoException("Input Error", "Groupname is not defined!");
         if(containsInvalidCharacters(groupname)) throw new NextPressoException("Input Error", "Groupname contains invalid characters!");
-        headerRecords.put("groupname",groupname);
-        return this;
+        return putHeaderRecord(HeaderKey.GROUPNAME,groupname);
     }
 
     public NextPressoMessageBuilder filename(String filename) throws NextPressoException {
         if(filename == null || filename.equals("")) throw new NextPressoException("Input Error", "Filename is not defined!");
         if(containsInvalidCharacters(filename)) throw new NextPressoException("Input Error", "Filename contains invalid characters!");
-        headerRecords.put("filename",filename);
-        return this;
+        return putHeaderRecord(HeaderKey.FILENAME,filename);
     }
 
     public NextPressoMessageBuilder filelength(long filelength)  {
-        headerRecords.put("filelength",String.valueOf(filelength));
-        return this;
+        return putHeaderRecord(HeaderKey.FILELENGTH,String.valueOf(filelength));
     }
 
     /**
@@ -145,28 +243,60 @@ public class NextPressoMessageBuilder {
     public NextPressoMessageBuilder checksum(String checksum) throws NextPressoException {
         if(checksum == null || checksum.equals("")) throw new NextPressoException("Input Error", "Checksum is not defined!");
         if(containsInvalidCharacters(checksum)) throw new NextPressoException("Input Error", "Checksum contains invalid characters!");
-        if (!checksum.matches("^[a-f0-9]{32}$")) throw new NextPressoException("Input Error", "Checksum is not in an MD5 format!");
-        headerRecords.put("checksum",checksum);
-        return this;
+        if (!MD5_PATTERN.matcher(checksum).matches()) throw new NextPressoException("Input Error", "Checksum is not in an MD5 format!");
+        return putHeaderRecord(HeaderKey.CHECKSUM,checksum);
     }
 
     public NextPressoMessageBuilder accepted(boolean accepted) throws NextPressoException {
-        headerRecords.put("accepted",String.valueOf(accepted));
-        return this;
+        return putHeaderRecord(HeaderKey.ACCEPTED,String.valueOf(accepted));
     }
 
     public NextPressoMessageBuilder current(String username) throws NextPressoException {
         if(username == null || username.equals("")) throw new NextPressoException("Input Error", "Username for current user is not defined!");
         if(containsInvalidCharacters(username)) throw new NextPressoException("Input Error", "Current username contains invalid characters!");
-        headerRecords.put("current",username);
-        return this;
+        return putHeaderRecord(HeaderKey.CURRENT,username);
     }
 
     public NextPressoMessageBuilder remote(String username) throws NextPressoException {
         if(username == null || username.equals("")) throw new NextPressoException("Input Error", "Username for remote is not defined!");
         if(containsInvalidCharacters(username)) throw new NextPressoException("Input Error", "Remote username contains invalid characters!");
-        headerRecords.put("remote",username);
-        return this;
+        return putHeaderRecord(HeaderKey.REMOTE,username);
+    }
+
+    /**
+     * Sequence number of a group message in the history of its group
+     */
+    public NextPressoMessageBuilder sequence(long sequence) {
+        return putHeaderRecord(HeaderKey.SEQUENCE,String.valueOf(sequence));
+    }
+
+    public NextPressoMessageBuilder count(int count) {
+        return putHeaderRecord(HeaderKey.COUNT,String.valueOf(count));
+    }
+
+    /**
+     * Token of a session that can be resumed after a reconnect
+     */
+    public NextPressoMessageBuilder session(String token) throws NextPressoException {
+        if(token == null || token.equals("")) throw new NextPressoException("Input Error", "Session is not defined!");
+        if(containsInvalidCharacters(token)) throw new NextPressoException("Input Error", "Session contains invalid characters!");
+        return putHeaderRecord(HeaderKey.SESSION,token);
+    }
+
+    /**
+     * Signed token that logs a user in again without its password
+     */
+    public NextPressoMessageBuilder token(String token) throws NextPressoException {
+        if(token == null || token.equals("")) throw new NextPressoException("Input Error", "Token is not defined!");
+        if(containsInvalidCharacters(token)) throw new NextPressoException("Input Error", "Token contains invalid characters!");
+        return putHeaderRecord(HeaderKey.TOKEN,token);
+    }
+
+    /**
+     * Number of a message that was delivered in a resumable session
+     */
+    public NextPressoMessageBuilder delivery(long delivery) {
+        return putHeaderRecord(HeaderKey.DELIVERY,String.valueOf(delivery));
     }
 
     /**
@@ -174,12 +304,12 @@ public class NextPressoMessageBuilder {
      * @param input User input for a header value
      * @return True if the input contains invalid characters
      */
-    private boolean containsInvalidCharacters(String input){
-        return input.contains(Character.toString(HEADING_END)) ||
-                input.contains(Character.toString(HEADING_START)) ||
-                input.contains(Character.toString(BLOCK_END)) ||
-                input.contains("/") ||
-                input.contains("=");
+    static boolean containsInvalidCharacters(String input){
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == HEADING_END || c == HEADING_START || c == BLOCK_END || c == '/' || c == '=') return true;
+        }
+        return false;
     }
 
     /**
@@ -191,7 +321,7 @@ public class NextPressoMessageBuilder {
             StringBuilder b = new StringBuilder();
             b.append(HEADING_START).append(headerCode.code);
 
-            headerRecords.forEach((k,v) -> b.append('/').append(k).append("=").append(v));
+            getHeaderRecords().forEach((k,v) -> b.append('/').append(k).append("=").append(v));
 
             b.append(HEADING_END).append(body).append(BLOCK_END);
 
@@ -205,7 +335,7 @@ public class NextPressoMessageBuilder {
      */
     public Message buildMessage(){
         if(headerCode != null) {
-            int firstNibble = headerCode.code >> 4;
+            int firstNibble = (headerCode.code >> 4) & 0xF; //Extended 0xE0xx codes are typed by their last byte
             return switch (firstNibble) {
                 case 0x1 -> new AcknowledgeMessage(this);
                 case 0x3 -> new Message(this);
@@ -0,0 +1,88 @@
+package nextpresso.model;
+
+import nextpresso.tools.ApiProtocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Outgoing message that is encoded once and can be sent to any number of connections.
+ * The NPP/1.1 bytes are built when the frame is created, the NPP/2 bytes the first time an NPP/2 connection needs them.
+ * Sockets only get read-only views of the bytes, so the same frame can be put in the queue of every recipient
+ */
+public final class OutboundFrame {
+    private final NextPressoMessageBuilder message;
+    private final String target;
+    private final byte[] legacyBytes; //Null if the body is binary or holds bytes that NPP/1.1 cannot carry
+    private volatile byte[] binaryBytes;
+
+    /**
+     * Create a new frame of a message. The builder must not be changed afterwards
+     * @param message Message to send
+     */
+    public OutboundFrame(NextPressoMessageBuilder message) {
+        this.message = message;
+        this.target = message.getHeaderRecords().target();
+        this.legacyBytes = NPP2Codec.requiresBinaryProtocol(message) ? null : message.buildProtocolString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Create a new frame of the same message with one more header record, for a record that differs per recipient
+     * @param key Key of the record
+     * @param value Value of the record
+     * @return New frame, this frame is not changed
+     */
+    public OutboundFrame withRecord(HeaderKey key, String value) {
+        return new OutboundFrame(new NextPressoMessageBuilder(message.headerCode, message.getHeaderRecords().with(key.key, value), message.body));
+    }
+
+    /**
+     * Get the bytes of the frame for a connection
+     * @param binaryProtocol True if the connection uses NPP/2
+     * @return Read-only buffer of the encoded frame. Null if the message cannot be sent in NPP/1.1
+     */
+    public ByteBuffer toBuffer(boolean binaryProtocol) {
+        byte[] bytes = getBytes(binaryProtocol);
+        return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the encoded frame itself. The array is shared and must not be modified
+     * @param binaryProtocol True if the connection uses NPP/2
+     * @return Encoded frame. Null if the message cannot be sent in NPP/1.1
+     */
+    byte[] getBytes(boolean binaryProtocol) {
+        if (!binaryProtocol) return legacyBytes;
+        byte[] bytes = binaryBytes;
+        if (bytes == null) binaryBytes = bytes = NPP2Codec.encode(message); //Encoding twice in a race gives the same bytes
+        return bytes;
+    }
+
+    /**
+     * Get the size of the frame in the protocol it is most likely sent in
+     * @return Bytes of the NPP/1.1 frame, or of the NPP/2 frame if the message cannot be sent in NPP/1.1
+     */
+    public int size() {
+        return legacyBytes != null ? legacyBytes.length : getBytes(true).length;
+    }
+
+    /**
+     * Check if the frame can only be sent to NPP/2 connections
+     * @return True if the body is binary or holds bytes that NPP/1.1 cannot carry
+     */
+    public boolean requiresBinaryProtocol() {
+        return legacyBytes == null;
+    }
+
+    public ApiProtocol getHeaderCode() {
+        return message.headerCode;
+    }
+
+    /**
+     * Get the only user that may receive this frame
+     * @return Username from the target header record. Null if anyone may receive it
+     */
+    public String getTarget() {
+        return target;
+    }
+}
@@ -0,0 +1,42 @@
+package nextpresso.server;
+
+import nextpresso.server.core.FileService;
+import nextpresso.server.core.MessageService;
+import nextpresso.server.core.ServerSettings;
+
+import java.io.IOException;
+
+public class clusterLauncher {
+    /**
+     * Start a node of a cluster of servers
+     * @param args Settings in the "--key=value" format. The name of the node and the port of the cluster links are required,
+     *             for example "--node=a --cluster-port=9001 --peers=host:9002,host:9003". The other settings are those of a single server,
+     *             see {@link ServerSettings#usage()}. The shared secret of the cluster is read from the environment
+     */
+    public static void main(String[] args) throws IOException {
+        ServerSettings settings;
+        try {
+            settings = ServerSettings.parse(args);
+            if (settings.getCluster() == null) throw new IllegalArgumentException("A cluster node needs both --node and --cluster-port");
+        } catch (IllegalArgumentException e) {
+            System.err.println("> " + e.getMessage());
+            System.err.println("> Usage: clusterLauncher --node=<name> --cluster-port=<port> [--key=value ...]\n" + ServerSettings.usage());
+            return;
+        }
+        String nodeName = settings.getCluster().getNodeName();
+        System.out.println("<<< Server \"Latte\" started as node '" + nodeName + "' (" + settings.getExecutionMode() + ") >>>");
+
+        //Initiate the file handler server
+        FileService fileServer = new FileService(settings.getFilePort(), settings.getExecutionMode(), settings.getRelayBufferSize());
+        Thread fileThread = new Thread(fileServer);
+
+        //Initiate the message handler server
+        //Each node keeps the stored messages of its own offline users and its own copy of the group histories
+        MessageService latteMessage = new MessageService(settings, fileServer);
+        Thread messageThread = new Thread(latteMessage);
+
+        //Start the services
+        messageThread.start();
+        fileThread.start();
+    }
+}
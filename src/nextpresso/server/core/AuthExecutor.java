@@ -0,0 +1,139 @@
+package nextpresso.server.core;
+
+import nextpresso.server.data.CredentialStore;
+import nextpresso.server.tools.PBKDF2Validator;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Bounded pool of threads that check the passwords of logins, with server wide counters of the checks.
+ * Password hashing is slow on purpose, so it never runs on the threads that drive the connections.
+ * Logins that do not fit the queue are refused right away instead of waiting
+ */
+public class AuthExecutor {
+    public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int DEFAULT_QUEUE_DEPTH = 256;
+
+    private final ThreadPoolExecutor executor;
+    private final LongAdder checks;
+    private final LongAdder rejections;
+    private final LongAdder queueWait; //Nanoseconds
+    private final LongAdder hashTime; //Nanoseconds
+    private final LongAccumulator maxLatency; //Nanoseconds from the submit till the result
+
+    /**
+     * Create a new pool with the default number of threads and queue depth
+     */
+    public AuthExecutor() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * Create a new pool
+     * @param threads Number of threads that check passwords
+     * @param queueDepth Most logins that may wait for a thread
+     */
+    public AuthExecutor(int threads, int queueDepth) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueDepth), task -> {
+            Thread thread = new Thread(task, "AuthThread-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.checks = new LongAdder();
+        this.rejections = new LongAdder();
+        this.queueWait = new LongAdder();
+        this.hashTime = new LongAdder();
+        this.maxLatency = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Check a password on one of the threads of the pool
+     * @param password Raw password that the client sent
+     * @param credential Stored PBKDF2 hash of the password of the user
+     * @param result Called on the thread of the pool with true if the password matches
+     * @return False if the queue is full and the password was not checked
+     */
+    boolean validate(String password, CredentialStore.Credential credential, Consumer<Boolean> result) {
+        long submitted = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long started = System.nanoTime();
+                boolean valid;
+                try {
+                    valid = PBKDF2Validator.validateHash(password, credential.iterations, credential.salt, credential.hash);
+                } catch (NoSuchAlgorithmException | InvalidKeySpecException | RuntimeException e) {
+                    System.err.println("> Could not check a password: " + e);
+                    valid = false;
+                }
+                long finished = System.nanoTime();
+                checks.increment();
+                queueWait.add(started - submitted);
+                hashTime.add(finished - started);
+                maxLatency.accumulate(finished - submitted);
+                result.accept(valid);
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            return false;
+        }
+    }
+
+    public long getCheckCount() {
+        return checks.sum();
+    }
+
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    /**
+     * Get the number of logins that wait for a thread
+     * @return Queue depth of the pool
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Get how long a login waited for a thread on average
+     * @return Milliseconds. 0 if no password was checked yet
+     */
+    public double getAverageQueueWait() {
+        long checkCount = checks.sum();
+        return checkCount == 0 ? 0 : queueWait.sum() / 1e6 / checkCount;
+    }
+
+    /**
+     * Get how long the hashing of a password took on average
+     * @return Milliseconds. 0 if no password was checked yet
+     */
+    public double getAverageHashTime() {
+        long checkCount = checks.sum();
+        return checkCount == 0 ? 0 : hashTime.sum() / 1e6 / checkCount;
+    }
+
+    /**
+     * Get the longest time from a login till its password was checked
+     * @return Milliseconds
+     */
+    public double getMaxLatency() {
+        return maxLatency.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d checks, %d rejected, %d waiting, %.2f ms queue wait, %.2f ms hashing, %.2f ms max latency",
+                getCheckCount(), getRejectionCount(), getQueueDepth(), getAverageQueueWait(), getAverageHashTime(), getMaxLatency());
+    }
+}
@@ -0,0 +1,258 @@
+package nextpresso.server.core;
+
+import nextpresso.model.MessageSocket;
+import nextpresso.model.NetSocket;
+import nextpresso.model.NPP2Codec;
+import nextpresso.model.NextPressoException;
+import nextpresso.model.NextPressoMessageBuilder;
+import nextpresso.model.OutboundFrame;
+import nextpresso.tools.NPP2FrameDecoder;
+import nextpresso.tools.NPPFrameDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking message socket that is driven by an {@link EventLoop}
+ */
+public class ChannelSocket implements MessageSocket {
+    private final SocketChannel channel;
+    private final ByteBuffer readBuffer;
+    private final NPPFrameDecoder frameDecoder;
+    private NPP2FrameDecoder binaryFrameDecoder; //Null till the connection is upgraded to NPP/2
+    private volatile boolean binaryProtocol;
+    private volatile int maxFrameSize = NPP2Codec.MAX_FRAME_SIZE;
+    private final ConcurrentLinkedQueue<ByteBuffer> outgoingBuffers;
+    private final int maxWriteBytes; //Most bytes that a single gathering write takes
+    private SelectionKey key;
+
+    /**
+     * Create a new channel socket
+     * @param channel Non-blocking socket channel of the client
+     */
+    public ChannelSocket(SocketChannel channel) {
+        this(channel, NetSocket.DEFAULT_MAX_WRITE_BYTES);
+    }
+
+    /**
+     * Create a new channel socket
+     * @param channel Non-blocking socket channel of the client
+     * @param maxWriteBytes Most bytes that a single write of the queued messages takes, unless a single message is larger
+     */
+    public ChannelSocket(SocketChannel channel, int maxWriteBytes) {
+        this.channel = channel;
+        this.readBuffer = ByteBuffer.allocate(8192);
+        this.frameDecoder = new NPPFrameDecoder();
+        this.outgoingBuffers = new ConcurrentLinkedQueue<>();
+        this.maxWriteBytes = maxWriteBytes;
+    }
+
+    /**
+     * Bind the socket to the selection key of its event loop
+     * @param key Key that the channel is registered with
+     */
+    protected void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    protected SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Read every NPP message that is available on the channel without blocking.
+     * A message that has not ended yet stays in the decoder till its next part arrives or it times out
+     * @return Read NPP messages in String format. Null if the channel reached its end
+     * @throws IOException If the channel could not be read
+     */
+    protected List<String> readMessages() throws IOException {
+        List<String> messages = new ArrayList<>();
+        int readLength;
+        while ((readLength = channel.read(readBuffer)) > 0) {
+            readBuffer.flip();
+            frameDecoder.decode(readBuffer, messages);
+            readBuffer.clear();
+        }
+        if (readLength == -1 && messages.isEmpty()) return null;
+        return messages;
+    }
+
+    /**
+     * Read every NPP/2 frame that is available on the channel without blocking
+     * @return Read frames without their length prefix. Null if the channel reached its end
+     * @throws IOException If the channel could not be read or a frame is too large
+     */
+    protected List<byte[]> readFrames() throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        int readLength;
+        while ((readLength = channel.read(readBuffer)) > 0) {
+            readBuffer.flip();
+            binaryFrameDecoder.decode(readBuffer, frames);
+            readBuffer.clear();
+        }
+        if (readLength == -1 && frames.isEmpty()) return null;
+        return frames;
+    }
+
+    @Override
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    @Override
+    public synchronized void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        if (binaryFrameDecoder != null) binaryFrameDecoder.setMaxFrameSize(maxFrameSize);
+    }
+
+    /**
+     * Get the moment the message that is currently being read times out
+     * @return Time in milliseconds since the epoch. -1 if no message is being read
+     */
+    protected long getPartialMessageDeadline() {
+        return frameDecoder.getFrameDeadline();
+    }
+
+    /**
+     * Give up on the message that is currently being read if it did not end in time
+     * @param now Current time in milliseconds since the epoch
+     * @return The part of the message that has been read. Null if the message did not time out
+     */
+    protected String pollExpiredMessage(long now) {
+        return frameDecoder.pollExpiredFrame(now);
+    }
+
+    /**
+     * Queue a message and write it out as far as the channel allows.
+     * Whatever cannot be written right away is written by the event loop once the channel becomes writable
+     * @param msg Message to send
+     */
+    @Override
+    public synchronized void sendMessage(String msg) {
+        if (isClosed()) return;
+        if (binaryProtocol) {
+            try {
+                sendMessage(new NextPressoMessageBuilder(msg));
+            } catch (NextPressoException e) {
+                System.err.println("> Could not convert a message to " + NPP2Codec.VERSION + ": " + e.getMessage());
+            }
+            return;
+        }
+        outgoingBuffers.add(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)));
+        flush();
+    }
+
+    /**
+     * Queue an already encoded message in the protocol of the connection and write it out as far as the channel allows
+     * @param frame Frame to send. It may be shared with other connections
+     */
+    @Override
+    public synchronized void sendFrame(OutboundFrame frame) {
+        if (isClosed()) return;
+        ByteBuffer buffer = frame.toBuffer(binaryProtocol);
+        if (buffer == null) {
+            System.err.println("> Could not send a message that needs NPP/2 to an NPP/1.1 connection");
+            return;
+        }
+        outgoingBuffers.add(buffer);
+        flush();
+    }
+
+    /**
+     * Queue several already encoded messages and write them out together as far as the channel allows
+     * @param frames Frames to send in order. They may be shared with other connections
+     * @return Number of bytes that were queued
+     */
+    @Override
+    public synchronized int sendFrames(List<OutboundFrame> frames) {
+        if (isClosed()) return 0;
+        int queuedBytes = 0;
+        for (OutboundFrame frame : frames) {
+            ByteBuffer buffer = frame.toBuffer(binaryProtocol);
+            if (buffer == null) {
+                System.err.println("> Could not send a message that needs NPP/2 to an NPP/1.1 connection");
+                continue;
+            }
+            outgoingBuffers.add(buffer);
+            queuedBytes += buffer.remaining();
+        }
+        flush();
+        return queuedBytes;
+    }
+
+    @Override
+    public synchronized boolean upgradeProtocol(OutboundFrame acknowledgement) {
+        if (binaryProtocol || isClosed()) return false;
+        sendFrame(acknowledgement);
+        binaryFrameDecoder = new NPP2FrameDecoder(maxFrameSize);
+        binaryProtocol = true;
+        return true;
+    }
+
+    /**
+     * Check if queued messages could not be written to the channel yet
+     * @return True - the client did not read everything that was sent
+     */
+    @Override
+    public boolean hasPendingWrites() {
+        return !outgoingBuffers.isEmpty();
+    }
+
+    /**
+     * Write queued messages to the channel until the channel cannot take more data.
+     * The queued buffers are gathered into as few writes as the maximum write size allows
+     */
+    protected synchronized void flush() {
+        try {
+            List<ByteBuffer> gathered = new ArrayList<>();
+            while (!outgoingBuffers.isEmpty()) {
+                gathered.clear();
+                long writeLength = 0;
+                for (ByteBuffer buffer : outgoingBuffers) {
+                    if (!gathered.isEmpty() && writeLength + buffer.remaining() > maxWriteBytes) break;
+                    gathered.add(buffer);
+                    writeLength += buffer.remaining();
+                }
+                long writtenLength = channel.write(gathered.toArray(new ByteBuffer[0]));
+                for (ByteBuffer buffer : gathered) {
+                    if (buffer.hasRemaining()) break;
+                    outgoingBuffers.poll();
+                }
+                if (writtenLength < writeLength) break; //The channel is full, the event loop continues once it is writable
+            }
+            if (key != null && key.isValid()) {
+                int interest = outgoingBuffers.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+                if (key.interestOps() != interest) {
+                    key.interestOps(interest);
+                    key.selector().wakeup();
+                }
+            }
+        } catch (IOException e) {
+            outgoingBuffers.clear(); //The event loop notices the broken channel on its next read
+        }
+    }
+
+    /**
+     * Terminate connection
+     */
+    @Override
+    public void closeConnection() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    /**
+     * Check if a socket is closed
+     * @return True - socket is closed
+     */
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+}
@@ -0,0 +1,217 @@
+package nextpresso.server.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Group of users that receive each other's group messages.
+ * The member list is copied on every join and leave, so sending to the group walks a stable array without locking.
+ * The last activity of each member is kept in a separate slot of a long array, so refreshing it does not copy the member list
+ */
+public class ChatGroup {
+    private final String name;
+    private final Object membershipLock; //Guards joins, leaves and slot changes
+    private volatile Members members;
+    private volatile AtomicLongArray activity; //Last activity of each slot in milliseconds
+    private int[] freeSlots;
+    private int freeSlotCount;
+
+    /**
+     * Immutable snapshot of the members of a group
+     */
+    private static final class Members {
+        private static final Members EMPTY = new Members(new String[0], new MessageManager[0], new int[0]);
+
+        private final String[] usernames;
+        private final MessageManager[] managers;
+        private final int[] slots; //Activity slot of each member
+
+        private Members(String[] usernames, MessageManager[] managers, int[] slots) {
+            this.usernames = usernames;
+            this.managers = managers;
+            this.slots = slots;
+        }
+
+        private int indexOf(String username) {
+            for (int i = 0; i < usernames.length; i++) if (usernames[i].equals(username)) return i;
+            return -1;
+        }
+    }
+
+    /**
+     * Create a new empty group
+     * @param name Name of the group
+     */
+    ChatGroup(String name) {
+        this.name = name;
+        this.membershipLock = new Object();
+        this.members = Members.EMPTY;
+        this.activity = new AtomicLongArray(4);
+        this.freeSlots = new int[]{3, 2, 1, 0};
+        this.freeSlotCount = 4;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the managers of every member to send a message to them.
+     * The array is shared and must not be modified
+     * @return Managers of the members at the time of the call
+     */
+    public MessageManager[] getMembers() {
+        return members.managers;
+    }
+
+    /**
+     * Check if a user is a member of the group
+     * @param username User to check
+     * @return True - the user is a member
+     */
+    public boolean contains(String username) {
+        return members.indexOf(username) != -1;
+    }
+
+    /**
+     * Check if the group has no members
+     * @return True - nobody is in the group
+     */
+    public boolean isEmpty() {
+        return members.usernames.length == 0;
+    }
+
+    /**
+     * Replace the manager of a member, the activity of the member is kept
+     * @param username Member of the group
+     * @param manager Manager of the member's new connection
+     * @return False if the user is not a member
+     */
+    boolean rebind(String username, MessageManager manager) {
+        synchronized (membershipLock) {
+            Members current = members;
+            int index = current.indexOf(username);
+            if (index == -1) return false;
+            MessageManager[] managers = current.managers.clone();
+            managers[index] = manager;
+            members = new Members(current.usernames, managers, current.slots);
+            return true;
+        }
+    }
+
+    /**
+     * Add a user to the group and start its activity from now. A user that is already a member only gets its manager and activity refreshed
+     * @param username User to add
+     * @param manager Manager of the user's connection
+     */
+    void join(String username, MessageManager manager) {
+        synchronized (membershipLock) {
+            Members current = members;
+            int index = current.indexOf(username);
+            if (index != -1) {
+                MessageManager[] managers = current.managers.clone();
+                managers[index] = manager;
+                members = new Members(current.usernames, managers, current.slots);
+                activity.set(current.slots[index], System.currentTimeMillis());
+                return;
+            }
+            int slot = takeSlot();
+            activity.set(slot, System.currentTimeMillis());
+            int length = current.usernames.length;
+            String[] usernames = Arrays.copyOf(current.usernames, length + 1);
+            MessageManager[] managers = Arrays.copyOf(current.managers, length + 1);
+            int[] slots = Arrays.copyOf(current.slots, length + 1);
+            usernames[length] = username;
+            managers[length] = manager;
+            slots[length] = slot;
+            members = new Members(usernames, managers, slots);
+        }
+    }
+
+    /**
+     * Remove a user from the group
+     * @param username User to remove
+     * @return True - the user was a member
+     */
+    boolean leave(String username) {
+        synchronized (membershipLock) {
+            return removeMember(username, -1);
+        }
+    }
+
+    /**
+     * Remove a user from the group, unless it was active since the given time
+     * @param username User to remove
+     * @param lastActivity Last activity of the user that was seen when the user was found inactive
+     * @return True - the user was removed
+     */
+    boolean leaveIfInactiveSince(String username, long lastActivity) {
+        synchronized (membershipLock) {
+            return removeMember(username, lastActivity);
+        }
+    }
+
+    private boolean removeMember(String username, long expectedActivity) {
+        Members current = members;
+        int index = current.indexOf(username);
+        if (index == -1) return false;
+        if (expectedActivity != -1 && activity.get(current.slots[index]) != expectedActivity) return false;
+        int length = current.usernames.length;
+        String[] usernames = new String[length - 1];
+        MessageManager[] managers = new MessageManager[length - 1];
+        int[] slots = new int[length - 1];
+        //Copy everything except the removed member, keeping the order of the others
+        System.arraycopy(current.usernames, 0, usernames, 0, index);
+        System.arraycopy(current.usernames, index + 1, usernames, index, length - index - 1);
+        System.arraycopy(current.managers, 0, managers, 0, index);
+        System.arraycopy(current.managers, index + 1, managers, index, length - index - 1);
+        System.arraycopy(current.slots, 0, slots, 0, index);
+        System.arraycopy(current.slots, index + 1, slots, index, length - index - 1);
+        members = new Members(usernames, managers, slots);
+        freeSlots[freeSlotCount++] = current.slots[index];
+        return true;
+    }
+
+    private int takeSlot() {
+        if (freeSlotCount == 0) {
+            //Publish the larger array first, then carry over the old values. A refresh that still wrote the old array
+            //sees the new one afterwards and writes it there too, so no refresh is lost
+            AtomicLongArray oldActivity = activity;
+            int oldLength = oldActivity.length();
+            AtomicLongArray newActivity = new AtomicLongArray(oldLength * 2);
+            activity = newActivity;
+            for (int i = 0; i < oldLength; i++) newActivity.accumulateAndGet(i, oldActivity.get(i), Math::max);
+            freeSlots = new int[oldLength * 2];
+            for (int i = oldLength * 2 - 1; i >= oldLength; i--) freeSlots[freeSlotCount++] = i;
+        }
+        return freeSlots[--freeSlotCount];
+    }
+
+    /**
+     * Refresh the last activity of a member to now. Does not lock
+     * @param username Member that was active
+     */
+    public void touch(String username) {
+        Members current = members;
+        int index = current.indexOf(username);
+        if (index == -1) return;
+        int slot = current.slots[index];
+        long now = System.currentTimeMillis();
+        AtomicLongArray written = activity;
+        written.accumulateAndGet(slot, now, Math::max);
+        if (activity != written) activity.accumulateAndGet(slot, now, Math::max); //The array grew meanwhile
+    }
+
+    /**
+     * Get when a member was last active
+     * @param username Member to check
+     * @return Time of the last activity in milliseconds. -1 if the user is not a member
+     */
+    public long getLastActivity(String username) {
+        synchronized (membershipLock) { //The activity of a slot is only complete outside of growing
+            Members current = members;
+            int index = current.indexOf(username);
+            return index == -1 ? -1 : activity.get(current.slots[index]);
+        }
+    }
+}
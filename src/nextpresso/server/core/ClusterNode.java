@@ -0,0 +1,574 @@
+package nextpresso.server.core;
+
+import nextpresso.model.NPP2Codec;
+import nextpresso.model.NextPressoException;
+import nextpresso.model.OutboundFrame;
+import nextpresso.server.data.CredentialStore;
+import nextpresso.tools.ApiProtocol;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Node of a cluster of Latte servers that share their users.
+ * Each node connects to the cluster port of every other node and tells it which users log in and out and which groups are created,
+ * so every node holds a presence directory of the users on the other nodes. Direct messages, broadcasts and group messages
+ * for users on other nodes are sent over these links as NPP/2 frames.
+ * A link message is [type][argument as modified UTF-8][payload length][payload]. A standalone node has no links and routes nothing.
+ * A link is only trusted once both nodes proved that they know the secret of the cluster: the accepting node sends a random challenge,
+ * the connecting node answers with its name, its own challenge and an HMAC of the first challenge, and the accepting node answers with its name
+ * and an HMAC of the second challenge
+ */
+public class ClusterNode {
+    private static final byte HELLO = 1; //Argument: node name, payload: [challenge of the connecting node] and the HMAC of the other challenge
+    private static final byte USER_ONLINE = 2; //Argument: username, payload: flags of the user
+    private static final byte USER_OFFLINE = 3; //Argument: username
+    private static final byte GROUP_CREATED = 4; //Argument: group name, payload: 1 if the group was just created
+    private static final byte DIRECT = 5; //Argument: username, payload: NPP/2 frame
+    private static final byte BROADCAST = 6; //Payload: NPP/2 frame
+    private static final byte GROUP = 7; //Argument: group name, payload: NPP/2 frame
+    private static final byte CHALLENGE = 8; //Payload: random challenge for the connecting node
+    private static final int AUTHENTICATED_FLAG = 1; //Flag of USER_ONLINE
+    private static final int BINARY_PROTOCOL_FLAG = 2; //Flag of USER_ONLINE, the user can receive messages that only NPP/2 carries
+    private static final int CHALLENGE_LENGTH = 16; //Bytes
+    private static final int PROOF_LENGTH = 32; //Bytes of an HMAC-SHA256
+    private static final String CONNECT_PROOF = "connect"; //Proofs of the two sides differ, so a node cannot pass on the proof of the other
+    private static final String ACCEPT_PROOF = "accept";
+    private static final long RECONNECT_DELAY = 2000; //Milliseconds between connection attempts to a peer
+    private static final int INTRODUCTION_TIMEOUT = 5000; //Milliseconds a new link may take to prove the secret
+    private static final long LINK_CHECK_INTERVAL = 1000; //Milliseconds an idle peer waits before it checks if its link is still open
+    private static final byte[] NO_PAYLOAD = new byte[0];
+    private static final SecureRandom CHALLENGES = new SecureRandom();
+
+    private final ClusterSettings settings; //Null for a standalone node
+    private final Map<String, MessageManager> connectedUsers;
+    private final GroupRegistry groups;
+    private final GroupHistory history;
+    private final OfflineInbox inbox;
+    private final CredentialStore credentials;
+    private final OutboundLimits limits; //Budget of the messages that may wait for each peer
+    private final Map<String, RemoteUser> remoteUsers; //Username, node of the user
+    private final List<Peer> peers;
+
+    /**
+     * User that is logged in on another node
+     */
+    private static final class RemoteUser {
+        private final String node;
+        private final boolean authenticated;
+        private final boolean binaryProtocol;
+
+        private RemoteUser(String node, int flags) {
+            this.node = node;
+            this.authenticated = (flags & AUTHENTICATED_FLAG) != 0;
+            this.binaryProtocol = (flags & BINARY_PROTOCOL_FLAG) != 0;
+        }
+    }
+
+    /**
+     * Create a node of a cluster. It links with the other nodes once it is started
+     * @param settings Name, port and peers of the node. Null for a standalone node
+     * @param connectedUsers List of the local users and their managers
+     * @param groups Registry of the local groups
+     * @param history History of the groups, which also stores the group messages of the other nodes
+     * @param inbox Stored direct messages, which also keeps the messages of the other nodes for users that left this node
+     * @param credentials Registered users, only they get stored messages
+     * @param limits Budget of the messages that may wait for each of the other nodes
+     */
+    public ClusterNode(ClusterSettings settings, Map<String, MessageManager> connectedUsers, GroupRegistry groups, GroupHistory history, OfflineInbox inbox, CredentialStore credentials, OutboundLimits limits) {
+        this.settings = settings;
+        this.connectedUsers = connectedUsers;
+        this.groups = groups;
+        this.history = history;
+        this.inbox = inbox;
+        this.credentials = credentials;
+        this.limits = limits;
+        this.remoteUsers = new ConcurrentHashMap<>();
+        this.peers = new ArrayList<>();
+        if (settings != null) for (InetSocketAddress address : settings.getPeers()) peers.add(new Peer(address));
+    }
+
+    /**
+     * Listen for the links of the other nodes and connect to each of them
+     * @throws IOException If the cluster port cannot be opened
+     */
+    public void start() throws IOException {
+        if (settings == null) return;
+        ServerSocket linkServer = new ServerSocket(settings.getClusterPort());
+        new Thread(() -> acceptLinks(linkServer), "ClusterAccept").start();
+        for (int i = 0; i < peers.size(); i++) new Thread(peers.get(i), "ClusterPeer-" + i).start();
+        System.out.println("<<< Node '" + settings.getNodeName() + "' now listens for cluster links on port " + settings.getClusterPort() + " >>>");
+    }
+
+    //============================[Routing for the message handlers]============================
+
+    /**
+     * Check if a user is logged in on another node
+     * @param username User to check
+     * @return True - the user is on another node
+     */
+    public boolean isRemoteUser(String username) {
+        return remoteUsers.containsKey(username);
+    }
+
+    /**
+     * Check if a user on another node can receive a message, a user on NPP/1.1 cannot receive messages that only NPP/2 carries
+     * @param username User to check
+     * @param frame Message for the user
+     * @return False if the user is on another node and cannot receive the message
+     */
+    public boolean canReceive(String username, OutboundFrame frame) {
+        RemoteUser user = remoteUsers.get(username);
+        return user == null || !frame.requiresBinaryProtocol() || user.binaryProtocol;
+    }
+
+    /**
+     * Run an action for every user on the other nodes
+     * @param action Action that gets the username and if the user is authenticated
+     */
+    public void forEachRemoteUser(BiConsumer<String, Boolean> action) {
+        remoteUsers.forEach((username, user) -> action.accept(username, user.authenticated));
+    }
+
+    /**
+     * Send a message to a user on another node
+     * @param username Target user
+     * @param frame Message to send
+     * @return False if the user is not on another node or its node is not reachable
+     */
+    public boolean sendToUser(String username, OutboundFrame frame) {
+        RemoteUser user = remoteUsers.get(username);
+        if (user == null) return false;
+        for (Peer peer : peers) {
+            if (user.node.equals(peer.nodeName)) return peer.send(new LinkMessage(encode(DIRECT, username, frame), OutboundQueue.isCritical(frame)));
+        }
+        return false;
+    }
+
+    /**
+     * Send a message to every user on the other nodes
+     * @param frame Message to send
+     */
+    public void broadcast(OutboundFrame frame) {
+        sendToPeers(BROADCAST, "", frame);
+    }
+
+    /**
+     * Send a message to the members of a group on the other nodes
+     * @param groupname Name of the group
+     * @param frame Message to send
+     */
+    public void sendToGroup(String groupname, OutboundFrame frame) {
+        sendToPeers(GROUP, groupname, frame);
+    }
+
+    /**
+     * Tell the other nodes about a new group, so their users can join it
+     * @param groupname Name of the group
+     */
+    public void announceGroup(String groupname) {
+        sendToPeers(new LinkMessage(encode(GROUP_CREATED, groupname, new byte[]{1}), true));
+    }
+
+    /**
+     * Tell the other nodes that a user logged in on this node
+     * @param username User that logged in
+     * @param authenticated True - the user is authenticated
+     * @param binaryProtocol True - the user is connected with NPP/2
+     */
+    public void announceLogin(String username, boolean authenticated, boolean binaryProtocol) {
+        sendToPeers(new LinkMessage(encode(USER_ONLINE, username, userFlags(authenticated, binaryProtocol)), true));
+    }
+
+    /**
+     * Tell the other nodes that a user of this node logged out
+     * @param username User that logged out
+     */
+    public void announceLogout(String username) {
+        sendToPeers(new LinkMessage(encode(USER_OFFLINE, username, NO_PAYLOAD), true));
+    }
+
+    private static byte[] userFlags(boolean authenticated, boolean binaryProtocol) {
+        return new byte[]{(byte) ((authenticated ? AUTHENTICATED_FLAG : 0) | (binaryProtocol ? BINARY_PROTOCOL_FLAG : 0))};
+    }
+
+    private void sendToPeers(byte type, String argument, OutboundFrame frame) {
+        if (peers.isEmpty()) return;
+        sendToPeers(new LinkMessage(encode(type, argument, frame), OutboundQueue.isCritical(frame))); //Encoded once for every peer
+    }
+
+    private void sendToPeers(LinkMessage linkMessage) {
+        for (Peer peer : peers) peer.send(linkMessage);
+    }
+
+    //============================[Link messages]============================
+
+    private static byte[] encode(byte type, String argument, OutboundFrame frame) {
+        ByteBuffer encoded = frame.toBuffer(true);
+        byte[] payload = new byte[encoded.remaining()];
+        encoded.get(payload);
+        return encode(type, argument, payload);
+    }
+
+    /**
+     * Read the payload of a link message after its type and argument
+     * @param input Stream of the link
+     * @param maxLength Most bytes the payload may hold
+     * @return The payload
+     * @throws IOException If the link broke or the payload is too large
+     */
+    private static byte[] readPayload(DataInputStream input, int maxLength) throws IOException {
+        int payloadLength = input.readInt();
+        if (payloadLength < 0 || payloadLength > maxLength) throw new IOException("Cluster link message is too large");
+        byte[] payload = new byte[payloadLength];
+        input.readFully(payload);
+        return payload;
+    }
+
+    private static byte[] newChallenge() {
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        CHALLENGES.nextBytes(challenge);
+        return challenge;
+    }
+
+    /**
+     * Prove to another node that this node knows the secret of the cluster
+     * @param side Side of the link that gives the proof
+     * @param challenge Challenge that the other node sent
+     * @param nodeName Name of the node that gives the proof
+     * @return HMAC-SHA256 of the side, the challenge and the name with the secret as key
+     */
+    private byte[] prove(String side, byte[] challenge, String nodeName) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(settings.getSecret(), "HmacSHA256"));
+            mac.update(side.getBytes(StandardCharsets.UTF_8));
+            mac.update(challenge);
+            return mac.doFinal(nodeName.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC is not supported", e);
+        }
+    }
+
+    private static byte[] encode(byte type, String argument, byte[] payload) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + argument.length() + 8);
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeByte(type);
+            output.writeUTF(argument);
+            output.writeInt(payload.length);
+            output.write(payload);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); //Writing to memory does not fail
+        }
+    }
+
+    private void acceptLinks(ServerSocket linkServer) {
+        while (!linkServer.isClosed()) {
+            try {
+                Socket link = linkServer.accept();
+                new Thread(() -> readLink(link), "ClusterLink-" + link.getPort()).start();
+            } catch (IOException e) {
+                System.err.println("> Could not accept a cluster link: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read the messages of another node till its link closes. The node first proves that it knows the secret of the cluster
+     * and gets this node's name and proof back. A link that does not start with a valid proof is closed
+     * @param link Link that another node opened
+     */
+    private void readLink(Socket link) {
+        String node = null;
+        try (link) {
+            DataInputStream input = new DataInputStream(link.getInputStream());
+            byte[] challenge = newChallenge();
+            link.setSoTimeout(INTRODUCTION_TIMEOUT);
+            link.getOutputStream().write(encode(CHALLENGE, "", challenge));
+            while (true) {
+                byte type = input.readByte();
+                String argument = input.readUTF();
+                //Nothing but the small introduction is read before the node is trusted
+                byte[] payload = readPayload(input, node == null ? CHALLENGE_LENGTH + PROOF_LENGTH : NPP2Codec.MAX_FRAME_SIZE + 8);
+                if (node != null) {
+                    handleLinkMessage(node, type, argument, payload);
+                    continue;
+                }
+                if (type != HELLO || payload.length != CHALLENGE_LENGTH + PROOF_LENGTH
+                        || !MessageDigest.isEqual(Arrays.copyOfRange(payload, CHALLENGE_LENGTH, payload.length), prove(CONNECT_PROOF, challenge, argument))) {
+                    System.err.println("> Refused a cluster link from " + link.getRemoteSocketAddress() + ", it does not know the secret of the cluster");
+                    return;
+                }
+                node = argument;
+                link.setSoTimeout(0);
+                link.getOutputStream().write(encode(HELLO, settings.getNodeName(), prove(ACCEPT_PROOF, Arrays.copyOf(payload, CHALLENGE_LENGTH), settings.getNodeName())));
+                System.out.println("> Node '" + node + "' joined the cluster");
+            }
+        } catch (EOFException ignored) {
+            //The other node closed the link
+        } catch (IOException e) {
+            System.err.println("> Cluster link with node '" + node + "' broke: " + e.getMessage());
+        } finally {
+            if (node != null) {
+                //The users of the node are unreachable till it links again and sends them anew
+                String lostNode = node;
+                remoteUsers.values().removeIf(user -> user.node.equals(lostNode));
+                System.out.println("> Node '" + node + "' left the cluster");
+            }
+        }
+    }
+
+    private void handleLinkMessage(String node, byte type, String argument, byte[] payload) {
+        switch (type) {
+            case USER_ONLINE -> remoteUsers.put(argument, new RemoteUser(node, payload.length > 0 ? payload[0] : 0));
+            case USER_OFFLINE -> remoteUsers.remove(argument);
+            case GROUP_CREATED -> {
+                //A history that is left on disk from an earlier group with the same name is not handed to the members of the new one
+                if (groups.ensure(argument) && payload.length > 0 && payload[0] == 1) history.reset(argument);
+            }
+            case DIRECT -> {
+                OutboundFrame frame = decode(payload);
+                if (frame != null) deliverDirect(argument, frame);
+            }
+            case BROADCAST -> {
+                OutboundFrame frame = decode(payload);
+                if (frame == null) return;
+                List<MessageManager> managers;
+                synchronized (connectedUsers) { //Copied, so no link lock is taken while the users are locked
+                    managers = new ArrayList<>(connectedUsers.values());
+                }
+                for (MessageManager manager : managers) manager.addExchangeMessage(frame);
+            }
+            case GROUP -> {
+                ChatGroup group = groups.get(argument);
+                OutboundFrame frame = decode(payload);
+                if (group == null || frame == null) return;
+                if (frame.getHeaderCode() == ApiProtocol.MESSAGE_CHAT) history.append(argument, frame); //Notifications are not history
+                for (MessageManager member : group.getMembers()) member.addExchangeMessage(frame);
+            }
+            default -> System.err.println("> Received an unknown cluster link message from node '" + node + "'");
+        }
+    }
+
+    /**
+     * Queue a direct message from another node. The sender was already acknowledged, so a message for a user that left this node
+     * or cannot take it right now is stored like one for an offline user
+     * @param username Target user
+     * @param frame Message for the user
+     */
+    private void deliverDirect(String username, OutboundFrame frame) {
+        MessageManager manager = connectedUsers.get(username);
+        if (manager != null && manager.addExchangeMessage(frame)) return;
+        if (credentials.contains(username) && inbox.store(username, frame)) {
+            System.out.println("> Stored DM from the cluster for user '" + username + "', who cannot receive it on this node");
+            return;
+        }
+        System.err.println("> Dropped DM from the cluster for user '" + username + "', who is not on this node anymore!");
+    }
+
+    private static OutboundFrame decode(byte[] payload) {
+        try {
+            return new OutboundFrame(NPP2Codec.decodePrefixed(payload));
+        } catch (NextPressoException e) {
+            System.err.println("> Could not decode a message from the cluster: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Encoded link message that waits in the queue of a peer
+     * @param bytes Encoded link message
+     * @param critical True if the message must not be dropped to make room, such as the presence of a user
+     */
+    private record LinkMessage(byte[] bytes, boolean critical) {
+    }
+
+    /**
+     * Outgoing link to another node. Messages for the node wait in a bounded queue that the thread of the peer writes out,
+     * so a slow node never blocks the threads that send to it. Once the queue reaches the budget of the {@link OutboundLimits},
+     * new messages are handled by the {@link SlowConsumerPolicy}; links are never spilled to disk.
+     * It connects again whenever the link breaks
+     */
+    private final class Peer implements Runnable {
+        private final InetSocketAddress address;
+        private volatile String nodeName; //Learned from the answer to the introduction
+        private final ArrayDeque<LinkMessage> queue; //Guarded by the peer
+        private long queuedBytes;
+        private Socket link; //Null while not connected
+
+        private Peer(InetSocketAddress address) {
+            this.address = address;
+            this.queue = new ArrayDeque<>();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try (Socket link = new Socket(address.getHostString(), address.getPort())) {
+                    DataInputStream input = new DataInputStream(link.getInputStream());
+                    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(link.getOutputStream()));
+                    //Prove the secret against the challenge of the node and check its proof against our own challenge
+                    if (input.readByte() != CHALLENGE) throw new IOException("Node did not send a challenge");
+                    input.readUTF();
+                    byte[] challenge = readPayload(input, CHALLENGE_LENGTH);
+                    byte[] ownChallenge = newChallenge();
+                    ByteBuffer introduction = ByteBuffer.allocate(CHALLENGE_LENGTH + PROOF_LENGTH).put(ownChallenge).put(prove(CONNECT_PROOF, challenge, settings.getNodeName()));
+                    output.write(encode(HELLO, settings.getNodeName(), introduction.array()));
+                    output.flush();
+                    if (input.readByte() != HELLO) throw new IOException("Node did not answer the introduction");
+                    String name = input.readUTF();
+                    if (!MessageDigest.isEqual(readPayload(input, PROOF_LENGTH), prove(ACCEPT_PROOF, ownChallenge, name))) {
+                        System.err.println("> Cluster node at " + address + " does not know the secret of the cluster");
+                        throw new IOException("Node did not prove the secret");
+                    }
+                    nodeName = name;
+                    link.setSoTimeout(1); //Nothing else is read from this link, a read only tells if the other node went away
+                    introduce(link);
+                    writeQueued(input, output);
+                } catch (IOException ignored) {
+                    //The node is not up yet or went away
+                } catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (this) {
+                    clear();
+                    link = null;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Queue the current users and groups of this node in front of every later announcement,
+         * so the other node never gets an older state after a newer one
+         */
+        private synchronized void introduce(Socket link) {
+            clear();
+            synchronized (connectedUsers) {
+                connectedUsers.forEach((username, manager) -> add(new LinkMessage(encode(USER_ONLINE, username, userFlags(manager.isConnectionAuthenticated(), manager.getSocket().isBinaryProtocol())), true)));
+            }
+            groups.forEach((groupname, group) -> add(new LinkMessage(encode(GROUP_CREATED, groupname, NO_PAYLOAD), true)));
+            this.link = link;
+        }
+
+        /**
+         * Write the queued messages till the link breaks. Every message that was queued meanwhile is written with a single flush
+         */
+        private void writeQueued(DataInputStream input, DataOutputStream output) throws IOException, InterruptedException {
+            List<LinkMessage> batch = new ArrayList<>();
+            while (true) {
+                synchronized (this) {
+                    if (queue.isEmpty()) wait(LINK_CHECK_INTERVAL);
+                    if (link == null) return; //Reset by the slow consumer policy
+                    batch.addAll(queue);
+                    clear();
+                }
+                if (batch.isEmpty()) {
+                    try {
+                        if (input.read() == -1) return;
+                    } catch (SocketTimeoutException ignored) {
+                        //The link is still open
+                    }
+                    continue;
+                }
+                for (LinkMessage linkMessage : batch) output.write(linkMessage.bytes());
+                output.flush();
+                batch.clear();
+            }
+        }
+
+        /**
+         * Queue a link message if the node is connected
+         * @param linkMessage Encoded link message
+         * @return False if the node is not connected or the message was dropped by the slow consumer policy
+         */
+        private synchronized boolean send(LinkMessage linkMessage) {
+            if (link == null) return false;
+            int size = linkMessage.bytes().length;
+            if (!fits(size)) {
+                if (linkMessage.critical() || limits.getPolicy() == SlowConsumerPolicy.DROP_OLDEST) {
+                    Iterator<LinkMessage> queued = queue.iterator();
+                    while (queued.hasNext() && !fits(size)) {
+                        LinkMessage queuedMessage = queued.next();
+                        if (queuedMessage.critical()) continue;
+                        queued.remove();
+                        queuedBytes -= queuedMessage.bytes().length;
+                        limits.recordQueued(-1, -queuedMessage.bytes().length);
+                        limits.recordDropped();
+                    }
+                }
+                if (!fits(size)) {
+                    limits.recordDropped();
+                    //The node gets the whole state again when it links again
+                    if (linkMessage.critical() || limits.getPolicy() == SlowConsumerPolicy.DISCONNECT) reset();
+                    return false;
+                }
+            }
+            add(linkMessage);
+            if (queue.size() == 1) notifyAll();
+            return true;
+        }
+
+        private boolean fits(int size) {
+            //A single message larger than the whole budget is still accepted by an empty queue
+            return queue.isEmpty() || (queue.size() < limits.getMaxMessages() && queuedBytes + size <= limits.getMaxBytes());
+        }
+
+        private void add(LinkMessage linkMessage) {
+            queue.add(linkMessage);
+            queuedBytes += linkMessage.bytes().length;
+            limits.recordQueued(1, linkMessage.bytes().length);
+        }
+
+        private void clear() {
+            limits.recordQueued(-queue.size(), -queuedBytes);
+            queue.clear();
+            queuedBytes = 0;
+        }
+
+        /**
+         * Drop the link of a node that does not keep up, the thread of the peer connects again
+         */
+        private void reset() {
+            System.err.println("> Dropping the cluster link with node '" + nodeName + "' for not reading its messages!");
+            limits.recordDisconnect();
+            clear();
+            try {
+                link.close(); //Also ends a write that is stuck
+            } catch (IOException ignored) {
+                //Closed anyway
+            }
+            link = null;
+            notifyAll();
+        }
+    }
+}
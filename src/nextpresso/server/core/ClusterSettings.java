@@ -0,0 +1,59 @@
+package nextpresso.server.core;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Settings of a Latte node that shares its users with other nodes of a cluster
+ */
+public class ClusterSettings {
+    public static final String SECRET_VARIABLE = "LATTE_CLUSTER_SECRET"; //Environment variable that the launcher reads the secret from
+
+    private final String nodeName;
+    private final int clusterPort;
+    private final List<InetSocketAddress> peers;
+    private final byte[] secret;
+
+    /**
+     * Create new cluster settings
+     * @param nodeName Name of this node, unique in the cluster
+     * @param clusterPort Port that the other nodes connect to
+     * @param peers Cluster ports of the other nodes
+     * @param secret Secret that every node of the cluster shares, a node proves it knows the secret before its link is trusted
+     * @throws IllegalArgumentException If the secret is empty
+     */
+    public ClusterSettings(String nodeName, int clusterPort, List<InetSocketAddress> peers, String secret) {
+        if (secret == null || secret.isEmpty()) throw new IllegalArgumentException("The cluster secret must not be empty");
+        this.nodeName = nodeName;
+        this.clusterPort = clusterPort;
+        this.peers = List.copyOf(peers);
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    byte[] getSecret() {
+        return secret;
+    }
+
+    /**
+     * Parses a launcher argument to the address of a peer
+     * @param peer Address in the "host:port" format
+     * @return Address of the peer
+     */
+    public static InetSocketAddress parsePeer(String peer) {
+        int separator = peer.lastIndexOf(':');
+        return new InetSocketAddress(peer.substring(0, separator), Integer.parseInt(peer.substring(separator + 1)));
+    }
+}
@@ -0,0 +1,92 @@
+package nextpresso.server.core;
+
+import nextpresso.model.NetSocket;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+
+/**
+ * Drives a single blocking message connection on its own (platform or virtual) thread
+ */
+public class ConnectionWorker implements Runnable {
+    private static final int FRAME_CHECK_INTERVAL = 1000; //Milliseconds a read may block before an unfinished message is checked
+
+    private final NetSocket socket;
+    private final MessageManager manager;
+    private final Executor writer;
+    private final long batchWindow;
+
+    /**
+     * Create a new worker for a blocking connection
+     * @param socket Blocking socket of the client
+     * @param manager Manager of the connection that uses the same socket
+     * @param writer Executor that sends the messages queued by other clients, so the reading thread never has to wake up for them
+     */
+    public ConnectionWorker(NetSocket socket, MessageManager manager, Executor writer) {
+        this(socket, manager, writer, WriteCoalescing.DEFAULT_BATCH_WINDOW);
+    }
+
+    /**
+     * Create a new worker for a blocking connection
+     * @param socket Blocking socket of the client
+     * @param manager Manager of the connection that uses the same socket
+     * @param writer Executor that sends the messages queued by other clients, so the reading thread never has to wake up for them
+     * @param batchWindow Milliseconds the writer waits for more queued messages before it sends them together
+     */
+    public ConnectionWorker(NetSocket socket, MessageManager manager, Executor writer, long batchWindow) {
+        this.socket = socket;
+        this.manager = manager;
+        this.writer = writer;
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Block on incoming requests and hand them to the message manager
+     */
+    @Override
+    public void run() {
+        try {
+            socket.setReadTimeout(FRAME_CHECK_INTERVAL);
+            //Queued messages from other clients are sent by a writer task as soon as they arrive
+            manager.setExchangeSignal(() -> writer.execute(this::sendExchangedMessages));
+            //Heartbeats block on a full socket, so they are written by the writer instead of the timing wheel
+            manager.setTimerExecutor(writer);
+            manager.open();
+            while (manager.isConnected()) {
+                if (socket.isBinaryProtocol()) {
+                    byte[] incomingFrame;
+                    try {
+                        incomingFrame = socket.awaitIncomingNPP2Frame();
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    manager.handleIncomingFrame(incomingFrame);
+                    continue;
+                }
+                String incomingMessage;
+                try {
+                    incomingMessage = socket.awaitIncomingNPPMessage();
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (incomingMessage != null) manager.handleIncomingMessage(incomingMessage);
+            }
+        } catch (IOException ignored) {
+            //The socket is closed either by the client or by the heartbeat
+        } finally {
+            manager.closeConnection();
+        }
+    }
+
+    private void sendExchangedMessages() {
+        if (batchWindow > 0) {
+            try {
+                Thread.sleep(batchWindow); //Messages queued meanwhile are written with the first one
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (manager.isConnected()) manager.sendExchangedMessages();
+    }
+}
@@ -0,0 +1,187 @@
+package nextpresso.server.core;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector based event loop that drives the message managers of many connections on a single thread
+ */
+public class EventLoop implements Runnable {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<MessageManager> pendingRegistrations;
+    private final ConcurrentLinkedQueue<MessageManager> pendingDeliveries; //Managers that other clients queued messages for
+    private final Set<MessageManager> partialMessages; //Managers whose client started a message that did not end yet
+    private final long batchWindow;
+    private final ArrayDeque<MessageManager> delayedDeliveries; //Deliveries that wait for their batch window to pass
+    private final ArrayDeque<Long> deliveryDeadlines; //Moment each delayed delivery is due, in the same order
+
+    /**
+     * Create a new event loop with its own selector
+     * @throws IOException If the selector could not be opened
+     */
+    public EventLoop() throws IOException {
+        this(WriteCoalescing.DEFAULT_BATCH_WINDOW);
+    }
+
+    /**
+     * Create a new event loop with its own selector
+     * @param batchWindow Milliseconds to wait for more queued messages of a connection before they are sent together
+     * @throws IOException If the selector could not be opened
+     */
+    public EventLoop(long batchWindow) throws IOException {
+        this.selector = Selector.open();
+        this.pendingRegistrations = new ConcurrentLinkedQueue<>();
+        this.pendingDeliveries = new ConcurrentLinkedQueue<>();
+        this.partialMessages = new HashSet<>();
+        this.batchWindow = batchWindow;
+        this.delayedDeliveries = new ArrayDeque<>();
+        this.deliveryDeadlines = new ArrayDeque<>();
+    }
+
+    /**
+     * Hand over a new connection to this event loop
+     * @param manager Manager of the connection, holding a {@link ChannelSocket}
+     */
+    public void register(MessageManager manager) {
+        manager.setExchangeSignal(() -> signalDelivery(manager));
+        pendingRegistrations.add(manager);
+        selector.wakeup();
+    }
+
+    /**
+     * Wake the event loop up to send the exchanged messages of a connection
+     * @param manager Manager that has messages queued
+     */
+    private void signalDelivery(MessageManager manager) {
+        pendingDeliveries.add(manager);
+        selector.wakeup();
+    }
+
+    /**
+     * Wait for channel events and dispatch them to the message managers
+     */
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select(timeUntilNextDeadline());
+                registerPendingConnections();
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    handleKey(key);
+                }
+
+                expirePartialMessages();
+
+                deliverExchangedMessages();
+            } catch (IOException e) {
+                System.err.println("> An error happened in the event loop");
+                System.err.println("[IO exception]: " + e.getMessage());
+            }
+        }
+    }
+
+    private void registerPendingConnections() {
+        MessageManager manager;
+        while ((manager = pendingRegistrations.poll()) != null) {
+            try {
+                ChannelSocket socket = (ChannelSocket) manager.getSocket();
+                socket.attach(socket.getChannel().register(selector, SelectionKey.OP_READ, manager));
+                manager.open();
+            } catch (IOException e) {
+                System.err.println("> Could not register a new connection: " + e.getMessage());
+                manager.closeConnection();
+            }
+        }
+    }
+
+    /**
+     * Send queued messages to the clients from other clients once their batch window passed
+     */
+    private void deliverExchangedMessages() {
+        long now = System.currentTimeMillis();
+        MessageManager manager;
+        while ((manager = pendingDeliveries.poll()) != null) {
+            delayedDeliveries.add(manager);
+            deliveryDeadlines.add(now + batchWindow);
+        }
+        while (!deliveryDeadlines.isEmpty() && deliveryDeadlines.peek() <= now) {
+            deliveryDeadlines.poll();
+            manager = delayedDeliveries.poll();
+            if (manager.isConnected()) manager.sendExchangedMessages();
+        }
+    }
+
+    /**
+     * Get how long the selector may wait before a started message times out or a delayed delivery is due
+     * @return Milliseconds to wait, 0 to wait till the next channel event
+     */
+    private long timeUntilNextDeadline() {
+        long nextDeadline = deliveryDeadlines.isEmpty() ? Long.MAX_VALUE : deliveryDeadlines.peek();
+        for (MessageManager manager : partialMessages) {
+            long deadline = ((ChannelSocket) manager.getSocket()).getPartialMessageDeadline();
+            if (deadline != -1) nextDeadline = Math.min(nextDeadline, deadline);
+        }
+        if (nextDeadline == Long.MAX_VALUE) return 0;
+        return Math.max(nextDeadline - System.currentTimeMillis(), 1);
+    }
+
+    /**
+     * Hand over started messages that did not end in time as they are, so they are answered as malformed
+     */
+    private void expirePartialMessages() {
+        long now = System.currentTimeMillis();
+        Iterator<MessageManager> managers = partialMessages.iterator();
+        while (managers.hasNext()) {
+            MessageManager manager = managers.next();
+            ChannelSocket socket = (ChannelSocket) manager.getSocket();
+            if (!manager.isConnected() || socket.getPartialMessageDeadline() == -1) managers.remove(); //Closed or the message ended
+            else {
+                String expiredMessage = socket.pollExpiredMessage(now);
+                if (expiredMessage != null) {
+                    managers.remove();
+                    manager.handleIncomingMessage(expiredMessage);
+                }
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        MessageManager manager = (MessageManager) key.attachment();
+        ChannelSocket socket = (ChannelSocket) manager.getSocket();
+        try {
+            if (key.isWritable()) {
+                socket.flush();
+                //Deliveries that waited for the client to read its earlier messages continue
+                if (!socket.hasPendingWrites() && manager.hasPendingMessages()) manager.sendExchangedMessages();
+            }
+            if (key.isValid() && key.isReadable() && socket.isBinaryProtocol()) {
+                List<byte[]> incomingFrames = socket.readFrames();
+                if (incomingFrames == null) manager.closeConnection(); //Client closed the connection
+                else for (byte[] incomingFrame : incomingFrames) {
+                    if (!manager.handleIncomingFrame(incomingFrame)) break;
+                }
+            } else if (key.isValid() && key.isReadable()) {
+                List<String> incomingMessages = socket.readMessages();
+                if (incomingMessages == null) manager.closeConnection(); //Client closed the connection
+                else for (String incomingMessage : incomingMessages) {
+                    if (!manager.handleIncomingMessage(incomingMessage)) break;
+                }
+                if (socket.getPartialMessageDeadline() != -1) partialMessages.add(manager);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            manager.closeConnection();
+        }
+    }
+}
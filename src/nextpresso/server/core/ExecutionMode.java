@@ -0,0 +1,54 @@
+package nextpresso.server.core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ways the server can run its connections
+ */
+public enum ExecutionMode {
+    /**
+     * Message connections are driven by selector event loops, file connections get a platform thread each
+     */
+    EVENT_LOOP,
+    /**
+     * Every connection gets its own platform thread
+     */
+    PLATFORM_THREADS,
+    /**
+     * Every connection gets its own virtual thread
+     */
+    VIRTUAL_THREADS;
+
+    /**
+     * Create the executor that runs one task per connection
+     * @param threadName Name prefix of the created platform threads
+     * @return Executor for connection tasks
+     */
+    public ExecutorService createConnectionExecutor(String threadName) {
+        if (this == VIRTUAL_THREADS) {
+            try {
+                //Looked up reflectively, so the server still builds and runs on Java 17
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("> Virtual threads are not supported by this Java runtime, using platform threads instead!");
+            }
+        }
+        AtomicInteger threadID = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> new Thread(task, threadName + "-" + threadID.getAndIncrement()));
+    }
+
+    /**
+     * Parses a launcher argument to an execution mode
+     * @param mode One of "eventloop", "platform" or "virtual"
+     * @return The found execution mode. If not found, returns EVENT_LOOP
+     */
+    public static ExecutionMode parseString(String mode) {
+        return switch (mode.toLowerCase()) {
+            case "platform" -> PLATFORM_THREADS;
+            case "virtual" -> VIRTUAL_THREADS;
+            default -> EVENT_LOOP;
+        };
+    }
+}
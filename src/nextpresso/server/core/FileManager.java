@@ -1,12 +1,17 @@
 package nextpresso.server.core;
 
 import nextpresso.tools.ApiProtocol;
+import nextpresso.model.HeaderKey;
 import nextpresso.model.Message;
 import nextpresso.model.NextPressoException;
 import nextpresso.model.NextPressoMessageBuilder;
 import nextpresso.model.NetSocket;
+import nextpresso.server.tools.DirectBufferPool;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
@@ -14,21 +19,26 @@ import java.util.concurrent.TimeoutException;
  * Manager that handles a file socket.
  */
 public class FileManager implements Runnable {
+    private static final long PARTNER_POLL_INTERVAL = 10; //Milliseconds between two checks for the transfer partner
+
     protected boolean rawByteMode = false; //Used to switch from NPP messages to byte data
     protected boolean inactive = false;
     protected String remoteUser, currentUser;
     private final Map<String, FileManager> transferUsers;
     protected NetSocket targetSocket;
     private final NetSocket socket;
+    private final DirectBufferPool relayBuffers;
 
     /**
      * Create a new file manager for a socket
      * @param socket Socket to manage
      * @param transferUsers List of the 2 parties (file sender and receiver) - String: username, FileManager: Manager that manager their file socket
+     * @param relayBuffers Pool of direct buffers to relay the file bytes with
      */
-    public FileManager(NetSocket socket, Map<String, FileManager> transferUsers) {
+    public FileManager(NetSocket socket, Map<String, FileManager> transferUsers, DirectBufferPool relayBuffers) {
         this.socket = socket;
         this.transferUsers = transferUsers;
+        this.relayBuffers = relayBuffers;
         remoteUser = currentUser = null;
     }
 
@@ -42,12 +52,10 @@ public class FileManager implements Runnable {
                 socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_SERVER_INFO, "Connected to \"Latte\" file transfer port").buildProtocolString());
                 while (!rawByteMode) {
                     if (socket.isClosed()) break;
-                    if (socket.isMessageIncoming()) {
-                        String incomingMessage = socket.getIncomingMessage();
-                        if (incomingMessage == null) continue;
-                        String response = handleMessage(new NextPressoMessageBuilder(incomingMessage).buildMessage());
-                        if (response != null) socket.sendMessage(response);
-                    }
+                    String incomingMessage = socket.awaitIncomingNPPMessage();
+                    if (incomingMessage == null) continue;
+                    String response = handleMessage(new NextPressoMessageBuilder(incomingMessage).buildMessage());
+                    if (response != null) socket.sendMessage(response);
                 }
                 waitForPartner();
                 startFileTransfer();
@@ -57,6 +65,8 @@ public class FileManager implements Runnable {
             } catch (TimeoutException e){
                 System.err.println("> " + e.getMessage());
                 socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.ERROR_TIMEOUT,e.getMessage()).buildProtocolString());
+            } catch (EOFException ignored) {
+                //The client left before the transfer started
             } finally {
                 socket.closeConnection();
                 if (transferUsers.containsKey(remoteUser) && (transferUsers.get(remoteUser) == null || transferUsers.get(remoteUser).inactive)) {
@@ -77,11 +87,32 @@ public class FileManager implements Runnable {
         System.out.println("> File transfer for user \""+currentUser+"\" is ready!");
         socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.FILE_TRANSFER_READY).buildProtocolString());
         while (rawByteMode) {
-            socket.copyBytesFromInput(transferUsers.get(remoteUser).socket.getOutputStream());
+            if (socket.getChannel() != null && targetSocket.getChannel() != null) relayBytes(socket.getChannel(), targetSocket.getChannel());
+            else socket.copyBytesFromInput(targetSocket.getOutputStream());
             rawByteMode = false;
         }
     }
 
+    /**
+     * Relay bytes from one channel to another through a pooled direct buffer, till the source reaches its end
+     * @param source Channel of this user
+     * @param target Channel of the partner
+     */
+    private void relayBytes(SocketChannel source, SocketChannel target) {
+        ByteBuffer buffer = relayBuffers.acquire();
+        try {
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) target.write(buffer);
+                buffer.clear();
+            }
+        } catch (IOException ignored) {
+            //No action needs to be taken if the socket unexpectedly closes
+        } finally {
+            relayBuffers.release(buffer);
+        }
+    }
+
     /**
      * Method to wait for other partner
      * @throws TimeoutException If partner does not connect in 5 seconds
@@ -91,7 +122,16 @@ public class FileManager implements Runnable {
         socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.FILE_AWAIT_PARTNER).buildProtocolString());
         System.out.println("~~ FILE-MNGR \""+currentUser+"\" is waiting for \""+remoteUser+"\"...");
 
-        while (transferUsers.get(remoteUser) == null) if (System.currentTimeMillis() - start >= 5000) throw new TimeoutException("Transfer partner timed out!");
+        while (transferUsers.get(remoteUser) == null) {
+            if (System.currentTimeMillis() - start >= 5000) throw new TimeoutException("Transfer partner timed out!");
+            //Sleeping instead of spinning leaves the map lock and the carrier thread free for the partner
+            try {
+                Thread.sleep(PARTNER_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TimeoutException("Waiting for the transfer partner was interrupted!");
+            }
+        }
     }
 
     /**
@@ -103,13 +143,13 @@ public class FileManager implements Runnable {
         //Check for errors
         if (incomingMessage.getHeaderCode() != ApiProtocol.FILE_AUTHENTICATION)
             return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNEXPECTED,"File socket cannot handle the received message!").buildProtocolString();
-        if (!incomingMessage.getHeaderRecords().containsKey("current"))
+        if (!incomingMessage.getHeaderRecords().contains(HeaderKey.CURRENT))
             return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Current username not specified").buildProtocolString();
-        if (!incomingMessage.getHeaderRecords().containsKey("remote"))
+        if (!incomingMessage.getHeaderRecords().contains(HeaderKey.REMOTE))
             return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Remote username not specified").buildProtocolString();
         //Set up the 2 sides
-        remoteUser = incomingMessage.getHeaderRecords().get("remote");
-        currentUser = incomingMessage.getHeaderRecords().get("current");
+        remoteUser = incomingMessage.getHeaderRecords().remote();
+        currentUser = incomingMessage.getHeaderRecords().current();
         //Check for connected client errors
         if (!transferUsers.containsKey(currentUser))
             return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNEXPECTED, "The current user did not start a file transfer").buildProtocolString();
@@ -1,29 +1,58 @@
 package nextpresso.server.core;
 
 import nextpresso.model.NetSocket;
+import nextpresso.server.tools.DirectBufferPool;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Service to handle all connections that are file socket based
  */
 public class FileService implements Runnable {
+    public static final int DEFAULT_RELAY_BUFFER_SIZE = 256 * 1024; //Bytes
 
     protected final Map<String, FileManager> transferUsers;
 
-    private final ServerSocket fileSocketIntro;
+    private final ServerSocketChannel fileSocketIntro;
+    private final ExecutorService connectionExecutor;
+    private final DirectBufferPool relayBuffers;
 
     /**
-     * Create a new file service to handle file transports
+     * Create a new file service to handle file transports, each on its own platform thread
      * @param filePort port to listen on
      */
     public FileService(int filePort) throws IOException {
-        fileSocketIntro = new ServerSocket(filePort);
+        this(filePort, ExecutionMode.PLATFORM_THREADS);
+    }
+
+    /**
+     * Create a new file service to handle file transports
+     * @param filePort port to listen on
+     * @param executionMode How the file connections are run. Event loops are not used for file transfers, so that mode runs platform threads
+     */
+    public FileService(int filePort, ExecutionMode executionMode) throws IOException {
+        this(filePort, executionMode, DEFAULT_RELAY_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a new file service to handle file transports
+     * @param filePort port to listen on
+     * @param executionMode How the file connections are run. Event loops are not used for file transfers, so that mode runs platform threads
+     * @param relayBufferSize Size of the direct buffers in bytes that relay the file bytes between two clients
+     */
+    public FileService(int filePort, ExecutionMode executionMode, int relayBufferSize) throws IOException {
+        connectionExecutor = executionMode.createConnectionExecutor("FileThread");
+        //Channels in blocking mode, so the relay can use direct buffers while the handshake still uses streams
+        fileSocketIntro = ServerSocketChannel.open();
+        fileSocketIntro.bind(new InetSocketAddress(filePort));
+        relayBuffers = new DirectBufferPool(relayBufferSize, 64);
         transferUsers = Collections.synchronizedMap(new HashMap<>());
 
         System.out.println("<<< Server \"Latte\" now listens for files on port " + filePort + " >>>");
@@ -33,13 +62,10 @@ public class FileService implements Runnable {
      * Run the main logic of the service
      */
     public void run(){
-        int threadID = 0; //used to give ID to the dynamically spawned threads
         while (true) {
             try {
-                Socket socket = fileSocketIntro.accept();
-                Thread socketThread = new Thread(new FileManager(new NetSocket(socket), transferUsers), "FileThread-" + threadID);
-                socketThread.start();
-                threadID++;
+                SocketChannel channel = fileSocketIntro.accept();
+                connectionExecutor.execute(new FileManager(new NetSocket(channel.socket()), transferUsers, relayBuffers));
             } catch (IOException e) {
                 System.err.println("> An error happen when opening a new file socket");
                 System.err.println("[IO exception]: " + e.getMessage());
@@ -0,0 +1,333 @@
+package nextpresso.server.core;
+
+import nextpresso.model.NPP2Codec;
+import nextpresso.model.NextPressoException;
+import nextpresso.model.OutboundFrame;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Durable history of the chat messages of every group.
+ * Each group has its own log of memory-mapped segment files (see {@link MappedSegment}), named by the sequence number of their first message.
+ * Every segment keeps a sparse index in memory that points to a message every few kilobytes,
+ * so a range of messages is read from the mapping after a short scan. Messages are numbered per group from 1.
+ * The oldest segments of a group are deleted once their last message is older than the retention, or once the group takes more bytes than allowed
+ */
+public class GroupHistory {
+    public static final Path DEFAULT_DIRECTORY = Path.of("latte-history");
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 200; //Milliseconds
+    public static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(30);
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024; //Per group
+    public static final int MAX_READ_MESSAGES = 100; //Most messages that a single request reads
+    private static final int INDEX_INTERVAL = 4096; //Bytes of messages between two entries of the sparse index
+
+    //The body of a record is [sequence number][time][NPP/2 frame]
+    private static final int RECORD_HEADER = 8 + 8;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maxAge;
+    private final long maxBytes;
+    private final Map<String, GroupLog> logs; //Group name, log
+    private final Set<MappedSegment> unflushedSegments; //Written since the last flush
+
+    /**
+     * Open the history in the default directory with the default settings
+     * @throws IOException If the directory or its segments cannot be opened
+     */
+    public GroupHistory() throws IOException {
+        this(DEFAULT_DIRECTORY, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_AGE, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Open the history, read back the logs of the groups and start its flusher thread
+     * @param directory Directory with a log directory per group, created if it does not exist
+     * @param segmentSize Bytes of a segment file, the largest message that can be stored is a bit smaller
+     * @param flushInterval Milliseconds between two flushes of the written segments to disk
+     * @param maxAge Milliseconds after the last message of a segment till the segment is deleted
+     * @param maxBytes Most bytes of the segments of a single group, older segments are deleted first
+     * @throws IOException If the directory or its segments cannot be opened
+     */
+    public GroupHistory(Path directory, int segmentSize, long flushInterval, long maxAge, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+        this.logs = new ConcurrentHashMap<>();
+        this.unflushedSegments = ConcurrentHashMap.newKeySet();
+
+        Files.createDirectories(directory);
+        try (Stream<Path> groupDirectories = Files.list(directory)) {
+            for (Path groupDirectory : (Iterable<Path>) groupDirectories::iterator) {
+                String groupname = parseGroupname(groupDirectory);
+                if (groupname != null) logs.put(groupname, new GroupLog(groupDirectory));
+            }
+        }
+        System.out.println("<<< History holds the messages of " + logs.size() + " groups >>>");
+
+        Thread flusher = new Thread(() -> runFlusher(flushInterval), "HistoryFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Append a chat message to the history of a group. The message is in memory right away and on disk after the next flush
+     * @param groupname Name of the group
+     * @param frame Message to store
+     * @return Sequence number of the message. -1 if the message is too large or could not be written
+     */
+    public long append(String groupname, OutboundFrame frame) {
+        GroupLog log = getLog(groupname);
+        return log == null ? -1 : log.append(frame.toBuffer(true));
+    }
+
+    /**
+     * Read the last messages of a group
+     * @param groupname Name of the group
+     * @param count Number of messages to read, at most {@link #MAX_READ_MESSAGES}
+     * @return Messages with their sequence number, oldest first
+     */
+    public List<OutboundFrame> readLast(String groupname, int count) {
+        GroupLog log = logs.get(groupname);
+        return log == null ? List.of() : log.readLast(Math.min(count, MAX_READ_MESSAGES));
+    }
+
+    /**
+     * Read the messages of a group that came after a message
+     * @param groupname Name of the group
+     * @param sequence Sequence number of the last message that is known, 0 to read from the oldest message
+     * @param count Most messages to read, at most {@link #MAX_READ_MESSAGES}
+     * @return Messages with their sequence number, oldest first
+     */
+    public List<OutboundFrame> readAfter(String groupname, long sequence, int count) {
+        GroupLog log = logs.get(groupname);
+        return log == null ? List.of() : log.read(sequence + 1, Math.min(count, MAX_READ_MESSAGES));
+    }
+
+    /**
+     * Start the history of a group anew, for a group that was just created. The messages of an earlier group with the same name are deleted.
+     * Sequence numbers go on after the deleted messages, so a number of the earlier group is never taken for a message of the new one
+     * @param groupname Name of the group
+     */
+    public void reset(String groupname) {
+        GroupLog log = logs.get(groupname);
+        if (log != null) log.reset();
+    }
+
+    private GroupLog getLog(String groupname) {
+        try {
+            return logs.computeIfAbsent(groupname, key -> {
+                try {
+                    return new GroupLog(directory.resolve(HexFormat.of().formatHex(key.getBytes(StandardCharsets.UTF_8))));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            System.err.println("> Could not open the history of group '" + groupname + "': " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Get the name of a group from the name of its log directory, which is the hexadecimal UTF-8 name so every group name is a valid path
+     * @param groupDirectory Directory in the history directory
+     * @return Name of the group. Null if the directory is not a group log
+     */
+    private static String parseGroupname(Path groupDirectory) {
+        if (!Files.isDirectory(groupDirectory)) return null;
+        try {
+            return new String(HexFormat.of().parseHex(groupDirectory.getFileName().toString()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Force the written segments to disk every interval and apply the retention. The disk is synced outside of the locks of the logs
+     * @param flushInterval Milliseconds between two flushes
+     */
+    private void runFlusher(long flushInterval) {
+        while (true) {
+            try {
+                Thread.sleep(flushInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (MappedSegment segment : unflushedSegments) {
+                unflushedSegments.remove(segment); //Removed before the force, so a later append marks it again
+                segment.force();
+            }
+            for (GroupLog log : logs.values()) log.deleteOldSegments();
+        }
+    }
+
+    /**
+     * Segment of a group log with its sparse index
+     */
+    private static final class Segment {
+        private final MappedSegment file;
+        private final TreeMap<Long, Integer> index; //Sequence number, position of the message
+        private long lastSequence;
+        private int lastIndexedPosition = -INDEX_INTERVAL;
+
+        private Segment(MappedSegment file) {
+            this.file = file;
+            this.index = new TreeMap<>();
+            this.lastSequence = file.baseOffset - 1;
+        }
+
+        private void add(long sequence, int position) {
+            lastSequence = sequence;
+            if (position - lastIndexedPosition < INDEX_INTERVAL) return;
+            index.put(sequence, position);
+            lastIndexedPosition = position;
+        }
+    }
+
+    /**
+     * Log of the messages of a single group
+     */
+    private final class GroupLog {
+        private final Path groupDirectory;
+        private final TreeMap<Long, Segment> segments; //Sequence number of the first message, segment
+        private Segment activeSegment;
+        private long nextSequence;
+        private long firstSequence; //Earlier messages belong to an earlier group with the same name
+
+        private GroupLog(Path groupDirectory) throws IOException {
+            this.groupDirectory = groupDirectory;
+            this.segments = new TreeMap<>();
+            Files.createDirectories(groupDirectory);
+            try (Stream<Path> files = Files.list(groupDirectory)) {
+                for (Path path : (Iterable<Path>) files::iterator) {
+                    long baseSequence = MappedSegment.parseBaseOffset(path);
+                    if (baseSequence > 0) segments.put(baseSequence, new Segment(MappedSegment.open(groupDirectory, baseSequence, segmentSize)));
+                }
+            }
+            for (Segment segment : segments.values()) {
+                segment.file.recover((position, body) -> {
+                    long sequence = body.getLong();
+                    segment.file.recoverTime(body.getLong());
+                    segment.add(sequence, position);
+                });
+            }
+            nextSequence = segments.isEmpty() ? 1 : segments.lastEntry().getValue().lastSequence + 1;
+            activeSegment = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+            deleteOldSegments();
+        }
+
+        private synchronized long append(ByteBuffer frame) {
+            int bodyLength = RECORD_HEADER + frame.remaining();
+            if (MappedSegment.RECORD_PREFIX + bodyLength > segmentSize) return -1;
+            try {
+                if (!activeSegment.file.fits(bodyLength)) {
+                    activeSegment = newSegment(nextSequence);
+                    deleteOldSegments(); //The size of the group only grows when a segment is started
+                }
+            } catch (IOException e) {
+                System.err.println("> Could not start a new history segment: " + e.getMessage());
+                return -1;
+            }
+            long sequence = nextSequence++;
+            long time = System.currentTimeMillis();
+            ByteBuffer body = ByteBuffer.allocate(bodyLength);
+            body.putLong(sequence).putLong(time).put(frame).flip();
+            activeSegment.add(sequence, activeSegment.file.append(body, time));
+            unflushedSegments.add(activeSegment.file);
+            return sequence;
+        }
+
+        private synchronized List<OutboundFrame> readLast(int count) {
+            return read(Math.max(nextSequence - count, 1), count);
+        }
+
+        /**
+         * Read the messages from a sequence number on. The sparse index gives the closest earlier message, the rest is scanned
+         * @param fromSequence Sequence number of the first message to read
+         * @param count Most messages to read
+         * @return Messages with their sequence number
+         */
+        private synchronized List<OutboundFrame> read(long fromSequence, int count) {
+            List<OutboundFrame> frames = new ArrayList<>(Math.min(count, 16));
+            if (segments.isEmpty() || fromSequence >= nextSequence) return frames;
+            fromSequence = Math.max(fromSequence, Math.max(segments.firstKey(), firstSequence)); //Older messages are past their retention or of an earlier group
+            for (Segment segment : segments.tailMap(segments.floorKey(fromSequence)).values()) {
+                Map.Entry<Long, Integer> indexed = segment.index.floorEntry(fromSequence);
+                int position = indexed == null ? 0 : indexed.getValue();
+                while (position < segment.file.getWritePosition() && frames.size() < count) {
+                    ByteBuffer body = segment.file.read(position);
+                    long sequence = body.getLong();
+                    position = segment.file.nextPosition(position);
+                    if (sequence < fromSequence) continue;
+                    body.position(RECORD_HEADER);
+                    byte[] frame = new byte[body.remaining()];
+                    body.get(frame);
+                    try {
+                        frames.add(new OutboundFrame(NPP2Codec.decodePrefixed(frame).sequence(sequence)));
+                    } catch (NextPressoException e) {
+                        System.err.println("> Could not read message " + sequence + " of the history: " + e.getMessage());
+                    }
+                }
+                if (frames.size() >= count) break;
+            }
+            return frames;
+        }
+
+        /**
+         * Delete every message of the log and go on in a new segment. Earlier messages are hidden right away, even if their segments cannot be deleted
+         */
+        private synchronized void reset() {
+            firstSequence = nextSequence;
+            try {
+                if (activeSegment.file.baseOffset != nextSequence) activeSegment = newSegment(nextSequence);
+            } catch (IOException e) {
+                System.err.println("> Could not start a new history segment: " + e.getMessage());
+                return;
+            }
+            while (segments.firstKey() < nextSequence) {
+                Segment oldest = segments.pollFirstEntry().getValue();
+                unflushedSegments.remove(oldest.file);
+                oldest.file.delete();
+            }
+        }
+
+        /**
+         * Delete the oldest segments of the group while they are past the retention. The active segment is kept
+         */
+        private synchronized void deleteOldSegments() {
+            long totalBytes = 0;
+            for (Segment segment : segments.values()) totalBytes += segment.file.getWritePosition();
+            long now = System.currentTimeMillis();
+            while (segments.size() > 1) {
+                Segment oldest = segments.firstEntry().getValue();
+                if (now - oldest.file.getLastAppendTime() <= maxAge && totalBytes <= maxBytes) return;
+                totalBytes -= oldest.file.getWritePosition();
+                segments.remove(oldest.file.baseOffset);
+                unflushedSegments.remove(oldest.file);
+                oldest.file.delete();
+            }
+        }
+
+        private Segment newSegment(long baseSequence) throws IOException {
+            Segment segment = new Segment(MappedSegment.open(groupDirectory, baseSequence, segmentSize));
+            segments.put(baseSequence, segment);
+            return segment;
+        }
+    }
+}
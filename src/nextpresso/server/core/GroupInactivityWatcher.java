@@ -0,0 +1,98 @@
+package nextpresso.server.core;
+
+import nextpresso.model.NextPressoException;
+import nextpresso.model.NextPressoMessageBuilder;
+import nextpresso.server.tools.TimingWheel;
+import nextpresso.tools.ApiProtocol;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kicks users from groups after 2 minutes of inactivity, unless another limit is given.
+ * Each group member has a single check on the timing wheel at a time. Activity only refreshes the timestamp in the group,
+ * the check reads it when it is due and either kicks the user or waits for the rest of the new deadline
+ */
+public class GroupInactivityWatcher {
+    public static final long DEFAULT_INACTIVITY_LIMIT = 120000; //2 minutes in milliseconds
+
+    private final long inactivityLimit;
+    private final GroupRegistry groups;
+    private final Map<String, MessageManager> connectedUsers;
+    private final TimingWheel timers;
+    private final Set<String> watchedMembers; //Group members that have a pending check
+
+    /**
+     * Create a new inactivity watcher
+     * @param groups Registry of the groups and their members
+     * @param connectedUsers List of users and their managers
+     * @param timers Timing wheel that runs the checks
+     */
+    public GroupInactivityWatcher(GroupRegistry groups, Map<String, MessageManager> connectedUsers, TimingWheel timers) {
+        this(groups, connectedUsers, timers, DEFAULT_INACTIVITY_LIMIT);
+    }
+
+    /**
+     * Create a new inactivity watcher with another limit
+     * @param groups Registry of the groups and their members
+     * @param connectedUsers List of users and their managers
+     * @param timers Timing wheel that runs the checks
+     * @param inactivityLimit Milliseconds without activity after which a user is kicked
+     */
+    public GroupInactivityWatcher(GroupRegistry groups, Map<String, MessageManager> connectedUsers, TimingWheel timers, long inactivityLimit) {
+        this.inactivityLimit = inactivityLimit;
+        this.groups = groups;
+        this.connectedUsers = connectedUsers;
+        this.timers = timers;
+        this.watchedMembers = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Start watching a new group member. Members that are already watched are not scheduled again
+     * @param groupname Group that the user joined
+     * @param username User to watch
+     */
+    public void watch(String groupname, String username) {
+        if (watchedMembers.add(memberKey(groupname, username))) schedule(groupname, username, inactivityLimit);
+    }
+
+    private void schedule(String groupname, String username, long delay) {
+        timers.schedule(() -> check(groupname, username), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void check(String groupname, String username) {
+        ChatGroup group = groups.get(groupname);
+        long lastActivity = group == null ? -1 : group.getLastActivity(username);
+        if (lastActivity == -1) {
+            //The user left the group, a rejoin in the meantime needs a new check
+            watchedMembers.remove(memberKey(groupname, username));
+            if (group != null && group.contains(username)) watch(groupname, username);
+            return;
+        }
+        long idleTime = System.currentTimeMillis() - lastActivity;
+        if (idleTime <= inactivityLimit) {
+            schedule(groupname, username, inactivityLimit - idleTime + 1); //The user was active since the check was scheduled
+            return;
+        }
+        if (!groups.kickIfInactiveSince(group, username, lastActivity)) { //The user was active just now
+            schedule(groupname, username, inactivityLimit);
+            return;
+        }
+        watchedMembers.remove(memberKey(groupname, username));
+        try {
+            //Inform user about being kicked
+            MessageManager manager = connectedUsers.get(username);
+            if (manager != null) manager.addExchangeMessage(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_SERVER_INFO,"You have been kicked from group '" + groupname + "' due to inactivity!").sender("SERVER"));
+        } catch (NextPressoException e) {
+            System.err.println("> Could not notify user about being kicked from a group!");
+        } finally {
+            System.out.println("> Removed '" + username + "' from group '" + groupname + "' due to inactivity!");
+        }
+    }
+
+    private static String memberKey(String groupname, String username) {
+        return groupname + "/" + username; //The slash cannot be part of a header value
+    }
+}
@@ -0,0 +1,131 @@
+package nextpresso.server.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Server wide registry of the groups and their members.
+ * Groups are looked up in a concurrent map, the members of each group are kept in a {@link ChatGroup}.
+ * The registry also keeps an index of the groups of each user, so a disconnecting user only visits its own groups
+ */
+public class GroupRegistry {
+    private final Map<String, ChatGroup> groups; //Group name, group
+    private final UserGroupIndex userGroups;
+
+    /**
+     * Create a new registry without groups
+     */
+    public GroupRegistry() {
+        groups = new ConcurrentHashMap<>();
+        userGroups = new UserGroupIndex();
+    }
+
+    /**
+     * Get a group by its name
+     * @param groupname Name of the group
+     * @return The group. Null if there is no group with this name
+     */
+    public ChatGroup get(String groupname) {
+        return groups.get(groupname);
+    }
+
+    /**
+     * Create a new group with a single member
+     * @param groupname Name of the group
+     * @param username Creator of the group
+     * @param manager Manager of the creator's connection
+     * @return The created group. Null if a group with this name already exists
+     */
+    public ChatGroup create(String groupname, String username, MessageManager manager) {
+        ChatGroup group = new ChatGroup(groupname);
+        group.join(username, manager);
+        if (groups.putIfAbsent(groupname, group) != null) return null;
+        userGroups.add(username, groupname);
+        return group;
+    }
+
+    /**
+     * Create a group without members if it does not exist yet, for a group that was created on another node of the cluster
+     * @param groupname Name of the group
+     * @return True - the group did not exist on this node yet
+     */
+    public boolean ensure(String groupname) {
+        return groups.putIfAbsent(groupname, new ChatGroup(groupname)) == null;
+    }
+
+    /**
+     * Add a user to a group
+     * @param group Group to join
+     * @param username User to add
+     * @param manager Manager of the user's connection
+     */
+    public void join(ChatGroup group, String username, MessageManager manager) {
+        group.join(username, manager);
+        userGroups.add(username, group.getName());
+    }
+
+    /**
+     * Remove a user from a group
+     * @param group Group to leave
+     * @param username User to remove
+     * @return True - the user was a member of the group
+     */
+    public boolean leave(ChatGroup group, String username) {
+        if (!group.leave(username)) return false;
+        userGroups.remove(username, group);
+        return true;
+    }
+
+    /**
+     * Remove a user from a group if the user has not been active since the given time
+     * @param group Group to kick the user from
+     * @param username User to kick
+     * @param lastActivity Last activity of the user that was found too old
+     * @return True - the user was removed
+     */
+    public boolean kickIfInactiveSince(ChatGroup group, String username, long lastActivity) {
+        if (!group.leaveIfInactiveSince(username, lastActivity)) return false;
+        userGroups.remove(username, group);
+        return true;
+    }
+
+    /**
+     * Remove a user from every group it is a member of
+     * @param username User to remove
+     */
+    public void removeUser(String username) {
+        for (String groupname : userGroups.removeUser(username)) {
+            ChatGroup group = groups.get(groupname);
+            if (group != null) group.leave(username);
+        }
+    }
+
+    /**
+     * Let the groups of a user deliver to a new connection of the user, such as after a resumed session
+     * @param username User that is a member of the groups
+     * @param manager Manager of the user's new connection
+     */
+    public void rebind(String username, MessageManager manager) {
+        for (String groupname : userGroups.groupsOf(username)) {
+            ChatGroup group = groups.get(groupname);
+            if (group != null) group.rebind(username, manager);
+        }
+    }
+
+    /**
+     * Check if there are no groups
+     * @return True - there are no groups
+     */
+    public boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    /**
+     * Run an action for every group
+     * @param action Action that gets the name and the group
+     */
+    public void forEach(BiConsumer<String, ChatGroup> action) {
+        groups.forEach(action);
+    }
+}
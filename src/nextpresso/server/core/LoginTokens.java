@@ -0,0 +1,167 @@
+package nextpresso.server.core;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Signed login tokens, so a user that logged in with its password can log in again without it till the token expires.
+ * A token is [expiry][username] and its HMAC-SHA256, both Base64 encoded and joined by a dot. Checking it takes a single HMAC instead of a password hash.
+ * Tokens that were checked lately are kept in a small LRU cache, so a reconnect storm mostly skips the HMAC as well.
+ * The key is made at start, so tokens are valid till the server restarts
+ */
+public class LoginTokens {
+    public static final long DEFAULT_LIFETIME = TimeUnit.HOURS.toMillis(1);
+    public static final int DEFAULT_CACHE_SIZE = 10_000; //Tokens
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final long lifetime;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs; //A Mac is not thread safe, each thread keeps one with the key
+    private final Map<String, CachedToken> checkedTokens; //Token, user and expiry. Guarded by itself
+    private final LongAdder issued;
+    private final LongAdder accepted;
+    private final LongAdder cacheHits;
+    private final LongAdder rejected;
+
+    /**
+     * Token that was checked before
+     */
+    private record CachedToken(String username, long expiry) {
+    }
+
+    /**
+     * Create new tokens with the default lifetime and cache size
+     */
+    public LoginTokens() {
+        this(DEFAULT_LIFETIME, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Create new tokens with a random key
+     * @param lifetime Milliseconds that a token is valid after it was issued
+     * @param cacheSize Most checked tokens that are kept, the least recently used token is evicted first
+     */
+    public LoginTokens(long lifetime, int cacheSize) {
+        this.lifetime = lifetime;
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::createMac);
+        this.checkedTokens = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedToken> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.issued = new LongAdder();
+        this.accepted = new LongAdder();
+        this.cacheHits = new LongAdder();
+        this.rejected = new LongAdder();
+    }
+
+    /**
+     * Issue a token for a user whose password was checked
+     * @param username User that logged in
+     * @return Token that holds no '/' or '=', so it fits a header record
+     */
+    public String issue(String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = ByteBuffer.allocate(8 + name.length).putLong(System.currentTimeMillis() + lifetime).put(name).array();
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        issued.increment();
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(macs.get().doFinal(payload));
+    }
+
+    /**
+     * Check a token
+     * @param token Token that the client sent
+     * @return User of the token. Null if the token is not valid or expired
+     */
+    public String verify(String token) {
+        long now = System.currentTimeMillis();
+        CachedToken cached;
+        synchronized (checkedTokens) {
+            cached = checkedTokens.get(token);
+        }
+        if (cached != null && cached.expiry > now) {
+            cacheHits.increment();
+            accepted.increment();
+            return cached.username;
+        }
+
+        String username = null;
+        long expiry = 0;
+        int separator = token.indexOf('.');
+        if (separator > 0) {
+            try {
+                Base64.Decoder decoder = Base64.getUrlDecoder();
+                byte[] payload = decoder.decode(token.substring(0, separator));
+                byte[] signature = decoder.decode(token.substring(separator + 1));
+                if (payload.length > 8 && MessageDigest.isEqual(signature, macs.get().doFinal(payload))) {
+                    ByteBuffer buffer = ByteBuffer.wrap(payload);
+                    expiry = buffer.getLong();
+                    if (expiry > now) username = new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8);
+                }
+            } catch (IllegalArgumentException e) {
+                //Not Base64, the token is rejected below
+            }
+        }
+        if (username == null) {
+            rejected.increment();
+            synchronized (checkedTokens) {
+                checkedTokens.remove(token); //Expired
+            }
+            return null;
+        }
+        synchronized (checkedTokens) {
+            checkedTokens.put(token, new CachedToken(username, expiry));
+        }
+        accepted.increment();
+        return username;
+    }
+
+    private Mac createMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC is not supported", e);
+        }
+    }
+
+    public long getLifetime() {
+        return lifetime;
+    }
+
+    public long getIssuedCount() {
+        return issued.sum();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getCacheHitCount() {
+        return cacheHits.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d issued, %d accepted (%d from the cache), %d rejected", getIssuedCount(), getAcceptedCount(), getCacheHitCount(), getRejectedCount());
+    }
+}
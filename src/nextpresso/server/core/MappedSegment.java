@@ -0,0 +1,173 @@
+package nextpresso.server.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Segment file of an append-only log, mapped in memory as a whole.
+ * A record is [length][CRC of the body][body]. The length is written last, so a record without it was never written.
+ * A record torn by a crash before the segment was forced fails its CRC, which ends the segment when it is read back
+ */
+final class MappedSegment {
+    static final int RECORD_PREFIX = 8; //Length and CRC
+    private static final String SUFFIX = ".log";
+
+    final long baseOffset; //Offset or sequence number of the first record, also the name of the file
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    private long lastAppendTime;
+
+    /**
+     * Visitor of the records of a segment
+     */
+    interface RecordVisitor {
+        /**
+         * @param position Position of the record in the segment
+         * @param body Body of the record, positioned at its start
+         */
+        void visit(int position, ByteBuffer body);
+    }
+
+    private MappedSegment(long baseOffset, Path path, MappedByteBuffer buffer) {
+        this.baseOffset = baseOffset;
+        this.path = path;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Open a segment file, or create it if it does not exist
+     * @param directory Directory of the log
+     * @param baseOffset Base offset of the segment
+     * @param size Bytes to map. A larger existing file is mapped as a whole
+     * @return The mapped segment, appends start at its beginning till it is read back by {@link #recover}
+     * @throws IOException If the file cannot be opened or mapped
+     */
+    static MappedSegment open(Path directory, long baseOffset, int size) throws IOException {
+        Path path = directory.resolve(String.format("%020d", baseOffset) + SUFFIX);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //The mapping stays valid after the channel is closed
+            long mappedSize = Math.max(channel.size(), size);
+            return new MappedSegment(baseOffset, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize));
+        }
+    }
+
+    /**
+     * Get the base offset of a segment file of a log
+     * @param path File in the directory of the log
+     * @return Base offset. -1 if the file is not a segment
+     */
+    static long parseBaseOffset(Path path) {
+        String name = path.getFileName().toString();
+        if (!name.endsWith(SUFFIX)) return -1;
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Check if a record still fits the segment
+     * @param bodyLength Bytes of the body of the record
+     * @return True - the record can be appended
+     */
+    boolean fits(int bodyLength) {
+        return writePosition + RECORD_PREFIX + bodyLength <= buffer.capacity();
+    }
+
+    /**
+     * Append a record that fits the segment
+     * @param body Body of the record, written from its position to its limit
+     * @param time Time of the record, the segment keeps the time of its last record
+     * @return Position of the record in the segment
+     */
+    int append(ByteBuffer body, long time) {
+        int position = writePosition;
+        int bodyLength = body.remaining();
+        buffer.put(position + RECORD_PREFIX, body, body.position(), bodyLength);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(position + RECORD_PREFIX, bodyLength));
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, bodyLength);
+        writePosition += RECORD_PREFIX + bodyLength;
+        lastAppendTime = Math.max(lastAppendTime, time);
+        return position;
+    }
+
+    /**
+     * Get the body of a record without copying it
+     * @param position Position of the record in the segment
+     * @return Read only view of the body
+     */
+    ByteBuffer read(int position) {
+        return buffer.slice(position + RECORD_PREFIX, buffer.getInt(position)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the position of the record after a record
+     * @param position Position of a record in the segment
+     * @return Position of the next record. The write position if it was the last record
+     */
+    int nextPosition(int position) {
+        return position + RECORD_PREFIX + buffer.getInt(position);
+    }
+
+    /**
+     * Read every record of the segment back in order. The first record that is not complete ends the segment, appends continue there
+     * @param visitor Visitor of each complete record
+     */
+    void recover(RecordVisitor visitor) {
+        int position = 0;
+        while (position + RECORD_PREFIX <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_PREFIX + length > buffer.capacity()) break;
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.slice(position + RECORD_PREFIX, length));
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) break;
+            visitor.visit(position, buffer.slice(position + RECORD_PREFIX, length));
+            position += RECORD_PREFIX + length;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * Record the time of a record that was read back, the segment keeps the time of its last record
+     * @param time Time of the record
+     */
+    void recoverTime(long time) {
+        lastAppendTime = Math.max(lastAppendTime, time);
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    long getLastAppendTime() {
+        return lastAppendTime;
+    }
+
+    /**
+     * Write the records of the segment to disk. This blocks till the disk confirms them
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Delete the segment file, the mapping is released once it is collected
+     */
+    void delete() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("> Could not delete log segment " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,282 +1,471 @@
 package nextpresso.server.core;
 
 import nextpresso.tools.ApiProtocol;
+import nextpresso.model.HeaderKey;
+import nextpresso.model.HeaderRecords;
 import nextpresso.model.Message;
+import nextpresso.model.NPP2Codec;
 import nextpresso.model.NextPressoException;
 import nextpresso.model.NextPressoMessageBuilder;
-import nextpresso.server.data.UserCredentials;
-import nextpresso.server.tools.PBKDF2Validator;
-
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.spec.EncodedKeySpec;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Base64;
-import java.util.HashMap;
+import nextpresso.model.OutboundFrame;
+import nextpresso.server.data.CredentialStore;
+import nextpresso.tools.CryptoTools;
+
+import java.util.List;
 import java.util.Map;
 
 /**
  * Incoming NextPresso message handler for handling client messages
  */
 public class MessageHandler {
+    //Responses that never change are encoded once for every connection
+    private static final OutboundFrame NOT_LOGGED_IN = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_LOGGED_IN,"You need to log in first!"));
+    private static final OutboundFrame CANNOT_HANDLE = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.ERROR_UNEXPECTED,"Cannot handle the received message!"));
+    private static final OutboundFrame LOGOUT_ACKNOWLEDGED = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LOGOUT));
+    private static final OutboundFrame PROTOCOL_UPGRADE_ACKNOWLEDGED = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_PROTOCOL_UPGRADE,NPP2Codec.VERSION));
+
     private final MessageManager socket;
     private final Map<String, MessageManager> connectedUsers;
     private final Map<String, FileManager> transferUsers;
-    private final Map<String, Map<String,Long>> groups;
+    private final GroupRegistry groups;
+    private final ClusterNode cluster;
+    private final OfflineInbox inbox;
+    private final GroupHistory history;
+    private final SessionRegistry sessions;
+    private final CredentialStore credentials;
+    private final LoginTokens loginTokens;
     private final Map<String, String> userPublicKeys; //Username, Base64Key
-    private String currentUser;
+    private final GroupInactivityWatcher groupWatcher;
+    private volatile String currentUser; //Also set by the auth executor once a password is checked
 
     /**
      * Create a new client message handler
      * @param socket Socket of the server
-     * @param connectedUsers List of connected users and their server sockets
-     * @param groups List of groups
-     * @param transferUsers List of the users' file sockets
-     * @param userPublicKeys List of the users' public RSA keys
+     * @param context Server wide state of the message service
      */
-    public MessageHandler(MessageManager socket, Map<String, MessageManager> connectedUsers, Map<String, Map<String, Long>> groups, Map<String, FileManager> transferUsers, Map<String, String> userPublicKeys) {
+    MessageHandler(MessageManager socket, ServerContext context) {
         this.socket = socket;
-        this.connectedUsers = connectedUsers;
-        this.transferUsers = transferUsers;
-        this.groups = groups;
-        this.userPublicKeys = userPublicKeys;
+        this.connectedUsers = context.connectedUsers();
+        this.transferUsers = context.transferUsers();
+        this.groups = context.groups();
+        this.cluster = context.cluster();
+        this.inbox = context.inbox();
+        this.history = context.history();
+        this.sessions = context.sessions();
+        this.credentials = context.credentials();
+        this.loginTokens = context.loginTokens();
+        this.userPublicKeys = context.userPublicKeys();
+        this.groupWatcher = context.groupWatcher();
         currentUser = null;
     }
 
     /**
      * Parses the message type and calls the appropriate method to handle the message
      * @param incomingMessage The NextPresso message that the client sent
-     * @return NextPresso binary message in a raw, string format that then can be used by the NextPresso message builder class. If the message could not be handled, an automatic error response message will be returned
-     * @throws NoSuchAlgorithmException Thrown if the system does not support MD5 hashing
-     * @throws InvalidKeySpecException Thrown if the system does not support the cryptographic algorithms used for password hashing
+     * @return Encoded answer that the socket sends in the protocol of the connection. If the message could not be handled, an automatic error response message will be returned
      * @throws NextPressoException Thrown if something went wrong with the message handling
      */
-    public String handleMessage(Message incomingMessage) throws NoSuchAlgorithmException, InvalidKeySpecException, NextPressoException {
+    public OutboundFrame handleMessage(Message incomingMessage) throws NextPressoException {
         //Message handling for requests that do not need user logging in
-        if (incomingMessage.getHeaderCode() == ApiProtocol.REQUEST_LOGIN) return loginUser(incomingMessage);
-        if (incomingMessage.getHeaderCode() == ApiProtocol.HEARTBEAT_RESPONSE) return confirmHeartBeat();
+        if (incomingMessage.getHeaderCode() == ApiProtocol.REQUEST_LOGIN) return toFrame(loginUser(incomingMessage));
+        if (incomingMessage.getHeaderCode() == ApiProtocol.HEARTBEAT_RESPONSE) return toFrame(confirmHeartBeat());
+        if (incomingMessage.getHeaderCode() == ApiProtocol.REQUEST_PROTOCOL_UPGRADE) return toFrame(upgradeProtocol(incomingMessage));
+        if (incomingMessage.getHeaderCode() == ApiProtocol.REQUEST_RESUME_SESSION) return toFrame(resumeSession(incomingMessage));
 
         //Message handling for requests that need user login
-        if (currentUser == null) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_LOGGED_IN,"You need to log in first!").buildProtocolString();
+        if (currentUser == null) return NOT_LOGGED_IN;
+        if (incomingMessage.getHeaderCode() == ApiProtocol.REQUEST_LOGOUT) return handleLogout(incomingMessage);
 
         return switch (incomingMessage.getHeaderCode()){
-            case REQUEST_BROADCAST -> preformBroadcast(incomingMessage);
-            case REQUEST_LIST_USERS -> listUsers();
-            case REQUEST_LOGOUT -> handleLogout(incomingMessage);
-            case REQUEST_CREATE_GROUP -> createGroup(incomingMessage);
-            case REQUEST_LIST_GROUPS -> listGroups();
-            case REQUEST_JOIN_GROUP -> joinGroup(incomingMessage);
-            case REQUEST_LEAVE_GROUP -> leaveGroup(incomingMessage);
-            case REQUEST_PRIVATE_MESSAGE -> sendDM(incomingMessage);
-            case REQUEST_GROUP_MESSAGE -> sendGroupMsg(incomingMessage);
-            case REQUEST_SEND_FILE -> sendFileRequest(incomingMessage);
-            case REQUEST_RECEIVE_FILE -> receiveFileRequest(incomingMessage);
-            case REQUEST_SUBMIT_KEY -> submitPublicKey(incomingMessage);
-            case REQUEST_GET_KEY -> getPublicKey(incomingMessage);
-            case ENCRYPTION_SET_KEY -> forwardEncryptionSetup(incomingMessage);
-            default -> new NextPressoMessageBuilder(ApiProtocol.ERROR_UNEXPECTED,"Cannot handle the received message!").buildProtocolString();
+            case REQUEST_BROADCAST -> toFrame(preformBroadcast(incomingMessage));
+            case REQUEST_LIST_USERS -> toFrame(listUsers());
+            case REQUEST_CREATE_GROUP -> toFrame(createGroup(incomingMessage));
+            case REQUEST_LIST_GROUPS -> toFrame(listGroups());
+            case REQUEST_JOIN_GROUP -> toFrame(joinGroup(incomingMessage));
+            case REQUEST_LEAVE_GROUP -> toFrame(leaveGroup(incomingMessage));
+            case REQUEST_PRIVATE_MESSAGE -> toFrame(sendDM(incomingMessage));
+            case REQUEST_GROUP_MESSAGE -> toFrame(sendGroupMsg(incomingMessage));
+            case REQUEST_GROUP_HISTORY -> toFrame(getGroupHistory(incomingMessage));
+            case REQUEST_SEND_FILE -> toFrame(sendFileRequest(incomingMessage));
+            case REQUEST_RECEIVE_FILE -> toFrame(receiveFileRequest(incomingMessage));
+            case REQUEST_SUBMIT_KEY -> toFrame(submitPublicKey(incomingMessage));
+            case REQUEST_GET_KEY -> toFrame(getPublicKey(incomingMessage));
+            case ENCRYPTION_SET_KEY -> toFrame(forwardEncryptionSetup(incomingMessage));
+            default -> CANNOT_HANDLE;
         };
     }
 
+    private static OutboundFrame toFrame(NextPressoMessageBuilder response) {
+        return response == null ? null : new OutboundFrame(response);
+    }
+
     //============================[Methods to handle messages]============================
 
     /**
      * Handle message to send group message to members of a group
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String sendGroupMsg(Message incomingMessage) {
-        if(!incomingMessage.getHeaderRecords().containsKey("groupname")) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Could not find groupname to send group message to!").buildProtocolString();
-
-        String targetGroup = incomingMessage.getHeaderRecords().get("groupname");
-        if(!groups.containsKey(targetGroup)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"Group not found!").buildProtocolString();
-        if(!groups.get(targetGroup).containsKey(currentUser)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"You are not in this group!").buildProtocolString();
-
-        groups.get(targetGroup).put(currentUser,System.currentTimeMillis()); //Reset inactivity timer
-
-        groups.get(targetGroup).forEach((user,lastActivity) ->{
-            if (!user.equals(currentUser)) {
-                try {
-                    connectedUsers.get(user).addExchangeMessage(
-                            new NextPressoMessageBuilder(ApiProtocol.MESSAGE_CHAT,incomingMessage.getPayload())
-                                    .sender(currentUser)
-                                    .groupname(targetGroup)
-                                    .authenticated(socket.isConnectionAuthenticated()));
-                } catch (NextPressoException e) {
-                    System.err.println("[" + e.title + "] " + e.getMessage());
-                    System.err.println("> Could not send group message");
-                }
-            }
-        });
+    private NextPressoMessageBuilder sendGroupMsg(Message incomingMessage) {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
+        if(!headerRecords.contains(HeaderKey.GROUPNAME)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Could not find groupname to send group message to!");
+
+        String targetGroup = headerRecords.groupname();
+        ChatGroup group = groups.get(targetGroup);
+        if(group == null) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"Group not found!");
+        if(!group.contains(currentUser)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"You are not in this group!");
+
+        group.touch(currentUser); //Reset inactivity timer
+
+        OutboundFrame groupMessage;
+        try {
+            groupMessage = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_CHAT,incomingMessage.getPayload())
+                    .sender(currentUser)
+                    .groupname(targetGroup)
+                    .authenticated(socket.isConnectionAuthenticated()));
+        } catch (NextPressoException e) {
+            System.err.println("[" + e.title + "] " + e.getMessage());
+            System.err.println("> Could not send group message");
+            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_GROUP_MESSAGE,incomingMessage.getPayload());
+        }
+        history.append(targetGroup, groupMessage);
+        //The same frame is queued for every member, members on other nodes get it from their node
+        for (MessageManager member : group.getMembers()) {
+            if (member != socket) member.addExchangeMessage(groupMessage);
+        }
+        cluster.sendToGroup(targetGroup, groupMessage);
 
-        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_GROUP_MESSAGE,incomingMessage.getPayload()).buildProtocolString();
+        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_GROUP_MESSAGE,incomingMessage.getPayload());
 
     }
 
     /**
-     * Handle message to send a private message to a user.
-     * Also handles encrypted private messages
+     * Handle message to read the history of a group. The stored messages are queued for the member after the answer, each with its sequence number.
+     * With a sequence number the messages after it are read, otherwise the last messages. The count is the most messages to read
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String sendDM(Message incomingMessage) {
+    private NextPressoMessageBuilder getGroupHistory(Message incomingMessage) {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
+        if(!headerRecords.contains(HeaderKey.GROUPNAME)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Group to read the history of is not specified!");
+        String targetGroup = headerRecords.groupname();
+        ChatGroup group = groups.get(targetGroup);
+        if(group == null) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"Group not found!");
+        if(!group.contains(currentUser)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"You are not in this group!");
+
+        int count;
+        long sequence;
         try {
-            if (!incomingMessage.getHeaderRecords().containsKey("username"))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find username to send direct message to!").buildProtocolString();
+            count = headerRecords.contains(HeaderKey.COUNT) ? Integer.parseInt(headerRecords.count()) : GroupHistory.MAX_READ_MESSAGES;
+            sequence = headerRecords.contains(HeaderKey.SEQUENCE) ? Long.parseLong(headerRecords.sequence()) : -1;
+        } catch (NumberFormatException e) {
+            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INVALID_DATA_FORMAT,"Count and sequence of the history must be numbers!");
+        }
+        if(count < 1 || (headerRecords.contains(HeaderKey.SEQUENCE) && sequence < 0)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_INVALID_DATA_FORMAT,"Count and sequence of the history must be positive!");
 
-            String messageToSend = incomingMessage.getPayload();
-            String messageTargetUser = incomingMessage.getHeaderRecords().get("username");
+        List<OutboundFrame> messages = sequence < 0 ? history.readLast(targetGroup, count) : history.readAfter(targetGroup, sequence, count);
+        for (OutboundFrame message : messages) socket.addExchangeMessage(message);
 
-            boolean encrypted;
-            if (!incomingMessage.getHeaderRecords().containsKey("encrypted")) encrypted = false;
-            else encrypted = incomingMessage.getHeaderRecords().get("encrypted").equals("true");
+        System.out.println("> Sent " + messages.size() + " messages of the history of group '" + targetGroup + "' to '" + currentUser + "'!");
+        try {
+            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_GROUP_HISTORY,String.valueOf(messages.size())).groupname(targetGroup);
+        } catch (NextPressoException e) {
+            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_GROUP_HISTORY,String.valueOf(messages.size()));
+        }
+    }
 
-            if (!connectedUsers.containsKey(messageTargetUser))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND, "Message target user not found!").buildProtocolString();
+    /**
+     * Handle message to send a private message to a user.
+     * Also handles encrypted private messages, a binary AES-GCM body is only taken from and delivered to NPP/2 connections
+     * @param incomingMessage Message that holds the request
+     * @return The NPP message answer that should be sent out through the socket
+     */
+    private NextPressoMessageBuilder sendDM(Message incomingMessage) {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
+        try {
+            if (!headerRecords.contains(HeaderKey.USERNAME))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find username to send direct message to!");
+
+            String messageToSend = incomingMessage.getPayload();
+            String messageTargetUser = headerRecords.username();
+
+            boolean binaryBody = headerRecords.hasBinaryBody();
+            if (binaryBody && !socket.getSocket().isBinaryProtocol())
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_INVALID_DATA_FORMAT, "Binary message bodies need " + NPP2Codec.VERSION + "!");
+
+            NextPressoMessageBuilder message = new NextPressoMessageBuilder(ApiProtocol.MESSAGE_CHAT, messageToSend).sender(currentUser).authenticated(socket.isConnectionAuthenticated());
+            OutboundFrame directMessage = new OutboundFrame(binaryBody ? message.encrypted(HeaderRecords.ENCRYPTION_AES_GCM) : message.encrypted(headerRecords.isTrue(HeaderKey.ENCRYPTED)));
+            MessageManager targetConnection = connectedUsers.get(messageTargetUser);
+            //The refusal names the target, so the client can send the message again as an AES-CBC Base64 body
+            if (targetConnection != null ? !targetConnection.canReceive(directMessage) : !cluster.canReceive(messageTargetUser, directMessage))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_ALLOWED, "Message target cannot receive binary messages!").username(messageTargetUser);
+            //The acknowledgement echoes the body, a binary one stays binary
+            NextPressoMessageBuilder acknowledgement = new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_PRIVATE_MESSAGE, messageToSend);
+            if (binaryBody) acknowledgement.encrypted(HeaderRecords.ENCRYPTION_AES_GCM);
+            if (targetConnection == null) {
+                //The user may be logged in on another node of the cluster
+                if (cluster.sendToUser(messageTargetUser, directMessage)) {
+                    System.out.println("> Sent DM from '" + currentUser + "' to '" + messageTargetUser + "' through the cluster!");
+                    return acknowledgement;
+                }
+                //Registered users that are offline get the message once they log in, a binary body is not stored since they may come back on NPP/1.1
+                if (binaryBody && credentials.contains(messageTargetUser))
+                    return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_ALLOWED, "Binary messages are not stored for offline users!").username(messageTargetUser);
+                if (!credentials.contains(messageTargetUser) || !inbox.store(messageTargetUser, directMessage))
+                    return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND, "Message target user not found!");
+                deliverOfflineMessages(messageTargetUser, connectedUsers.get(messageTargetUser)); //The user may have logged in meanwhile
+                System.out.println("> Stored DM from '" + currentUser + "' for offline user '" + messageTargetUser + "'!");
+                return acknowledgement;
+            }
 
-            connectedUsers.get(messageTargetUser).addExchangeMessage(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_CHAT, messageToSend).sender(currentUser).authenticated(socket.isConnectionAuthenticated()).encrypted(encrypted));
+            if (!targetConnection.addExchangeMessage(directMessage))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_TARGET_SATURATED, "Message target user cannot take more messages right now!");
 
             System.out.println("> Sent DM from '" + currentUser + "' to '" + messageTargetUser + "'!");
-            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_PRIVATE_MESSAGE, incomingMessage.getPayload()).buildProtocolString();
+            return acknowledgement;
         }catch (NextPressoException e){
             System.err.println("[" + e.title + "] " + e.getMessage());
             System.err.println("> Could not send direct message");
-            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INTERNAL_ERROR, "Could not send the direct message!").buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INTERNAL_ERROR, "Could not send the direct message!");
         }
     }
 
+    /**
+     * Queue the stored direct messages of a user that is logged in. Only an authenticated user gets them,
+     * since anyone may log in with the name of a registered user without its password
+     * @param username User to deliver to
+     * @param manager Manager of the user's connection. Null if the user is not logged in
+     */
+    private void deliverOfflineMessages(String username, MessageManager manager) {
+        if (manager == null || !manager.isConnectionAuthenticated()) return;
+        List<OutboundFrame> frames = inbox.drain(username);
+        for (OutboundFrame frame : frames) {
+            if (!manager.addExchangeMessage(frame)) inbox.store(username, frame); //Kept for the next login
+        }
+        if (!frames.isEmpty()) System.out.println("> Delivered " + frames.size() + " stored DMs to '" + username + "'!");
+    }
+
     /**
      * Handle message to leave a group
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String leaveGroup(Message incomingMessage) {
-        if(!incomingMessage.getHeaderRecords().containsKey("groupname")) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Group to leave is not specified!").buildProtocolString();
-        String targetGroup = incomingMessage.getHeaderRecords().get("groupname");
-        if(!groups.containsKey(targetGroup)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"Could not find group to leave!").buildProtocolString();
-        if(!groups.get(targetGroup).containsKey(currentUser)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"You are not in this group!").buildProtocolString();
+    private NextPressoMessageBuilder leaveGroup(Message incomingMessage) {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
+        if(!headerRecords.contains(HeaderKey.GROUPNAME)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Group to leave is not specified!");
+        String targetGroup = headerRecords.groupname();
+        ChatGroup group = groups.get(targetGroup);
+        if(group == null) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"Could not find group to leave!");
+        if(!groups.leave(group, currentUser)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"You are not in this group!");
 
-        groups.get(targetGroup).remove(currentUser);
         System.out.println("> Removed '" + currentUser + "' from group '" + targetGroup + "' based on user request!");
 
-        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LEAVE_GROUP,targetGroup).buildProtocolString();
+        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LEAVE_GROUP,targetGroup);
     }
 
     /**
      * Handle message to join a group
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String joinGroup(Message incomingMessage) {
-        if(!incomingMessage.getHeaderRecords().containsKey("groupname")) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Group to join is not specified!").buildProtocolString();
-        String targetGroup = incomingMessage.getHeaderRecords().get("groupname");
+    private NextPressoMessageBuilder joinGroup(Message incomingMessage) {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
+        if(!headerRecords.contains(HeaderKey.GROUPNAME)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Group to join is not specified!");
+        String targetGroup = headerRecords.groupname();
 
-        if(!groups.containsKey(targetGroup)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"Requested group not found!").buildProtocolString();
+        ChatGroup group = groups.get(targetGroup);
+        if(group == null) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"Requested group not found!");
 
-        groups.get(targetGroup).put(currentUser,System.currentTimeMillis()); //Start inactivity timer
+        groups.join(group, currentUser, socket); //Start inactivity timer
+        groupWatcher.watch(targetGroup, currentUser);
 
         //Notify other users in group of the new member
-        groups.get(targetGroup).forEach((user,lastActivity) -> {
-                    if (!user.equals(currentUser)) {
-                        try {
-                            connectedUsers.get(user).addExchangeMessage(
-                                    new NextPressoMessageBuilder(ApiProtocol.MESSAGE_SERVER_GROUP_NEW_USER)
-                                            .username(currentUser)
-                                            .authenticated(socket.isConnectionAuthenticated())
-                                            .groupname(targetGroup));
-                        } catch (NextPressoException e) {
-                            System.err.println("[" + e.title + "] " + e.getMessage());
-                            System.err.println("> Could not send group message");
-                        }
-                    }
-                });
+        try {
+            OutboundFrame newMember = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_SERVER_GROUP_NEW_USER)
+                    .username(currentUser)
+                    .authenticated(socket.isConnectionAuthenticated())
+                    .groupname(targetGroup));
+            for (MessageManager member : group.getMembers()) {
+                if (member != socket) member.addExchangeMessage(newMember);
+            }
+            cluster.sendToGroup(targetGroup, newMember);
+        } catch (NextPressoException e) {
+            System.err.println("[" + e.title + "] " + e.getMessage());
+            System.err.println("> Could not send group message");
+        }
 
         System.out.println("> Added user '" + currentUser + "' to group '" + targetGroup + "'!");
 
-        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_JOIN_GROUP,targetGroup).buildProtocolString();
+        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_JOIN_GROUP,targetGroup);
     }
 
     /**
      * Handle message to list groups
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String listGroups() {
-        if(groups.isEmpty()) return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LIST_GROUPS).buildProtocolString();
+    private NextPressoMessageBuilder listGroups() {
+        if(groups.isEmpty()) return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LIST_GROUPS);
 
         StringBuilder output = new StringBuilder();
         groups.forEach((k,v) -> { //Build list format
             output.append("{");
             output.append(k);
             output.append(",");
-            output.append(v.containsKey(currentUser) ? "1" : "0");
+            output.append(v.contains(currentUser) ? "1" : "0");
             output.append("},");
         });
         output.deleteCharAt(output.length()-1); //Delete the very last comma that is unnecessary
-        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LIST_GROUPS,output.toString()).buildProtocolString();
+        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LIST_GROUPS,output.toString());
     }
 
     /**
      * Handle message to create a new group that will also put the creator in the group
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String createGroup(Message incomingMessage) {
-        if(!incomingMessage.getHeaderRecords().containsKey("groupname")) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Group to create is not specified!").buildProtocolString();
-        String targetGroup = incomingMessage.getHeaderRecords().get("groupname");
+    private NextPressoMessageBuilder createGroup(Message incomingMessage) {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
+        if(!headerRecords.contains(HeaderKey.GROUPNAME)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Group to create is not specified!");
+        String targetGroup = headerRecords.groupname();
 
-        if(groups.containsKey(targetGroup)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_ALLOWED,"Requested group already exists!").buildProtocolString();
-
-        HashMap<String, Long> userActivityMap = new HashMap<>();
-        userActivityMap.put(currentUser,System.currentTimeMillis());
-        groups.put(targetGroup, userActivityMap);
+        if(groups.create(targetGroup, currentUser, socket) == null) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_ALLOWED,"Requested group already exists!");
+        history.reset(targetGroup); //The history on disk may still hold an earlier group with this name
+        groupWatcher.watch(targetGroup, currentUser);
+        cluster.announceGroup(targetGroup);
 
         System.out.println("> Created group '" + targetGroup + "' and added '" + currentUser + "' to it!");
 
-        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_CREATE_GROUP,targetGroup).buildProtocolString();
+        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_CREATE_GROUP,targetGroup);
     }
 
     /**
      * Handle message to log in a user
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String loginUser(Message incomingMessage) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        if(currentUser != null) return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNEXPECTED,"Already logged in!").buildProtocolString();
-        if(!incomingMessage.getHeaderRecords().containsKey("username")) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Username to log in is not specified!").buildProtocolString();
-        String username = incomingMessage.getHeaderRecords().get("username");
-        if(username.length() < 3)return new NextPressoMessageBuilder(ApiProtocol.ERROR_INVALID_DATA_FORMAT,"Username is too short!").buildProtocolString();
-        if(connectedUsers.containsKey(username))return new NextPressoMessageBuilder(ApiProtocol.ERROR_USER_ALREADY_LOGGED_IN,"User is already logged in!").buildProtocolString();
+    private NextPressoMessageBuilder loginUser(Message incomingMessage) {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
+        if(currentUser != null) return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNEXPECTED,"Already logged in!");
+        if(socket.isAuthenticating()) return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNEXPECTED,"Already logging in!");
+        if(!headerRecords.contains(HeaderKey.USERNAME)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Username to log in is not specified!");
+        String username = headerRecords.username();
+        if(username.length() < 3)return new NextPressoMessageBuilder(ApiProtocol.ERROR_INVALID_DATA_FORMAT,"Username is too short!");
+        if(connectedUsers.containsKey(username) || cluster.isRemoteUser(username))return new NextPressoMessageBuilder(ApiProtocol.ERROR_USER_ALREADY_LOGGED_IN,"User is already logged in!");
+
+        //User logs in again with the token of an earlier login (optional), which only takes an HMAC instead of the password hash
+        if(headerRecords.contains(HeaderKey.TOKEN) && !headerRecords.isTrue(HeaderKey.TOKEN)){
+            if(!username.equals(loginTokens.verify(headerRecords.token())) || !credentials.contains(username))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNAUTHORIZED,"Token is invalid or expired!");
+
+            System.out.println("> Successfully authenticated user '" + username + "' with a token!");
+            return logIn(username, headerRecords, true);
+        }
 
         //User wants to be authenticated (optional)
-        if(incomingMessage.getHeaderRecords().containsKey("password")){
-            String givenPassword = incomingMessage.getHeaderRecords().get("password");
+        if(headerRecords.contains(HeaderKey.PASSWORD)){
+            CredentialStore.Credential credential = credentials.get(username);
+            if(credential == null)return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNAUTHORIZED,"Username or password is incorrect!");
+
+            //Hashing the password is slow, it is checked on the auth executor and the answer follows once it is done
+            if(!socket.authenticateLater(username, headerRecords.password(), credential, headerRecords))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_SERVER_BUSY,"Too many logins at the moment, try again later!");
+            return null;
+        }
 
-            if(!UserCredentials.dataSet.containsKey(username))return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNAUTHORIZED,"Username or password is incorrect!").buildProtocolString();
+        return logIn(username, headerRecords, false);
+    }
 
-            String storedHash = UserCredentials.dataSet.get(username);
+    /**
+     * Finish a login after its password was checked by the auth executor
+     * @param username User that logs in
+     * @param valid True - the password matched
+     * @param request Header records of the login request
+     * @return The NPP message answer that should be sent out through the socket
+     */
+    protected NextPressoMessageBuilder completeAuthentication(String username, boolean valid, HeaderRecords request) {
+        if(!valid)return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNAUTHORIZED,"Username or password is incorrect!");
+        //Someone may have logged in with the name on this node or another one while the password was checked
+        if(cluster.isRemoteUser(username))return new NextPressoMessageBuilder(ApiProtocol.ERROR_USER_ALREADY_LOGGED_IN,"User is already logged in!");
 
-            if(!PBKDF2Validator.validateHash(givenPassword,storedHash))return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNAUTHORIZED,"Username or password is incorrect!").buildProtocolString();
+        System.out.println("> Successfully authenticated user '" + username + "'!");
+        return logIn(username, request, true);
+    }
 
-            socket.makeConnectionAuthorized();
-            System.out.println("> Successfully authenticated user '" + username + "'!");
+    /**
+     * Log in a user whose credentials are checked. The name is claimed at once, so of two logins with the same name only one succeeds
+     * @param username User that logs in
+     * @param request Header records of the login request, which may ask for a session or a token
+     * @param authenticated True - the password or a token of the user was checked
+     * @return The NPP message answer that should be sent out through the socket
+     */
+    private NextPressoMessageBuilder logIn(String username, HeaderRecords request, boolean authenticated) {
+        if(connectedUsers.putIfAbsent(username,socket) != null)return new NextPressoMessageBuilder(ApiProtocol.ERROR_USER_ALREADY_LOGGED_IN,"User is already logged in!");
+        if(authenticated) socket.makeConnectionAuthorized();
+
+        //Every message from now on is numbered if the user wants a session
+        ResumableSession session = null;
+        if(request.isTrue(HeaderKey.SESSION)){
+            session = sessions.create(username, socket.isConnectionAuthenticated());
+            socket.startSession(session);
         }
 
-        connectedUsers.put(username,socket);
         currentUser = username;
+        socket.getSocket().setMaxFrameSize(NPP2Codec.MAX_FRAME_SIZE); //Guests may only send small frames
+        cluster.announceLogin(username, socket.isConnectionAuthenticated(), socket.getSocket().isBinaryProtocol());
+        deliverOfflineMessages(username, socket);
         System.out.println("> Logged in user '" + currentUser + "'!");
-        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LOGIN,currentUser).authenticated(socket.isConnectionAuthenticated()).buildProtocolString();
+        NextPressoMessageBuilder acknowledgement = new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LOGIN,currentUser).authenticated(socket.isConnectionAuthenticated());
+        try {
+            if(session != null) acknowledgement.session(session.token);
+            //Only an authenticated user gets a token, it stands in for its password
+            if(socket.isConnectionAuthenticated() && request.contains(HeaderKey.TOKEN)) acknowledgement.token(loginTokens.issue(username));
+        } catch (NextPressoException e) {
+            System.err.println("[" + e.title + "] " + e.getMessage());
+        }
+        return acknowledgement;
+    }
+
+    /**
+     * Handle message to resume a session after a reconnect. The messages after the last delivery number that the client saw are replayed
+     * @param incomingMessage Message that holds the request
+     * @return The NPP message answer that should be sent out through the socket
+     */
+    private NextPressoMessageBuilder resumeSession(Message incomingMessage) {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
+        if(currentUser != null) return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNEXPECTED,"Already logged in!");
+        if(socket.isAuthenticating()) return new NextPressoMessageBuilder(ApiProtocol.ERROR_UNEXPECTED,"Already logging in!");
+        if(!headerRecords.contains(HeaderKey.SESSION)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND,"Session to resume is not specified!");
+
+        long lastDelivery = 0;
+        if(headerRecords.contains(HeaderKey.DELIVERY)){
+            try {
+                lastDelivery = Long.parseLong(headerRecords.delivery());
+            } catch (NumberFormatException e) {
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_INVALID_DATA_FORMAT,"Delivery is not a number!");
+            }
+        }
+
+        ResumableSession session = sessions.get(headerRecords.session());
+        int replayed = session == null ? -1 : socket.resumeSession(session, lastDelivery);
+        if(replayed < 0) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND,"Session not found or expired!");
+
+        currentUser = session.username;
+        socket.getSocket().setMaxFrameSize(NPP2Codec.MAX_FRAME_SIZE); //Guests may only send small frames
+        connectedUsers.put(currentUser,socket);
+        groups.rebind(currentUser, socket);
+        System.out.println("> Resumed the session of user '" + currentUser + "' and replayed " + replayed + " messages!");
+        try {
+            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_RESUME_SESSION,String.valueOf(replayed)).username(currentUser).authenticated(socket.isConnectionAuthenticated());
+        } catch (NextPressoException e) {
+            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_RESUME_SESSION,String.valueOf(replayed)).authenticated(socket.isConnectionAuthenticated());
+        }
     }
 
     /**
      * Handle message to list connected users
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String listUsers(){
+    private NextPressoMessageBuilder listUsers(){
         StringBuilder output = new StringBuilder();
         connectedUsers.forEach((username, socket) -> { //Build list format
             output.append("{");
@@ -285,184 +474,214 @@ public class MessageHandler {
             output.append(socket.isConnectionAuthenticated() ? "1" : "0");
             output.append("},");
         });
+        cluster.forEachRemoteUser((username, authenticated) -> { //Users on the other nodes of the cluster
+            output.append("{");
+            output.append(username);
+            output.append(",");
+            output.append(authenticated ? "1" : "0");
+            output.append("},");
+        });
         output.deleteCharAt(output.length()-1); //Remove last comma
-        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LIST_USERS,output.toString()).buildProtocolString();
+        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LIST_USERS,output.toString());
     }
 
     /**
      * Handle message to log out a user
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String handleLogout(Message incomingMessage){
+    private OutboundFrame handleLogout(Message incomingMessage){
         socket.userConnected = false;
+        socket.endSession(); //A user that logs out does not come back
         System.out.println("> Logged out user '" + currentUser + "'!");
         connectedUsers.remove(currentUser);
-        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LOGOUT, incomingMessage.getPayload()).buildProtocolString();
+        if (incomingMessage.getPayload().isEmpty()) return LOGOUT_ACKNOWLEDGED;
+        return new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_LOGOUT, incomingMessage.getPayload()));
     }
 
     /**
      * Handle message to send a message to every connected user
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String preformBroadcast(Message incomingMessage) {
+    private NextPressoMessageBuilder preformBroadcast(Message incomingMessage) {
         try {
+            //The message is encoded once and the same frame is queued for every user
+            OutboundFrame broadcast = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_CHAT, incomingMessage.getPayload()).sender(currentUser).authenticated(this.socket.isConnectionAuthenticated()));
             for (MessageManager socket : connectedUsers.values()) {
                 if (socket != this.socket) { //Add message to other users who is not the current this user
-                    socket.addExchangeMessage(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_CHAT, incomingMessage.getPayload()).sender(currentUser).authenticated(this.socket.isConnectionAuthenticated()));
+                    socket.addExchangeMessage(broadcast);
                 }
             }
+            cluster.broadcast(broadcast);
             System.out.println("> Broadcast from user '" + currentUser + "' is sent to everyone!");
-            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_BROADCAST, incomingMessage.getPayload()).buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_BROADCAST, incomingMessage.getPayload());
         }catch (NextPressoException e){
             System.err.println("[" + e.title + "] " + e.getMessage());
             System.err.println("> Could not perform a broadcast!");
-            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INTERNAL_ERROR, "Could not perform broadcast!").buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INTERNAL_ERROR, "Could not perform broadcast!");
         }
     }
 
     /**
      * Handle message to forward a file request message to another user
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String sendFileRequest(Message incomingMessage){
+    private NextPressoMessageBuilder sendFileRequest(Message incomingMessage){
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
         try {
-            if (!incomingMessage.getHeaderRecords().containsKey("username"))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find username to send file to!").buildProtocolString();
-            if (!incomingMessage.getHeaderRecords().containsKey("filename"))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find filename!").buildProtocolString();
-            if (!incomingMessage.getHeaderRecords().containsKey("checksum"))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find file checksum!").buildProtocolString();
-
-            String filename = incomingMessage.getHeaderRecords().get("filename");
-            String checksum = incomingMessage.getHeaderRecords().get("checksum");
-            String transferTarget = incomingMessage.getHeaderRecords().get("username");
-            long fileLength = Long.parseLong(incomingMessage.getHeaderRecords().get("filelength"));
+            if (!headerRecords.contains(HeaderKey.USERNAME))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find username to send file to!");
+            if (!headerRecords.contains(HeaderKey.FILENAME))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find filename!");
+            if (!headerRecords.contains(HeaderKey.CHECKSUM))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find file checksum!");
+
+            String filename = headerRecords.filename();
+            String checksum = headerRecords.checksum();
+            String transferTarget = headerRecords.username();
+            long fileLength = Long.parseLong(headerRecords.filelength());
 
             if (!connectedUsers.containsKey(transferTarget))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND, "Transfer target user not found!").buildProtocolString();
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND, "Transfer target user not found!");
 
-            connectedUsers.get(transferTarget).addExchangeMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_SEND_FILE).sender(currentUser).username(transferTarget).filename(filename).checksum(checksum).filelength(fileLength));
+            if (!connectedUsers.get(transferTarget).addExchangeMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_SEND_FILE).sender(currentUser).username(transferTarget).filename(filename).checksum(checksum).filelength(fileLength)))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_TARGET_SATURATED, "Transfer target user cannot take more messages right now!");
 
             System.out.println("> Sent file transfer request from '" + currentUser + "' to '" + transferTarget + "'!");
-            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_SEND_FILE, filename).buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_SEND_FILE, filename);
         }catch (NextPressoException e){
             System.err.println("[" + e.title + "] " + e.getMessage());
             System.err.println("> Could not send file transfer request");
-            return new NextPressoMessageBuilder(ApiProtocol.ERROR_MALFORMED_PACKET, e.getMessage()).buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ERROR_MALFORMED_PACKET, e.getMessage());
         }catch (NumberFormatException e){
             System.err.println("[ Number format exception ] " + e.getMessage());
             System.err.println("> Could not send file transfer request");
-            return new NextPressoMessageBuilder(ApiProtocol.ERROR_MALFORMED_PACKET, "Count not interpret file length as a number!").buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ERROR_MALFORMED_PACKET, "Count not interpret file length as a number!");
         }
     }
 
     /**
      * Handle message to forward a file receive request message to another user
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String receiveFileRequest(Message incomingMessage){
+    private NextPressoMessageBuilder receiveFileRequest(Message incomingMessage){
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
         try {
-            if (!incomingMessage.getHeaderRecords().containsKey("username"))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find username of the file sender!").buildProtocolString();
-            if (!incomingMessage.getHeaderRecords().containsKey("filename"))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find filename!").buildProtocolString();
-            if (!incomingMessage.getHeaderRecords().containsKey("accepted"))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find file acceptance choice!").buildProtocolString();
+            if (!headerRecords.contains(HeaderKey.USERNAME))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find username of the file sender!");
+            if (!headerRecords.contains(HeaderKey.FILENAME))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find filename!");
+            if (!headerRecords.contains(HeaderKey.ACCEPTED))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find file acceptance choice!");
 
-            String filename = incomingMessage.getHeaderRecords().get("filename");
-            String transferSource = incomingMessage.getHeaderRecords().get("username");
-            boolean isAccepted = Boolean.parseBoolean(incomingMessage.getHeaderRecords().get("accepted"));
+            String filename = headerRecords.filename();
+            String transferSource = headerRecords.username();
+            boolean isAccepted = Boolean.parseBoolean(headerRecords.get(HeaderKey.ACCEPTED));
 
             if (!connectedUsers.containsKey(transferSource))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND, "Transfer source user not found!").buildProtocolString();
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND, "Transfer source user not found!");
             if (isAccepted) {
                 transferUsers.put(currentUser,null);
                 transferUsers.put(transferSource,null);
             }
 
-            connectedUsers.get(transferSource).addExchangeMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_RECEIVE_FILE).sender(currentUser).username(transferSource).filename(filename).accepted(isAccepted));
+            if (!connectedUsers.get(transferSource).addExchangeMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_RECEIVE_FILE).sender(currentUser).username(transferSource).filename(filename).accepted(isAccepted))) {
+                if (isAccepted) { //The transfer cannot start without the answer
+                    transferUsers.remove(currentUser);
+                    transferUsers.remove(transferSource);
+                }
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_TARGET_SATURATED, "Transfer source user cannot take more messages right now!");
+            }
 
             System.out.println("> Sent file receive request from '" + currentUser + "' to '" + transferSource + "'!");
-            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_RECEIVE_FILE, filename).buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_RECEIVE_FILE, filename);
         }catch (NextPressoException e){
             System.err.println("[" + e.title + "] " + e.getMessage());
             System.err.println("> Could not send file receive request");
-            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INTERNAL_ERROR, "Could not send file receive request!").buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INTERNAL_ERROR, "Could not send file receive request!");
         }
     }
 
     /**
      * Store public key of a user in the server
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String submitPublicKey(Message incomingMessage){
+    private NextPressoMessageBuilder submitPublicKey(Message incomingMessage){
         if (incomingMessage.getPayload().isBlank())
-            return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "No key provided in body!").buildProtocolString();
-        try{
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(Base64.getDecoder().decode(incomingMessage.getPayload()));
-            PublicKey pubK = keyFactory.generatePublic(publicKeySpec);
-            Cipher encrypt = Cipher.getInstance("RSA");
-            encrypt.init(Cipher.ENCRYPT_MODE,pubK);
-        } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException e) {
-            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INVALID_DATA_FORMAT, "Provided data is not a valid X.509 encoded RSA Public Key!").buildProtocolString();
-        }
+            return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "No key provided in body!");
+        if (!CryptoTools.isValidPublicKey(incomingMessage.getPayload()))
+            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INVALID_DATA_FORMAT, "Provided data is not a valid X.509 encoded RSA or X25519 Public Key!");
         userPublicKeys.put(currentUser,incomingMessage.getPayload());
-        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_SUBMIT_KEY, incomingMessage.getPayload()).buildProtocolString();
+        return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_SUBMIT_KEY, incomingMessage.getPayload());
     }
 
     /**
      * Send stored public key of a user to another user
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String getPublicKey(Message incomingMessage){
+    private NextPressoMessageBuilder getPublicKey(Message incomingMessage){
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
         try {
-            if (!incomingMessage.getHeaderRecords().containsKey("username"))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "No target username specified!").buildProtocolString();
-            if (!userPublicKeys.containsKey(incomingMessage.getHeaderRecords().get("username"))) {
-                return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_GET_KEY).username(incomingMessage.getHeaderRecords().get("username")).buildProtocolString();
+            if (!headerRecords.contains(HeaderKey.USERNAME))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "No target username specified!");
+            if (!userPublicKeys.containsKey(headerRecords.username())) {
+                return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_GET_KEY).username(headerRecords.username());
             }
-            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_GET_KEY, userPublicKeys.get(incomingMessage.getHeaderRecords().get("username"))).username(incomingMessage.getHeaderRecords().get("username")).buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ACKNOWLEDGE_GET_KEY, userPublicKeys.get(headerRecords.username())).username(headerRecords.username());
         } catch (NextPressoException e){
-            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INTERNAL_ERROR, "Unknown parsing error").buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INTERNAL_ERROR, "Unknown parsing error");
         }
     }
 
     /**
      * Forward encryption setup procedure to another user
      * @param incomingMessage Message that holds the request
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String forwardEncryptionSetup(Message incomingMessage) {
+    private NextPressoMessageBuilder forwardEncryptionSetup(Message incomingMessage) {
+        HeaderRecords headerRecords = incomingMessage.getHeaderRecords();
         try {
-            if (!incomingMessage.getHeaderRecords().containsKey("username"))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find username to send direct message to!").buildProtocolString();
+            if (!headerRecords.contains(HeaderKey.USERNAME))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_MANDATORY_DATA_NOT_FOUND, "Could not find username to send direct message to!");
 
             String messageToSend = incomingMessage.getPayload();
-            String messageTargetUser = incomingMessage.getHeaderRecords().get("username");
+            String messageTargetUser = headerRecords.username();
 
             if (!connectedUsers.containsKey(messageTargetUser))
-                return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND, "Message target user not found!").buildProtocolString();
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_FOUND, "Message target user not found!");
 
-            connectedUsers.get(messageTargetUser).addExchangeMessage(new NextPressoMessageBuilder(ApiProtocol.ENCRYPTION_SET_KEY, messageToSend).sender(currentUser).username(messageTargetUser));
-            return new NextPressoMessageBuilder(ApiProtocol.ENCRYPTION_KEY_FORWARDED, messageToSend).username(messageTargetUser).buildProtocolString();
+            if (!connectedUsers.get(messageTargetUser).addExchangeMessage(new NextPressoMessageBuilder(ApiProtocol.ENCRYPTION_SET_KEY, messageToSend).sender(currentUser).username(messageTargetUser)))
+                return new NextPressoMessageBuilder(ApiProtocol.ERROR_TARGET_SATURATED, "Message target user cannot take more messages right now!");
+            return new NextPressoMessageBuilder(ApiProtocol.ENCRYPTION_KEY_FORWARDED, messageToSend).username(messageTargetUser);
         } catch (NextPressoException e){
-            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INTERNAL_ERROR, "Unknown parsing error").buildProtocolString();
+            return new NextPressoMessageBuilder(ApiProtocol.ERROR_INTERNAL_ERROR, "Unknown parsing error");
         }
     }
 
+    /**
+     * Handle request to switch the connection to the binary NPP/2 format.
+     * The acknowledgement is still sent in NPP/1.1, every message after it is sent and read in NPP/2
+     * @param incomingMessage The NextPresso message that the client sent
+     * @return The NPP message answer that should be sent out through the socket
+     */
+    private NextPressoMessageBuilder upgradeProtocol(Message incomingMessage) {
+        if(!NPP2Codec.VERSION.equals(incomingMessage.getPayload())) return new NextPressoMessageBuilder(ApiProtocol.ERROR_INVALID_DATA_FORMAT,"Requested protocol version is not supported!");
+        if(!socket.upgradeProtocol(PROTOCOL_UPGRADE_ACKNOWLEDGED)) return new NextPressoMessageBuilder(ApiProtocol.ERROR_NOT_ALLOWED,"Connection cannot switch to " + NPP2Codec.VERSION + "!");
+        System.out.println("> Connection with username '" + (currentUser == null ? "<GUEST>" : currentUser) + "' switched to " + NPP2Codec.VERSION);
+        return null;
+    }
+
     /**
      * Handle user's heartbeat confirmation
-     * @return The NPP string message answer that should be sent out through the socket
+     * @return The NPP message answer that should be sent out through the socket
      */
-    private String confirmHeartBeat(){
-        socket.setHeartbeatConfirmationBool(true);
+    private NextPressoMessageBuilder confirmHeartBeat(){
+        socket.confirmHeartbeat();
         return null;
     }
 
@@ -471,12 +690,13 @@ public class MessageHandler {
     }
 
     public void removeCurrentUser(){
-        Map<String, Map<String,Long>> groupsCheck = new HashMap<>(groups);
-        groupsCheck.forEach((group,userActivityMap) -> {
-            Map<String,Long> tempUserActivityMap = new HashMap<>(userActivityMap);
-            if(tempUserActivityMap.containsKey(currentUser)) groups.get(group).remove(currentUser);
-        });
+        //A newer connection may have logged in with the same name, its state must be kept
+        if (currentUser == null) return;
+        MessageManager registeredManager = connectedUsers.get(currentUser);
+        if (registeredManager != null && registeredManager != socket) return;
         connectedUsers.remove(currentUser);
+        cluster.announceLogout(currentUser);
+        groups.removeUser(currentUser); //Only the groups of the user are visited
         transferUsers.remove(currentUser);
         userPublicKeys.remove(currentUser);
     }
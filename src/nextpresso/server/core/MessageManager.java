@@ -1,166 +1,458 @@
 package nextpresso.server.core;
 
 import nextpresso.tools.ApiProtocol;
+import nextpresso.model.HeaderRecords;
 import nextpresso.model.Message;
+import nextpresso.model.MessageSocket;
+import nextpresso.model.NPP2Codec;
 import nextpresso.model.NextPressoException;
 import nextpresso.model.NextPressoMessageBuilder;
-import nextpresso.model.NetSocket;
+import nextpresso.model.OutboundFrame;
+import nextpresso.server.data.CredentialStore;
+import nextpresso.server.tools.TimingWheel;
 
 import java.io.IOException;
-import java.net.SocketException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-import java.util.Map;
-import java.util.concurrent.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class that manages a message socket
  */
-public class MessageManager implements Runnable {
-    private ScheduledFuture<?> heartbeatHandler;
-    private boolean isHeartbeatConfirmed;
-    protected boolean userConnected;
-    private final ConcurrentLinkedQueue<NextPressoMessageBuilder> pendingExchangeMessages;
+public class MessageManager {
+    private static final OutboundFrame WELCOME_MESSAGE = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_SERVER_INFO, "Welcome to Latte, a NextPresso (NPP/1.1) chat server!"));
+    private static final OutboundFrame HEARTBEAT_REQUEST = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.HEARTBEAT_REQUEST));
+
+    private final TimingWheel timers;
+    private TimingWheel.Timeout heartbeatTimer, heartbeatDeadline;
+    private long heartbeatInterval; //Seconds
+    protected volatile boolean userConnected; //Written by the auth executor, the driver of the connection and the handler
+    private final OutboundQueue pendingExchangeMessages;
+    private final AtomicBoolean exchangeSignalled; //True while a delivery of the queued messages is pending
+    private volatile Runnable exchangeSignal;
+    private volatile Executor timerExecutor; //Runs the timer tasks of a connection whose writes block, null if they run on the timing wheel
+    private final AtomicInteger requestsInProgress; //Requests of this client that are handled, messages queued meanwhile follow their answers
     private final MessageHandler handler;
-    private boolean isAuthenticated;
-    private final NetSocket socket;
+    private volatile boolean isAuthenticated;
+    private final MessageSocket socket;
+    private final WriteCoalescing writeCoalescing;
+    private final OutboundLimits outboundLimits;
+    private final SessionRegistry sessions;
+    private final AuthExecutor authExecutor;
+    private final AtomicBoolean authenticating; //True while the password of a login is checked
+    private final Object requestLock; //Held while a request or a finished login is handled, so the state of the handler is changed by one thread at a time
+    private volatile ResumableSession session; //Null if the client did not log in with a session
 
     /**
      * Create a new NPP message manager
      * @param socket User's socket
-     * @param connectedUsers List of users and their managers
-     * @param groups List of groups with their name and their user list alongside their activity indicator
-     * @param transferUsers List of the 2 users who want to initiate file transfer
-     * @param userPublicKeys List of stored user public keys
+     * @param context Server wide state of the message service
      */
-    public MessageManager(NetSocket socket, Map<String, MessageManager> connectedUsers, Map<String, Map<String,Long>> groups, Map<String, FileManager> transferUsers, Map<String, String> userPublicKeys) {
+    MessageManager(MessageSocket socket, ServerContext context) {
         this.socket = socket;
-        this.isHeartbeatConfirmed = false;
+        this.sessions = context.sessions();
+        this.authExecutor = context.authExecutor();
+        this.authenticating = new AtomicBoolean(false);
+        this.requestLock = new Object();
+        this.requestsInProgress = new AtomicInteger();
+        this.writeCoalescing = context.writeCoalescing();
+        this.timers = context.timers();
         this.userConnected = true;
-        this.pendingExchangeMessages = new ConcurrentLinkedQueue<>();
-        this.handler = new MessageHandler(this,connectedUsers, groups, transferUsers, userPublicKeys);
+        this.outboundLimits = context.outboundLimits();
+        this.pendingExchangeMessages = new OutboundQueue(outboundLimits);
+        this.exchangeSignalled = new AtomicBoolean(false);
+        this.handler = new MessageHandler(this, context);
         this.isAuthenticated = false;
     }
 
     /**
-     * Main logic that handles incoming requests from the socket and sends data out to the socket when needed
+     * Greet the newly connected client and start the heartbeat
+     */
+    protected void open() {
+        //Send welcome message on connection
+        socket.sendFrame(WELCOME_MESSAGE);
+        //Start heartbeat
+        runHeartBeatSequence();
+    }
+
+    /**
+     * Handle a single incoming request and send the response back to the socket
+     * @param incomingMessage Raw NPP message read from the socket
+     * @return False if the connection has been closed while handling the message
+     */
+    protected boolean handleIncomingMessage(String incomingMessage) {
+        try {
+            return handleIncomingMessage(new NextPressoMessageBuilder(incomingMessage));
+        } catch (NextPressoException e) {
+            return rejectIncomingMessage(e);
+        }
+    }
+
+    /**
+     * Handle a single incoming NPP/2 frame and send the response back to the socket
+     * @param incomingFrame Frame read from the socket without its length prefix
+     * @return False if the connection has been closed while handling the message
      */
-    @Override
-    public void run() {
+    protected boolean handleIncomingFrame(byte[] incomingFrame) {
+        try {
+            return handleIncomingMessage(NPP2Codec.decode(incomingFrame));
+        } catch (NextPressoException e) {
+            return rejectIncomingMessage(e);
+        }
+    }
+
+    private boolean handleIncomingMessage(NextPressoMessageBuilder incomingMessage) {
+        requestsInProgress.incrementAndGet();
         try {
-            try {
-                //Send welcome message on connection
-                socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_SERVER_INFO, "Welcome to Latte, a NextPresso (NPP/1.1) chat server!").buildProtocolString());
-                //Start heartbeat
-                runHeartBeatSequence();
-                do {
-                    if (socket.isClosed()) break;
-                    //Send queued messages to this client from other clients
-                    sendExchangedMessages();
-
-                    if (socket.isMessageIncoming()) {
-                        //Read incoming messages
-                        String incomingMessage = socket.getIncomingNPPMessage();
-                        if (incomingMessage == null) continue;
-                        //Handle read messages
-                        String response = handler.handleMessage(new NextPressoMessageBuilder(incomingMessage).buildMessage());
-                        if (response != null) {
-                            //Send response back if there is any
-                            socket.sendMessage(response);
-                        }
+            synchronized (requestLock) {
+                OutboundFrame response = handler.handleMessage(incomingMessage.buildMessage());
+                if (response != null) {
+                    //Send response back if there is any
+                    socket.sendFrame(response);
+                }
+            }
+        } catch (NextPressoException e) {
+            return rejectIncomingMessage(e);
+        } finally {
+            //Messages that the request queued for this client itself, such as stored messages, are sent after its answer.
+            //A login that finishes on the auth executor meanwhile signals once its own answer is sent
+            if (requestsInProgress.decrementAndGet() == 0) signalExchange();
+        }
+        if (!userConnected) closeConnection();
+        return userConnected;
+    }
+
+    private boolean rejectIncomingMessage(NextPressoException e) {
+        socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.ERROR_MALFORMED_PACKET,e.getMessage()));
+        userConnected = false;
+        closeConnection();
+        return false;
+    }
+
+    /**
+     * Check the password of a login on the auth executor, the answer is sent once the check is done
+     * @param username User that logs in
+     * @param password Raw password that the client sent
+     * @param credential Stored hash of the password of the user
+     * @param request Header records of the login request
+     * @return False if the auth executor is full, the login is not handled then
+     */
+    protected boolean authenticateLater(String username, String password, CredentialStore.Credential credential, HeaderRecords request) {
+        if (!authenticating.compareAndSet(false, true)) return false;
+        if (authExecutor.validate(password, credential, valid -> completeAuthentication(username, valid, request))) return true;
+        authenticating.set(false);
+        return false;
+    }
+
+    /**
+     * Check if the password of a login is being checked
+     * @return True - a login waits for the auth executor
+     */
+    protected boolean isAuthenticating() {
+        return authenticating.get();
+    }
+
+    /**
+     * Finish a login on the thread of the auth executor. It waits for the request that is being handled, so the handler sees the login
+     * and the requests of the connection in order. The lock of the manager keeps the connection from closing halfway,
+     * so a user is never logged in on a closed connection. The login counts as pending till the user is logged in,
+     * so a second login of the connection is refused meanwhile
+     * @param username User that logs in
+     * @param valid True - the password matched
+     * @param request Header records of the login request
+     */
+    private void completeAuthentication(String username, boolean valid, HeaderRecords request) {
+        requestsInProgress.incrementAndGet();
+        try {
+            synchronized (requestLock) {
+                synchronized (this) {
+                    try {
+                        if (isConnected()) socket.sendFrame(new OutboundFrame(handler.completeAuthentication(username, valid, request)));
+                    } finally {
+                        authenticating.set(false);
                     }
-                } while (userConnected);
-
-            //Error handling
-            } catch (SocketException e) {
-                System.out.println("> Heartbeat sequence ended for '" + (handler.getCurrentUser() == null ? "<GUEST>" : handler.getCurrentUser()) + "'");
-            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-                e.printStackTrace();
-            } catch (NextPressoException e) {
-                socket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.ERROR_MALFORMED_PACKET,e.getMessage()).buildProtocolString());
-            } finally {
-                heartbeatHandler.cancel(true);
-                socket.closeConnection();
-                System.out.println("> Connection with username '" +(handler.getCurrentUser() == null ? "<GUEST>" : handler.getCurrentUser()) + "' has been closed");
-                handler.removeCurrentUser();
+                }
             }
-        }catch (IOException e){
+        } finally {
+            if (requestsInProgress.decrementAndGet() == 0) signalExchange();
+        }
+    }
+
+    /**
+     * Close the socket and remove the user from the server. Calling this method more than once has no effect.
+     * A user with a session is kept for the grace period of the session instead, so it can resume it from a new connection
+     */
+    protected synchronized void closeConnection() {
+        if (heartbeatTimer != null) heartbeatTimer.cancel();
+        if (heartbeatDeadline != null) heartbeatDeadline.cancel();
+        userConnected = false;
+        ResumableSession session = this.session;
+        //The session waits before the queue is closed, so no message of the session is refused meanwhile
+        boolean sessionKept = session != null && session.detach(this);
+        if (sessionKept) session.setExpiry(schedule(this::expireSession, sessions.getGracePeriod(), TimeUnit.MILLISECONDS));
+        pendingExchangeMessages.close();
+        if (socket.isClosed()) return;
+        try {
+            socket.closeConnection();
+        } catch (IOException e) {
             System.err.println("> Could not properly communicate with user '" + handler.getCurrentUser() + "' to handle exception!");
         }
+        System.out.println("> Connection with username '" +(handler.getCurrentUser() == null ? "<GUEST>" : handler.getCurrentUser()) + "' has been closed");
+        if (sessionKept) {
+            System.out.println("> Kept the session of user '" + session.username + "' for " + sessions.getGracePeriod() / 1000 + " seconds");
+            return;
+        }
+        if (session != null && session.getOwner() != this) return; //The session was resumed on a new connection
+        handler.removeCurrentUser();
     }
 
     /**
-     * Send messages (direct messages, group messages) requested by other clients to this client
+     * Remove the user once the grace period of its session passed without a reconnect
      */
-    private void sendExchangedMessages(){
-        int size = pendingExchangeMessages.size();
-        NextPressoMessageBuilder[] pendingMessageCache = new NextPressoMessageBuilder[size];
-        if (size != 0) {
-            for (int i = 0; i < size; i++) {
-                pendingMessageCache[i] = pendingExchangeMessages.poll();
+    private void expireSession() {
+        ResumableSession session = this.session;
+        if (session == null || !session.expire(this)) return;
+        sessions.remove(session);
+        System.out.println("> Session of user '" + session.username + "' expired");
+        handler.removeCurrentUser();
+    }
+
+    /**
+     * Deliver the messages of the client in a session from now on
+     * @param session New session of the client that logged in
+     */
+    protected void startSession(ResumableSession session) {
+        session.attach(this);
+        this.session = session;
+    }
+
+    /**
+     * End the session of the client, so it is not kept after the connection closes
+     */
+    protected void endSession() {
+        ResumableSession session = this.session;
+        if (session == null) return;
+        this.session = null;
+        sessions.remove(session);
+    }
+
+    /**
+     * Take over a session from a lost connection and queue the messages that the client did not see yet
+     * @param resumed Session to take over
+     * @param lastDelivery Last delivery number that the client saw
+     * @return Number of replayed messages. -1 if the session already expired
+     */
+    protected int resumeSession(ResumableSession resumed, long lastDelivery) {
+        MessageManager previous;
+        int replayed = 0;
+        synchronized (resumed) {
+            previous = resumed.getOwner();
+            if (!resumed.attach(this)) return -1;
+            isAuthenticated = resumed.authenticated;
+            session = resumed;
+            //Messages for the session wait for the lock, so they follow the replay
+            for (OutboundFrame frame : resumed.replayAfter(lastDelivery)) {
+                if (!canReceive(frame)) continue; //The new connection cannot read it, the client sees a gap in the delivery numbers
+                if (!pendingExchangeMessages.offer(frame)) break;
+                replayed++;
             }
         }
-        for (NextPressoMessageBuilder builder : pendingMessageCache){
-            Message tempMessage = builder.buildMessage();
-            if (tempMessage.getHeaderRecords().get("target") == null || tempMessage.getHeaderRecords().get("target").equals(handler.getCurrentUser())){
-                socket.sendMessage(builder.buildProtocolString());
+        if (previous != null && previous != this) previous.closeConnection(); //The old connection may not have noticed it was lost
+        return replayed;
+    }
+
+    /**
+     * Set how the driver of this connection is woken up when another client queues a message for it
+     * @param exchangeSignal Callback that makes the driver call {@link #sendExchangedMessages()} soon
+     */
+    protected void setExchangeSignal(Runnable exchangeSignal) {
+        this.exchangeSignal = exchangeSignal;
+    }
+
+    /**
+     * Set where the timer tasks of this connection run, such as its heartbeats
+     * @param timerExecutor Executor of a connection whose writes block. Null to run the tasks on the timing wheel, for writes that never block
+     */
+    protected void setTimerExecutor(Executor timerExecutor) {
+        this.timerExecutor = timerExecutor;
+    }
+
+    /**
+     * Send messages (direct messages, group messages) requested by other clients to this client.
+     * Messages that are queued while this method runs are sent as well before it returns
+     */
+    protected void sendExchangedMessages(){
+        do {
+            if (socket.hasPendingWrites()) {
+                //The client did not read the last batch yet, the messages wait in the bounded queue till the driver resumes
+                exchangeSignalled.set(false);
+                return;
             }
+            deliverPendingMessages();
+            exchangeSignalled.set(false);
+        } while (!pendingExchangeMessages.isEmpty() && exchangeSignalled.compareAndSet(false, true));
+    }
+
+    private void deliverPendingMessages(){
+        List<OutboundFrame> queued = new ArrayList<>();
+        pendingExchangeMessages.drainTo(queued); //Messages queued from now on are sent by the next round
+        List<OutboundFrame> batch = new ArrayList<>(queued.size());
+        for (OutboundFrame frame : queued) {
+            if (frame.getTarget() == null || frame.getTarget().equals(handler.getCurrentUser())) batch.add(frame);
         }
+        if (batch.isEmpty()) return;
+        //Every message of the round is written with a single flush
+        writeCoalescing.recordFlush(batch.size(), socket.sendFrames(batch));
     }
 
     /**
      * Handle heartbeats
      */
-    protected void runHeartBeatSequence(){
-        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-        Runnable heartBeat = () -> {
-            setHeartbeatConfirmationBool(false);
-            /*
-            The string "<GUEST>" is being logged when the username is null. This can occur when the connection with a client is established,
-            the client is responding to heartbeats but is not logged in.
-            */
-            System.out.println("~~ Heartbeat initiated for user '" + (handler.getCurrentUser() == null ? "<GUEST>" : handler.getCurrentUser()) + "'");
-            NextPressoMessageBuilder heartBeatBuilder = new NextPressoMessageBuilder(ApiProtocol.HEARTBEAT_REQUEST);
-            socket.sendMessage(heartBeatBuilder.buildProtocolString());
-            long start = System.currentTimeMillis();
-            long end = start + 3000; //3 seconds timeout
-            while(System.currentTimeMillis() < end) {
-                if(isHeartbeatConfirmed()) {
-                    System.out.println("~~ Heartbeat confirmed for user '" + (handler.getCurrentUser() == null ? "<GUEST>" : handler.getCurrentUser()) + "'");
-                    break;
+    protected synchronized void runHeartBeatSequence(){
+        //Heartbeat is first called after 5 seconds
+        //Heartbeat will then initiate itself randomly between 5 and 15 seconds
+        heartbeatInterval = (long)(Math.random() * (15 - 5 + 1) + 5);
+        heartbeatTimer = schedule(this::sendHeartbeat, 5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Schedule a task of the connection on the timing wheel. The thread of the wheel runs the timers of the whole server and must never block,
+     * so a connection with blocking writes hands its tasks over to its own executor
+     */
+    private TimingWheel.Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return timers.schedule(() -> {
+            Executor executor = timerExecutor;
+            if (executor == null) task.run();
+            else executor.execute(task);
+        }, delay, unit);
+    }
+
+    private void sendHeartbeat(){
+        synchronized (this) {
+            if (!isConnected()) return;
+            heartbeatTimer = schedule(this::sendHeartbeat, heartbeatInterval, TimeUnit.SECONDS);
+            heartbeatDeadline = schedule(this::failHeartbeat, 3, TimeUnit.SECONDS); //3 seconds timeout
+        }
+        /*
+        The string "<GUEST>" is being logged when the username is null. This can occur when the connection with a client is established,
+        the client is responding to heartbeats but is not logged in.
+        */
+        System.out.println("~~ Heartbeat initiated for user '" + (handler.getCurrentUser() == null ? "<GUEST>" : handler.getCurrentUser()) + "'");
+        socket.sendFrame(HEARTBEAT_REQUEST);
+    }
+
+    private void failHeartbeat(){
+        System.out.println("~~ Heartbeat failed for user '" + (handler.getCurrentUser() == null ? "<GUEST>" : handler.getCurrentUser()) + "'");
+        closeConnection();
+    }
+
+    /**
+     * Confirm the last heartbeat of the client, so its deadline does not close the connection
+     */
+    protected synchronized void confirmHeartbeat(){
+        if (heartbeatDeadline != null && heartbeatDeadline.cancel()) {
+            System.out.println("~~ Heartbeat confirmed for user '" + (handler.getCurrentUser() == null ? "<GUEST>" : handler.getCurrentUser()) + "'");
+        }
+    }
+
+    protected boolean addExchangeMessage(NextPressoMessageBuilder messageBuilder){
+        return addExchangeMessage(new OutboundFrame(messageBuilder));
+    }
+
+    /**
+     * Queue a message for this client that was requested by another client.
+     * If the client has too many undelivered messages, the message is handled by the slow consumer policy.
+     * A message that needs NPP/2 is refused for an NPP/1.1 client, so the sender gets an error instead of the message being lost on write
+     * @param frame Encoded message. The same frame can be queued for every recipient of a fan-out
+     * @return False if the client is saturated or cannot read the message, and the message was not queued
+     */
+    protected boolean addExchangeMessage(OutboundFrame frame){
+        if (!canReceive(frame)) return false;
+        ResumableSession session = this.session;
+        boolean queued;
+        if (session != null && (frame.getTarget() == null || frame.getTarget().equals(session.username))) {
+            MessageManager owner;
+            synchronized (session) {
+                owner = session.getOwner();
+                if (owner == this) {
+                    OutboundFrame numbered = session.record(frame);
+                    if (session.isDetached()) return true; //Kept for the replay after a reconnect
+                    queued = pendingExchangeMessages.offer(numbered);
+                } else {
+                    queued = false;
                 }
             }
-            if(!isHeartbeatConfirmed()) {
-                System.out.println("~~ Heartbeat failed for user '" + (handler.getCurrentUser() == null ? "<GUEST>" : handler.getCurrentUser()) + "'");
-                try {
-                    socket.closeConnection();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            if (owner != this) return owner.addExchangeMessage(frame); //The session was resumed on a new connection
+        } else {
+            queued = pendingExchangeMessages.offer(frame);
+        }
+        if (!queued) {
+            if ((outboundLimits.getPolicy() == SlowConsumerPolicy.DISCONNECT || pendingExchangeMessages.isOverflowed()) && isConnected()) {
+                System.out.println("> Disconnecting user '" + handler.getCurrentUser() + "' for not reading its messages!");
+                outboundLimits.recordDisconnect();
+                closeConnection();
             }
-        };
-        //Heartbeat is first called after 5 seconds
-        //Heartbeat will then initiate itself randomly between 5 and 15 seconds
-        heartbeatHandler = scheduler.scheduleAtFixedRate(heartBeat, 5,(long)(Math.random() * (15 - 5 + 1) + 5) , TimeUnit.SECONDS);
+            return false;
+        }
+        if (requestsInProgress.get() == 0) signalExchange();
+        return true;
     }
 
-    protected synchronized void setHeartbeatConfirmationBool(boolean isHeartbeatConfirmed){
-        this.isHeartbeatConfirmed = isHeartbeatConfirmed;
+    /**
+     * Check if the client can read a message in the protocol of its connection
+     * @param frame Message to check
+     * @return False if the message needs NPP/2 and the connection uses NPP/1.1
+     */
+    protected boolean canReceive(OutboundFrame frame) {
+        return !frame.requiresBinaryProtocol() || socket.isBinaryProtocol();
     }
 
-    private synchronized boolean isHeartbeatConfirmed(){
-        return isHeartbeatConfirmed;
+    private void signalExchange() {
+        //Only the first message of a batch wakes the driver up, the rest is sent with it
+        if (exchangeSignal != null && !pendingExchangeMessages.isEmpty() && exchangeSignalled.compareAndSet(false, true)) exchangeSignal.run();
     }
 
-    protected void addExchangeMessage(NextPressoMessageBuilder messageBuilder){
-        this.pendingExchangeMessages.add(messageBuilder);
+    /**
+     * Get the number of messages from other clients that wait for delivery to this client
+     * @return Queue depth of the connection
+     */
+    protected int getPendingMessageCount() {
+        return pendingExchangeMessages.size();
     }
 
-    protected synchronized boolean isConnectionAuthenticated(){
+    /**
+     * Check if messages from other clients wait for delivery to this client
+     * @return True - the queue is not empty
+     */
+    protected boolean hasPendingMessages() {
+        return !pendingExchangeMessages.isEmpty();
+    }
+
+    protected boolean isConnectionAuthenticated(){
         return this.isAuthenticated;
     }
 
-    protected synchronized void makeConnectionAuthorized(){
+    protected void makeConnectionAuthorized(){
         this.isAuthenticated = true;
     }
+
+    /**
+     * Switch the connection to NPP/2 right after the acknowledgement of the upgrade
+     * @param acknowledgement Acknowledgement that is still sent in NPP/1.1
+     * @return False if the socket of the connection cannot switch
+     */
+    protected boolean upgradeProtocol(OutboundFrame acknowledgement) {
+        return socket.upgradeProtocol(acknowledgement);
+    }
+
+    protected MessageSocket getSocket() {
+        return socket;
+    }
+
+    protected boolean isConnected() {
+        return userConnected && !socket.isClosed();
+    }
 }
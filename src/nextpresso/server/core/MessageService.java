@@ -1,92 +1,167 @@
 package nextpresso.server.core;
 
+import nextpresso.model.NPP2Codec;
 import nextpresso.model.NetSocket;
-import nextpresso.tools.ApiProtocol;
-import nextpresso.model.NextPressoException;
-import nextpresso.model.NextPressoMessageBuilder;
+import nextpresso.server.data.CredentialStore;
+import nextpresso.server.tools.TimingWheel;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Service to handle all connections that are NPP message based
  */
-public class MessageService implements Runnable{
+public class MessageService implements Runnable, Closeable {
     private final Map<String, MessageManager> connectedUsers;
-    private final Map<String, Map<String,Long>> groups; //Each group name holds a map of usernames and their last activity
+    private final GroupRegistry groups;
     private final Map<String, String> userPublicKeys; //Username, Base64Key
 
-    private final ServerSocket messageSocketIntro;
+    private final ServerSocketChannel messageSocketIntro;
     private final Map<String, FileManager> transferUsers;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService connectionExecutor;
+    private final TimingWheel timers; //Runs the heartbeats and the group inactivity checks
+    private final GroupInactivityWatcher groupWatcher;
+    private final WriteCoalescing writeCoalescing;
+    private final OutboundLimits outboundLimits;
+    private final ClusterNode cluster;
+    private final OfflineInbox inbox;
+    private final GroupHistory history;
+    private final SessionRegistry sessions;
+    private final AuthExecutor authExecutor;
+    private final CredentialStore credentials;
+    private final LoginTokens loginTokens;
+    private final ServerContext context;
 
     /**
-     * Create a new Message Service for the server
+     * Create a new Message Service for the server with the default settings, it drives its connections with event loops
      * @param messagePort Port of the service to listen on
      * @param fileServer Port of the file service
      */
     public MessageService(int messagePort, FileService fileServer) throws IOException {
-        messageSocketIntro = new ServerSocket(messagePort);
+        this(new ServerSettings().messagePort(messagePort), fileServer);
+    }
+
+    /**
+     * Create a new Message Service for the server
+     * @param settings Settings of the server, such as its port, its execution mode and its data directories
+     * @param fileServer Port of the file service
+     */
+    public MessageService(ServerSettings settings, FileService fileServer) throws IOException {
+        writeCoalescing = new WriteCoalescing(settings.getBatchWindow(), settings.getMaxWriteBytes());
+        outboundLimits = new OutboundLimits(settings.getMaxQueuedMessages(), settings.getMaxQueuedBytes(), settings.getSlowConsumerPolicy());
+        inbox = new OfflineInbox(settings.getInboxDirectory(), OfflineInbox.DEFAULT_SEGMENT_SIZE, OfflineInbox.DEFAULT_FLUSH_INTERVAL, OfflineInbox.DEFAULT_RETENTION);
+        history = new GroupHistory(settings.getHistoryDirectory(), GroupHistory.DEFAULT_SEGMENT_SIZE, GroupHistory.DEFAULT_FLUSH_INTERVAL, settings.getHistoryMaxAge(), settings.getHistoryMaxBytes());
+        sessions = new SessionRegistry(settings.getSessionGracePeriod(), SessionRegistry.DEFAULT_REPLAY_CAPACITY);
+        authExecutor = new AuthExecutor(settings.getAuthThreads(), settings.getAuthQueueDepth());
+        credentials = new CredentialStore(settings.getCredentialFile());
+        loginTokens = new LoginTokens(settings.getTokenLifetime(), LoginTokens.DEFAULT_CACHE_SIZE);
+        messageSocketIntro = ServerSocketChannel.open();
+        messageSocketIntro.bind(new InetSocketAddress(settings.getMessagePort()));
         this.transferUsers = fileServer.transferUsers;
         connectedUsers = Collections.synchronizedMap(new HashMap<>());
-        groups = Collections.synchronizedMap(new HashMap<>());
+        groups = new GroupRegistry();
         userPublicKeys = Collections.synchronizedMap(new HashMap<>());
+        timers = new TimingWheel(100, 512, "TimingWheel");
+        groupWatcher = new GroupInactivityWatcher(groups, connectedUsers, timers);
+        cluster = new ClusterNode(settings.getCluster(), connectedUsers, groups, history, inbox, credentials, outboundLimits);
+        cluster.start();
+        context = new ServerContext(connectedUsers, groups, userPublicKeys, transferUsers, cluster, inbox, history, sessions, credentials, loginTokens, groupWatcher, timers, authExecutor, writeCoalescing, outboundLimits);
+        if (settings.getExecutionMode() == ExecutionMode.EVENT_LOOP) {
+            //One event loop per core drives every connection
+            eventLoops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < eventLoops.length; i++) eventLoops[i] = new EventLoop(writeCoalescing.getBatchWindow());
+            connectionExecutor = null;
+        } else {
+            eventLoops = new EventLoop[0];
+            connectionExecutor = settings.getExecutionMode().createConnectionExecutor("ConnectionThread");
+        }
 
-        System.out.println("<<< Server \"Latte\" now listens for messages on port " + messagePort + " >>>");
+        System.out.println("<<< Server \"Latte\" now listens for messages on port " + settings.getMessagePort() + " >>>");
     }
 
     /**
-     * Create a new thread with a new message manager for each new incoming connection
+     * Start the event loops, then hand over each new incoming connection to one of them.
+     * Without event loops, each connection is run by its own worker. Returns once the service is closed
      */
     public void run() {
-        watchGroupInactivity();
-        int threadID = 0;
+        for (int i = 0; i < eventLoops.length; i++) new Thread(eventLoops[i], "EventLoop-" + i).start();
+        int connectionID = 0;
         while (true) {
-            Socket socket = null;
+            SocketChannel channel = null;
             try {
-                //For each new connection create a new socket
-                socket = messageSocketIntro.accept();
+                //For each new connection create a new channel, non-blocking if an event loop drives it
+                channel = messageSocketIntro.accept();
+                channel.configureBlocking(connectionExecutor != null);
+            } catch (ClosedChannelException e) {
+                return;
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            if(socket != null) {
-                Thread socketThread = new Thread(new MessageManager(new NetSocket(socket), connectedUsers, groups, transferUsers, userPublicKeys), "ConnectionThread-" + threadID);
-                socketThread.start();
-                threadID++;
+            if(channel != null && connectionExecutor != null) {
+                NetSocket socket = new NetSocket(channel.socket());
+                socket.setMaxWriteBytes(writeCoalescing.getMaxWriteBytes());
+                socket.setMaxFrameSize(NPP2Codec.MAX_GUEST_FRAME_SIZE); //Raised once the client logged in
+                MessageManager manager = new MessageManager(socket, context);
+                connectionExecutor.execute(new ConnectionWorker(socket, manager, connectionExecutor, writeCoalescing.getBatchWindow()));
+            } else if(channel != null) {
+                ChannelSocket socket = new ChannelSocket(channel, writeCoalescing.getMaxWriteBytes());
+                socket.setMaxFrameSize(NPP2Codec.MAX_GUEST_FRAME_SIZE); //Raised once the client logged in
+                MessageManager manager = new MessageManager(socket, context);
+                eventLoops[connectionID % eventLoops.length].register(manager);
+                connectionID++;
             }
         }
     }
 
     /**
-     * Kick a user from a group if user is idle for more than 2 minutes
+     * Stop accepting connections and stop watching the credential file
+     * @throws IOException If the socket of the service could not be closed
      */
-    private void watchGroupInactivity(){
-        Timer timer = new Timer();
+    @Override
+    public void close() throws IOException {
+        try {
+            messageSocketIntro.close();
+        } finally {
+            credentials.close();
+        }
+    }
 
-        TimerTask task = new TimerTask() {
-            @Override
-            public void run() {
-                Map<String, Map<String, Long>> tempGroups = new HashMap<>(groups);
-                tempGroups.forEach((groupname,userActivityMap) -> {
-                    Map<String, Long> tempUserAct = new HashMap<>(userActivityMap);
-                    tempUserAct.forEach((username, lastActivity) -> {
-                        if(System.currentTimeMillis() - lastActivity > 120000 ){ //2 minutes inactivity
-                            groups.get(groupname).remove(username);
-                            try {
-                                //Inform user about being kicked
-                                connectedUsers.get(username).addExchangeMessage(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_SERVER_INFO,"You have been kicked from group '" + groupname + "' due to inactivity!").sender("SERVER"));
-                            } catch (NextPressoException e) {
-                                System.err.println("> Could not notify user about being kicked from a group!");
-                            }finally {
-                                System.out.println("> Removed '" + username + "' from group '" + groupname + "' due to inactivity!");
-                            }
-                        }
-                    });
-                });
-            }
-        };
-        //First run after 2 minute, then repeat every second
-        timer.schedule(task, 120000,1000);
+    /**
+     * Get the settings and counters of the writes of queued messages, such as the messages written per flush
+     * @return Write coalescing of the service
+     */
+    public WriteCoalescing getWriteCoalescing() {
+        return writeCoalescing;
+    }
+
+    /**
+     * Get the pool that checks the passwords of logins and its counters, such as the average wait of a login
+     * @return Auth executor of the service
+     */
+    public AuthExecutor getAuthExecutor() {
+        return authExecutor;
+    }
+
+    /**
+     * Get the signed login tokens and their counters, such as the tokens that were accepted
+     * @return Login tokens of the service
+     */
+    public LoginTokens getLoginTokens() {
+        return loginTokens;
+    }
+
+    /**
+     * Get the budget of the queued messages and its counters, such as the queue depth of the server
+     * @return Outbound limits of the service
+     */
+    public OutboundLimits getOutboundLimits() {
+        return outboundLimits;
     }
 }
@@ -0,0 +1,255 @@
+package nextpresso.server.core;
+
+import nextpresso.model.NPP2Codec;
+import nextpresso.model.NextPressoException;
+import nextpresso.model.OutboundFrame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Durable inbox of the direct messages for registered users that are offline.
+ * The messages of every user are appended to a single log that is split in memory-mapped segment files,
+ * each named by the log offset of its first byte (see {@link MappedSegment}). An index in memory holds the offsets of the waiting messages of each user,
+ * it is rebuilt from the log at start. Appends only write to memory, a flusher thread forces the written segments to disk in batches.
+ * The oldest segments are deleted once none of their messages wait anymore, or once they are older than the retention
+ */
+public class OfflineInbox {
+    public static final Path DEFAULT_DIRECTORY = Path.of("latte-inbox");
+    public static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 200; //Milliseconds
+    public static final long DEFAULT_RETENTION = TimeUnit.DAYS.toMillis(7);
+
+    //The body of a record is [type][time][username length][username][NPP/2 frame]
+    private static final byte MESSAGE = 1;
+    private static final byte DRAINED = 2; //Every earlier message of the user was delivered, the record has no frame
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long retention;
+    private final TreeMap<Long, Segment> segments; //Base offset, segment
+    private final Map<String, List<Long>> index; //Username, log offsets of the waiting messages
+    private final List<Segment> unflushedSegments; //Written since the last flush
+    private Segment activeSegment;
+
+    /**
+     * Segment of the log with the number of its messages that still wait
+     */
+    private static final class Segment {
+        private final MappedSegment file;
+        private int waitingMessages;
+
+        private Segment(MappedSegment file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Open the inbox in the default directory with the default settings
+     * @throws IOException If the directory or its segments cannot be opened
+     */
+    public OfflineInbox() throws IOException {
+        this(DEFAULT_DIRECTORY, DEFAULT_SEGMENT_SIZE, DEFAULT_FLUSH_INTERVAL, DEFAULT_RETENTION);
+    }
+
+    /**
+     * Open the inbox, read back the waiting messages of the log and start its flusher thread
+     * @param directory Directory of the segment files, created if it does not exist
+     * @param segmentSize Bytes of a segment file, the largest message that can be stored is a bit smaller
+     * @param flushInterval Milliseconds between two flushes of the written segments to disk
+     * @param retention Milliseconds after the last message of a segment till the segment is deleted, even with waiting messages
+     * @throws IOException If the directory or its segments cannot be opened
+     */
+    public OfflineInbox(Path directory, int segmentSize, long flushInterval, long retention) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retention = retention;
+        this.segments = new TreeMap<>();
+        this.index = new HashMap<>();
+        this.unflushedSegments = new ArrayList<>();
+
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                long baseOffset = MappedSegment.parseBaseOffset(path);
+                if (baseOffset >= 0) segments.put(baseOffset, new Segment(MappedSegment.open(directory, baseOffset, segmentSize)));
+            }
+        }
+        for (Segment segment : segments.values()) recover(segment); //In log order, so drains follow the messages they deliver
+        activeSegment = segments.isEmpty() ? newSegment(0) : segments.lastEntry().getValue();
+        deleteOldSegments();
+        System.out.println("<<< Inbox of offline users holds " + countWaitingMessages() + " messages in " + segments.size() + " segments >>>");
+
+        Thread flusher = new Thread(() -> runFlusher(flushInterval), "InboxFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Append a direct message to the inbox of a user. The message is in memory right away and on disk after the next flush.
+     * A message that only NPP/2 carries, such as a binary body, is not stored, since the user may log in again with NPP/1.1
+     * @param username User that the message is for
+     * @param frame Message to store
+     * @return False if the message is too large, needs NPP/2 or could not be written
+     */
+    public synchronized boolean store(String username, OutboundFrame frame) {
+        if (frame.requiresBinaryProtocol()) return false;
+        long offset = append(MESSAGE, username, frame.toBuffer(true));
+        if (offset < 0) return false;
+        index.computeIfAbsent(username, key -> new ArrayList<>()).add(offset);
+        activeSegment.waitingMessages++;
+        return true;
+    }
+
+    /**
+     * Take every waiting message of a user out of the inbox
+     * @param username User that logged in
+     * @return Waiting messages in the order they were stored
+     */
+    public synchronized List<OutboundFrame> drain(String username) {
+        List<Long> offsets = index.remove(username);
+        if (offsets == null) return List.of();
+        List<OutboundFrame> frames = new ArrayList<>(offsets.size());
+        for (long offset : offsets) {
+            Segment segment = segments.floorEntry(offset).getValue();
+            segment.waitingMessages--;
+            try {
+                frames.add(new OutboundFrame(NPP2Codec.decodePrefixed(readFrame(segment.file.read((int) (offset - segment.file.baseOffset))))));
+            } catch (NextPressoException e) {
+                System.err.println("> Could not read a stored message for '" + username + "': " + e.getMessage());
+            }
+        }
+        append(DRAINED, username, ByteBuffer.allocate(0));
+        deleteOldSegments();
+        return frames;
+    }
+
+    /**
+     * Get the number of messages that wait in the inbox of every user
+     * @return Waiting messages
+     */
+    public synchronized int countWaitingMessages() {
+        int waitingMessages = 0;
+        for (List<Long> offsets : index.values()) waitingMessages += offsets.size();
+        return waitingMessages;
+    }
+
+    /**
+     * Write a record at the end of the log, a new segment is started if it does not fit the active one
+     * @return Log offset of the record. -1 if the record was not written
+     */
+    private long append(byte type, String username, ByteBuffer frame) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = 1 + 8 + 2 + name.length + frame.remaining();
+        if (MappedSegment.RECORD_PREFIX + bodyLength > segmentSize || name.length > Short.MAX_VALUE) return -1;
+        try {
+            if (!activeSegment.file.fits(bodyLength)) {
+                activeSegment = newSegment(activeSegment.file.baseOffset + activeSegment.file.getWritePosition());
+            }
+        } catch (IOException e) {
+            System.err.println("> Could not start a new inbox segment: " + e.getMessage());
+            return -1;
+        }
+        long time = System.currentTimeMillis();
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        body.put(type).putLong(time).putShort((short) name.length).put(name).put(frame).flip();
+        int position = activeSegment.file.append(body, time);
+        if (!unflushedSegments.contains(activeSegment)) unflushedSegments.add(activeSegment);
+        return activeSegment.file.baseOffset + position;
+    }
+
+    private static byte[] readFrame(ByteBuffer body) {
+        body.position(1 + 8);
+        int nameLength = body.getShort();
+        byte[] frame = new byte[body.remaining() - nameLength];
+        body.position(body.position() + nameLength).get(frame);
+        return frame;
+    }
+
+    /**
+     * Read the records of a segment back into the index
+     * @param segment Segment to read
+     */
+    private void recover(Segment segment) {
+        segment.file.recover((position, body) -> {
+            byte type = body.get();
+            segment.file.recoverTime(body.getLong());
+            byte[] name = new byte[body.getShort()];
+            body.get(name);
+            String username = new String(name, StandardCharsets.UTF_8);
+            if (type == MESSAGE) {
+                index.computeIfAbsent(username, key -> new ArrayList<>()).add(segment.file.baseOffset + position);
+                segment.waitingMessages++;
+            } else if (type == DRAINED) {
+                List<Long> delivered = index.remove(username);
+                if (delivered != null) for (long offset : delivered) segments.floorEntry(offset).getValue().waitingMessages--;
+            }
+        });
+    }
+
+    /**
+     * Delete segments from the start of the log. A drain record only covers messages before it,
+     * so deleting in log order never brings delivered messages back at the next start
+     */
+    private void deleteOldSegments() {
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            boolean expired = now - oldest.file.getLastAppendTime() > retention;
+            if (oldest.waitingMessages > 0 && !expired) return;
+            if (oldest.waitingMessages > 0) {
+                long nextOffset = segments.higherKey(oldest.file.baseOffset);
+                int lostMessages = 0;
+                for (Iterator<List<Long>> offsets = index.values().iterator(); offsets.hasNext(); ) {
+                    List<Long> userOffsets = offsets.next();
+                    int before = userOffsets.size();
+                    userOffsets.removeIf(offset -> offset < nextOffset);
+                    lostMessages += before - userOffsets.size();
+                    if (userOffsets.isEmpty()) offsets.remove();
+                }
+                System.out.println("> Deleted " + lostMessages + " undelivered messages of inbox segment " + oldest.file.baseOffset + " after its retention");
+            }
+            segments.remove(oldest.file.baseOffset);
+            unflushedSegments.remove(oldest);
+            oldest.file.delete();
+        }
+    }
+
+    private Segment newSegment(long baseOffset) throws IOException {
+        Segment segment = new Segment(MappedSegment.open(directory, baseOffset, segmentSize));
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    /**
+     * Force the written segments to disk every interval. The disk is synced outside of the lock, so appends go on meanwhile
+     * @param flushInterval Milliseconds between two flushes
+     */
+    private void runFlusher(long flushInterval) {
+        while (true) {
+            try {
+                Thread.sleep(flushInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Segment> flushSegments;
+            synchronized (this) {
+                flushSegments = new ArrayList<>(unflushedSegments);
+                unflushedSegments.clear();
+                deleteOldSegments(); //Retention is checked as time passes, not only on drains
+            }
+            for (Segment segment : flushSegments) segment.file.force();
+        }
+    }
+}
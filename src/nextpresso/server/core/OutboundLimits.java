@@ -0,0 +1,124 @@
+package nextpresso.server.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Budget of the messages that may wait for delivery to a single client, with server wide counters of the queues.
+ * Each connection gets its own {@link OutboundQueue}, the budget and the policy are the same for all of them
+ */
+public class OutboundLimits {
+    public static final int DEFAULT_MAX_MESSAGES = 1024;
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    public static final int CRITICAL_HEADROOM = 2; //Critical messages may fill this many times the budget before the client is disconnected
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final SlowConsumerPolicy policy;
+    private final LongAdder queuedMessages; //Messages waiting in memory on every connection
+    private final LongAdder queuedBytes;
+    private final LongAdder spilledMessages; //Messages waiting on disk on every connection
+    private final LongAdder droppedMessages;
+    private final LongAdder disconnects;
+
+    /**
+     * Create the default budget that drops chat messages of saturated clients
+     */
+    public OutboundLimits() {
+        this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES, SlowConsumerPolicy.DROP_NON_CRITICAL);
+    }
+
+    /**
+     * Create a new budget
+     * @param maxMessages Most messages that may wait for a client in memory
+     * @param maxBytes Most bytes that may wait for a client in memory
+     * @param policy What happens to messages for a client that reached the budget
+     */
+    public OutboundLimits(int maxMessages, long maxBytes, SlowConsumerPolicy policy) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.queuedMessages = new LongAdder();
+        this.queuedBytes = new LongAdder();
+        this.spilledMessages = new LongAdder();
+        this.droppedMessages = new LongAdder();
+        this.disconnects = new LongAdder();
+    }
+
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Get the most messages that may wait for a client in memory, critical messages included
+     * @return Hard cap of the queue
+     */
+    public int getHardMaxMessages() {
+        return (int) Math.min((long) maxMessages * CRITICAL_HEADROOM, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get the most bytes that may wait for a client in memory, critical messages included
+     * @return Hard cap of the queue in bytes
+     */
+    public long getHardMaxBytes() {
+        return maxBytes * CRITICAL_HEADROOM;
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    void recordQueued(int messages, long bytes) {
+        queuedMessages.add(messages);
+        queuedBytes.add(bytes);
+    }
+
+    void recordSpilled(int messages) {
+        spilledMessages.add(messages);
+    }
+
+    void recordDropped() {
+        droppedMessages.increment();
+    }
+
+    void recordDisconnect() {
+        disconnects.increment();
+    }
+
+    /**
+     * Get the number of messages that wait in memory for delivery, summed over every connection
+     * @return Queue depth of the server
+     */
+    public long getQueuedMessages() {
+        return queuedMessages.sum();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.sum();
+    }
+
+    /**
+     * Get the number of messages that wait on disk for delivery, summed over every connection
+     * @return Spilled messages
+     */
+    public long getSpilledMessages() {
+        return spilledMessages.sum();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d queued messages (%d bytes), %d spilled, %d dropped, %d slow clients disconnected", getQueuedMessages(), getQueuedBytes(), getSpilledMessages(), getDroppedMessages(), getDisconnects());
+    }
+}
@@ -0,0 +1,236 @@
+package nextpresso.server.core;
+
+import nextpresso.model.NPP2Codec;
+import nextpresso.model.NextPressoException;
+import nextpresso.model.OutboundFrame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Bounded queue of the messages that other clients requested for a client and that wait for delivery.
+ * Once the queue reaches the budget of its {@link OutboundLimits}, new messages are handled by the {@link SlowConsumerPolicy}.
+ * Critical messages may go over the budget, but never over its hard cap
+ */
+public class OutboundQueue {
+    private final OutboundLimits limits;
+    private final ArrayDeque<OutboundFrame> frames;
+    private long queuedBytes;
+    private FileChannel spillFile; //Null till the first message is spilled
+    private long spillReadPosition, spillWritePosition;
+    private int spilledFrames;
+    private boolean closed;
+    private boolean overflowed; //A critical message did not fit under the hard cap
+
+    /**
+     * Create a new empty queue
+     * @param limits Budget and policy of the queue, also counting the messages of the queue
+     */
+    public OutboundQueue(OutboundLimits limits) {
+        this.limits = limits;
+        this.frames = new ArrayDeque<>();
+    }
+
+    /**
+     * Queue a message within the budget or handle it by the policy
+     * @param frame Message to queue
+     * @return False if the message was not queued because the client is saturated
+     */
+    public synchronized boolean offer(OutboundFrame frame) {
+        if (closed) return false;
+        int size = frame.size();
+        if (spilledFrames > 0) return spill(frame); //Later messages follow the spilled ones, so the order is kept
+        if (fits(size)) {
+            add(frame, size);
+            return true;
+        }
+        switch (limits.getPolicy()) {
+            case DROP_OLDEST -> {
+                while (!frames.isEmpty() && !fits(size)) drop(frames.poll());
+                add(frame, size);
+                return true;
+            }
+            case DROP_NON_CRITICAL -> {
+                if (!isCritical(frame)) {
+                    limits.recordDropped();
+                    return false;
+                }
+                Iterator<OutboundFrame> queued = frames.iterator();
+                while (queued.hasNext() && !fits(size)) {
+                    OutboundFrame queuedFrame = queued.next();
+                    if (isCritical(queuedFrame)) continue;
+                    queued.remove();
+                    drop(queuedFrame);
+                }
+                if (!fitsHardCap(size)) {
+                    //The client does not even read the messages that must not be lost, it is disconnected instead of growing the heap
+                    overflowed = true;
+                    limits.recordDropped();
+                    return false;
+                }
+                add(frame, size); //Critical messages are kept over the budget up to the hard cap
+                return true;
+            }
+            case SPILL_TO_DISK -> {
+                return spill(frame);
+            }
+            default -> { //DISCONNECT
+                limits.recordDropped();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Move every message of the queue to a batch. Spilled messages are read back as far as the budget allows,
+     * they are part of the next batch
+     * @param batch List that the messages are added to in order
+     */
+    public synchronized void drainTo(List<OutboundFrame> batch) {
+        batch.addAll(frames);
+        limits.recordQueued(-frames.size(), -queuedBytes);
+        frames.clear();
+        queuedBytes = 0;
+        if (spilledFrames > 0) readSpilledFrames();
+    }
+
+    /**
+     * Check if a critical message was refused because the queue reached its hard cap
+     * @return True - the client must be disconnected
+     */
+    public synchronized boolean isOverflowed() {
+        return overflowed;
+    }
+
+    public synchronized boolean isEmpty() {
+        return frames.isEmpty() && spilledFrames == 0;
+    }
+
+    /**
+     * Get the number of messages that wait for delivery
+     * @return Messages in memory and on disk
+     */
+    public synchronized int size() {
+        return frames.size() + spilledFrames;
+    }
+
+    /**
+     * Drop every waiting message and delete the spill file. Later messages are not queued
+     */
+    public synchronized void close() {
+        closed = true;
+        limits.recordQueued(-frames.size(), -queuedBytes);
+        limits.recordSpilled(-spilledFrames);
+        frames.clear();
+        queuedBytes = 0;
+        spilledFrames = 0;
+        closeSpillFile();
+    }
+
+    private boolean fits(int size) {
+        //A single message larger than the whole budget is still accepted by an empty queue
+        return frames.isEmpty() || (frames.size() < limits.getMaxMessages() && queuedBytes + size <= limits.getMaxBytes());
+    }
+
+    private boolean fitsHardCap(int size) {
+        return frames.isEmpty() || (frames.size() < limits.getHardMaxMessages() && queuedBytes + size <= limits.getHardMaxBytes());
+    }
+
+    private void add(OutboundFrame frame, int size) {
+        frames.add(frame);
+        queuedBytes += size;
+        limits.recordQueued(1, size);
+    }
+
+    private void drop(OutboundFrame frame) {
+        int size = frame.size();
+        queuedBytes -= size;
+        limits.recordQueued(-1, -size);
+        limits.recordDropped();
+    }
+
+    /**
+     * Messages that are displayed to the user, such as chat messages, may be lost. Every other message is critical
+     * @param frame Message to check
+     * @return True if the message must not be dropped
+     */
+    static boolean isCritical(OutboundFrame frame) {
+        return ((frame.getHeaderCode().code >> 4) & 0xF) != 0x3;
+    }
+
+    /**
+     * Append a message to the spill file as its NPP/2 frame, which keeps every part of the message
+     * @param frame Message to spill
+     * @return False if the message could not be written and was dropped
+     */
+    private boolean spill(OutboundFrame frame) {
+        try {
+            if (spillFile == null) {
+                spillFile = FileChannel.open(Files.createTempFile("nextpresso-spill", ".npp2"), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            ByteBuffer encoded = frame.toBuffer(true);
+            ByteBuffer record = ByteBuffer.allocate(4 + encoded.remaining());
+            record.putInt(encoded.remaining()).put(encoded).flip();
+            while (record.hasRemaining()) spillWritePosition += spillFile.write(record, spillWritePosition);
+            spilledFrames++;
+            limits.recordSpilled(1);
+            return true;
+        } catch (IOException e) {
+            System.err.println("> Could not spill a message to disk: " + e.getMessage());
+            limits.recordDropped();
+            return false;
+        }
+    }
+
+    private void readSpilledFrames() {
+        try {
+            while (spilledFrames > 0 && frames.size() < limits.getMaxMessages() && queuedBytes < limits.getMaxBytes()) {
+                ByteBuffer length = ByteBuffer.allocate(4);
+                readFully(length, spillReadPosition);
+                ByteBuffer record = ByteBuffer.allocate(length.flip().getInt());
+                readFully(record, spillReadPosition + 4);
+                spillReadPosition += 4 + record.capacity();
+                spilledFrames--;
+                limits.recordSpilled(-1);
+
+                OutboundFrame frame = new OutboundFrame(NPP2Codec.decodePrefixed(record.array()));
+                add(frame, frame.size());
+            }
+            if (spilledFrames == 0) { //Start the file over once everything was read back
+                spillFile.truncate(0);
+                spillReadPosition = 0;
+                spillWritePosition = 0;
+            }
+        } catch (IOException | NextPressoException e) {
+            System.err.println("> Could not read spilled messages back, " + spilledFrames + " messages are lost: " + e.getMessage());
+            limits.recordSpilled(-spilledFrames);
+            spilledFrames = 0;
+            closeSpillFile();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int readLength = spillFile.read(buffer, position + buffer.position());
+            if (readLength == -1) throw new IOException("Spill file ended early");
+        }
+    }
+
+    private void closeSpillFile() {
+        if (spillFile == null) return;
+        try {
+            spillFile.close();
+        } catch (IOException e) {
+            System.err.println("> Could not delete a spill file: " + e.getMessage());
+        }
+        spillFile = null;
+        spillReadPosition = 0;
+        spillWritePosition = 0;
+    }
+}
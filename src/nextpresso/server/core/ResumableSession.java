@@ -0,0 +1,116 @@
+package nextpresso.server.core;
+
+import nextpresso.model.HeaderKey;
+import nextpresso.model.OutboundFrame;
+import nextpresso.server.tools.TimingWheel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Session of a user that outlives its connection for a grace period.
+ * Every message delivered in the session gets a delivery number, the last messages are kept in a ring so they can be replayed
+ * to a new connection after the last number that the client saw. While no connection owns the session, messages only go to the ring
+ */
+final class ResumableSession {
+    final String token;
+    final String username;
+    final boolean authenticated;
+    private final OutboundFrame[] ring; //Last numbered messages, the message with delivery number n is at n % length
+    private long nextDelivery = 1;
+    private volatile MessageManager owner;
+    private boolean detached;
+    private boolean expired;
+    private TimingWheel.Timeout expiry;
+
+    ResumableSession(String token, String username, boolean authenticated, int replayCapacity) {
+        this.token = token;
+        this.username = username;
+        this.authenticated = authenticated;
+        this.ring = new OutboundFrame[replayCapacity];
+    }
+
+    /**
+     * Number a message of the session and keep it for a replay
+     * @param frame Message for the user
+     * @return Message with its delivery number
+     */
+    synchronized OutboundFrame record(OutboundFrame frame) {
+        long delivery = nextDelivery++;
+        OutboundFrame numbered = frame.withRecord(HeaderKey.DELIVERY, String.valueOf(delivery));
+        if (ring.length > 0) ring[(int) (delivery % ring.length)] = numbered;
+        return numbered;
+    }
+
+    /**
+     * Get the kept messages after a delivery number. Messages that were pushed out of the ring are lost
+     * @param lastDelivery Last delivery number that the client saw, 0 if it saw none
+     * @return Messages in delivery order
+     */
+    synchronized List<OutboundFrame> replayAfter(long lastDelivery) {
+        long from = Math.max(Math.max(lastDelivery + 1, nextDelivery - ring.length), 1);
+        List<OutboundFrame> frames = new ArrayList<>((int) Math.max(nextDelivery - from, 0));
+        for (long delivery = from; delivery < nextDelivery; delivery++) frames.add(ring[(int) (delivery % ring.length)]);
+        return frames;
+    }
+
+    /**
+     * Let the session wait for a reconnect after the connection of its owner was lost
+     * @param manager Manager of the lost connection
+     * @return False if the manager does not own the session or the session already waits
+     */
+    synchronized boolean detach(MessageManager manager) {
+        if (owner != manager || detached || expired) return false;
+        detached = true;
+        return true;
+    }
+
+    /**
+     * Set the timer that ends the session after the grace period, it is cancelled once the session is resumed
+     * @param expiry Timer of the grace period
+     */
+    synchronized void setExpiry(TimingWheel.Timeout expiry) {
+        if (!detached) {
+            expiry.cancel(); //Resumed before the timer was set
+            return;
+        }
+        this.expiry = expiry;
+    }
+
+    /**
+     * Hand the session over to a connection
+     * @param manager Manager of the new connection
+     * @return False if the session already expired
+     */
+    synchronized boolean attach(MessageManager manager) {
+        if (expired) return false;
+        if (expiry != null) expiry.cancel();
+        expiry = null;
+        detached = false;
+        owner = manager;
+        return true;
+    }
+
+    /**
+     * End the session after its grace period
+     * @param manager Manager of the connection that was lost
+     * @return True - the session expired. False if it was resumed meanwhile
+     */
+    synchronized boolean expire(MessageManager manager) {
+        if (owner != manager || !detached) return false;
+        expired = true;
+        return true;
+    }
+
+    /**
+     * Check if messages of the session only go to the ring, since no connection owns it
+     * @return True - the session waits for a reconnect
+     */
+    synchronized boolean isDetached() {
+        return detached;
+    }
+
+    MessageManager getOwner() {
+        return owner;
+    }
+}
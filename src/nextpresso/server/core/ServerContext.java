@@ -0,0 +1,30 @@
+package nextpresso.server.core;
+
+import nextpresso.server.data.CredentialStore;
+import nextpresso.server.tools.TimingWheel;
+
+import java.util.Map;
+
+/**
+ * Server wide state that the message service shares with the managers and handlers of its connections
+ * @param connectedUsers List of users and their managers
+ * @param groups Registry of the groups and their members
+ * @param userPublicKeys List of stored user public keys
+ * @param transferUsers List of the users' file sockets
+ * @param cluster Node that routes messages to the users on the other nodes of the cluster
+ * @param inbox Stored direct messages for registered users that are offline
+ * @param history Stored chat messages of the groups
+ * @param sessions Sessions that can be resumed after a reconnect
+ * @param credentials Registered users and the hashes of their passwords
+ * @param loginTokens Signed tokens that log users in again without their password
+ * @param groupWatcher Watcher that kicks inactive users from groups
+ * @param timers Timing wheel that runs the heartbeats
+ * @param authExecutor Pool that checks the passwords of logins
+ * @param writeCoalescing Counters of the writes of queued messages
+ * @param outboundLimits Budget of the messages that may wait for delivery to each client
+ */
+record ServerContext(Map<String, MessageManager> connectedUsers, GroupRegistry groups, Map<String, String> userPublicKeys,
+                     Map<String, FileManager> transferUsers, ClusterNode cluster, OfflineInbox inbox, GroupHistory history,
+                     SessionRegistry sessions, CredentialStore credentials, LoginTokens loginTokens, GroupInactivityWatcher groupWatcher,
+                     TimingWheel timers, AuthExecutor authExecutor, WriteCoalescing writeCoalescing, OutboundLimits outboundLimits) {
+}
@@ -0,0 +1,335 @@
+package nextpresso.server.core;
+
+import nextpresso.model.NetSocket;
+import nextpresso.server.data.CredentialStore;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of a Latte server. Every setting has a default, so only the settings that differ need to be set.
+ * Launchers read them from named "--key=value" arguments, see {@link #parse(String[])}
+ */
+public class ServerSettings {
+    public static final int DEFAULT_MESSAGE_PORT = 1337;
+    public static final int DEFAULT_FILE_PORT = 7331;
+
+    private int messagePort = DEFAULT_MESSAGE_PORT;
+    private int filePort = DEFAULT_FILE_PORT;
+    private ExecutionMode executionMode = ExecutionMode.EVENT_LOOP;
+    private int relayBufferSize = FileService.DEFAULT_RELAY_BUFFER_SIZE;
+    private long batchWindow = WriteCoalescing.DEFAULT_BATCH_WINDOW;
+    private int maxWriteBytes = NetSocket.DEFAULT_MAX_WRITE_BYTES;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_NON_CRITICAL;
+    private int maxQueuedMessages = OutboundLimits.DEFAULT_MAX_MESSAGES;
+    private long maxQueuedBytes = OutboundLimits.DEFAULT_MAX_BYTES;
+    private Path inboxDirectory; //Null for the default directory of the node
+    private Path historyDirectory; //Null for the default directory of the node
+    private long historyMaxAge = GroupHistory.DEFAULT_MAX_AGE;
+    private long historyMaxBytes = GroupHistory.DEFAULT_MAX_BYTES;
+    private long sessionGracePeriod = SessionRegistry.DEFAULT_GRACE_PERIOD;
+    private int authThreads = AuthExecutor.DEFAULT_THREADS;
+    private int authQueueDepth = AuthExecutor.DEFAULT_QUEUE_DEPTH;
+    private Path credentialFile = CredentialStore.DEFAULT_FILE;
+    private long tokenLifetime = LoginTokens.DEFAULT_LIFETIME;
+    private ClusterSettings cluster; //Null for a standalone server
+
+    /**
+     * Parse the named arguments of a launcher. Arguments that are not given keep their default
+     * @param args Arguments in the "--key=value" format, see {@link #usage()} for the keys
+     * @return Settings of the server
+     * @throws IllegalArgumentException If an argument is unknown or its value is not valid
+     */
+    public static ServerSettings parse(String[] args) {
+        ServerSettings settings = new ServerSettings();
+        String node = null;
+        Integer clusterPort = null;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) throw new IllegalArgumentException("Argument '" + arg + "' is not in the --key=value format");
+            String key = arg.substring(2, separator);
+            String value = arg.substring(separator + 1);
+            switch (key) {
+                case "port" -> settings.messagePort(Integer.parseInt(value));
+                case "file-port" -> settings.filePort(Integer.parseInt(value));
+                case "mode" -> settings.executionMode(ExecutionMode.parseString(value));
+                case "relay-buffer-kb" -> settings.relayBufferSize(Integer.parseInt(value) * 1024);
+                case "batch-window-ms" -> settings.batchWindow(Long.parseLong(value));
+                case "max-write-kb" -> settings.maxWriteBytes(Integer.parseInt(value) * 1024);
+                case "slow-consumer" -> settings.slowConsumerPolicy(SlowConsumerPolicy.parseString(value));
+                case "queue-messages" -> settings.maxQueuedMessages(Integer.parseInt(value));
+                case "queue-kb" -> settings.maxQueuedBytes(Long.parseLong(value) * 1024);
+                case "inbox" -> settings.inboxDirectory(Path.of(value));
+                case "history" -> settings.historyDirectory(Path.of(value));
+                case "history-days" -> settings.historyMaxAge(TimeUnit.DAYS.toMillis(Long.parseLong(value)));
+                case "history-mb" -> settings.historyMaxBytes(Long.parseLong(value) * 1024 * 1024);
+                case "session-grace-s" -> settings.sessionGracePeriod(TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+                case "auth-threads" -> settings.authThreads(Integer.parseInt(value));
+                case "auth-queue" -> settings.authQueueDepth(Integer.parseInt(value));
+                case "credentials" -> settings.credentialFile(Path.of(value));
+                case "token-minutes" -> settings.tokenLifetime(TimeUnit.MINUTES.toMillis(Long.parseLong(value)));
+                case "node" -> node = value;
+                case "cluster-port" -> clusterPort = Integer.parseInt(value);
+                case "peers" -> {
+                    for (String peer : value.split(",")) if (!peer.isBlank()) peers.add(ClusterSettings.parsePeer(peer.trim()));
+                }
+                default -> throw new IllegalArgumentException("Unknown argument '--" + key + "'");
+            }
+        }
+        if (node != null || clusterPort != null || !peers.isEmpty()) {
+            if (node == null || clusterPort == null) throw new IllegalArgumentException("A cluster node needs both --node and --cluster-port");
+            //The secret is never an argument, so it does not show up in the process list
+            String secret = System.getenv(ClusterSettings.SECRET_VARIABLE);
+            if (secret == null || secret.isEmpty()) throw new IllegalArgumentException("Set the shared secret of the cluster in the " + ClusterSettings.SECRET_VARIABLE + " environment variable");
+            settings.cluster(new ClusterSettings(node, clusterPort, peers, secret));
+        }
+        return settings;
+    }
+
+    /**
+     * Get the description of the launcher arguments
+     * @return Usage text with a line per argument
+     */
+    public static String usage() {
+        return """
+                  --port=<port>              Port of the message service (default 1337)
+                  --file-port=<port>         Port of the file service (default 7331)
+                  --mode=<mode>              "eventloop" (default), "platform" or "virtual"
+                  --relay-buffer-kb=<kb>     Size of the file relay buffers (default 256)
+                  --batch-window-ms=<ms>     Batch window of queued messages (default 0)
+                  --max-write-kb=<kb>        Largest coalesced write (default 64)
+                  --slow-consumer=<policy>   "noncritical" (default), "oldest", "disconnect" or "spill"
+                  --queue-messages=<count>   Messages that may wait for a client (default 1024)
+                  --queue-kb=<kb>            Kilobytes that may wait for a client (default 4096)
+                  --inbox=<directory>        Stored messages for offline users (default "latte-inbox")
+                  --history=<directory>      Group histories (default "latte-history")
+                  --history-days=<days>      Days that the history of a group is kept (default 30)
+                  --history-mb=<mb>          Size of the history of a group (default 64)
+                  --session-grace-s=<s>      Grace period of a lost session (default 60)
+                  --auth-threads=<count>     Threads that check passwords (default half the cores, at least 2)
+                  --auth-queue=<count>       Logins that may wait for a password check (default 256)
+                  --credentials=<file>       Credential file, reloaded when it changes (default "latte-credentials")
+                  --token-minutes=<minutes>  Lifetime of a login token (default 60)
+                  --node=<name>              Name of this node in a cluster
+                  --cluster-port=<port>      Port of the cluster links
+                  --peers=<host:port,...>    Cluster ports of the other nodes
+                The shared secret of a cluster is read from the\s""" + ClusterSettings.SECRET_VARIABLE + " environment variable";
+    }
+
+    public ServerSettings messagePort(int messagePort) {
+        this.messagePort = messagePort;
+        return this;
+    }
+
+    public ServerSettings filePort(int filePort) {
+        this.filePort = filePort;
+        return this;
+    }
+
+    public ServerSettings executionMode(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        return this;
+    }
+
+    /**
+     * Set the size of the buffers that relay file transfers
+     * @param relayBufferSize Bytes per buffer
+     * @return These settings
+     */
+    public ServerSettings relayBufferSize(int relayBufferSize) {
+        this.relayBufferSize = relayBufferSize;
+        return this;
+    }
+
+    /**
+     * Set how long the queued messages of a connection are collected before they are written
+     * @param batchWindow Milliseconds after the first queued message
+     * @return These settings
+     */
+    public ServerSettings batchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+        return this;
+    }
+
+    public ServerSettings maxWriteBytes(int maxWriteBytes) {
+        this.maxWriteBytes = maxWriteBytes;
+        return this;
+    }
+
+    public ServerSettings slowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        return this;
+    }
+
+    public ServerSettings maxQueuedMessages(int maxQueuedMessages) {
+        this.maxQueuedMessages = maxQueuedMessages;
+        return this;
+    }
+
+    public ServerSettings maxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+        return this;
+    }
+
+    public ServerSettings inboxDirectory(Path inboxDirectory) {
+        this.inboxDirectory = inboxDirectory;
+        return this;
+    }
+
+    public ServerSettings historyDirectory(Path historyDirectory) {
+        this.historyDirectory = historyDirectory;
+        return this;
+    }
+
+    /**
+     * Set how long the messages of a group are kept
+     * @param historyMaxAge Milliseconds after the last message of a segment till the segment is deleted
+     * @return These settings
+     */
+    public ServerSettings historyMaxAge(long historyMaxAge) {
+        this.historyMaxAge = historyMaxAge;
+        return this;
+    }
+
+    public ServerSettings historyMaxBytes(long historyMaxBytes) {
+        this.historyMaxBytes = historyMaxBytes;
+        return this;
+    }
+
+    /**
+     * Set how long a session is kept after its connection was lost
+     * @param sessionGracePeriod Milliseconds till the session expires
+     * @return These settings
+     */
+    public ServerSettings sessionGracePeriod(long sessionGracePeriod) {
+        this.sessionGracePeriod = sessionGracePeriod;
+        return this;
+    }
+
+    public ServerSettings authThreads(int authThreads) {
+        this.authThreads = authThreads;
+        return this;
+    }
+
+    public ServerSettings authQueueDepth(int authQueueDepth) {
+        this.authQueueDepth = authQueueDepth;
+        return this;
+    }
+
+    public ServerSettings credentialFile(Path credentialFile) {
+        this.credentialFile = credentialFile;
+        return this;
+    }
+
+    /**
+     * Set how long a login token is accepted
+     * @param tokenLifetime Milliseconds after the token was issued
+     * @return These settings
+     */
+    public ServerSettings tokenLifetime(long tokenLifetime) {
+        this.tokenLifetime = tokenLifetime;
+        return this;
+    }
+
+    /**
+     * Make the server a node of a cluster
+     * @param cluster Name, port, peers and secret of the node. Null for a standalone server
+     * @return These settings
+     */
+    public ServerSettings cluster(ClusterSettings cluster) {
+        this.cluster = cluster;
+        return this;
+    }
+
+    public int getMessagePort() {
+        return messagePort;
+    }
+
+    public int getFilePort() {
+        return filePort;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    public int getRelayBufferSize() {
+        return relayBufferSize;
+    }
+
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    public int getMaxWriteBytes() {
+        return maxWriteBytes;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public int getMaxQueuedMessages() {
+        return maxQueuedMessages;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Get the directory of the stored messages for offline users. Each node of a cluster keeps its own by default
+     * @return Set directory, or the default directory with the name of the node
+     */
+    public Path getInboxDirectory() {
+        return inboxDirectory != null ? inboxDirectory : nodeDirectory(OfflineInbox.DEFAULT_DIRECTORY);
+    }
+
+    /**
+     * Get the directory of the group histories. Each node of a cluster keeps its own copy by default
+     * @return Set directory, or the default directory with the name of the node
+     */
+    public Path getHistoryDirectory() {
+        return historyDirectory != null ? historyDirectory : nodeDirectory(GroupHistory.DEFAULT_DIRECTORY);
+    }
+
+    public long getHistoryMaxAge() {
+        return historyMaxAge;
+    }
+
+    public long getHistoryMaxBytes() {
+        return historyMaxBytes;
+    }
+
+    public long getSessionGracePeriod() {
+        return sessionGracePeriod;
+    }
+
+    public int getAuthThreads() {
+        return authThreads;
+    }
+
+    public int getAuthQueueDepth() {
+        return authQueueDepth;
+    }
+
+    public Path getCredentialFile() {
+        return credentialFile;
+    }
+
+    public long getTokenLifetime() {
+        return tokenLifetime;
+    }
+
+    public ClusterSettings getCluster() {
+        return cluster;
+    }
+
+    private Path nodeDirectory(Path directory) {
+        return cluster == null ? directory : Path.of(directory + "-" + cluster.getNodeName());
+    }
+}
@@ -0,0 +1,85 @@
+package nextpresso.server.core;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of the resumable sessions of the server.
+ * A client that logs in with a session gets a token, after a reconnect it can take over its session with that token
+ * and get the messages it missed replayed, as long as it comes back within the grace period
+ */
+public class SessionRegistry {
+    public static final long DEFAULT_GRACE_PERIOD = TimeUnit.SECONDS.toMillis(60);
+    public static final int DEFAULT_REPLAY_CAPACITY = 256; //Messages per session
+    private static final int TOKEN_BYTES = 16;
+
+    private final long gracePeriod;
+    private final int replayCapacity;
+    private final Map<String, ResumableSession> sessions; //Token, session
+    private final SecureRandom random;
+
+    /**
+     * Create a new registry with the default grace period and replay capacity
+     */
+    public SessionRegistry() {
+        this(DEFAULT_GRACE_PERIOD, DEFAULT_REPLAY_CAPACITY);
+    }
+
+    /**
+     * Create a new registry
+     * @param gracePeriod Milliseconds that a session is kept after its connection was lost
+     * @param replayCapacity Last messages of a session that are kept for a replay
+     */
+    public SessionRegistry(long gracePeriod, int replayCapacity) {
+        this.gracePeriod = gracePeriod;
+        this.replayCapacity = replayCapacity;
+        this.sessions = new ConcurrentHashMap<>();
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * Start a new session for a user that logged in
+     * @param username User of the session
+     * @param authenticated True - the user logged in with its password
+     * @return New session with an unguessable token
+     */
+    ResumableSession create(String username, boolean authenticated) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        ResumableSession session = new ResumableSession(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), username, authenticated, replayCapacity);
+        sessions.put(session.token, session);
+        return session;
+    }
+
+    /**
+     * Get a session by its token
+     * @param token Token that the client got at login
+     * @return The session. Null if there is no session with the token
+     */
+    ResumableSession get(String token) {
+        return sessions.get(token);
+    }
+
+    /**
+     * Remove a session that ended or expired
+     * @param session Session to remove
+     */
+    void remove(ResumableSession session) {
+        sessions.remove(session.token, session);
+    }
+
+    /**
+     * Get the number of sessions, including the ones that wait for a reconnect
+     * @return Sessions of the server
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    public long getGracePeriod() {
+        return gracePeriod;
+    }
+}
@@ -0,0 +1,38 @@
+package nextpresso.server.core;
+
+/**
+ * What happens to a message for a client whose queue of undelivered messages is full
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * The oldest queued messages are dropped to make room for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * Chat and server info messages are not queued. Other messages, such as file transfer and encryption requests,
+     * replace queued chat messages and are queued over the budget if needed, up to its hard cap. A client that reaches the hard cap is disconnected
+     */
+    DROP_NON_CRITICAL,
+    /**
+     * The message is not queued and the slow client is disconnected
+     */
+    DISCONNECT,
+    /**
+     * Messages over the budget are written to a file and queued again once the client caught up
+     */
+    SPILL_TO_DISK;
+
+    /**
+     * Parses a launcher argument to a slow consumer policy
+     * @param policy One of "oldest", "noncritical", "disconnect" or "spill"
+     * @return The found policy. If not found, returns DROP_NON_CRITICAL
+     */
+    public static SlowConsumerPolicy parseString(String policy) {
+        return switch (policy.toLowerCase()) {
+            case "oldest" -> DROP_OLDEST;
+            case "disconnect" -> DISCONNECT;
+            case "spill" -> SPILL_TO_DISK;
+            default -> DROP_NON_CRITICAL;
+        };
+    }
+}
@@ -0,0 +1,67 @@
+package nextpresso.server.core;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reverse index of the groups, holding the names of the groups that each user is a member of.
+ * It is updated together with the member lists of the groups, so a disconnecting user only touches its own groups
+ */
+class UserGroupIndex {
+    private final Map<String, Set<String>> userGroups; //Username, names of the groups of the user
+
+    /**
+     * Create a new empty index
+     */
+    UserGroupIndex() {
+        userGroups = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Register that a user became a member of a group. Must be called after the user was put in the group
+     * @param username User that joined the group
+     * @param groupname Group that the user joined
+     */
+    void add(String username, String groupname) {
+        userGroups.compute(username, (user, groupnames) -> {
+            if (groupnames == null) groupnames = ConcurrentHashMap.newKeySet();
+            groupnames.add(groupname);
+            return groupnames;
+        });
+    }
+
+    /**
+     * Register that a user is no longer a member of a group. Must be called after the user was removed from the group.
+     * If the user joined the group again in the meantime, the group is kept
+     * @param username User that left the group
+     * @param group Group that the user left
+     */
+    void remove(String username, ChatGroup group) {
+        userGroups.computeIfPresent(username, (user, groupnames) -> {
+            if (!group.contains(user)) groupnames.remove(group.getName());
+            return groupnames.isEmpty() ? null : groupnames;
+        });
+    }
+
+    /**
+     * Get the groups of a user
+     * @param username User to look up
+     * @return Names of the groups the user is a member of
+     */
+    Set<String> groupsOf(String username) {
+        Set<String> groupnames = userGroups.get(username);
+        return groupnames == null ? Collections.emptySet() : groupnames;
+    }
+
+    /**
+     * Remove a user from the index
+     * @param username User to remove
+     * @return Names of the groups the user was a member of
+     */
+    Set<String> removeUser(String username) {
+        Set<String> groupnames = userGroups.remove(username);
+        return groupnames == null ? Collections.emptySet() : groupnames;
+    }
+}
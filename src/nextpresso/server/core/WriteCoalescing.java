@@ -0,0 +1,84 @@
+package nextpresso.server.core;
+
+import nextpresso.model.NetSocket;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Settings and counters of how the messages that clients queue for each other are written.
+ * The queued messages of a connection are collected for a short window, then written with as few writes as possible
+ */
+public class WriteCoalescing {
+    public static final long DEFAULT_BATCH_WINDOW = 0; //Milliseconds, messages are written as soon as the driver wakes up
+
+    private final long batchWindow;
+    private final int maxWriteBytes;
+    private final LongAdder flushes;
+    private final LongAdder frames;
+    private final LongAdder bytes;
+
+    /**
+     * Create the default settings, without a batch window
+     */
+    public WriteCoalescing() {
+        this(DEFAULT_BATCH_WINDOW, NetSocket.DEFAULT_MAX_WRITE_BYTES);
+    }
+
+    /**
+     * Create new settings
+     * @param batchWindow Milliseconds to wait after the first queued message, so more messages can be written together
+     * @param maxWriteBytes Most bytes that a single write takes, unless a single message is larger
+     */
+    public WriteCoalescing(long batchWindow, int maxWriteBytes) {
+        this.batchWindow = batchWindow;
+        this.maxWriteBytes = maxWriteBytes;
+        this.flushes = new LongAdder();
+        this.frames = new LongAdder();
+        this.bytes = new LongAdder();
+    }
+
+    public long getBatchWindow() {
+        return batchWindow;
+    }
+
+    public int getMaxWriteBytes() {
+        return maxWriteBytes;
+    }
+
+    /**
+     * Count a flush of queued messages
+     * @param frameCount Number of messages that were flushed together
+     * @param byteCount Number of bytes that were flushed
+     */
+    void recordFlush(int frameCount, int byteCount) {
+        flushes.increment();
+        frames.add(frameCount);
+        bytes.add(byteCount);
+    }
+
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    public long getFrameCount() {
+        return frames.sum();
+    }
+
+    public long getByteCount() {
+        return bytes.sum();
+    }
+
+    /**
+     * Get how many messages were written together on average
+     * @return Messages per flush. 0 if nothing was flushed yet
+     */
+    public double getFramesPerFlush() {
+        long flushCount = flushes.sum();
+        return flushCount == 0 ? 0 : (double) frames.sum() / flushCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d flushes, %d messages (%.2f per flush), %d bytes", getFlushCount(), getFrameCount(), getFramesPerFlush(), getByteCount());
+    }
+}
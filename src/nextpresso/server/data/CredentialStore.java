@@ -0,0 +1,303 @@
+package nextpresso.server.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+
+/**
+ * User credential database, read from a file with a "username:iterations:salt:hash" line per user (salt and hash in hexadecimal).
+ * Lines that are empty or start with '#' are skipped.
+ * The records are decoded once and held in a compact index: an open addressing table over flat arrays, with the salts and hashes in a single byte array.
+ * A watcher thread reads the file again when it changes and swaps the index at once, a file that cannot be read keeps the current index.
+ * Close the store to stop its watcher
+ */
+public class CredentialStore implements Closeable {
+    public static final Path DEFAULT_FILE = Path.of("latte-credentials");
+    private static final long RELOAD_DELAY = 100; //Milliseconds, so a file that is written in parts is read once
+
+    //Users of the server when there is no credential file: 128 bits, 16 bytes of salt, 100 iterations
+    private static final String DEFAULT_RECORDS = """
+            Bob:100:86f9e2d8ef2edd0afb78a2cc702dcf98:e2be23bdd5e09982c7c72108275a6d78
+            Alice:100:a5a2fb65e1a0f4bedccfe04993f5583f:94397e3eade0511006ca3d31960f29e9
+            Jack:100:aefd9e0b87e779663443885d631f9c8b:b9f0e34b2b4a422c70b5ddeff071590c
+            """; //PW: PWBob1234!, PWAlice1234!, PWJack1234!
+
+    private final Path file;
+    private final WatchService watchService;
+    private volatile Index index;
+
+    /**
+     * Decoded credential of a user
+     */
+    public static final class Credential {
+        public final int iterations;
+        public final byte[] salt;
+        public final byte[] hash;
+
+        private Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Open the store of the default file
+     * @throws IOException If the file exists but cannot be read
+     */
+    public CredentialStore() throws IOException {
+        this(DEFAULT_FILE);
+    }
+
+    /**
+     * Open a store and start watching its file. Without the file, the store holds the default users till the file is created
+     * @param file Credential file
+     * @throws IOException If the file exists but cannot be read
+     */
+    public CredentialStore(Path file) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.index = Files.exists(this.file) ? Index.parse(Files.readAllBytes(this.file)) : Index.parse(DEFAULT_RECORDS.getBytes(StandardCharsets.UTF_8));
+        System.out.println("<<< Credential store holds " + index.size + " users" + (Files.exists(this.file) ? "" : " (no file at " + this.file + ")") + " >>>");
+
+        this.watchService = this.file.getFileSystem().newWatchService();
+        try {
+            this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        Thread watcher = new Thread(this::runWatcher, "CredentialWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Check if a user is registered
+     * @param username User to look up
+     * @return True - the user has a credential
+     */
+    public boolean contains(String username) {
+        return index.find(username) >= 0;
+    }
+
+    /**
+     * Get the credential of a user
+     * @param username User to look up
+     * @return The credential. Null if the user is not registered
+     */
+    public Credential get(String username) {
+        Index current = index; //A reload may swap the index meanwhile
+        int entry = current.find(username);
+        return entry < 0 ? null : current.credential(entry);
+    }
+
+    /**
+     * Get the number of registered users
+     * @return Users in the index
+     */
+    public int size() {
+        return index.size;
+    }
+
+    /**
+     * Read the file again and swap the index
+     * @return False if the file could not be read, the current index is kept then
+     */
+    public boolean reload() {
+        try {
+            Index reloaded = Index.parse(Files.readAllBytes(file));
+            index = reloaded;
+            System.out.println("> Reloaded the credential store with " + reloaded.size + " users");
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("> Could not reload the credential store, the current users are kept: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Stop watching the file. The watcher thread ends and the index is not reloaded anymore
+     * @throws IOException If the watch service could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void runWatcher() {
+        Path filename = file.getFileName();
+        while (true) {
+            try {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (filename.equals(event.context())) changed = true;
+                }
+                key.reset();
+                if (!changed) continue;
+                Thread.sleep(RELOAD_DELAY);
+                //Events of the same write that came in meanwhile are covered by this reload
+                WatchKey pending = watchService.poll();
+                if (pending != null) {
+                    pending.pollEvents();
+                    pending.reset();
+                }
+                reload();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Index of the decoded credentials. It is never changed after it is built
+     */
+    private static final class Index {
+        private static final byte[] HEX = new byte[128];
+
+        static {
+            Arrays.fill(HEX, (byte) -1);
+            for (int i = 0; i < 10; i++) HEX['0' + i] = (byte) i;
+            for (int i = 0; i < 6; i++) {
+                HEX['a' + i] = (byte) (10 + i);
+                HEX['A' + i] = (byte) (10 + i);
+            }
+        }
+
+        private int size;
+        private String[] usernames;
+        private int[] iterations;
+        private int[] materialOffsets; //Position of [salt length][salt][hash length][hash] of the entry in the material
+        private byte[] material;
+        private int materialLength;
+        private int[] table; //Entry + 1 per slot, 0 for an empty slot
+
+        private Index(int capacity, int materialCapacity) {
+            usernames = new String[capacity];
+            iterations = new int[capacity];
+            materialOffsets = new int[capacity];
+            material = new byte[materialCapacity];
+            table = new int[Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) * 2];
+        }
+
+        /**
+         * Parse a credential file in a single pass over its bytes
+         * @param data Contents of the file
+         * @return New index
+         * @throws IllegalArgumentException If a line is not a valid credential
+         */
+        static Index parse(byte[] data) {
+            int lines = 1;
+            for (byte b : data) if (b == '\n') lines++;
+            Index index = new Index(lines, data.length / 2); //Hex digits take twice the bytes of the decoded material
+            int lineNumber = 0;
+            int position = 0;
+            while (position < data.length) {
+                lineNumber++;
+                int end = position;
+                while (end < data.length && data[end] != '\n') end++;
+                int lineEnd = end > position && data[end - 1] == '\r' ? end - 1 : end;
+                if (lineEnd > position && data[position] != '#') index.parseLine(data, position, lineEnd, lineNumber);
+                position = end + 1;
+            }
+            return index;
+        }
+
+        private void parseLine(byte[] data, int start, int end, int lineNumber) {
+            int nameEnd = indexOf(data, start, end, lineNumber);
+            int iterationsEnd = indexOf(data, nameEnd + 1, end, lineNumber);
+            int saltEnd = indexOf(data, iterationsEnd + 1, end, lineNumber);
+            if (nameEnd == start) throw new IllegalArgumentException("Empty username on line " + lineNumber);
+
+            int iterationCount = 0;
+            for (int i = nameEnd + 1; i < iterationsEnd; i++) {
+                int digit = data[i] - '0';
+                if (digit < 0 || digit > 9 || iterationCount > (Integer.MAX_VALUE - digit) / 10) throw new IllegalArgumentException("Invalid iterations on line " + lineNumber);
+                iterationCount = iterationCount * 10 + digit;
+            }
+            if (iterationCount == 0) throw new IllegalArgumentException("Invalid iterations on line " + lineNumber);
+
+            int offset = materialLength;
+            decodeHex(data, iterationsEnd + 1, saltEnd, lineNumber);
+            decodeHex(data, saltEnd + 1, end, lineNumber);
+            put(new String(data, start, nameEnd - start, StandardCharsets.UTF_8), iterationCount, offset);
+        }
+
+        private static int indexOf(byte[] data, int start, int end, int lineNumber) {
+            for (int i = start; i < end; i++) if (data[i] == ':') return i;
+            throw new IllegalArgumentException("Missing field on line " + lineNumber);
+        }
+
+        /**
+         * Decode a hexadecimal field to the end of the material, after its length
+         */
+        private void decodeHex(byte[] data, int start, int end, int lineNumber) {
+            int length = (end - start) / 2;
+            if ((end - start) % 2 != 0 || length == 0 || length > 255) throw new IllegalArgumentException("Invalid hexadecimal field on line " + lineNumber);
+            if (materialLength + 1 + length > material.length) material = Arrays.copyOf(material, Math.max(material.length * 2, materialLength + 1 + length));
+            material[materialLength++] = (byte) length;
+            for (int i = start; i < end; i += 2) {
+                int high = data[i] < 0 ? -1 : HEX[data[i]];
+                int low = data[i + 1] < 0 ? -1 : HEX[data[i + 1]];
+                if (high < 0 || low < 0) throw new IllegalArgumentException("Invalid hexadecimal field on line " + lineNumber);
+                material[materialLength++] = (byte) (high << 4 | low);
+            }
+        }
+
+        /**
+         * Add an entry to the table, a user that is in the file more than once keeps its last line
+         */
+        private void put(String username, int iterationCount, int offset) {
+            int mask = table.length - 1;
+            int slot = spread(username.hashCode()) & mask;
+            while (table[slot] != 0) {
+                int entry = table[slot] - 1;
+                if (usernames[entry].equals(username)) {
+                    iterations[entry] = iterationCount;
+                    materialOffsets[entry] = offset;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            usernames[size] = username;
+            iterations[size] = iterationCount;
+            materialOffsets[size] = offset;
+            table[slot] = ++size;
+        }
+
+        /**
+         * Find the entry of a user
+         * @return Entry. -1 if the user is not in the index
+         */
+        int find(String username) {
+            if (username == null) return -1;
+            int mask = table.length - 1;
+            for (int slot = spread(username.hashCode()) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int entry = table[slot] - 1;
+                if (usernames[entry].equals(username)) return entry;
+            }
+            return -1;
+        }
+
+        Credential credential(int entry) {
+            int offset = materialOffsets[entry];
+            int saltLength = material[offset] & 0xFF;
+            byte[] salt = Arrays.copyOfRange(material, offset + 1, offset + 1 + saltLength);
+            int hashOffset = offset + 1 + saltLength;
+            byte[] hash = Arrays.copyOfRange(material, hashOffset + 1, hashOffset + 1 + (material[hashOffset] & 0xFF));
+            return new Credential(iterations[entry], salt, hash);
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package nextpresso.server;
+
+import nextpresso.server.core.ExecutionMode;
+import nextpresso.server.core.FileService;
+import nextpresso.server.core.MessageService;
+import nextpresso.server.core.ServerSettings;
+import nextpresso.tools.ApiProtocol;
+import nextpresso.tools.NPPFrameDecoder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class loadLauncher {
+    private static final int MAX_LATENCY_SAMPLES = 1 << 20; //Later samples overwrite the oldest ones
+    private static final String RESULT_PREFIX = "<<< Result: ";
+
+    /**
+     * Start a server in each execution mode and measure it with idle and with active connections.
+     * Every measurement runs in a new process, so the threads and the heap of an earlier server are not counted.
+     * The clients all run on the main thread of that process, so the threads that are counted belong to the server.
+     * The heap is measured for the whole process, so it includes the sockets and decoders of the clients as well
+     * @param args Optional settings in the "--key=value" format: "--modes=platform,virtual" (the modes to compare),
+     *             "--connections=1000,10000,50000", "--hold-s=5" (seconds the connections stay idle),
+     *             "--active-s=10" (seconds the connections send direct messages to each other) and "--port=1400" (first port of the servers)
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<ExecutionMode> modes = List.of(ExecutionMode.PLATFORM_THREADS, ExecutionMode.VIRTUAL_THREADS);
+        int[] connectionCounts = {1000, 10000, 50000};
+        long holdSeconds = 5;
+        long activeSeconds = 10;
+        int port = 1400;
+        boolean measure = false; //Set for the process of a single measurement
+        try {
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0) throw new IllegalArgumentException("Argument '" + arg + "' is not in the --key=value format");
+                String value = arg.substring(separator + 1);
+                switch (arg.substring(2, separator)) {
+                    case "modes" -> modes = Arrays.stream(value.split(",")).map(ExecutionMode::parseString).toList();
+                    case "connections" -> connectionCounts = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    case "hold-s" -> holdSeconds = Long.parseLong(value);
+                    case "active-s" -> activeSeconds = Long.parseLong(value);
+                    case "port" -> port = Integer.parseInt(value);
+                    case "measure" -> measure = Boolean.parseBoolean(value);
+                    default -> throw new IllegalArgumentException("Unknown argument '" + arg + "'");
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("> " + e.getMessage());
+            System.err.println("> Usage: loadLauncher [--modes=platform,virtual] [--connections=1000,10000,50000] [--hold-s=5] [--active-s=10] [--port=1400]");
+            return;
+        }
+
+        if (measure) {
+            LoadRun run = new LoadRun(connectionCounts[0]);
+            run.execute(modes.get(0), port, holdSeconds * 1000, activeSeconds * 1000);
+            System.out.println(RESULT_PREFIX + run.report(modes.get(0)));
+            System.exit(0); //The connection pool of the closed server keeps its idle threads for a while
+        }
+
+        System.out.println("<<< Load test of server \"Latte\" >>>");
+        if (modes.contains(ExecutionMode.VIRTUAL_THREADS) && Runtime.version().feature() < 21) {
+            System.out.println("> Virtual threads need Java 21, this runtime measures platform threads for VIRTUAL_THREADS as well");
+        }
+        System.out.println("mode              connections  logged in  setup ms  threads  heap MB  messages/s  mean ms  p50 ms  p99 ms");
+        for (ExecutionMode mode : modes) {
+            for (int connectionCount : connectionCounts) {
+                Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(), "-cp", System.getProperty("java.class.path"),
+                        loadLauncher.class.getName(), "--modes=" + modeArgument(mode), "--connections=" + connectionCount, "--hold-s=" + holdSeconds,
+                        "--active-s=" + activeSeconds, "--port=" + port, "--measure=true")
+                        .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+                //The server logs every message, only the result is shown
+                String result = null;
+                try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                    String line;
+                    while ((line = output.readLine()) != null) if (line.startsWith(RESULT_PREFIX)) result = line.substring(RESULT_PREFIX.length());
+                }
+                process.waitFor();
+                System.out.println(result != null ? result : String.format("%-17s %11d  > The measurement failed!", mode, connectionCount));
+                port += 2;
+            }
+        }
+    }
+
+    private static String modeArgument(ExecutionMode mode) {
+        return switch (mode) {
+            case PLATFORM_THREADS -> "platform";
+            case VIRTUAL_THREADS -> "virtual";
+            default -> "eventloop";
+        };
+    }
+
+    /**
+     * A single measurement of one execution mode with one number of connections
+     */
+    private static class LoadRun {
+        private final int connectionCount;
+        private final List<LoadClient> clients;
+        private final ByteBuffer readBuffer;
+        private final List<String> frames;
+        private final long[] latencies; //Nanoseconds from sending a direct message till its delivery
+        private long latencyCount;
+        private int loggedIn;
+        private int closed;
+        private int errors;
+        private boolean active;
+        private long setupTime;
+        private int serverThreads;
+        private long heapBytes;
+        private long deliveredInWindow;
+        private long activeTime;
+
+        private LoadRun(int connectionCount) {
+            this.connectionCount = connectionCount;
+            this.clients = new ArrayList<>(connectionCount);
+            this.readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+            this.frames = new ArrayList<>();
+            this.latencies = new long[MAX_LATENCY_SAMPLES];
+        }
+
+        private void execute(ExecutionMode mode, int port, long holdTime, long activeTime) throws IOException, InterruptedException {
+            this.activeTime = activeTime;
+            Path directory = Files.createTempDirectory("nextpresso-load");
+            ServerSettings settings = new ServerSettings().messagePort(port).filePort(port + 1).executionMode(mode)
+                    .inboxDirectory(directory.resolve("inbox")).historyDirectory(directory.resolve("history")).credentialFile(directory.resolve("credentials"));
+            MessageService service = new MessageService(settings, new FileService(settings.getFilePort(), mode, settings.getRelayBufferSize()));
+            new Thread(service, "LoadServerThread-" + port).start();
+            Thread.sleep(200); //Let the server settle before the baseline is taken
+            long baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+            long baseHeap = usedHeap();
+
+            try (Selector selector = Selector.open()) {
+                //Connect and log in every client
+                long start = System.nanoTime();
+                for (int i = 0; i < connectionCount; i++) {
+                    LoadClient client;
+                    try {
+                        client = new LoadClient(SocketChannel.open(new InetSocketAddress("localhost", port)), "Load" + i, "Load" + ((i + 1) % connectionCount));
+                    } catch (IOException e) {
+                        System.err.println("> Could only open " + i + " of " + connectionCount + " connections: " + e.getMessage());
+                        break;
+                    }
+                    clients.add(client);
+                    client.channel.configureBlocking(false);
+                    client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+                    client.send(ApiProtocol.REQUEST_LOGIN.code + "/username=" + client.username, "");
+                    if (i % 100 == 0) pump(selector, 0); //Answer the heartbeats of the clients that are already connected
+                }
+                long deadline = System.currentTimeMillis() + 30000;
+                while (loggedIn + closed < clients.size() && System.currentTimeMillis() < deadline) pump(selector, 10);
+                setupTime = (System.nanoTime() - start) / 1000000;
+
+                //Idle connections only answer heartbeats
+                deadline = System.currentTimeMillis() + holdTime;
+                while (System.currentTimeMillis() < deadline) pump(selector, 10);
+                serverThreads = (int) (ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads);
+                heapBytes = usedHeap() - baseHeap;
+
+                //Every client keeps one direct message to the next client under way
+                active = true;
+                for (LoadClient client : clients) if (client.loggedIn) client.sendDirectMessage();
+                deadline = System.currentTimeMillis() + activeTime;
+                while (System.currentTimeMillis() < deadline) pump(selector, 10);
+                active = false;
+                deliveredInWindow = latencyCount;
+                deadline = System.currentTimeMillis() + 1000;
+                while (System.currentTimeMillis() < deadline) pump(selector, 10); //Let the last messages arrive
+            } finally {
+                for (LoadClient client : clients) client.channel.close();
+                service.close();
+            }
+        }
+
+        private void pump(Selector selector, long timeout) throws IOException {
+            if (timeout == 0) selector.selectNow();
+            else selector.select(timeout);
+            for (SelectionKey key : selector.selectedKeys()) {
+                LoadClient client = (LoadClient) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) client.flush();
+                    if (key.isValid() && key.isReadable()) read(client);
+                } catch (IOException e) {
+                    disconnect(client);
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+
+        private void read(LoadClient client) throws IOException {
+            readBuffer.clear();
+            if (client.channel.read(readBuffer) == -1) {
+                disconnect(client);
+                return;
+            }
+            readBuffer.flip();
+            client.decoder.decode(readBuffer, frames);
+            for (String frame : frames) handleFrame(client, frame);
+            frames.clear();
+        }
+
+        private void handleFrame(LoadClient client, String frame) throws IOException {
+            int headerEnd = frame.indexOf(ApiProtocol.PROTOCOL_DATA_HEADER_SEPARATOR.code);
+            if (headerEnd == -1) return;
+            String header = frame.substring(1, headerEnd);
+            int codeEnd = header.indexOf('/');
+            ApiProtocol code = ApiProtocol.parseString(codeEnd == -1 ? header : header.substring(0, codeEnd));
+            switch (code) {
+                case HEARTBEAT_REQUEST -> client.send(String.valueOf(ApiProtocol.HEARTBEAT_RESPONSE.code), "");
+                case ACKNOWLEDGE_LOGIN -> {
+                    client.loggedIn = true;
+                    loggedIn++;
+                }
+                case MESSAGE_CHAT -> {
+                    long sent = Long.parseLong(frame.substring(headerEnd + 1, frame.length() - 1));
+                    latencies[(int) (latencyCount++ % MAX_LATENCY_SAMPLES)] = System.nanoTime() - sent;
+                }
+                case ACKNOWLEDGE_PRIVATE_MESSAGE -> {
+                    if (active) client.sendDirectMessage();
+                }
+                default -> {
+                    if (code.name().startsWith("ERROR")) errors++;
+                }
+            }
+        }
+
+        private void disconnect(LoadClient client) throws IOException {
+            if (!client.channel.isOpen()) return;
+            client.channel.close();
+            closed++;
+        }
+
+        private String report(ExecutionMode mode) {
+            long[] samples = Arrays.copyOf(latencies, (int) Math.min(latencyCount, MAX_LATENCY_SAMPLES));
+            Arrays.sort(samples);
+            double mean = samples.length == 0 ? 0 : Arrays.stream(samples).average().orElse(0) / 1000000;
+            String line = String.format("%-17s %11d %10d %9d %8d %8d %11.0f %8.2f %7.2f %7.2f", mode, connectionCount, loggedIn, setupTime, serverThreads,
+                    heapBytes / (1024 * 1024), deliveredInWindow * 1000.0 / activeTime, mean, percentile(samples, 0.5), percentile(samples, 0.99));
+            if (clients.size() < connectionCount) line += "  (only " + clients.size() + " connections opened)";
+            if (closed > 0 || errors > 0) line += "  (" + closed + " connections closed, " + errors + " errors)";
+            return line;
+        }
+
+        private static double percentile(long[] sortedSamples, double fraction) {
+            if (sortedSamples.length == 0) return 0;
+            return sortedSamples[(int) Math.min(sortedSamples.length - 1, (long) (sortedSamples.length * fraction))] / 1000000.0;
+        }
+
+        private static long usedHeap() throws InterruptedException {
+            System.gc();
+            Thread.sleep(100);
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    /**
+     * A connection of the load test that is driven by the selector of its run
+     */
+    private static class LoadClient {
+        private final SocketChannel channel;
+        private final NPPFrameDecoder decoder;
+        private final ArrayDeque<ByteBuffer> pendingWrites;
+        private final String username;
+        private final String target;
+        private SelectionKey key;
+        private boolean loggedIn;
+
+        private LoadClient(SocketChannel channel, String username, String target) {
+            this.channel = channel;
+            this.decoder = new NPPFrameDecoder();
+            this.pendingWrites = new ArrayDeque<>();
+            this.username = username;
+            this.target = target;
+        }
+
+        /**
+         * Send a direct message to the next client that carries the time it was sent
+         */
+        private void sendDirectMessage() throws IOException {
+            send(ApiProtocol.REQUEST_PRIVATE_MESSAGE.code + "/username=" + target, String.valueOf(System.nanoTime()));
+        }
+
+        private void send(String header, String body) throws IOException {
+            String frame = (char) ApiProtocol.PROTOCOL_DATA_START.code + header + (char) ApiProtocol.PROTOCOL_DATA_HEADER_SEPARATOR.code + body + (char) ApiProtocol.PROTOCOL_DATA_END.code;
+            pendingWrites.add(ByteBuffer.wrap(frame.getBytes(StandardCharsets.UTF_8)));
+            flush();
+        }
+
+        private void flush() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer buffer = pendingWrites.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) break; //The socket is full, the rest is written once it is writable again
+                pendingWrites.poll();
+            }
+            key.interestOps(pendingWrites.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+}
@@ -2,18 +2,32 @@ package nextpresso.server;
 
 import nextpresso.server.core.FileService;
 import nextpresso.server.core.MessageService;
+import nextpresso.server.core.ServerSettings;
 
 import java.io.IOException;
 
 public class serverLauncher {
+    /**
+     * Start the server
+     * @param args Optional settings in the "--key=value" format, such as "--mode=platform" or "--history-days=7".
+     *             See {@link ServerSettings#usage()} for every setting and its default
+     */
     public static void main(String[] args) throws IOException {
-        System.out.println("<<< Server \"Latte\" started >>>");
+        ServerSettings settings;
+        try {
+            settings = ServerSettings.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("> " + e.getMessage());
+            System.err.println("> Usage: serverLauncher [--key=value ...]\n" + ServerSettings.usage());
+            return;
+        }
+        System.out.println("<<< Server \"Latte\" started (" + settings.getExecutionMode() + ") >>>");
         //Initiate the file handler server
-        FileService fileServer = new FileService(7331);
+        FileService fileServer = new FileService(settings.getFilePort(), settings.getExecutionMode(), settings.getRelayBufferSize());
         Thread fileThread = new Thread(fileServer);
 
         //Initiate the message handler server
-        MessageService latteMessage = new MessageService(1337,fileServer);
+        MessageService latteMessage = new MessageService(settings, fileServer);
         Thread messageThread = new Thread(latteMessage);
 
         //Start the services
@@ -0,0 +1,53 @@
+package nextpresso.server.tools;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized direct byte buffers.
+ * Direct buffers let socket channels read and write without an extra copy through the heap, but they are expensive to allocate,
+ * so they are reused instead of being created for every transfer
+ */
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxPooledBuffers;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers;
+    private final AtomicInteger pooledBuffers;
+
+    /**
+     * Create a new empty buffer pool
+     * @param bufferSize Size of each buffer in bytes
+     * @param maxPooledBuffers How many released buffers are kept for reuse at most
+     */
+    public DirectBufferPool(int bufferSize, int maxPooledBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.buffers = new ConcurrentLinkedQueue<>();
+        this.pooledBuffers = new AtomicInteger(0);
+    }
+
+    /**
+     * Take a cleared buffer from the pool, or allocate a new one if the pool is empty
+     * @return Direct buffer in write mode
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+        pooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. The buffer must not be used after this call
+     * @param buffer Buffer that was acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (pooledBuffers.incrementAndGet() > maxPooledBuffers) {
+            pooledBuffers.decrementAndGet(); //The pool is full, the buffer is left to the garbage collector
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
@@ -10,10 +10,25 @@ import java.security.spec.InvalidKeySpecException;
  * @author https://gist.github.com/jtan189/3804290
  */
 public class PBKDF2Validator {
+    //Looking up the factory for every login is costly, each thread keeps its own since a factory is not thread safe
+    private static final ThreadLocal<SecretKeyFactory> KEY_FACTORY = new ThreadLocal<>();
+
     public static boolean validateHash(String data, String hash) throws NoSuchAlgorithmException, InvalidKeySpecException {
         return validatePassword(data.toCharArray(), hash);
     }
 
+    /**
+     * Validate a password against a hash that is already decoded, such as one from the credential store
+     * @param data Raw password
+     * @param iterations Iterations of the hash
+     * @param salt Salt of the hash
+     * @param hash Expected hash
+     * @return True - the password matches
+     */
+    public static boolean validateHash(String data, int iterations, byte[] salt, byte[] hash) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return bytesEqual(hash, pbkdf2(data.toCharArray(), salt, iterations, hash.length));
+    }
+
     private static boolean validatePassword(char[] password, String goodHash) throws NoSuchAlgorithmException, InvalidKeySpecException {
         String[] params = goodHash.split(":");
         int iterations = Integer.parseInt(params[0]);
@@ -34,8 +49,16 @@ public class PBKDF2Validator {
 
     private static byte[] pbkdf2(char[] password, byte[] salt, int iterations, int bytes) throws NoSuchAlgorithmException, InvalidKeySpecException {
         PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, bytes * 8);
-        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-        return skf.generateSecret(spec).getEncoded();
+        SecretKeyFactory skf = KEY_FACTORY.get();
+        if (skf == null) {
+            skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            KEY_FACTORY.set(skf);
+        }
+        try {
+            return skf.generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
     }
 
     private static byte[] stringToBytes(String hex) {
@@ -0,0 +1,135 @@
+package nextpresso.server.tools;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel that runs the delayed tasks of the whole server on a single thread.
+ * Scheduling and cancelling are constant time, a task runs at most one tick later than its deadline
+ */
+public class TimingWheel {
+    private final long tickDuration; //Milliseconds
+    private final List<Timeout>[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts; //Timeouts that are not placed on the wheel yet
+    private final long startTime;
+    private long tick;
+
+    /**
+     * Create a new timing wheel and start its thread
+     * @param tickDuration Milliseconds between two ticks of the wheel
+     * @param ticksPerWheel Number of buckets of the wheel, rounded up to a power of 2
+     * @param threadName Name of the thread that runs the tasks
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) //Java has no generic arrays
+    public TimingWheel(long tickDuration, int ticksPerWheel, String threadName) {
+        int wheelSize = Integer.highestOneBit(Math.max(ticksPerWheel - 1, 1)) << 1;
+        this.tickDuration = tickDuration;
+        this.wheel = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) wheel[i] = new ArrayList<>();
+        this.mask = wheelSize - 1;
+        this.newTimeouts = new ConcurrentLinkedQueue<>();
+        this.startTime = System.currentTimeMillis();
+        this.tick = 0;
+
+        Thread worker = new Thread(this::run, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedule a task to run once
+     * @param task Task to run. It runs on the thread of the wheel, so it should not block
+     * @param delay Delay before the task runs
+     * @param unit Unit of the delay
+     * @return Timeout that can cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + unit.toMillis(delay));
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = startTime + (tick + 1) * tickDuration;
+            long sleepTime = deadline - System.currentTimeMillis();
+            if (sleepTime > 0) {
+                try {
+                    Thread.sleep(sleepTime);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            placeNewTimeouts();
+            expireTimeouts(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    private void placeNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) continue;
+            long targetTick = Math.max((timeout.deadline - startTime) / tickDuration, tick);
+            timeout.remainingRounds = (targetTick - tick) / wheel.length;
+            wheel[(int) (targetTick & mask)].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(List<Timeout> bucket, long deadline) {
+        Iterator<Timeout> timeouts = bucket.iterator();
+        while (timeouts.hasNext()) {
+            Timeout timeout = timeouts.next();
+            if (timeout.isCancelled()) timeouts.remove(); //Cancelled timeouts are dropped once their bucket comes up
+            else if (timeout.remainingRounds > 0) timeout.remainingRounds--;
+            else if (timeout.deadline <= deadline) {
+                timeouts.remove();
+                timeout.expire();
+            }
+        }
+    }
+
+    /**
+     * Handle of a task scheduled on a {@link TimingWheel}
+     */
+    public static class Timeout {
+        private static final int ST_PENDING = 0, ST_CANCELLED = 1, ST_EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.state = new AtomicInteger(ST_PENDING);
+        }
+
+        /**
+         * Cancel the task if it has not run yet
+         * @return True if the task will not run anymore because of this call
+         */
+        public boolean cancel() {
+            return state.compareAndSet(ST_PENDING, ST_CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == ST_CANCELLED;
+        }
+
+        private void expire() {
+            if (!state.compareAndSet(ST_PENDING, ST_EXPIRED)) return;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("> A scheduled task failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package nextpresso.tools;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Enum to hold all the NextPresso 1.1 protocol header codes defined in the spec
  */
@@ -15,6 +18,8 @@ public enum ApiProtocol {
     ERROR_UNAUTHORIZED(0x27),
     ERROR_INTERNAL_ERROR(0x26),
     ERROR_TIMEOUT(0x2A),
+    ERROR_TARGET_SATURATED(0x2B),
+    ERROR_SERVER_BUSY(0x2C),
 
     MESSAGE_SERVER_INFO(0x30),
     MESSAGE_SERVER_GROUP_NEW_USER(0x31),
@@ -60,10 +65,23 @@ public enum ApiProtocol {
     HEARTBEAT_REQUEST(0xF1),
     HEARTBEAT_RESPONSE(0xF2),
 
+    REQUEST_PROTOCOL_UPGRADE(0xE041),
+    ACKNOWLEDGE_PROTOCOL_UPGRADE(0xE011),
+    REQUEST_GROUP_HISTORY(0xE042),
+    ACKNOWLEDGE_GROUP_HISTORY(0xE012),
+    REQUEST_RESUME_SESSION(0xE043),
+    ACKNOWLEDGE_RESUME_SESSION(0xE013),
+
     PROTOCOL_DATA_START(0x01),
     PROTOCOL_DATA_END(0x04),
     PROTOCOL_DATA_HEADER_SEPARATOR(0x1F);
 
+    private static final Map<Integer, ApiProtocol> BY_CODE = new HashMap<>();
+
+    static {
+        for (ApiProtocol v : values()) BY_CODE.putIfAbsent(v.code, v); //The first declared enum wins on a shared code
+    }
+
     public final int code;
 
     ApiProtocol(int code) {
@@ -76,11 +94,15 @@ public enum ApiProtocol {
      * @return The found ApiProtocol enum. If not found, returns a ERROR_MALFORMED_PACKET enum
      */
     public static ApiProtocol parseString(String code){
-        for (var v: ApiProtocol.values()){
-            if (v.code == Integer.parseInt(code)){
-                return v;
-            }
-        }
-        return ERROR_MALFORMED_PACKET;
+        return parseCode(Integer.parseInt(code));
+    }
+
+    /**
+     * Parses an integer code to an ApiProtocol enum
+     * @param code Integer header code
+     * @return The found ApiProtocol enum. If not found, returns a ERROR_MALFORMED_PACKET enum
+     */
+    public static ApiProtocol parseCode(int code){
+        return BY_CODE.getOrDefault(code, ERROR_MALFORMED_PACKET);
     }
 }
\ No newline at end of file
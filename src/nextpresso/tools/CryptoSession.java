@@ -0,0 +1,201 @@
+package nextpresso.tools;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+/**
+ * Key of an encrypted channel, parsed once and used for any number of messages.
+ * Each thread that encrypts or decrypts keeps its own initialized Cipher, since a Cipher is not thread safe
+ * and looking one up from the provider costs more than encrypting a chat message.
+ * An AES-GCM session seals every message with a fresh random nonce, which is put in front of the ciphertext and its tag
+ */
+public final class CryptoSession {
+    private static final String AES_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String AES_GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final String RSA_TRANSFORMATION = "RSA";
+    private static final int GCM_NONCE_LENGTH = 12; //Bytes
+    private static final int GCM_TAG_LENGTH = 128; //Bits
+    private static final ThreadLocal<KeyFactory> RSA_KEY_FACTORY = new ThreadLocal<>();
+    private static final SecureRandom NONCES = new SecureRandom();
+
+    private final String transformation;
+    private final Key encryptKey; //Null if the session can only decrypt
+    private final Key decryptKey; //Null if the session can only encrypt
+    private final AlgorithmParameterSpec parameters; //Null if the transformation has none or takes a nonce per message
+    private final int nonceLength; //Bytes in front of each sealed message, 0 if the session uses fixed parameters
+    private final ThreadLocal<Cipher> encryptCiphers;
+    private final ThreadLocal<Cipher> decryptCiphers;
+
+    private CryptoSession(String transformation, Key encryptKey, Key decryptKey, AlgorithmParameterSpec parameters, int nonceLength) {
+        this.transformation = transformation;
+        this.encryptKey = encryptKey;
+        this.decryptKey = decryptKey;
+        this.parameters = parameters;
+        this.nonceLength = nonceLength;
+        this.encryptCiphers = new ThreadLocal<>();
+        this.decryptCiphers = new ThreadLocal<>();
+    }
+
+    /**
+     * Create a session with an AES key, which encrypts and decrypts
+     * @param b64AESKey The AES key in standard Base64
+     * @param b64AESiv The AES IV in standard Base64
+     * @return New session
+     * @throws IllegalArgumentException If the key or the IV is not valid Base64
+     */
+    public static CryptoSession aes(String b64AESKey, String b64AESiv) {
+        SecretKeySpec aesKey = new SecretKeySpec(Base64.getDecoder().decode(b64AESKey), "AES");
+        return new CryptoSession(AES_TRANSFORMATION, aesKey, aesKey, new IvParameterSpec(Base64.getDecoder().decode(b64AESiv)), 0);
+    }
+
+    /**
+     * Create a session with an AES key that seals messages with AES-GCM, which encrypts and decrypts
+     * @param b64AESKey The AES key in standard Base64
+     * @return New session
+     * @throws IllegalArgumentException If the key is not valid Base64
+     */
+    public static CryptoSession aesGcm(String b64AESKey) {
+        SecretKeySpec aesKey = new SecretKeySpec(Base64.getDecoder().decode(b64AESKey), "AES");
+        return new CryptoSession(AES_GCM_TRANSFORMATION, aesKey, aesKey, null, GCM_NONCE_LENGTH);
+    }
+
+    /**
+     * Create a session with the RSA public key of another user, which only encrypts
+     * @param b64PublicKey The X.509 encoded public key in standard Base64
+     * @return New session
+     * @throws InvalidKeySpecException If the key is not a valid RSA public key
+     */
+    public static CryptoSession rsaPublic(String b64PublicKey) throws InvalidKeySpecException {
+        try {
+            Key publicKey = rsaKeyFactory().generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(b64PublicKey)));
+            return new CryptoSession(RSA_TRANSFORMATION, publicKey, null, null, 0);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeySpecException("Key is not valid Base64", e);
+        }
+    }
+
+    /**
+     * Create a session with an own RSA private key, which only decrypts
+     * @param b64PrivateKey The PKCS #8 encoded private key in standard Base64
+     * @return New session
+     * @throws InvalidKeySpecException If the key is not a valid RSA private key
+     */
+    public static CryptoSession rsaPrivate(String b64PrivateKey) throws InvalidKeySpecException {
+        try {
+            Key privateKey = rsaKeyFactory().generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(b64PrivateKey)));
+            return new CryptoSession(RSA_TRANSFORMATION, null, privateKey, null, 0);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeySpecException("Key is not valid Base64", e);
+        }
+    }
+
+    private static KeyFactory rsaKeyFactory() throws InvalidKeySpecException {
+        KeyFactory keyFactory = RSA_KEY_FACTORY.get();
+        if (keyFactory != null) return keyFactory;
+        try {
+            keyFactory = KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new InvalidKeySpecException("RSA is not supported", e);
+        }
+        RSA_KEY_FACTORY.set(keyFactory);
+        return keyFactory;
+    }
+
+    /**
+     * Encrypt a string
+     * @param targetString The string to be encrypted in plain text
+     * @return The encrypted string as standard Base64. Null if it could not be encrypted
+     */
+    public String encrypt(String targetString) {
+        byte[] sealed = seal(targetString);
+        return sealed == null ? null : Base64.getEncoder().encodeToString(sealed);
+    }
+
+    /**
+     * Decrypt a string
+     * @param b64TargetString The encrypted string in standard Base64
+     * @return The decrypted string as plain text. Null if it could not be decrypted
+     */
+    public String decrypt(String b64TargetString) {
+        try {
+            return open(Base64.getDecoder().decode(b64TargetString));
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Encrypt a string to raw bytes. With AES-GCM the bytes are [nonce][ciphertext][tag], written in a single pass
+     * @param targetString The string to be encrypted in plain text
+     * @return The encrypted bytes. Null if it could not be encrypted
+     */
+    public byte[] seal(String targetString) {
+        try {
+            Cipher cipher = cipher(encryptCiphers, Cipher.ENCRYPT_MODE, encryptKey);
+            byte[] plainText = targetString.getBytes(StandardCharsets.UTF_8);
+            if (nonceLength == 0) return cipher.doFinal(plainText);
+            byte[] nonce = new byte[nonceLength];
+            NONCES.nextBytes(nonce);
+            cipher.init(Cipher.ENCRYPT_MODE, encryptKey, new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+            byte[] sealed = new byte[nonceLength + cipher.getOutputSize(plainText.length)];
+            System.arraycopy(nonce, 0, sealed, 0, nonceLength);
+            cipher.doFinal(plainText, 0, plainText.length, sealed, nonceLength);
+            return sealed;
+        } catch (GeneralSecurityException | IllegalStateException e) {
+            encryptCiphers.remove(); //Started over at the next message
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Decrypt raw bytes that were sealed by {@link #seal(String)}. A sealed AES-GCM message that was changed is refused
+     * @param sealed The encrypted bytes
+     * @return The decrypted string as plain text. Null if it could not be decrypted
+     */
+    public String open(byte[] sealed) {
+        try {
+            Cipher cipher = cipher(decryptCiphers, Cipher.DECRYPT_MODE, decryptKey);
+            if (nonceLength == 0) return new String(cipher.doFinal(sealed), StandardCharsets.UTF_8);
+            if (sealed.length < nonceLength) throw new IllegalArgumentException("Sealed message is shorter than its nonce");
+            cipher.init(Cipher.DECRYPT_MODE, decryptKey, new GCMParameterSpec(GCM_TAG_LENGTH, sealed, 0, nonceLength));
+            return new String(cipher.doFinal(sealed, nonceLength, sealed.length - nonceLength), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | IllegalStateException | IllegalArgumentException e) {
+            decryptCiphers.remove(); //Started over at the next message
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Get the Cipher of the current thread, it is created at its first use.
+     * A Cipher with fixed parameters goes back to its initialized state after each doFinal, so it is only initialized once.
+     * A Cipher that takes a nonce per message is initialized by the caller before each message
+     */
+    private Cipher cipher(ThreadLocal<Cipher> ciphers, int mode, Key key) throws GeneralSecurityException {
+        if (key == null) throw new IllegalStateException("The session has no key to " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt") + " with");
+        Cipher cipher = ciphers.get();
+        if (cipher != null) return cipher;
+        cipher = Cipher.getInstance(transformation);
+        if (nonceLength == 0) {
+            if (parameters == null) cipher.init(mode, key);
+            else cipher.init(mode, key, parameters);
+        }
+        ciphers.set(cipher);
+        return cipher;
+    }
+}
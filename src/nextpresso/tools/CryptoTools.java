@@ -1,17 +1,40 @@
 package nextpresso.tools;
 
-import javax.crypto.*;
+import javax.crypto.KeyAgreement;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
-import java.security.*;
-import java.security.spec.EncodedKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
 
 public class CryptoTools {
+    public static final String X25519 = "x25519"; //First part of a session key message that carries an X25519 public key instead of an RSA encrypted key
+    private static final byte[] SESSION_KEY_INFO = "NextPresso session key".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEALING_KEY_INFO = "NextPresso sealing key".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * AES session keys and IV that both parties derived from an X25519 key agreement
+     * @param b64Key The AES-CBC key in standard Base64
+     * @param b64Iv The AES-CBC IV in standard Base64
+     * @param b64SealingKey The AES-GCM key in standard Base64, derived with its own label so it is never the AES-CBC key
+     */
+    public record SessionKey(String b64Key, String b64Iv, String b64SealingKey) {
+    }
+
     public static KeyPair generateRSAKeyPair(){
         try {
             KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
@@ -34,6 +57,113 @@ public class CryptoTools {
         return null;
     }
 
+    /**
+     * Generate a key pair for X25519 key agreement. It takes microseconds instead of the milliseconds of an RSA key pair
+     * @return Key pair, the public key is X.509 encoded
+     */
+    public static KeyPair generateX25519KeyPair() {
+        try {
+            return KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Parse an X25519 public key
+     * @param b64PublicKey The X.509 encoded public key in standard Base64
+     * @return The public key
+     * @throws InvalidKeySpecException If the key is not a valid X25519 public key
+     */
+    public static PublicKey parseX25519PublicKey(String b64PublicKey) throws InvalidKeySpecException {
+        try {
+            return KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(b64PublicKey)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new InvalidKeySpecException("X25519 is not supported", e);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidKeySpecException("Key is not valid Base64", e);
+        }
+    }
+
+    /**
+     * Check if a key can be published for encrypted messages
+     * @param b64PublicKey The X.509 encoded public key in standard Base64
+     * @return True - the key is an RSA or an X25519 public key
+     */
+    public static boolean isValidPublicKey(String b64PublicKey) {
+        try {
+            parseX25519PublicKey(b64PublicKey);
+            return true;
+        } catch (InvalidKeySpecException e) {
+            //Not X25519, it may still be RSA
+        }
+        try {
+            CryptoSession.rsaPublic(b64PublicKey);
+            return true;
+        } catch (InvalidKeySpecException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Derive the AES session keys and IV from an X25519 key agreement with HKDF-SHA256.
+     * The initiator uses a fresh ephemeral key pair against the published key of the other party,
+     * the other party uses its own private key against the ephemeral public key, so both get the same session key
+     * @param ownKey Own X25519 private key
+     * @param b64PeerPublicKey X25519 public key of the other party in standard Base64
+     * @param b64EphemeralPublicKey Ephemeral public key of the initiator in standard Base64, which salts the derivation
+     * @return The derived session key
+     * @throws InvalidKeySpecException If a public key is not a valid X25519 public key
+     */
+    public static SessionKey agreeSessionKey(PrivateKey ownKey, String b64PeerPublicKey, String b64EphemeralPublicKey) throws InvalidKeySpecException {
+        PublicKey peerKey = parseX25519PublicKey(b64PeerPublicKey);
+        try {
+            KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+            agreement.init(ownKey);
+            agreement.doPhase(peerKey, true);
+            byte[] secret = agreement.generateSecret();
+            byte[] salt = Base64.getDecoder().decode(b64EphemeralPublicKey);
+            byte[] keyMaterial = hkdfSha256(secret, salt, SESSION_KEY_INFO, 32);
+            Base64.Encoder encoder = Base64.getEncoder();
+            return new SessionKey(encoder.encodeToString(Arrays.copyOfRange(keyMaterial, 0, 16)), encoder.encodeToString(Arrays.copyOfRange(keyMaterial, 16, 32)),
+                    encoder.encodeToString(hkdfSha256(secret, salt, SEALING_KEY_INFO, 16)));
+        } catch (NoSuchAlgorithmException | InvalidKeyException | IllegalArgumentException e) {
+            throw new InvalidKeySpecException("Could not agree on a session key", e);
+        }
+    }
+
+    /**
+     * Derive key material with HKDF (RFC 5869) over HMAC-SHA256
+     * @param inputKey Input key material, such as a shared secret
+     * @param salt Salt. Empty for a salt of zeros
+     * @param info Context of the derived key
+     * @param length Bytes to derive, at most 8160
+     * @return Derived key material
+     */
+    public static byte[] hkdfSha256(byte[] inputKey, byte[] salt, byte[] info, int length) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(salt.length == 0 ? new byte[32] : salt, "HmacSHA256"));
+            byte[] pseudoRandomKey = mac.doFinal(inputKey);
+            mac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+            byte[] output = new byte[length];
+            byte[] block = new byte[0];
+            for (int position = 0, counter = 1; position < length; counter++) {
+                mac.update(block);
+                mac.update(info);
+                mac.update((byte) counter);
+                block = mac.doFinal();
+                int copyLength = Math.min(block.length, length - position);
+                System.arraycopy(block, 0, output, position, copyLength);
+                position += copyLength;
+            }
+            return output;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not supported", e);
+        }
+    }
+
     public static IvParameterSpec generateIv() {
         byte[] iv = new byte[16];
         new SecureRandom().nextBytes(iv);
@@ -41,83 +171,54 @@ public class CryptoTools {
     }
 
     /**
-     * Encrypts a string using an RSA Public Key
+     * Encrypts a string using an RSA Public Key. The key is parsed on every call, use a {@link CryptoSession} to encrypt more than once
      * @param b64PublicKey The public key in standard Base64
      * @param targetString The string to be encrypted in plain text
      * @return The encrypted string as standard Base64
      */
     public static String encryptRSAString(String b64PublicKey, String targetString){
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(Base64.getDecoder().decode(b64PublicKey));
-            PublicKey pubK = keyFactory.generatePublic(publicKeySpec);
-            Cipher encrypt = Cipher.getInstance("RSA");
-            encrypt.init(Cipher.ENCRYPT_MODE,pubK);
-            return Base64.getEncoder().encodeToString(encrypt.doFinal(targetString.getBytes(StandardCharsets.UTF_8)));
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
+            return CryptoSession.rsaPublic(b64PublicKey).encrypt(targetString);
+        } catch (InvalidKeySpecException e) {
             e.printStackTrace();
         }
         return null;
     }
 
     /**
-     * Decrypt a string using an RSA Private key
+     * Decrypt a string using an RSA Private key. The key is parsed on every call, use a {@link CryptoSession} to decrypt more than once
      * @param b64PrivateKey The private key in standard Base64
      * @param b64TargetString The encrypted string in standard Base64
      * @return The decrypted string as plain text
      */
     public static String decryptRSAString(String b64PrivateKey, String b64TargetString){
         try {
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            EncodedKeySpec publicKeySpec = new PKCS8EncodedKeySpec(Base64.getDecoder().decode(b64PrivateKey));
-            PrivateKey prvK = keyFactory.generatePrivate(publicKeySpec);
-            Cipher decrypt = Cipher.getInstance("RSA");
-            decrypt.init(Cipher.DECRYPT_MODE,prvK);
-            return new String(decrypt.doFinal(Base64.getDecoder().decode(b64TargetString)));
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
+            return CryptoSession.rsaPrivate(b64PrivateKey).decrypt(b64TargetString);
+        } catch (InvalidKeySpecException e) {
             e.printStackTrace();
         }
         return null;
     }
 
     /**
-     * Encrypt a string using an AES key
+     * Encrypt a string using an AES key. The key is parsed on every call, use a {@link CryptoSession} to encrypt more than once
      * @param b64AESKey The AES key in standard Base64
      * @param b64AESiv The AES IV in standard Base64
      * @param targetString The string to be encrypted in plain text
      * @return The encrypted string as standard Base64
      */
     public static String encryptAESString(String b64AESKey, String b64AESiv, String targetString){
-        try {
-            SecretKey aesKey = new SecretKeySpec(Base64.getDecoder().decode(b64AESKey), 0, Base64.getDecoder().decode(b64AESKey).length, "AES");
-            IvParameterSpec iv = new IvParameterSpec(Base64.getDecoder().decode(b64AESiv));
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey, iv);
-            byte[] cipherText = cipher.doFinal(targetString.getBytes());
-            return Base64.getEncoder().encodeToString(cipherText);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return CryptoSession.aes(b64AESKey, b64AESiv).encrypt(targetString);
     }
 
     /**
-     * Decrypt a string using an AES key
+     * Decrypt a string using an AES key. The key is parsed on every call, use a {@link CryptoSession} to decrypt more than once
      * @param b64AESKey The AES key in standard Base64
      * @param b64AESiv The AES IV in standard Base64
      * @param b64TargetString The string to be decrypted in standard Base64
      * @return The decrypted string as plain text
      */
     public static String decryptAESString(String b64AESKey, String b64AESiv, String b64TargetString){
-        try {
-            SecretKey aesKey = new SecretKeySpec(Base64.getDecoder().decode(b64AESKey), 0, Base64.getDecoder().decode(b64AESKey).length, "AES");
-            IvParameterSpec iv = new IvParameterSpec(Base64.getDecoder().decode(b64AESiv));
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.DECRYPT_MODE, aesKey, iv);
-            return new String(cipher.doFinal(Base64.getDecoder().decode(b64TargetString)));
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return CryptoSession.aes(b64AESKey, b64AESiv).decrypt(b64TargetString);
     }
 }
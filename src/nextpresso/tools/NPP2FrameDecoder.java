@@ -0,0 +1,82 @@
+package nextpresso.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental decoder that cuts length prefixed NPP/2 frames out of a byte stream.
+ * Bytes can be fed in any portions, a frame that is split over several reads is put together from its parts.
+ * The buffer of a frame grows as its bytes arrive, so a length prefix alone does not reserve the memory of a large frame.
+ * The frames are not parsed, see {@link nextpresso.model.NPP2Codec} for that
+ */
+public class NPP2FrameDecoder {
+    public static final int INITIAL_FRAME_CAPACITY = 8192; //Bytes reserved for a new frame before more of it arrives
+
+    private volatile int maxFrameSize;
+    private byte[] frame; //Null while the length prefix is read
+    private int expectedLength; //Length of the frame from its prefix
+    private int frameLength;
+    private int prefixValue;
+    private int prefixShift;
+
+    /**
+     * Create a new decoder that is not inside a frame
+     * @param maxFrameSize Largest frame that is accepted in bytes
+     */
+    public NPP2FrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Change the largest frame that is accepted, from the next frame on
+     * @param maxFrameSize Largest frame in bytes
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Consume every remaining byte of the buffer
+     * @param input Buffer in read mode. Its position is moved to its limit
+     * @param frames List that every completed frame is added to, without its length prefix
+     * @throws IOException If a length prefix is malformed or exceeds the largest frame size
+     */
+    public void decode(ByteBuffer input, List<byte[]> frames) throws IOException {
+        while (input.hasRemaining()) {
+            if (frame == null) {
+                int length = readLengthPrefix(input);
+                if (length == -1) return; //The rest of the prefix arrives later
+                frame = new byte[Math.min(length, INITIAL_FRAME_CAPACITY)];
+                expectedLength = length;
+                frameLength = 0;
+            }
+            if (frameLength == frame.length) frame = Arrays.copyOf(frame, (int) Math.min(frame.length * 2L, expectedLength));
+            int copyLength = Math.min(frame.length - frameLength, input.remaining());
+            input.get(frame, frameLength, copyLength);
+            frameLength += copyLength;
+            if (frameLength == expectedLength) {
+                frames.add(frame);
+                frame = null;
+            }
+        }
+    }
+
+    private int readLengthPrefix(ByteBuffer input) throws IOException {
+        while (input.hasRemaining()) {
+            byte b = input.get();
+            prefixValue |= (b & 0x7F) << prefixShift;
+            prefixShift += 7;
+            if ((b & 0x80) == 0) {
+                int length = prefixValue;
+                prefixValue = 0;
+                prefixShift = 0;
+                if (length < 0 || length > maxFrameSize) throw new IOException("NPP/2 frame of " + length + " bytes is too large");
+                return length;
+            }
+            if (prefixShift >= 35) throw new IOException("NPP/2 frame has a malformed length prefix");
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,108 @@
+package nextpresso.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Incremental decoder that cuts NPP/1.1 messages out of a byte stream.
+ * Bytes can be fed in any portions, a message that is split over several reads is put together from its parts.
+ * Bytes outside the 0x01 and 0x04 bytes are ignored
+ */
+public class NPPFrameDecoder {
+    public static final long FRAME_TIMEOUT = 4000; //Milliseconds a started message may take to end
+    private static final int INITIAL_FRAME_SIZE = 1024;
+    private static final int MAX_RETAINED_FRAME_SIZE = 64 * 1024; //Larger frame buffers are not kept between messages
+
+    private byte[] frame;
+    private int frameLength;
+    private boolean readingFrame;
+    private long frameStart;
+
+    /**
+     * Create a new decoder that is not inside a message
+     */
+    public NPPFrameDecoder() {
+        this.frame = new byte[INITIAL_FRAME_SIZE];
+        this.frameLength = 0;
+        this.readingFrame = false;
+    }
+
+    /**
+     * Consume every remaining byte of the buffer
+     * @param input Buffer in read mode. Its position is moved to its limit
+     * @param frames List that every completed message is added to in String format
+     */
+    public void decode(ByteBuffer input, List<String> frames) {
+        while (input.hasRemaining()) {
+            if (!readingFrame && !skipToFrameStart(input)) return;
+            int start = input.position();
+            int end = indexOf(input, ApiProtocol.PROTOCOL_DATA_END.code, start);
+            int copyLength = (end == -1 ? input.limit() : end + 1) - start;
+            ensureCapacity(frameLength + copyLength);
+            input.get(frame, frameLength, copyLength);
+            frameLength += copyLength;
+            if (end != -1) frames.add(completeFrame());
+        }
+    }
+
+    /**
+     * Check if a message has been started but not ended yet
+     * @return True - the decoder is inside a message
+     */
+    public boolean hasPartialFrame() {
+        return readingFrame;
+    }
+
+    /**
+     * Get the moment a started message times out
+     * @return Time in milliseconds since the epoch. -1 if the decoder is not inside a message
+     */
+    public long getFrameDeadline() {
+        return readingFrame ? frameStart + FRAME_TIMEOUT : -1;
+    }
+
+    /**
+     * Give up on a started message that did not end in time, the same way {@link NPPReader} times out
+     * @param now Current time in milliseconds since the epoch
+     * @return The bytes of the message read so far in String format. Null if there is no message that timed out
+     */
+    public String pollExpiredFrame(long now) {
+        if (!readingFrame || now < getFrameDeadline()) return null;
+        return completeFrame();
+    }
+
+    private boolean skipToFrameStart(ByteBuffer input) {
+        int start = indexOf(input, ApiProtocol.PROTOCOL_DATA_START.code, input.position());
+        if (start == -1) {
+            input.position(input.limit()); //Data between messages is ignored
+            return false;
+        }
+        input.position(start);
+        readingFrame = true;
+        frameStart = System.currentTimeMillis();
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer input, int value, int from) {
+        for (int i = from; i < input.limit(); i++) {
+            if (input.get(i) == value) return i;
+        }
+        return -1;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= frame.length) return;
+        byte[] grownFrame = new byte[Math.max(capacity, frame.length * 2)];
+        System.arraycopy(frame, 0, grownFrame, 0, frameLength);
+        frame = grownFrame;
+    }
+
+    private String completeFrame() {
+        String message = new String(frame, 0, frameLength, StandardCharsets.UTF_8);
+        if (frame.length > MAX_RETAINED_FRAME_SIZE) frame = new byte[INITIAL_FRAME_SIZE];
+        frameLength = 0;
+        readingFrame = false;
+        return message;
+    }
+}
@@ -0,0 +1,130 @@
+package nextpresso.tools;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Micro-benchmark of reading NPP/1.1 messages with {@link NPPFrameDecoder}, with {@link NPPReader} and with the reader
+ * that NPPReader used to be, which collected every character in an ArrayList<Character>.
+ * Each way first reads the stream for a number of warm-up rounds, so the JIT compiler is done before the measured rounds
+ */
+public class NPPFrameDecoderBenchmark {
+    private static final int MESSAGES = 10000;
+    private static final int SEGMENT_SIZE = 1460; //Bytes of a TCP segment, the decoder gets the stream in these portions
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int MEASURED_ROUNDS = 20;
+
+    private static long checksum; //Keeps the JIT compiler from dropping the work
+
+    /**
+     * Run the benchmark
+     * @param args Optional body sizes of the messages in bytes, 64 and 1024 by default
+     */
+    public static void main(String[] args) throws IOException {
+        int[] bodySizes = args.length == 0 ? new int[]{64, 1024} : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        System.out.println("<<< Reading " + MESSAGES + " messages, " + WARMUP_ROUNDS + " warm-up and " + MEASURED_ROUNDS + " measured rounds >>>");
+        System.out.println("reader                 body bytes  ns/message     MB/s  bytes allocated/message");
+        for (int bodySize : bodySizes) {
+            byte[] stream = buildStream(bodySize);
+            measure("NPPFrameDecoder", bodySize, stream, NPPFrameDecoderBenchmark::readWithDecoder);
+            measure("NPPReader", bodySize, stream, NPPFrameDecoderBenchmark::readWithReader);
+            measure("ArrayList<Character>", bodySize, stream, NPPFrameDecoderBenchmark::readWithCharacterList);
+        }
+        if (checksum == 42) System.out.println(); //Never true, but the JIT compiler cannot know that
+    }
+
+    private interface StreamReader {
+        int read(byte[] stream) throws IOException;
+    }
+
+    private static void measure(String name, int bodySize, byte[] stream, StreamReader reader) throws IOException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) checkCount(reader.read(stream));
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) checkCount(reader.read(stream));
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        long messages = (long) MESSAGES * MEASURED_ROUNDS;
+        double megabytesPerSecond = (double) stream.length * MEASURED_ROUNDS / (1024 * 1024) / (elapsed / 1e9);
+        String allocatedPerMessage = allocatedBefore < 0 ? "n/a" : String.valueOf(allocated / messages);
+        System.out.println(String.format("%-22s %10d %11.0f %8.1f %24s", name, bodySize, (double) elapsed / messages, megabytesPerSecond, allocatedPerMessage));
+    }
+
+    private static void checkCount(int count) {
+        if (count != MESSAGES) throw new IllegalStateException("Read " + count + " of " + MESSAGES + " messages");
+    }
+
+    private static byte[] buildStream(int bodySize) {
+        StringBuilder body = new StringBuilder(bodySize);
+        for (int i = 0; i < bodySize; i++) body.append((char) ('a' + i % 26));
+        String message = (char) ApiProtocol.PROTOCOL_DATA_START.code + String.valueOf(ApiProtocol.MESSAGE_CHAT.code) + "/sender=Benchmark/authenticated=false/encrypted=false"
+                + (char) ApiProtocol.PROTOCOL_DATA_HEADER_SEPARATOR.code + body + (char) ApiProtocol.PROTOCOL_DATA_END.code;
+        return message.repeat(MESSAGES).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int readWithDecoder(byte[] stream) {
+        NPPFrameDecoder decoder = new NPPFrameDecoder();
+        List<String> frames = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(stream);
+        int count = 0;
+        for (int offset = 0; offset < stream.length; offset += SEGMENT_SIZE) {
+            buffer.limit(Math.min(offset + SEGMENT_SIZE, stream.length)).position(offset);
+            decoder.decode(buffer, frames);
+            for (String frame : frames) checksum += frame.length();
+            count += frames.size();
+            frames.clear();
+        }
+        return count;
+    }
+
+    private static int readWithReader(byte[] stream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(stream), StandardCharsets.UTF_8));
+        int count = 0;
+        String frame;
+        while (reader.ready() && (frame = NPPReader.readMessage(reader)) != null) {
+            checksum += frame.length();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Read the stream the way NPPReader did before the frame decoder, boxing every character
+     */
+    private static int readWithCharacterList(byte[] stream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(stream), StandardCharsets.UTF_8));
+        int count = 0;
+        while (reader.ready()) {
+            ArrayList<Character> inputBytes = new ArrayList<>();
+            int lastByte = 0;
+            int firstByte = reader.read();
+            if (firstByte != ApiProtocol.PROTOCOL_DATA_START.code) break;
+            inputBytes.add((char) firstByte);
+            long start = System.currentTimeMillis();
+            while (reader.ready() && lastByte != ApiProtocol.PROTOCOL_DATA_END.code && System.currentTimeMillis() - start < 4000) {
+                lastByte = reader.read();
+                inputBytes.add((char) lastByte);
+            }
+            String frame = inputBytes.toString().substring(1, 3 * inputBytes.size() - 1).replaceAll(", ", "");
+            checksum += frame.length();
+            count++;
+        }
+        return count;
+    }
+
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads) {
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1; //Not supported by this Java runtime
+    }
+}
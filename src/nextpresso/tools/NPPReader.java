@@ -2,7 +2,6 @@ package nextpresso.tools;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.ArrayList;
 
 /**
  * A reader for NextPresso messages
@@ -27,27 +26,26 @@ public class NPPReader {
      * Read data from the buffer as a NextPresso 1.1 message.
      * The reader will start reading a message once it encounters a message start byte (0x01).
      * From that byte (inclusive) the reader will keep reading and buffering incoming bytes till it encounters
-     * a message end byte (0x04).
+     * a message end byte (0x04). A message that arrives in several parts is waited for.
      * If the reader does not detect byte 0x04 after detecting byte 0x01 in 4 seconds, the reader will time out.
+     * The time is checked between the bytes, so a read that blocks is only interrupted by the read timeout of the socket
      * @param reader The buffer to read from
      * @param firstByte The fist byte read if the function is called by {@link #readMessage(BufferedReader)}. Otherwise, use -1
      * @return The string of the raw NextPresso message
      * @throws IOException If the reading the buffer encountered a problem
      */
     public static String readNPPMessage(BufferedReader reader, int firstByte) throws IOException {
-        ArrayList<Character> inputBytes = new ArrayList<>();
-        int lastByte = 0;
         if (firstByte == -1) firstByte = reader.read();
         if (firstByte != ApiProtocol.PROTOCOL_DATA_START.code) return null; //Message is corrupted
-        inputBytes.add((char) firstByte);
+        StringBuilder message = new StringBuilder().append((char) firstByte);
         long start = System.currentTimeMillis();
-        while (reader.ready() && lastByte != ApiProtocol.PROTOCOL_DATA_END.code && System.currentTimeMillis() - start < 4000){
+        int lastByte = firstByte;
+        while (lastByte != ApiProtocol.PROTOCOL_DATA_END.code && System.currentTimeMillis() - start < NPPFrameDecoder.FRAME_TIMEOUT){
             lastByte = reader.read();
-            inputBytes.add((char) lastByte);
+            if (lastByte == -1) break; //The other party closed the connection
+            message.append((char) lastByte);
         }
-        return inputBytes.toString()
-                .substring(1, 3 * inputBytes.size() - 1)
-                .replaceAll(", ", "");
+        return message.toString();
     }
 
     /**
@@ -59,18 +57,12 @@ public class NPPReader {
      * @throws IOException If the reading the buffer encountered a problem
      */
     private static String readLegacy(BufferedReader reader, int firstByte) throws IOException {
-        ArrayList<Character> inputBytes = new ArrayList<>();
-        inputBytes.add((char) firstByte);
+        StringBuilder message = new StringBuilder().append((char) firstByte);
         int lastByte;
         while ((lastByte = reader.read()) != 0x00){
-            if (lastByte == 0x0A) break;
-            inputBytes.add((char) lastByte);
+            if (lastByte == 0x0A || lastByte == -1) break;
+            message.append((char) lastByte);
         }
-        String output = inputBytes.toString();
-        //Regex is used to match legacy protocol pattern
-        if (output.split("^[A-Z]{2}\\w+ [\\w\\p{Punct}\\s]+").length == 0) return null; //Message is corrupted
-        return output.split("^[A-Z]{2}\\w+ [\\w\\p{Punct}\\s]+")[0]
-                .substring(1, 3 * inputBytes.size() - 1)
-                .replaceAll(", ", "");
+        return message.toString();
     }
 }
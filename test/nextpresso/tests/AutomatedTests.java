@@ -1,18 +1,55 @@
 package nextpresso.tests;
 
+import nextpresso.model.HeaderKey;
+import nextpresso.model.HeaderRecords;
+import nextpresso.model.NPP2Codec;
+import nextpresso.model.Message;
 import nextpresso.model.NetSocket;
+import nextpresso.model.NextPressoException;
+import nextpresso.model.NextPressoMessageBuilder;
+import nextpresso.model.OutboundFrame;
 import nextpresso.tools.ApiProtocol;
 import nextpresso.Helper;
+import nextpresso.server.data.CredentialStore;
+import nextpresso.server.core.ChatGroup;
+import nextpresso.server.core.ClusterSettings;
 import nextpresso.server.core.FileService;
+import nextpresso.server.core.GroupInactivityWatcher;
+import nextpresso.server.core.GroupRegistry;
+import nextpresso.server.core.GroupHistory;
+import nextpresso.server.core.MessageManager;
 import nextpresso.server.core.MessageService;
+import nextpresso.server.core.OutboundLimits;
+import nextpresso.server.core.OutboundQueue;
+import nextpresso.server.core.ServerSettings;
+import nextpresso.server.core.SlowConsumerPolicy;
+import nextpresso.server.core.WriteCoalescing;
+import nextpresso.server.tools.TimingWheel;
+import nextpresso.tools.CryptoSession;
 import nextpresso.tools.CryptoTools;
+import nextpresso.tools.NPPFrameDecoder;
 import org.junit.jupiter.api.*;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AutomatedTests {
     public static PrintWriter messageSender;
@@ -37,7 +74,11 @@ public class AutomatedTests {
         try {
             FileService fileServer = new FileService(7331);
             fileThread = new Thread(fileServer,"JunitFileServerThread");
-            serverThread = new Thread(new MessageService(1337, fileServer), "JunitServerThread");
+            //Stored messages, histories and credentials of earlier runs are never picked up
+            Path directory = Files.createTempDirectory("nextpresso-server");
+            ServerSettings settings = new ServerSettings().inboxDirectory(directory.resolve("inbox")).historyDirectory(directory.resolve("history"))
+                    .credentialFile(directory.resolve("credentials"));
+            serverThread = new Thread(new MessageService(settings, fileServer), "JunitServerThread");
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -209,6 +250,64 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ERROR_UNEXPECTED.code), "Already logged in!"),response);
     }
 
+    @Test
+    @DisplayName("BadWeather - Login again while the password is checked")
+    public void tryLoginDuringAuthentication() throws IOException {
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=Bob/password=PWBob1234!", ""));
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=Jack", ""));
+        messageSender.flush();
+
+        //The second login is refused whether or not the password check finished meanwhile
+        List<String> responses = List.of(Helper.readServerMessage(reader), Helper.readServerMessage(reader));
+        Assertions.assertTrue(responses.contains(Helper.buildProtocolString(ApiProtocol.ACKNOWLEDGE_LOGIN.code + "/authenticated=true", "Bob")));
+        Assertions.assertTrue(responses.stream().anyMatch(response -> response.startsWith((char) ApiProtocol.PROTOCOL_DATA_START.code + String.valueOf(ApiProtocol.ERROR_UNEXPECTED.code) + HEADING_END)));
+
+        //The refused name is not taken
+        messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=Jack", ""));
+        messageSender2.flush();
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.ACKNOWLEDGE_LOGIN.code + "/authenticated=false", "Jack"),Helper.readServerMessage(reader2));
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Upgrade connection to NPP/2 and log in")
+    public void upgradeToBinaryProtocol() throws IOException, NextPressoException {
+        messageSender.print(Helper.buildProtocolString(String.valueOf(ApiProtocol.REQUEST_PROTOCOL_UPGRADE.code), NPP2Codec.VERSION)); //Nothing may follow the request till it is acknowledged
+        messageSender.flush();
+        String rs = Helper.readServerMessage(reader);
+        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_PROTOCOL_UPGRADE.code), NPP2Codec.VERSION),rs);
+
+        NetSocket binarySocket = new NetSocket(socket);
+        binarySocket.useBinaryProtocol();
+        binarySocket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_LOGIN).username("BinaryUser"));
+        String response = NPP2Codec.decode(binarySocket.awaitIncomingNPP2Frame()).buildProtocolString();
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.ACKNOWLEDGE_LOGIN.code + "/authenticated=false", "BinaryUser"),response);
+    }
+
+    @Test
+    @DisplayName("BadWeather - Announce a large NPP/2 frame before logging in")
+    public void sendLargeFrameBeforeLogin() throws IOException {
+        messageSender.print(Helper.buildProtocolString(String.valueOf(ApiProtocol.REQUEST_PROTOCOL_UPGRADE.code), NPP2Codec.VERSION));
+        messageSender.flush();
+        Helper.skipMessage(reader);
+
+        //Only the length prefix is sent, the server must refuse it without waiting for the frame
+        int length = NPP2Codec.MAX_GUEST_FRAME_SIZE + 1;
+        OutputStream output = socket.getOutputStream();
+        while ((length & ~0x7F) != 0) {
+            output.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        output.write(length);
+        output.flush();
+
+        socket.setSoTimeout((int) NPPFrameDecoder.FRAME_TIMEOUT / 2); //Sooner than an unfinished frame times out
+        try {
+            Assertions.assertEquals(-1, socket.getInputStream().read());
+        } catch (SocketException e) {
+            //The connection was reset, which closes it as well
+        }
+    }
+
     @Test
     @DisplayName("BadWeather - Send acknowledge type message without the other party awaiting one")
     public void sendAcknowledgeWhenNotExpectingIt() throws IOException {
@@ -379,10 +478,10 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_BROADCAST.code), "TestBroadcast1"),response);
 
         response = Helper.readServerMessage(reader2);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/authenticated=false/sender=BroadcastSender", "TestBroadcast1"),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=BroadcastSender/authenticated=false", "TestBroadcast1"),response);
 
         response = Helper.readServerMessage(reader3);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/authenticated=false/sender=BroadcastSender", "TestBroadcast1"),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=BroadcastSender/authenticated=false", "TestBroadcast1"),response);
     }
 
     @Test
@@ -407,10 +506,10 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_BROADCAST.code), "AuthTestBroadcast1"),response);
 
         response = Helper.readServerMessage(reader2);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/authenticated=true/sender=Jack", "AuthTestBroadcast1"),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=Jack/authenticated=true", "AuthTestBroadcast1"),response);
 
         response = Helper.readServerMessage(reader3);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/authenticated=true/sender=Jack", "AuthTestBroadcast1"),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=Jack/authenticated=true", "AuthTestBroadcast1"),response);
     }
 
     @Test
@@ -435,7 +534,7 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_PRIVATE_MESSAGE.code), "TestDM1"),response);
 
         response = Helper.readServerMessage(reader2);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/authenticated=false/encrypted=false/sender=DMSender", "TestDM1"),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=DMSender/authenticated=false/encrypted=false", "TestDM1"),response);
 
         response = Helper.readServerMessage(reader3);
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.HEARTBEAT_REQUEST.code),""),response); //DM is not received, thus we will only get a heartbeat request
@@ -463,12 +562,33 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_PRIVATE_MESSAGE.code), "TestDM1"),response);
 
         response = Helper.readServerMessage(reader2);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/authenticated=true/encrypted=false/sender=Bob", "TestDM1"),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=Bob/authenticated=true/encrypted=false", "TestDM1"),response);
 
         response = Helper.readServerMessage(reader3);
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.HEARTBEAT_REQUEST.code),""),response); //DM is not received, thus we will only get a heartbeat request
     }
 
+    @Test
+    @DisplayName("GoodWeather - Direct Message to an offline user is delivered at login")
+    public void offlineDM() throws IOException {
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=OfflineDMSender", ""));
+        messageSender.flush();
+        Helper.skipMessage(reader);
+
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_PRIVATE_MESSAGE.code + "/username=Alice", "TestOfflineDM1"));
+        messageSender.flush();
+
+        String response = Helper.readServerMessage(reader);
+        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_PRIVATE_MESSAGE.code), "TestOfflineDM1"),response);
+
+        messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=Alice/password=PWAlice1234!", ""));
+        messageSender2.flush();
+        Helper.skipMessage(reader2);
+
+        response = Helper.readServerMessage(reader2);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=OfflineDMSender/authenticated=false/encrypted=false", "TestOfflineDM1"),response);
+    }
+
     @Test
     @DisplayName("GoodWeather - List users")
     public void listUsers() throws IOException {
@@ -525,7 +645,7 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_LIST_GROUPS.code), "{TestGroup2,0},{TestGroup1,1}"),response);
 
         response = Helper.readServerMessage(reader);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_SERVER_GROUP_NEW_USER.code + "/authenticated=false/groupname=TestGroup1/username=User2", ""),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_SERVER_GROUP_NEW_USER.code + "/username=User2/authenticated=false/groupname=TestGroup1", ""),response);
 
         messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_GROUP_MESSAGE.code + "/groupname=TestGroup1", "TestGroupMessage"));
         messageSender2.flush();
@@ -538,12 +658,133 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_LEAVE_GROUP.code),"TestGroup1"),response);
 
         response = Helper.readServerMessage(reader);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/authenticated=false/sender=User2/groupname=TestGroup1", "TestGroupMessage"),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=User2/groupname=TestGroup1/authenticated=false", "TestGroupMessage"),response);
 
         response = Helper.readServerMessage(reader3);
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.HEARTBEAT_REQUEST.code),""),response); //Message was not received as user 3 is not in the group. Thus, only the heartbeat was sent by the server
     }
 
+    @Test
+    @DisplayName("GoodWeather - Group history is read after joining")
+    public void groupHistory() throws IOException, NextPressoException {
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=HistoryWriter", ""));
+        messageSender.flush();
+        Helper.skipMessage(reader);
+
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_CREATE_GROUP.code + "/groupname=HistoryGroup", ""));
+        messageSender.flush();
+        Helper.skipMessage(reader);
+
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_GROUP_MESSAGE.code + "/groupname=HistoryGroup", "TestHistoryMessage"));
+        messageSender.flush();
+        Helper.skipMessage(reader);
+
+        messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=HistoryReader", ""));
+        messageSender2.flush();
+        Helper.skipMessage(reader2);
+
+        messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_JOIN_GROUP.code + "/groupname=HistoryGroup", ""));
+        messageSender2.flush();
+        Helper.skipMessage(reader2);
+
+        messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_GROUP_HISTORY.code + "/groupname=HistoryGroup/count=1", ""));
+        messageSender2.flush();
+        String response = Helper.readServerMessage(reader2);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.ACKNOWLEDGE_GROUP_HISTORY.code + "/groupname=HistoryGroup", "1"),response);
+
+        //The server starts with an empty history directory, so this is the first message of the group
+        NextPressoMessageBuilder message = new NextPressoMessageBuilder(Helper.readServerMessage(reader2));
+        Assertions.assertEquals(ApiProtocol.MESSAGE_CHAT, message.buildMessage().getHeaderCode());
+        Assertions.assertEquals("HistoryWriter", message.buildMessage().getHeaderRecords().sender());
+        Assertions.assertEquals("TestHistoryMessage", message.buildMessage().getPayload());
+        Assertions.assertEquals("1", message.buildMessage().getHeaderRecords().sequence());
+    }
+
+    @Test
+    @DisplayName("BadWeather - History of an earlier group is not handed to a group created with the same name")
+    public void groupHistoryOfRecreatedGroup() throws IOException, NextPressoException {
+        Path directory = Files.createTempDirectory("nextpresso-history");
+        GroupHistory history = new GroupHistory(directory, GroupHistory.DEFAULT_SEGMENT_SIZE, GroupHistory.DEFAULT_FLUSH_INTERVAL, GroupHistory.DEFAULT_MAX_AGE, GroupHistory.DEFAULT_MAX_BYTES);
+        OutboundFrame message = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_CHAT, "TestSecretMessage").groupname("ReusedGroup"));
+        Assertions.assertEquals(1, history.append("ReusedGroup", message));
+
+        //The group is created anew, e.g. after a restart of the server
+        history.reset("ReusedGroup");
+        Assertions.assertTrue(history.readLast("ReusedGroup", GroupHistory.MAX_READ_MESSAGES).isEmpty());
+        Assertions.assertTrue(history.readAfter("ReusedGroup", 0, GroupHistory.MAX_READ_MESSAGES).isEmpty());
+        Assertions.assertEquals(2, history.append("ReusedGroup", message)); //Numbers of the earlier group are not used again
+
+        //The earlier messages are gone from disk as well
+        GroupHistory reopened = new GroupHistory(directory, GroupHistory.DEFAULT_SEGMENT_SIZE, GroupHistory.DEFAULT_FLUSH_INTERVAL, GroupHistory.DEFAULT_MAX_AGE, GroupHistory.DEFAULT_MAX_BYTES);
+        Assertions.assertEquals(1, reopened.readAfter("ReusedGroup", 0, GroupHistory.MAX_READ_MESSAGES).size());
+        Assertions.assertEquals(3, reopened.append("ReusedGroup", message));
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Resume a session and get the missed messages")
+    public void resumeSession() throws IOException, NextPressoException {
+        messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/session=true/username=SessionUser", ""));
+        messageSender2.flush();
+        NextPressoMessageBuilder login = new NextPressoMessageBuilder(Helper.readServerMessage(reader2));
+        String token = login.buildMessage().getHeaderRecords().session();
+        Assertions.assertNotNull(token);
+        socket2.close(); //Connection is lost
+
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=SessionSender", ""));
+        messageSender.flush();
+        Helper.skipMessage(reader);
+
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_PRIVATE_MESSAGE.code + "/username=SessionUser", "TestMissedDM"));
+        messageSender.flush();
+        String response = Helper.readServerMessage(reader);
+        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_PRIVATE_MESSAGE.code), "TestMissedDM"),response);
+
+        messageSender3.println(Helper.buildProtocolString(ApiProtocol.REQUEST_RESUME_SESSION.code + "/delivery=0/session=" + token, ""));
+        messageSender3.flush();
+        NextPressoMessageBuilder resume = new NextPressoMessageBuilder(Helper.readServerMessage(reader3));
+        Assertions.assertEquals(ApiProtocol.ACKNOWLEDGE_RESUME_SESSION, resume.buildMessage().getHeaderCode());
+        Assertions.assertEquals("SessionUser", resume.buildMessage().getHeaderRecords().username());
+        Assertions.assertEquals("1", resume.buildMessage().getPayload());
+
+        NextPressoMessageBuilder message = new NextPressoMessageBuilder(Helper.readServerMessage(reader3));
+        Assertions.assertEquals(ApiProtocol.MESSAGE_CHAT, message.buildMessage().getHeaderCode());
+        Assertions.assertEquals("SessionSender", message.buildMessage().getHeaderRecords().sender());
+        Assertions.assertEquals("1", message.buildMessage().getHeaderRecords().delivery());
+        Assertions.assertEquals("TestMissedDM", message.buildMessage().getPayload());
+
+        //Logging out ends the session, so the user is not kept for the other tests
+        messageSender3.println(Helper.buildProtocolString(String.valueOf(ApiProtocol.REQUEST_LOGOUT.code), ""));
+        messageSender3.flush();
+        Helper.skipMessage(reader3);
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Log in again with a token instead of the password")
+    public void loginToken() throws IOException, NextPressoException {
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/token=true/username=Jack/password=PWJack1234!", ""));
+        messageSender.flush();
+        NextPressoMessageBuilder login = new NextPressoMessageBuilder(Helper.readServerMessage(reader));
+        String token = login.buildMessage().getHeaderRecords().token();
+        Assertions.assertNotNull(token);
+
+        messageSender.println(Helper.buildProtocolString(String.valueOf(ApiProtocol.REQUEST_LOGOUT.code), ""));
+        messageSender.flush();
+        Helper.skipMessage(reader);
+
+        messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=Bob/token=" + token, ""));
+        messageSender2.flush();
+        String response = Helper.readServerMessage(reader2);
+        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ERROR_UNAUTHORIZED.code), "Token is invalid or expired!"),response);
+
+        messageSender3.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=Jack/token=" + token, ""));
+        messageSender3.flush();
+        NextPressoMessageBuilder relogin = new NextPressoMessageBuilder(Helper.readServerMessage(reader3));
+        Assertions.assertEquals(ApiProtocol.ACKNOWLEDGE_LOGIN, relogin.buildMessage().getHeaderCode());
+        Assertions.assertTrue(relogin.buildMessage().getHeaderRecords().isTrue(HeaderKey.AUTHENTICATED));
+        Assertions.assertEquals("Jack", relogin.buildMessage().getPayload());
+        Assertions.assertNotNull(relogin.buildMessage().getHeaderRecords().token());
+    }
+
     @Test
     @DisplayName("BadWeather - Create group twice")
     public void listGroups() throws IOException {
@@ -602,7 +843,7 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_SEND_FILE.code), "test.txt"),response);
 
         response = Helper.readServerMessage(reader2);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_SEND_FILE.code + "/filename=test.txt/sender=FileSenderUser/filelength=123/checksum=2187f15067488bff528612492a810c42/username=FileReceiverUser", ""),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_SEND_FILE.code + "/sender=FileSenderUser/username=FileReceiverUser/filename=test.txt/checksum=2187f15067488bff528612492a810c42/filelength=123", ""),response);
     }
 
     @Test
@@ -669,7 +910,7 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_SEND_FILE.code), "test.txt"),response);
 
         response = Helper.readServerMessage(reader2);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_SEND_FILE.code + "/filename=test.txt/sender=FileSenderUser/filelength=123/checksum=2187f15067488bff528612492a810c42/username=FileReceiverUser", ""),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_SEND_FILE.code + "/sender=FileSenderUser/username=FileReceiverUser/filename=test.txt/checksum=2187f15067488bff528612492a810c42/filelength=123", ""),response);
 
         messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_RECEIVE_FILE.code + "/username=FileSenderUser/filename=test.txt/accepted=false", ""));
         messageSender2.flush();
@@ -678,7 +919,7 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_RECEIVE_FILE.code), "test.txt"),response);
 
         response = Helper.readServerMessage(reader);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_RECEIVE_FILE.code + "/filename=test.txt/sender=FileReceiverUser/accepted=false/username=FileSenderUser", ""),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_RECEIVE_FILE.code + "/sender=FileReceiverUser/username=FileSenderUser/filename=test.txt/accepted=false", ""),response);
     }
 
     @Test
@@ -699,7 +940,7 @@ public class AutomatedTests {
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_SEND_FILE.code), "test.txt"),response);
 
         response = Helper.readServerMessage(reader2);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_SEND_FILE.code + "/filename=test.txt/sender=FileSenderUser/filelength=123/checksum=2187f15067488bff528612492a810c42/username=FileReceiverUser", ""),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_SEND_FILE.code + "/sender=FileSenderUser/username=FileReceiverUser/filename=test.txt/checksum=2187f15067488bff528612492a810c42/filelength=123", ""),response);
 
         messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_RECEIVE_FILE.code + "/username=anonymous/filename=test.txt/accepted=false", ""));
         messageSender2.flush();
@@ -728,7 +969,7 @@ public class AutomatedTests {
         String response = Helper.readServerMessage(reader);
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_SEND_FILE.code), "test.txt"),response);
         String response2 = Helper.readServerMessage(reader2);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_SEND_FILE.code + "/filename=test.txt/sender=Bob/filelength="+file.length()+"/checksum="+hash+"/username=Jack", ""),response2);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_SEND_FILE.code + "/sender=Bob/username=Jack/filename=test.txt/checksum="+hash+"/filelength="+file.length(), ""),response2);
 
         //Accept file
         messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_RECEIVE_FILE.code + "/username=Bob/filename=test.txt/accepted=true", ""));
@@ -736,7 +977,7 @@ public class AutomatedTests {
         response = Helper.readServerMessage(reader2);
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_RECEIVE_FILE.code), "test.txt"),response);
         response = Helper.readServerMessage(reader);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_RECEIVE_FILE.code + "/filename=test.txt/sender=Jack/accepted=true/username=Bob", ""),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_RECEIVE_FILE.code + "/sender=Jack/username=Bob/filename=test.txt/accepted=true", ""),response);
 
         //Open file sockets
         NetSocket bobFileSocket = new NetSocket("localhost",7331);
@@ -787,7 +1028,7 @@ public class AutomatedTests {
         String response = Helper.readServerMessage(reader);
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_SEND_FILE.code), "test.txt"),response);
         String response2 = Helper.readServerMessage(reader2);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_SEND_FILE.code + "/filename=test.txt/sender=Bob/filelength="+file.length()+"/checksum="+hash+"/username=Jack", ""),response2);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_SEND_FILE.code + "/sender=Bob/username=Jack/filename=test.txt/checksum="+hash+"/filelength="+file.length(), ""),response2);
 
         //Accept file
         messageSender2.println(Helper.buildProtocolString(ApiProtocol.REQUEST_RECEIVE_FILE.code + "/username=Bob/filename=test.txt/accepted=true", ""));
@@ -795,7 +1036,7 @@ public class AutomatedTests {
         response = Helper.readServerMessage(reader2);
         Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_RECEIVE_FILE.code), "test.txt"),response);
         response = Helper.readServerMessage(reader);
-        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_RECEIVE_FILE.code + "/filename=test.txt/sender=Jack/accepted=true/username=Bob", ""),response);
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.REQUEST_RECEIVE_FILE.code + "/sender=Jack/username=Bob/filename=test.txt/accepted=true", ""),response);
 
         //Open file sockets
         NetSocket bobFileSocket = new NetSocket("localhost",7331);
@@ -843,7 +1084,7 @@ public class AutomatedTests {
         //Invalid data provided
         messageSender.println(Helper.buildProtocolString(String.valueOf(ApiProtocol.REQUEST_SUBMIT_KEY.code),"SomethingWrong"));
         String response = Helper.readServerMessage(reader);
-        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ERROR_INVALID_DATA_FORMAT.code),"Provided data is not a valid X.509 encoded RSA Public Key!"),response);
+        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ERROR_INVALID_DATA_FORMAT.code),"Provided data is not a valid X.509 encoded RSA or X25519 Public Key!"),response);
     }
 
     @Test
@@ -994,4 +1235,619 @@ public class AutomatedTests {
         String decryptedMessage = CryptoTools.decryptAESString(gotAESKey,gotIV,gotMessage);
         Assertions.assertEquals(message,decryptedMessage);
     }
+
+    @Test
+    @DisplayName("GoodWeather - Reuse a crypto session for many messages on many threads")
+    public void reuseCryptoSession() throws InvalidKeySpecException, InterruptedException {
+        String aesKey = Base64.getEncoder().encodeToString(CryptoTools.generateAESKey().getEncoded());
+        String iv = Base64.getEncoder().encodeToString(CryptoTools.generateIv().getIV());
+        CryptoSession session = CryptoSession.aes(aesKey, iv);
+        KeyPair keyPair = CryptoTools.generateRSAKeyPair();
+        CryptoSession publicKey = CryptoSession.rsaPublic(Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded()));
+        CryptoSession privateKey = CryptoSession.rsaPrivate(Base64.getEncoder().encodeToString(keyPair.getPrivate().getEncoded()));
+
+        //Same results as the one shot helpers, a broken message does not break the next one
+        Assertions.assertEquals(CryptoTools.encryptAESString(aesKey, iv, "Hello"), session.encrypt("Hello"));
+        Assertions.assertNull(session.decrypt("bm90IGVuY3J5cHRlZA=="));
+        Assertions.assertEquals("Hello", session.decrypt(session.encrypt("Hello")));
+        Assertions.assertEquals(aesKey, privateKey.decrypt(publicKey.encrypt(aesKey)));
+        Assertions.assertNull(publicKey.decrypt(publicKey.encrypt(aesKey)));
+        Assertions.assertThrows(InvalidKeySpecException.class, () -> CryptoSession.rsaPublic("not a key"));
+
+        //Every thread keeps its own Cipher
+        Thread[] threads = new Thread[4];
+        boolean[] matched = new boolean[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                boolean allMatched = true;
+                for (int i = 0; i < 200; i++) {
+                    String message = "Message " + i + " of thread " + thread;
+                    allMatched &= message.equals(session.decrypt(session.encrypt(message)));
+                }
+                matched[thread] = allMatched;
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            Assertions.assertTrue(matched[t]);
+        }
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Send a sealed AES-GCM direct message as a binary body")
+    public void sendSealedDM() throws IOException, NextPressoException {
+        CryptoSession session = CryptoSession.aesGcm(Base64.getEncoder().encodeToString(CryptoTools.generateAESKey().getEncoded()));
+        NetSocket[] binarySockets = new NetSocket[2];
+        java.net.Socket[] sockets = {socket, socket2};
+        PrintWriter[] senders = {messageSender, messageSender2};
+        BufferedReader[] readers = {reader, reader2};
+        String[] usernames = {"SealedSender", "SealedReceiver"};
+        for (int i = 0; i < 2; i++) {
+            senders[i].print(Helper.buildProtocolString(String.valueOf(ApiProtocol.REQUEST_PROTOCOL_UPGRADE.code), NPP2Codec.VERSION));
+            senders[i].flush();
+            Helper.skipMessage(readers[i]);
+            binarySockets[i] = new NetSocket(sockets[i]);
+            binarySockets[i].useBinaryProtocol();
+            binarySockets[i].sendMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_LOGIN).username(usernames[i]));
+            NPP2Codec.decode(binarySockets[i].awaitIncomingNPP2Frame());
+        }
+        messageSender3.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=SealedLegacy", ""));
+        messageSender3.flush();
+        Helper.skipMessage(reader3);
+
+        //Every message gets its own nonce, the body carries the raw bytes
+        String message = "This is a test message to be sealed.";
+        byte[] sealed = session.seal(message);
+        Assertions.assertEquals(12 + message.length() + 16, sealed.length);
+        Assertions.assertFalse(Arrays.equals(sealed, session.seal(message)));
+        binarySockets[0].sendMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_PRIVATE_MESSAGE, NPP2Codec.toBinaryBody(sealed)).username("SealedReceiver").encrypted(HeaderRecords.ENCRYPTION_AES_GCM));
+        Message acknowledgement = NPP2Codec.decode(binarySockets[0].awaitIncomingNPP2Frame()).buildMessage();
+        Assertions.assertEquals(ApiProtocol.ACKNOWLEDGE_PRIVATE_MESSAGE, acknowledgement.getHeaderCode());
+
+        Message received = NPP2Codec.decode(binarySockets[1].awaitIncomingNPP2Frame()).buildMessage();
+        Assertions.assertEquals(ApiProtocol.MESSAGE_CHAT, received.getHeaderCode());
+        Assertions.assertTrue(received.getHeaderRecords().hasBinaryBody());
+        Assertions.assertArrayEquals(sealed, NPP2Codec.fromBinaryBody(received.getPayload()));
+        Assertions.assertEquals(message, session.open(NPP2Codec.fromBinaryBody(received.getPayload())));
+
+        //A changed message is refused, an NPP/1.1 connection cannot take binary bodies
+        sealed[sealed.length - 1] ^= 1;
+        Assertions.assertNull(session.open(sealed));
+        binarySockets[0].sendMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_PRIVATE_MESSAGE, NPP2Codec.toBinaryBody(sealed)).username("SealedLegacy").encrypted(HeaderRecords.ENCRYPTION_AES_GCM));
+        Message refusal = NPP2Codec.decode(binarySockets[0].awaitIncomingNPP2Frame()).buildMessage();
+        Assertions.assertEquals(ApiProtocol.ERROR_NOT_ALLOWED, refusal.getHeaderCode());
+        Assertions.assertEquals("SealedLegacy", refusal.getHeaderRecords().username()); //The client sends it again as AES-CBC
+
+        //A registered user that is offline may log in again with NPP/1.1, so a binary body is not stored for later
+        binarySockets[0].sendMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_PRIVATE_MESSAGE, NPP2Codec.toBinaryBody(sealed)).username("Alice").encrypted(HeaderRecords.ENCRYPTION_AES_GCM));
+        refusal = NPP2Codec.decode(binarySockets[0].awaitIncomingNPP2Frame()).buildMessage();
+        Assertions.assertEquals(ApiProtocol.ERROR_NOT_ALLOWED, refusal.getHeaderCode());
+        Assertions.assertEquals("Alice", refusal.getHeaderRecords().username());
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Agree on a session key with X25519")
+    public void agreeX25519SessionKey() throws IOException, InvalidKeySpecException {
+        //RFC 5869 test case 1
+        HexFormat hex = HexFormat.of();
+        byte[] okm = CryptoTools.hkdfSha256(hex.parseHex("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b"), hex.parseHex("000102030405060708090a0b0c"), hex.parseHex("f0f1f2f3f4f5f6f7f8f9"), 42);
+        Assertions.assertEquals("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865", hex.formatHex(okm));
+
+        //Both sides derive the same key, only the ephemeral public key is sent
+        KeyPair receiver = CryptoTools.generateX25519KeyPair();
+        KeyPair ephemeral = CryptoTools.generateX25519KeyPair();
+        String receiverKey = Base64.getEncoder().encodeToString(receiver.getPublic().getEncoded());
+        String ephemeralKey = Base64.getEncoder().encodeToString(ephemeral.getPublic().getEncoded());
+        CryptoTools.SessionKey senderSide = CryptoTools.agreeSessionKey(ephemeral.getPrivate(), receiverKey, ephemeralKey);
+        CryptoTools.SessionKey receiverSide = CryptoTools.agreeSessionKey(receiver.getPrivate(), ephemeralKey, ephemeralKey);
+        Assertions.assertEquals(senderSide, receiverSide);
+        Assertions.assertEquals("Hello", CryptoSession.aes(receiverSide.b64Key(), receiverSide.b64Iv()).decrypt(CryptoSession.aes(senderSide.b64Key(), senderSide.b64Iv()).encrypt("Hello")));
+        Assertions.assertEquals("Hello", CryptoSession.aesGcm(receiverSide.b64SealingKey()).open(CryptoSession.aesGcm(senderSide.b64SealingKey()).seal("Hello")));
+        Assertions.assertNotEquals(senderSide.b64Key(), senderSide.b64SealingKey()); //AES-CBC and AES-GCM never share a key
+        Assertions.assertThrows(InvalidKeySpecException.class, () -> CryptoTools.agreeSessionKey(receiver.getPrivate(), "not a key", ephemeralKey));
+
+        //The server takes X25519 keys
+        messageSender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=Bob", ""));
+        messageSender.flush();
+        Helper.skipMessage(reader);
+        messageSender.println(Helper.buildProtocolString(String.valueOf(ApiProtocol.REQUEST_SUBMIT_KEY.code),receiverKey));
+        String response = Helper.readServerMessage(reader);
+        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_SUBMIT_KEY.code), receiverKey),response);
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Route direct messages, broadcasts and logins between two nodes of a cluster")
+    public void clusterOfTwoNodes() throws IOException, InterruptedException, NextPressoException {
+        //Two nodes on this machine that link with each other
+        for (int node = 0; node < 2; node++) {
+            Path directory = Files.createTempDirectory("nextpresso-cluster");
+            ClusterSettings settings = new ClusterSettings("JunitNode" + node, 1350 + node, List.of(new InetSocketAddress("localhost", 1351 - node)), "JunitClusterSecret");
+            MessageService nodeService = new MessageService(new ServerSettings().messagePort(1340 + node).cluster(settings).inboxDirectory(directory.resolve("inbox"))
+                    .historyDirectory(directory.resolve("history")).credentialFile(directory.resolve("credentials")), new FileService(7340 + node));
+            new Thread(nodeService, "JunitClusterNodeThread-" + node).start();
+        }
+
+        //Alice is on the first node, Carol and a second Alice on the other one
+        java.net.Socket[] sockets = {new java.net.Socket("localhost", 1340), new java.net.Socket("localhost", 1341), new java.net.Socket("localhost", 1341)};
+        PrintWriter[] senders = new PrintWriter[sockets.length];
+        BufferedReader[] readers = new BufferedReader[sockets.length];
+        for (int i = 0; i < sockets.length; i++) {
+            senders[i] = new PrintWriter(sockets[i].getOutputStream(), true);
+            readers[i] = new BufferedReader(new InputStreamReader(sockets[i].getInputStream()));
+            Helper.skipMessage(readers[i]); //Skip welcome message
+        }
+        senders[0].println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=ClusterAlice", ""));
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.ACKNOWLEDGE_LOGIN.code + "/authenticated=false", "ClusterAlice"), readAnsweringHeartbeats(readers[0], senders[0]));
+        senders[1].println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=ClusterCarol", ""));
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.ACKNOWLEDGE_LOGIN.code + "/authenticated=false", "ClusterCarol"), readAnsweringHeartbeats(readers[1], senders[1]));
+
+        //The nodes link within a few attempts, then each lists the user of the other
+        Assertions.assertTrue(awaitListedUser(senders[1], readers[1], "ClusterAlice"));
+        Assertions.assertTrue(awaitListedUser(senders[0], readers[0], "ClusterCarol"));
+
+        //A user that is logged in on another node cannot log in again
+        senders[2].println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=ClusterAlice", ""));
+        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ERROR_USER_ALREADY_LOGGED_IN.code), "User is already logged in!"), readAnsweringHeartbeats(readers[2], senders[2]));
+
+        //Direct message to the other node
+        senders[1].println(Helper.buildProtocolString(ApiProtocol.REQUEST_PRIVATE_MESSAGE.code + "/username=ClusterAlice", "Hello from the other node"));
+        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_PRIVATE_MESSAGE.code), "Hello from the other node"), readAnsweringHeartbeats(readers[1], senders[1]));
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=ClusterCarol/authenticated=false/encrypted=false", "Hello from the other node"), readAnsweringHeartbeats(readers[0], senders[0]));
+
+        //Broadcast to the other node
+        senders[0].println(Helper.buildProtocolString(ApiProtocol.REQUEST_BROADCAST.code + "", "Hello cluster"));
+        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ACKNOWLEDGE_BROADCAST.code), "Hello cluster"), readAnsweringHeartbeats(readers[0], senders[0]));
+        Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=ClusterAlice/authenticated=false", "Hello cluster"), readAnsweringHeartbeats(readers[1], senders[1]));
+
+        //The other node knows that Carol is on NPP/1.1, so a binary body for her is refused before it is acknowledged
+        java.net.Socket binarySocket = new java.net.Socket("localhost", 1340);
+        PrintWriter binarySender = new PrintWriter(binarySocket.getOutputStream(), true);
+        BufferedReader binaryReader = new BufferedReader(new InputStreamReader(binarySocket.getInputStream()));
+        Helper.skipMessage(binaryReader);
+        binarySender.print(Helper.buildProtocolString(String.valueOf(ApiProtocol.REQUEST_PROTOCOL_UPGRADE.code), NPP2Codec.VERSION));
+        binarySender.flush();
+        Helper.skipMessage(binaryReader);
+        NetSocket sealer = new NetSocket(binarySocket);
+        sealer.useBinaryProtocol();
+        sealer.sendMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_LOGIN).username("ClusterSealer"));
+        Assertions.assertEquals(ApiProtocol.ACKNOWLEDGE_LOGIN, readBinaryAnsweringHeartbeats(sealer).getHeaderCode());
+        sealer.sendMessage(new NextPressoMessageBuilder(ApiProtocol.REQUEST_PRIVATE_MESSAGE, NPP2Codec.toBinaryBody(new byte[]{1, 2, 3})).username("ClusterCarol").encrypted(HeaderRecords.ENCRYPTION_AES_GCM));
+        Assertions.assertEquals(ApiProtocol.ERROR_NOT_ALLOWED, readBinaryAnsweringHeartbeats(sealer).getHeaderCode());
+
+        binarySocket.close();
+        for (java.net.Socket clusterSocket : sockets) clusterSocket.close();
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Drop the oldest queued messages of a saturated client")
+    public void outboundQueueDropOldest() {
+        OutboundLimits limits = new OutboundLimits(2, OutboundLimits.DEFAULT_MAX_BYTES, SlowConsumerPolicy.DROP_OLDEST);
+        OutboundQueue queue = new OutboundQueue(limits);
+        OutboundFrame first = chatFrame("First"), second = chatFrame("Second"), third = chatFrame("Third");
+        Assertions.assertTrue(queue.offer(first));
+        Assertions.assertTrue(queue.offer(second));
+        Assertions.assertTrue(queue.offer(third));
+
+        List<OutboundFrame> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        Assertions.assertEquals(List.of(second, third), batch);
+        Assertions.assertEquals(1, limits.getDroppedMessages());
+        Assertions.assertEquals(0, limits.getQueuedMessages());
+        Assertions.assertEquals(0, limits.getQueuedBytes());
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Drop chat messages of a saturated client and keep critical ones up to the hard cap")
+    public void outboundQueueDropNonCritical() {
+        OutboundLimits limits = new OutboundLimits(2, OutboundLimits.DEFAULT_MAX_BYTES, SlowConsumerPolicy.DROP_NON_CRITICAL);
+        OutboundQueue queue = new OutboundQueue(limits);
+        OutboundFrame first = chatFrame("First"), second = chatFrame("Second");
+        Assertions.assertTrue(queue.offer(first));
+        Assertions.assertTrue(queue.offer(second));
+        Assertions.assertFalse(queue.offer(chatFrame("Third"))); //Chat messages over the budget are dropped
+        Assertions.assertEquals(1, limits.getDroppedMessages());
+
+        //A critical message takes the place of the oldest chat message
+        OutboundFrame key = new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.ENCRYPTION_SET_KEY, "Key"));
+        Assertions.assertTrue(queue.offer(key));
+        Assertions.assertEquals(2, queue.size());
+        Assertions.assertEquals(2, limits.getDroppedMessages());
+
+        //Critical messages replace the last chat message, then fill the queue over the budget up to its hard cap
+        while (queue.size() < limits.getHardMaxMessages()) Assertions.assertTrue(queue.offer(key));
+        Assertions.assertEquals(3, limits.getDroppedMessages());
+        Assertions.assertFalse(queue.isOverflowed());
+        Assertions.assertFalse(queue.offer(key)); //The client must be disconnected now
+        Assertions.assertTrue(queue.isOverflowed());
+        Assertions.assertEquals(limits.getHardMaxMessages(), limits.getQueuedMessages());
+        Assertions.assertEquals(4, limits.getDroppedMessages());
+
+        List<OutboundFrame> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        Assertions.assertFalse(batch.contains(first) || batch.contains(second));
+        Assertions.assertEquals(limits.getHardMaxMessages(), batch.size());
+        Assertions.assertEquals(0, limits.getQueuedMessages());
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Refuse messages for a saturated client that is disconnected")
+    public void outboundQueueDisconnect() {
+        OutboundLimits limits = new OutboundLimits(2, OutboundLimits.DEFAULT_MAX_BYTES, SlowConsumerPolicy.DISCONNECT);
+        OutboundQueue queue = new OutboundQueue(limits);
+        Assertions.assertTrue(queue.offer(chatFrame("First")));
+        Assertions.assertTrue(queue.offer(chatFrame("Second")));
+        Assertions.assertFalse(queue.offer(new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.ENCRYPTION_SET_KEY, "Key")))); //Critical or not
+        Assertions.assertEquals(2, queue.size());
+        Assertions.assertEquals(1, limits.getDroppedMessages());
+
+        queue.close();
+        Assertions.assertFalse(queue.offer(chatFrame("Third")));
+        Assertions.assertTrue(queue.isEmpty());
+        Assertions.assertEquals(0, limits.getQueuedMessages());
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Spill the messages of a saturated client to disk and read them back in order")
+    public void outboundQueueSpillToDisk() {
+        OutboundLimits limits = new OutboundLimits(2, OutboundLimits.DEFAULT_MAX_BYTES, SlowConsumerPolicy.SPILL_TO_DISK);
+        OutboundQueue queue = new OutboundQueue(limits);
+        List<OutboundFrame> offered = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            OutboundFrame frame = chatFrame("Message" + i);
+            offered.add(frame);
+            Assertions.assertTrue(queue.offer(frame));
+        }
+        Assertions.assertEquals(5, queue.size());
+        Assertions.assertEquals(2, limits.getQueuedMessages());
+        Assertions.assertEquals(3, limits.getSpilledMessages());
+
+        //Every drain reads back as many spilled messages as the budget allows
+        List<OutboundFrame> batch = new ArrayList<>();
+        while (!queue.isEmpty()) queue.drainTo(batch);
+        Assertions.assertEquals(5, batch.size());
+        for (int i = 0; i < batch.size(); i++) Assertions.assertEquals(offered.get(i).toBuffer(true), batch.get(i).toBuffer(true));
+        Assertions.assertEquals(0, limits.getSpilledMessages());
+        Assertions.assertEquals(0, limits.getDroppedMessages());
+    }
+
+    @Test
+    @DisplayName("BadWeather - Send direct messages to a user that does not read them")
+    public void sendDMToSaturatedUser() throws IOException {
+        Path directory = Files.createTempDirectory("nextpresso-saturated");
+        MessageService saturatedService = new MessageService(new ServerSettings().messagePort(1345).maxQueuedMessages(2).maxQueuedBytes(64 * 1024).slowConsumerPolicy(SlowConsumerPolicy.DROP_NON_CRITICAL)
+                .inboxDirectory(directory.resolve("inbox")).historyDirectory(directory.resolve("history")).credentialFile(directory.resolve("credentials")), new FileService(7345));
+        OutboundLimits limits = saturatedService.getOutboundLimits();
+        new Thread(saturatedService, "JunitSaturatedServerThread").start();
+
+        //The receiver never reads, so the socket buffers fill up and the messages wait in its queue
+        java.net.Socket receiverSocket = new java.net.Socket();
+        receiverSocket.setReceiveBufferSize(4096);
+        receiverSocket.connect(new InetSocketAddress("localhost", 1345));
+        PrintWriter receiver = new PrintWriter(receiverSocket.getOutputStream(), true);
+        receiver.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=SlowReader", ""));
+
+        java.net.Socket senderSocket = new java.net.Socket("localhost", 1345);
+        PrintWriter sender = new PrintWriter(senderSocket.getOutputStream(), true);
+        BufferedReader senderReader = new BufferedReader(new InputStreamReader(senderSocket.getInputStream()));
+        Helper.skipMessage(senderReader);
+        sender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=FastWriter", ""));
+        Helper.skipMessage(senderReader);
+
+        String message = "x".repeat(32 * 1024);
+        String response = null;
+        for (int i = 0; i < 1000 && (response == null || !response.startsWith((char) ApiProtocol.PROTOCOL_DATA_START.code + String.valueOf(ApiProtocol.ERROR_TARGET_SATURATED.code))); i++) {
+            sender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_PRIVATE_MESSAGE.code + "/username=SlowReader", message));
+            response = Helper.readServerMessage(senderReader);
+        }
+        Assertions.assertEquals(Helper.buildProtocolString(String.valueOf(ApiProtocol.ERROR_TARGET_SATURATED.code), "Message target user cannot take more messages right now!"), response);
+        Assertions.assertTrue(limits.getDroppedMessages() > 0);
+        Assertions.assertTrue(limits.getQueuedMessages() <= limits.getMaxMessages());
+        receiverSocket.close();
+        senderSocket.close();
+        saturatedService.close();
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Parse a credential file with comments, CRLF line ends and a user that is listed twice")
+    public void parseCredentialFile() throws IOException {
+        Path file = Files.createTempDirectory("nextpresso-credentials").resolve("credentials");
+        Files.writeString(file, "# Users of the test\r\n"
+                + "Bob:100:86f9e2d8ef2edd0afb78a2cc702dcf98:e2be23bdd5e09982c7c72108275a6d78\r\n"
+                + "\r\n"
+                + "Alice:100:a5a2fb65e1a0f4bedccfe04993f5583f:94397e3eade0511006ca3d31960f29e9\n"
+                + "Bob:250:AEFD9E0B87E779663443885D631F9C8B:b9f0e34b2b4a422c70b5ddeff071590c");
+        try (CredentialStore store = new CredentialStore(file)) {
+            Assertions.assertEquals(2, store.size());
+            Assertions.assertTrue(store.contains("Alice"));
+            Assertions.assertFalse(store.contains("# Users of the test"));
+            Assertions.assertFalse(store.contains("Jack"));
+            //The last line of a user wins
+            CredentialStore.Credential bob = store.get("Bob");
+            Assertions.assertEquals(250, bob.iterations);
+            Assertions.assertArrayEquals(HexFormat.of().parseHex("aefd9e0b87e779663443885d631f9c8b"), bob.salt);
+            Assertions.assertArrayEquals(HexFormat.of().parseHex("b9f0e34b2b4a422c70b5ddeff071590c"), bob.hash);
+            Assertions.assertArrayEquals(HexFormat.of().parseHex("94397e3eade0511006ca3d31960f29e9"), store.get("Alice").hash);
+        }
+    }
+
+    @Test
+    @DisplayName("BadWeather - Open a credential file with invalid lines")
+    public void parseInvalidCredentialFile() throws IOException {
+        Path directory = Files.createTempDirectory("nextpresso-credentials");
+        String[] invalidLines = {
+                "Bob:100:86f9e2d8ef2edd0afb78a2cc702dcf9g:e2be23bdd5e09982c7c72108275a6d78", //Not hexadecimal
+                "Bob:100:86f9e2d8ef2edd0afb78a2cc702dcf9:e2be23bdd5e09982c7c72108275a6d78", //Odd number of digits
+                "Bob:100:86f9e2d8ef2edd0afb78a2cc702dcf98", //Missing hash
+                "Bob:0:86f9e2d8ef2edd0afb78a2cc702dcf98:e2be23bdd5e09982c7c72108275a6d78", //No iterations
+                ":100:86f9e2d8ef2edd0afb78a2cc702dcf98:e2be23bdd5e09982c7c72108275a6d78" //No username
+        };
+        for (int i = 0; i < invalidLines.length; i++) {
+            Path file = directory.resolve("credentials-" + i);
+            Files.writeString(file, "Alice:100:a5a2fb65e1a0f4bedccfe04993f5583f:94397e3eade0511006ca3d31960f29e9\n" + invalidLines[i] + "\n");
+            Assertions.assertThrows(IllegalArgumentException.class, () -> new CredentialStore(file), invalidLines[i]);
+        }
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Reload a credential file when it changes and keep the users when the new file is invalid")
+    public void reloadCredentialFile() throws IOException, InterruptedException {
+        Path file = Files.createTempDirectory("nextpresso-credentials").resolve("credentials");
+        Files.writeString(file, "Bob:100:86f9e2d8ef2edd0afb78a2cc702dcf98:e2be23bdd5e09982c7c72108275a6d78\n");
+        try (CredentialStore store = new CredentialStore(file)) {
+            Assertions.assertFalse(store.contains("Alice"));
+            Files.writeString(file, "Bob:100:86f9e2d8ef2edd0afb78a2cc702dcf98:e2be23bdd5e09982c7c72108275a6d78\n"
+                    + "Alice:100:a5a2fb65e1a0f4bedccfe04993f5583f:94397e3eade0511006ca3d31960f29e9\n");
+            //The watcher picks up the change on its own
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!store.contains("Alice") && System.currentTimeMillis() < deadline) Thread.sleep(50);
+            Assertions.assertTrue(store.contains("Alice"));
+            Assertions.assertEquals(2, store.size());
+
+            //A broken file keeps the users that were read before
+            Files.writeString(file, "Jack:100:not-hexadecimal:b9f0e34b2b4a422c70b5ddeff071590c\n");
+            Assertions.assertFalse(store.reload());
+            Thread.sleep(500); //Give the watcher the time to read the broken file as well
+            Assertions.assertEquals(2, store.size());
+            Assertions.assertTrue(store.contains("Bob"));
+            Assertions.assertTrue(store.contains("Alice"));
+            Assertions.assertFalse(store.contains("Jack"));
+        }
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Run a task of the timing wheel once its delay has passed")
+    public void timingWheelSchedule() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(10, 4, "JunitTimingWheel");
+        CountDownLatch ran = new CountDownLatch(1);
+        AtomicLong ranAt = new AtomicLong();
+        long start = System.currentTimeMillis();
+        TimingWheel.Timeout timeout = wheel.schedule(() -> {
+            ranAt.set(System.currentTimeMillis());
+            ran.countDown();
+        }, 30, TimeUnit.MILLISECONDS);
+        Assertions.assertTrue(ran.await(1, TimeUnit.SECONDS));
+        Assertions.assertTrue(ranAt.get() - start >= 30);
+        Assertions.assertFalse(timeout.cancel()); //The task already ran
+        Assertions.assertFalse(timeout.isCancelled());
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Cancel a task of the timing wheel before it runs")
+    public void timingWheelCancel() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(10, 4, "JunitTimingWheel");
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch later = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+        wheel.schedule(later::countDown, 100, TimeUnit.MILLISECONDS);
+        Assertions.assertTrue(timeout.cancel());
+        Assertions.assertFalse(timeout.cancel()); //Only the first cancel counts
+        Assertions.assertTrue(timeout.isCancelled());
+        Assertions.assertTrue(later.await(1, TimeUnit.SECONDS)); //The wheel passed the deadline of the cancelled task
+        Assertions.assertEquals(0, runs.get());
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Run a task of the timing wheel that is more than a full turn of the wheel away")
+    public void timingWheelWrapAround() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(10, 4, "JunitTimingWheel"); //A full turn takes 40 milliseconds
+        List<Long> ranAfter = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch ran = new CountDownLatch(2);
+        long start = System.currentTimeMillis();
+        //Both tasks land in the same bucket, but the later one has to wait for 3 more turns
+        wheel.schedule(() -> {
+            ranAfter.add(System.currentTimeMillis() - start);
+            ran.countDown();
+        }, 130, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> {
+            ranAfter.add(System.currentTimeMillis() - start);
+            ran.countDown();
+        }, 10, TimeUnit.MILLISECONDS);
+        Assertions.assertTrue(ran.await(2, TimeUnit.SECONDS));
+        Assertions.assertTrue(ranAfter.get(0) >= 10);
+        Assertions.assertTrue(ranAfter.get(1) >= 130);
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Kick only the inactive member of a group")
+    public void groupInactivityKick() throws InterruptedException {
+        GroupRegistry groups = new GroupRegistry();
+        ChatGroup group = groups.create("IdleGroup", "Idle", null);
+        groups.join(group, "Busy", null);
+        GroupInactivityWatcher watcher = new GroupInactivityWatcher(groups, new ConcurrentHashMap<>(), new TimingWheel(10, 8, "JunitTimingWheel"), 100);
+        long start = System.currentTimeMillis();
+        watcher.watch("IdleGroup", "Idle");
+        watcher.watch("IdleGroup", "Busy");
+
+        //Busy keeps sending messages till Idle is kicked
+        long deadline = start + 3000;
+        while (group.contains("Idle") && System.currentTimeMillis() < deadline) {
+            group.touch("Busy");
+            Thread.sleep(20);
+        }
+        Assertions.assertFalse(group.contains("Idle"));
+        Assertions.assertTrue(System.currentTimeMillis() - start >= 100);
+        Assertions.assertEquals(-1, group.getLastActivity("Idle"));
+        Assertions.assertTrue(group.contains("Busy"));
+        Assertions.assertEquals(1, group.getMembers().length);
+
+        //Once Busy stops, it is kicked as well
+        while (group.contains("Busy") && System.currentTimeMillis() < deadline) Thread.sleep(20);
+        Assertions.assertTrue(group.isEmpty());
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Remove a disconnecting user from only the groups it is a member of")
+    public void groupRegistryRemoveUser() {
+        GroupRegistry groups = new GroupRegistry();
+        ChatGroup first = groups.create("First", "Alice", null);
+        ChatGroup second = groups.create("Second", "Bob", null);
+        ChatGroup third = groups.create("Third", "Bob", null);
+        Assertions.assertNull(groups.create("First", "Bob", null)); //The group already exists
+        groups.join(first, "Bob", null);
+        groups.join(second, "Alice", null);
+
+        //A user that left and joined again is still indexed for the group
+        Assertions.assertTrue(groups.leave(second, "Alice"));
+        Assertions.assertFalse(groups.leave(second, "Alice"));
+        groups.join(second, "Alice", null);
+        groups.removeUser("Alice");
+        Assertions.assertFalse(first.contains("Alice"));
+        Assertions.assertFalse(second.contains("Alice"));
+        Assertions.assertTrue(first.contains("Bob"));
+        Assertions.assertTrue(second.contains("Bob"));
+
+        //A group that the user left is not touched again
+        Assertions.assertTrue(groups.leave(third, "Bob"));
+        Assertions.assertTrue(third.isEmpty());
+        groups.join(third, "Carol", null);
+        groups.removeUser("Bob");
+        Assertions.assertTrue(first.isEmpty());
+        Assertions.assertTrue(second.isEmpty());
+        Assertions.assertTrue(third.contains("Carol"));
+        groups.removeUser("Nobody");
+        Assertions.assertEquals(1, third.getMembers().length);
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Keep a snapshot of the members of a group while others join and leave")
+    public void chatGroupMemberSnapshot() throws InterruptedException {
+        GroupRegistry groups = new GroupRegistry();
+        ChatGroup group = groups.create("Snapshot", "Alice", null);
+        MessageManager[] before = group.getMembers();
+        Assertions.assertEquals(1, before.length);
+
+        //Joins and leaves publish new arrays, the old snapshot stays as it was
+        for (int i = 0; i < 10; i++) groups.join(group, "User" + i, null); //Grows the activity slots as well
+        MessageManager[] joined = group.getMembers();
+        Assertions.assertEquals(1, before.length);
+        Assertions.assertEquals(11, joined.length);
+        Assertions.assertTrue(groups.leave(group, "User3"));
+        Assertions.assertEquals(11, joined.length);
+        Assertions.assertEquals(10, group.getMembers().length);
+        Assertions.assertFalse(group.contains("User3"));
+        Assertions.assertTrue(group.contains("User4"));
+
+        //Joining again only refreshes the activity of a member
+        long lastActivity = group.getLastActivity("Alice");
+        Thread.sleep(5);
+        groups.join(group, "Alice", null);
+        Assertions.assertEquals(10, group.getMembers().length);
+        Assertions.assertTrue(group.getLastActivity("Alice") > lastActivity);
+
+        //The activity of the other members survives the removal of a member
+        lastActivity = group.getLastActivity("User9");
+        Thread.sleep(5);
+        group.touch("User9");
+        Assertions.assertTrue(groups.leave(group, "User0"));
+        Assertions.assertTrue(group.getLastActivity("User9") > lastActivity);
+        Assertions.assertEquals(-1, group.getLastActivity("User0"));
+        group.touch("User0"); //Not a member, nothing happens
+        Assertions.assertEquals(9, group.getMembers().length);
+    }
+
+    @Test
+    @DisplayName("GoodWeather - Count the flushes of a burst of direct messages that are written together")
+    public void writeCoalescingCounters() throws IOException, InterruptedException {
+        WriteCoalescing idle = new WriteCoalescing();
+        Assertions.assertEquals(0, idle.getFlushCount());
+        Assertions.assertEquals(0, idle.getFramesPerFlush());
+
+        Path directory = Files.createTempDirectory("nextpresso-coalescing");
+        MessageService coalescingService = new MessageService(new ServerSettings().messagePort(1346).batchWindow(50)
+                .inboxDirectory(directory.resolve("inbox")).historyDirectory(directory.resolve("history")).credentialFile(directory.resolve("credentials")), new FileService(7346));
+        WriteCoalescing coalescing = coalescingService.getWriteCoalescing();
+        Assertions.assertEquals(50, coalescing.getBatchWindow());
+        new Thread(coalescingService, "JunitCoalescingServerThread").start();
+
+        java.net.Socket receiverSocket = new java.net.Socket("localhost", 1346);
+        PrintWriter receiver = new PrintWriter(receiverSocket.getOutputStream(), true);
+        BufferedReader receiverReader = new BufferedReader(new InputStreamReader(receiverSocket.getInputStream()));
+        Helper.skipMessage(receiverReader);
+        receiver.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=BurstReceiver", ""));
+        Helper.skipMessage(receiverReader);
+
+        java.net.Socket senderSocket = new java.net.Socket("localhost", 1346);
+        PrintWriter sender = new PrintWriter(senderSocket.getOutputStream(), true);
+        BufferedReader senderReader = new BufferedReader(new InputStreamReader(senderSocket.getInputStream()));
+        Helper.skipMessage(senderReader);
+        sender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_LOGIN.code + "/username=BurstSender", ""));
+        Helper.skipMessage(senderReader);
+
+        //The messages are sent without waiting for the acknowledgements, so they arrive within the batch window
+        for (int i = 0; i < 20; i++) sender.println(Helper.buildProtocolString(ApiProtocol.REQUEST_PRIVATE_MESSAGE.code + "/username=BurstReceiver", "Burst" + i));
+        for (int i = 0; i < 20; i++) {
+            Assertions.assertEquals(Helper.buildProtocolString(ApiProtocol.MESSAGE_CHAT.code + "/sender=BurstSender/authenticated=false/encrypted=false", "Burst" + i), readAnsweringHeartbeats(receiverReader, receiver));
+        }
+
+        //The counters are updated right after the write that the receiver already read
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coalescing.getFrameCount() < 20 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        Assertions.assertEquals(20, coalescing.getFrameCount());
+        Assertions.assertTrue(coalescing.getFlushCount() < 20);
+        Assertions.assertTrue(coalescing.getFramesPerFlush() > 1);
+        Assertions.assertTrue(coalescing.getByteCount() > 20 * "Burst0".length());
+        receiverSocket.close();
+        senderSocket.close();
+        coalescingService.close();
+    }
+
+    /**
+     * Ask a node for its users till it lists a user of another node
+     * @return False if the user was not listed within 10 seconds
+     */
+    private static boolean awaitListedUser(PrintWriter sender, BufferedReader reader, String username) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            sender.println(Helper.buildProtocolString(String.valueOf(ApiProtocol.REQUEST_LIST_USERS.code), ""));
+            if (readAnsweringHeartbeats(reader, sender).contains("{" + username + ",")) return true;
+            Thread.sleep(200);
+        }
+        return false;
+    }
+
+    /**
+     * Read the next server message that is not a heartbeat request, heartbeat requests are answered on the way
+     */
+    private static String readAnsweringHeartbeats(BufferedReader reader, PrintWriter sender) throws IOException {
+        String heartbeat = Helper.buildProtocolString(String.valueOf(ApiProtocol.HEARTBEAT_REQUEST.code), "");
+        String response;
+        while ((response = Helper.readServerMessage(reader)).equals(heartbeat)) {
+            sender.println(Helper.buildProtocolString(String.valueOf(ApiProtocol.HEARTBEAT_RESPONSE.code), ""));
+        }
+        return response;
+    }
+
+    private static Message readBinaryAnsweringHeartbeats(NetSocket binarySocket) throws IOException, NextPressoException {
+        Message response;
+        while ((response = NPP2Codec.decode(binarySocket.awaitIncomingNPP2Frame()).buildMessage()).getHeaderCode() == ApiProtocol.HEARTBEAT_REQUEST) {
+            binarySocket.sendMessage(new NextPressoMessageBuilder(ApiProtocol.HEARTBEAT_RESPONSE));
+        }
+        return response;
+    }
+
+    private static OutboundFrame chatFrame(String body) {
+        return new OutboundFrame(new NextPressoMessageBuilder(ApiProtocol.MESSAGE_CHAT, body));
+    }
 }
\ No newline at end of file